@@ -0,0 +1,136 @@
+package trietree.bench;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import trietree.TrieTree;
+
+/**
+ * Reader/writer mixes on one shared tree. Writers put and remove keys that
+ * are not in the dictionary, so the tree stays the same size and readers
+ * keep hitting. Results are reported per thread role.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ConcurrentBenchmark
+{
+    // Tree and key arrays shared by the threads of one benchmark.
+    public abstract static class TreeState
+    {
+        Words words;
+        String[] keys;
+        String[] writerKeys;
+        TrieTree<Integer> tt;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException
+        {
+            words = Words.load();
+            keys = words.shuffledKeys();
+            writerKeys = words.missingKeys();
+            tt = words.newTree();
+        }
+
+        String randomKey()
+        {
+            return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        }
+
+        String randomWriterKey()
+        {
+            return writerKeys[ThreadLocalRandom.current().nextInt(writerKeys.length)];
+        }
+    }
+
+    @State(Scope.Group)
+    public static class Shared extends TreeState
+    {
+    }
+
+    // Readers only, no contention from writers.
+    @State(Scope.Benchmark)
+    public static class ReadOnly extends TreeState
+    {
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Integer readOnlyGet(ReadOnly state)
+    {
+        return state.tt.get(state.randomKey());
+    }
+
+    // 90/10: three readers per writer.
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(3)
+    public Integer readMostlyGet(Shared state)
+    {
+        return state.tt.get(state.randomKey());
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(1)
+    public boolean readMostlyWrite(Shared state)
+    {
+        String key = state.randomWriterKey();
+        return state.tt.put(key, 1) || state.tt.remove(key);
+    }
+
+    // Balanced: two readers, two writers.
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(2)
+    public Integer balancedGet(Shared state)
+    {
+        return state.tt.get(state.randomKey());
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(2)
+    public boolean balancedWrite(Shared state)
+    {
+        String key = state.randomWriterKey();
+        return state.tt.put(key, 1) || state.tt.remove(key);
+    }
+
+    // Autocomplete under writes: short prefix enumeration against writers.
+    @Benchmark
+    @Group("prefixUnderWrites")
+    @GroupThreads(3)
+    public Object prefixUnderWritesCollect(Shared state)
+    {
+        String key = state.randomKey();
+        return state.tt.keyValueCollectionWithPrefix(key.substring(0, Math.min(3, key.length())));
+    }
+
+    @Benchmark
+    @Group("prefixUnderWrites")
+    @GroupThreads(1)
+    public boolean prefixUnderWritesWrite(Shared state)
+    {
+        String key = state.randomWriterKey();
+        return state.tt.put(key, 1) || state.tt.remove(key);
+    }
+}
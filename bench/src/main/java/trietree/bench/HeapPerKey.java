@@ -0,0 +1,45 @@
+package trietree.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import trietree.TrieStats;
+import trietree.TrieTree;
+
+/**
+ * Measures the heap retained per key by a tree holding the whole dictionary,
+ * and prints it next to the estimate from TrieTree.stats(). Run it with a
+ * fixed heap, e.g. -Xms2g -Xmx2g, so collections are comparable.
+ */
+public final class HeapPerKey
+{
+    private HeapPerKey()
+    {
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        Words words = Words.load();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        long before = usedAfterGc(memory);
+        TrieTree<Integer> tt = words.newTree();
+        long after = usedAfterGc(memory);
+
+        TrieStats stats = tt.stats();
+        long retained = after - before;
+        System.out.println("keys:               " + tt.size());
+        System.out.println("retained bytes:     " + retained);
+        System.out.println("retained bytes/key: " + String.format("%.1f", (double) retained / tt.size()));
+        System.out.println("estimated bytes/key:" + String.format("%.1f", stats.getBytesPerKey()));
+        System.out.println(stats);
+    }
+
+    private static long usedAfterGc(MemoryMXBean memory)
+    {
+        for (int i = 0; i < 3; ++i)
+            System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
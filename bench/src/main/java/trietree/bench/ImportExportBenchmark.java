@@ -0,0 +1,94 @@
+package trietree.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import frugalinstant.TrieTreeCsv;
+import trietree.TrieTree;
+
+/**
+ * Frugal Instant import and export of the whole dictionary, through the same
+ * TrieTreeCsv code the GUI uses. The file is read from memory and written to
+ * a counting sink, so disk speed does not factor in.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@State(Scope.Benchmark)
+public class ImportExportBenchmark
+{
+    private Words words;
+    private TrieTree<Integer> loaded;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        words = Words.load();
+        loaded = words.newTree();
+    }
+
+    @Benchmark
+    public TrieTree<Integer> importCsv() throws IOException
+    {
+        HashMap<String, Integer> kvc = new HashMap<String, Integer>();
+        TrieTreeCsv.read(new BufferedReader(new StringReader(words.csv())), kvc);
+
+        TrieTree<Integer> tt = new TrieTree<Integer>();
+        TrieTreeCsv.populate(kvc, tt, false);
+        return tt;
+    }
+
+    @Benchmark
+    public long exportCsv() throws IOException
+    {
+        CountingWriter writer = new CountingWriter();
+        TrieTreeCsv.write(loaded.allKeyValues(), writer);
+        return writer.count;
+    }
+
+    // Discards everything but the number of characters written.
+    private static final class CountingWriter extends Writer
+    {
+        long count;
+
+        @Override
+        public void write(char[] buffer, int offset, int length)
+        {
+            count += length;
+        }
+
+        @Override
+        public void write(String str)
+        {
+            count += str.length();
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package trietree.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import trietree.AhoCorasickScanner;
+import trietree.TrieMatchListener;
+import trietree.TrieTree;
+
+/**
+ * Tagging text against the whole dictionary with AhoCorasickScanner. The
+ * text is the words.txt file itself (about 3.9M characters), which is dense
+ * with matches.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@State(Scope.Benchmark)
+public class ScannerBenchmark
+{
+    private static final TrieMatchListener<Integer> COUNT_ONLY = new TrieMatchListener<Integer>()
+    {
+        public boolean matchFound(long start, long end, String key, Integer value)
+        {
+            return true;
+        }
+    };
+
+    private Words words;
+    private TrieTree<Integer> tt;
+    private AhoCorasickScanner<Integer> scanner;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        words = Words.load();
+        tt = words.newTree();
+        scanner = AhoCorasickScanner.compile(tt);
+    }
+
+    @Benchmark
+    public AhoCorasickScanner<Integer> compile()
+    {
+        return AhoCorasickScanner.compile(tt);
+    }
+
+    @Benchmark
+    public long scan()
+    {
+        return scanner.scan(words.csv(), COUNT_ONLY);
+    }
+}
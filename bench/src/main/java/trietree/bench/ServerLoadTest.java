@@ -0,0 +1,177 @@
+package trietree.bench;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import frugalinstant.AutocompleteServer;
+import trietree.LatencyHistogram;
+import trietree.TrieTree;
+
+/**
+ * Load test for AutocompleteServer. Keeps a fixed number of requests in
+ * flight over as many connections, asking for completions of prefixes of
+ * words.txt keys picked with Zipfian skew (so popular prefixes repeat, as
+ * they do when people type), with an optional share of single-key updates.
+ * Prints throughput and p50/p90/p99/max latency from send to last byte.
+ *
+ * Without --url, the server runs in this JVM on a free port with the whole
+ * dictionary. Run it on JDK 21 or later to serve on virtual threads, and
+ * raise -Djdk.httpclient.connectionPoolSize and the open file limit for
+ * thousands of connections.
+ *
+ * Usage: ServerLoadTest [--url http://localhost:8080] [--connections N]
+ * [--requests N] [--limit N] [--update P] [--skew T] [--seed S]
+ */
+public final class ServerLoadTest
+{
+    private String url;
+    private int connections = 2000;
+    private int requests = 200000;
+    private int limit = 10;
+    private int updatePercent = 0;
+    private double skew = 0.99;
+    private long seed = 42;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong failures = new AtomicLong();
+
+    private ServerLoadTest()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        ServerLoadTest test = new ServerLoadTest();
+        test.parse(args);
+        test.run();
+    }
+
+    private void parse(String[] args)
+    {
+        for (int i = 0; i < args.length; i += 2)
+        {
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+
+            String arg = args[i];
+            String value = args[i + 1];
+            if (arg.equals("--url"))
+                url = value;
+            else if (arg.equals("--connections"))
+                connections = Integer.parseInt(value);
+            else if (arg.equals("--requests"))
+                requests = Integer.parseInt(value);
+            else if (arg.equals("--limit"))
+                limit = Integer.parseInt(value);
+            else if (arg.equals("--update"))
+                updatePercent = Integer.parseInt(value);
+            else if (arg.equals("--skew"))
+                skew = Double.parseDouble(value);
+            else if (arg.equals("--seed"))
+                seed = Long.parseLong(value);
+            else
+                throw new IllegalArgumentException("Unknown option " + arg);
+        }
+    }
+
+    private void run() throws IOException, InterruptedException
+    {
+        Words words = Words.load();
+        String[] keys = words.shuffledKeys();
+
+        AutocompleteServer server = null;
+        if (url == null)
+        {
+            TrieTree<Integer> tt = words.newTree();
+            server = new AutocompleteServer(tt, 0);
+            server.start();
+            url = "http://localhost:" + server.getPort();
+            System.out.println("In-process server with " + tt.size() + " keys on "
+                + (server.usesVirtualThreads() ? "virtual threads" : "a thread pool"));
+        }
+
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        ZipfianGenerator zipf = new ZipfianGenerator(keys.length, skew, seed);
+
+        // Warm up the server and the connection pool.
+        issue(client, keys, zipf, Math.min(requests, 10 * connections), false);
+        latency.reset();
+        failures.set(0);
+
+        long start = System.nanoTime();
+        issue(client, keys, zipf, requests, true);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("connections:  " + connections);
+        System.out.println("requests:     " + requests + " (" + failures.get() + " failed)");
+        System.out.println("throughput:   " + String.format("%.0f", requests / (elapsed / 1e9)) + " req/s");
+        System.out.println("latency p50:  " + micros(latency.getPercentile(50)));
+        System.out.println("latency p90:  " + micros(latency.getPercentile(90)));
+        System.out.println("latency p99:  " + micros(latency.getPercentile(99)));
+        System.out.println("latency max:  " + micros(latency.getMax()));
+
+        if (server != null)
+            server.stop(0);
+    }
+
+    /**
+     * This method sends the requests with at most connections in flight and
+     * waits for all of them.
+     */
+    private void issue(HttpClient client, String[] keys, ZipfianGenerator zipf, int count, final boolean record)
+        throws InterruptedException
+    {
+        final Semaphore inFlight = new Semaphore(connections);
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; ++i)
+        {
+            String key = keys[zipf.next()];
+            HttpRequest request;
+            if (zipf.nextUniform() * 100 < updatePercent)
+            {
+                request = HttpRequest.newBuilder(URI.create(url + "/update"))
+                    .POST(HttpRequest.BodyPublishers.ofString(key + "\\," + i)).build();
+            }
+            else
+            {
+                // Prefixes of one to four characters, as typed.
+                String prefix = key.substring(0, Math.min(key.length(), 1 + (int) (zipf.nextUniform() * 4)));
+                request = HttpRequest.newBuilder(URI.create(url + "/complete?limit=" + limit + "&prefix="
+                    + URLEncoder.encode(prefix, StandardCharsets.UTF_8))).GET().build();
+            }
+
+            inFlight.acquire();
+            final long sent = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>()
+                {
+                    public void accept(HttpResponse<byte[]> response, Throwable failure)
+                    {
+                        if (record)
+                            latency.record(System.nanoTime() - sent);
+                        if (failure != null || response.statusCode() != 200)
+                            failures.incrementAndGet();
+
+                        inFlight.release();
+                        done.countDown();
+                    }
+                });
+        }
+
+        done.await();
+    }
+
+    private static String micros(long nanos)
+    {
+        return String.format("%.0f us", nanos / 1000.0);
+    }
+}
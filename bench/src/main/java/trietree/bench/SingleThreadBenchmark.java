@@ -0,0 +1,168 @@
+package trietree.bench;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import trietree.TrieTree;
+
+/**
+ * Single-threaded cost of the basic operations over the whole dictionary.
+ * Each invocation touches every word once, so the reported time is per key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class SingleThreadBenchmark
+{
+    // Number of words in words.txt.
+    static final int WORDS = 235886;
+
+    @State(Scope.Benchmark)
+    public static class Loaded
+    {
+        Words words;
+        String[] missing;
+        List<Map.Entry<String, Integer>> entries;
+        TrieTree<Integer> tt;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException
+        {
+            words = Words.load();
+            if (words.size() != WORDS)
+                throw new IllegalStateException("Expected " + WORDS + " words, found " + words.size());
+            missing = words.missingKeys();
+            entries = words.shuffledEntries();
+            tt = words.newTree();
+        }
+    }
+
+    // Fresh full tree for every invocation of a destructive benchmark.
+    @State(Scope.Thread)
+    public static class Disposable
+    {
+        Words words;
+        TrieTree<Integer> tt;
+
+        @Setup(Level.Invocation)
+        public void setup() throws IOException
+        {
+            words = Words.load();
+            tt = words.newTree();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public TrieTree<Integer> put(Loaded state)
+    {
+        TrieTree<Integer> tt = new TrieTree<Integer>();
+        state.words.putAll(tt);
+        return tt;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public TrieTree<Integer> putAllBatch(Loaded state)
+    {
+        TrieTree<Integer> tt = new TrieTree<Integer>();
+        tt.putAll(state.entries);
+        return tt;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public void getHit(Loaded state, Blackhole bh)
+    {
+        for (String key : state.words.shuffledKeys())
+            bh.consume(state.tt.get(key));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public List<Integer> getAllBatch(Loaded state)
+    {
+        return state.tt.getAll(Arrays.asList(state.words.shuffledKeys()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public void getMiss(Loaded state, Blackhole bh)
+    {
+        for (String key : state.missing)
+            bh.consume(state.tt.get(key));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public void contains(Loaded state, Blackhole bh)
+    {
+        for (String key : state.words.shuffledKeys())
+            bh.consume(state.tt.contains(key));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public void remove(Disposable state, Blackhole bh)
+    {
+        for (String key : state.words.shuffledKeys())
+            bh.consume(state.tt.remove(key));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public HashMap<String, Boolean> removeAllBatch(Disposable state)
+    {
+        return state.tt.removeAll(Arrays.asList(state.words.shuffledKeys()));
+    }
+
+    /**
+     * Prefix enumeration, from "a" (about 17k keys) down to long prefixes
+     * with a handful of matches.
+     */
+    @State(Scope.Benchmark)
+    public static class Prefixes
+    {
+        @Param({ "a", "co", "inter", "pseudoa", "nonexistent" })
+        String prefix;
+    }
+
+    @Benchmark
+    public Object prefixCollection(Loaded state, Prefixes prefixes)
+    {
+        return state.tt.keyValueCollectionWithPrefix(prefixes.prefix);
+    }
+
+    @Benchmark
+    public Object parallelPrefixCollection(Loaded state, Prefixes prefixes)
+    {
+        return state.tt.parallelKeyValueCollectionWithPrefix(prefixes.prefix);
+    }
+
+    @Benchmark
+    public Object allKeyValues(Loaded state)
+    {
+        return state.tt.allKeyValues();
+    }
+}
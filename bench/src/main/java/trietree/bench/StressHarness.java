@@ -0,0 +1,412 @@
+package trietree.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import trietree.LatencyHistogram;
+import trietree.TrieAggregate;
+import trietree.TrieAggregates;
+import trietree.TrieMetrics;
+import trietree.TrieTree;
+
+/**
+ * Multi-threaded soak test for TrieTree. Every thread runs a mix of put,
+ * update, remove, get and prefix collection over words.txt keys picked with
+ * Zipfian skew, for a fixed duration, then the final tree is checked against
+ * a reference model.
+ * 
+ * Each key is owned by exactly one thread and only its owner writes it, so
+ * the owner knows the exact outcome of every write and checks each return
+ * value. Any thread may read any key; Values encode the key index and a
+ * version, so readers check that a Value belongs to its key and was actually
+ * written. At the end the harness checks size(), the full contents,
+ * countWithPrefix (i.e. the reference counts) for many prefixes, rank/select
+ * round trips and a sum aggregate against the model.
+ * 
+ * Usage: StressHarness [--threads N] [--seconds N] [--keys N] [--skew T]
+ * [--put P] [--update P] [--remove P] [--prefix P] [--seed S] [--metrics]
+ * where the mix percentages default to 10/10/10/10 and the rest are gets.
+ * Exits with status 1 if any check fails.
+ */
+public final class StressHarness
+{
+    private static enum Op
+    {
+        PUT, UPDATE, REMOVE, GET, PREFIX
+    }
+
+    private static final long ABSENT = -1;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int seconds = 60;
+    private int keyCount = Integer.MAX_VALUE;
+    private double skew = 0.99;
+    private int putPercent = 10;
+    private int updatePercent = 10;
+    private int removePercent = 10;
+    private int prefixPercent = 10;
+    private long seed = 42;
+    private boolean withMetrics;
+
+    private String[] keys;
+    private HashMap<String, Integer> keyIndex;
+    private TrieTree<Long> tt;
+    private TrieAggregate<Number, Long> sum;
+
+    // model[i] is the Value of key i, or ABSENT. Written by the owner only.
+    private long[] model;
+    // Highest version ever written for key i, raised before the write.
+    private AtomicLongArray maxVersion;
+
+    private final EnumMap<Op, LatencyHistogram> latencies = new EnumMap<Op, LatencyHistogram>(Op.class);
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicReference<String> firstFailure = new AtomicReference<String>();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception
+    {
+        StressHarness harness = new StressHarness();
+        harness.parse(args);
+        System.exit(harness.run() ? 0 : 1);
+    }
+
+    private void parse(String[] args)
+    {
+        for (int i = 0; i < args.length; ++i)
+        {
+            String arg = args[i];
+            if (arg.equals("--metrics"))
+            {
+                withMetrics = true;
+                continue;
+            }
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + arg);
+
+            String value = args[++i];
+            if (arg.equals("--threads"))
+                threads = Integer.parseInt(value);
+            else if (arg.equals("--seconds"))
+                seconds = Integer.parseInt(value);
+            else if (arg.equals("--keys"))
+                keyCount = Integer.parseInt(value);
+            else if (arg.equals("--skew"))
+                skew = Double.parseDouble(value);
+            else if (arg.equals("--put"))
+                putPercent = Integer.parseInt(value);
+            else if (arg.equals("--update"))
+                updatePercent = Integer.parseInt(value);
+            else if (arg.equals("--remove"))
+                removePercent = Integer.parseInt(value);
+            else if (arg.equals("--prefix"))
+                prefixPercent = Integer.parseInt(value);
+            else if (arg.equals("--seed"))
+                seed = Long.parseLong(value);
+            else
+                throw new IllegalArgumentException("Unknown option " + arg);
+        }
+
+        if (putPercent + updatePercent + removePercent + prefixPercent > 100)
+            throw new IllegalArgumentException("Operation mix adds up to more than 100%");
+    }
+
+    private boolean run() throws IOException, InterruptedException
+    {
+        Words words = Words.load();
+        String[] shuffled = words.shuffledKeys();
+        keys = new String[Math.min(keyCount, shuffled.length)];
+        System.arraycopy(shuffled, 0, keys, 0, keys.length);
+        keyIndex = new HashMap<String, Integer>();
+        for (int i = 0; i < keys.length; ++i)
+            keyIndex.put(keys[i], i);
+
+        model = new long[keys.length];
+        maxVersion = new AtomicLongArray(keys.length);
+        tt = new TrieTree<Long>();
+        sum = TrieAggregates.sum();
+        tt.addAggregate(sum);
+        if (withMetrics)
+            tt.setMetrics(new TrieMetrics());
+
+        // Start half full so removes and updates hit from the beginning.
+        for (int i = 0; i < keys.length; ++i)
+        {
+            model[i] = ABSENT;
+            if (i % 2 == 0)
+            {
+                long value = encode(i, 0);
+                tt.put(keys[i], value);
+                model[i] = value;
+            }
+        }
+        for (Op op : Op.values())
+            latencies.put(op, new LatencyHistogram());
+
+        System.out.println("Stress: " + threads + " threads, " + seconds + " s, " + keys.length + " keys, skew "
+            + skew + ", mix put/update/remove/prefix " + putPercent + "/" + updatePercent + "/" + removePercent
+            + "/" + prefixPercent + "%");
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; ++t)
+        {
+            final int owner = t;
+            Thread worker = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        work(owner);
+                    }
+                    catch (Throwable e)
+                    {
+                        fail("Worker " + owner + " died: " + e);
+                        e.printStackTrace();
+                    }
+                }
+            }, "stress-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        long lastOps = 0;
+        for (int elapsed = 1; elapsed <= seconds && firstFailure.get() == null; ++elapsed)
+        {
+            Thread.sleep(1000);
+            if (elapsed % 10 == 0 || elapsed == seconds)
+            {
+                long ops = operations.get();
+                System.out.println(String.format("  %4d s: %,12d ops, %,10d ops/s over the last %d s", elapsed, ops,
+                                                 (ops - lastOps) / (elapsed % 10 == 0 ? 10 : elapsed % 10),
+                                                 elapsed % 10 == 0 ? 10 : elapsed % 10));
+                lastOps = ops;
+            }
+        }
+        running = false;
+        for (Thread worker : workers)
+            worker.join();
+        long nanos = System.nanoTime() - begin;
+
+        System.out.println(String.format("Sustained: %,d ops/s (%,d ops in %.1f s)",
+                                         (long) (operations.get() / (nanos / 1e9)), operations.get(), nanos / 1e9));
+        for (Map.Entry<Op, LatencyHistogram> entry : latencies.entrySet())
+            System.out.println(String.format("  %-7s latency ns: %s", entry.getKey(), entry.getValue()));
+        if (withMetrics)
+            System.out.println("  lock wait ns: " + tt.getMetrics().getLockWait() + "\n  lock hold ns: "
+                + tt.getMetrics().getLockHold());
+
+        if (firstFailure.get() == null)
+            verifyFinalState();
+
+        if (firstFailure.get() != null)
+        {
+            System.out.println("FAILED: " + firstFailure.get());
+            return false;
+        }
+
+        System.out.println("PASSED: final state matches the reference model.");
+        return true;
+    }
+
+    private void work(int owner)
+    {
+        ZipfianGenerator zipf = new ZipfianGenerator(keys.length, skew, seed * 31 + owner);
+        long localOps = 0;
+        while (running && firstFailure.get() == null)
+        {
+            int index = zipf.next();
+            double dice = zipf.nextUniform() * 100;
+
+            Op op;
+            if (dice < putPercent)
+                op = Op.PUT;
+            else if (dice < putPercent + updatePercent)
+                op = Op.UPDATE;
+            else if (dice < putPercent + updatePercent + removePercent)
+                op = Op.REMOVE;
+            else if (dice < putPercent + updatePercent + removePercent + prefixPercent)
+                op = Op.PREFIX;
+            else
+                op = Op.GET;
+
+            // Writes go to the nearest key this thread owns.
+            if (op == Op.PUT || op == Op.UPDATE || op == Op.REMOVE)
+            {
+                index = index - index % threads + owner;
+                if (index >= keys.length)
+                    index = owner < keys.length ? owner : 0;
+                if (index % threads != owner)
+                    op = Op.GET;
+            }
+
+            long start = System.nanoTime();
+            switch (op)
+            {
+                case PUT:
+                    write(op, index);
+                    break;
+                case UPDATE:
+                    write(op, index);
+                    break;
+                case REMOVE:
+                    write(op, index);
+                    break;
+                case GET:
+                    checkRead(index, tt.get(keys[index]));
+                    break;
+                case PREFIX:
+                    String key = keys[index];
+                    // Autocomplete-sized prefixes of three to five characters.
+                    String prefix = key.substring(0, Math.min(key.length(), 3 + index % 3));
+                    for (Map.Entry<String, Long> entry : tt.keyValueCollectionWithPrefix(prefix).entrySet())
+                    {
+                        if (!entry.getKey().startsWith(prefix))
+                            fail("Prefix \"" + prefix + "\" returned \"" + entry.getKey() + "\"");
+                        Integer entryIndex = keyIndex.get(entry.getKey());
+                        if (entryIndex == null)
+                            fail("Prefix \"" + prefix + "\" returned unknown key \"" + entry.getKey() + "\"");
+                        else
+                            checkRead(entryIndex, entry.getValue());
+                    }
+                    break;
+            }
+            latencies.get(op).record(System.nanoTime() - start);
+
+            if (++localOps % 1024 == 0)
+                operations.addAndGet(1024);
+        }
+        operations.addAndGet(localOps % 1024);
+    }
+
+    // Performs a write on a key this thread owns and checks its outcome.
+    private void write(Op op, int index)
+    {
+        String key = keys[index];
+        boolean present = model[index] != ABSENT;
+        long version = maxVersion.incrementAndGet(index);
+        long value = encode(index, version);
+
+        boolean rc;
+        if (op == Op.PUT)
+        {
+            rc = tt.put(key, value);
+            if (rc != !present)
+                fail("put(\"" + key + "\") returned " + rc + " with the key " + (present ? "present" : "absent"));
+            if (!present)
+                model[index] = value;
+        }
+        else if (op == Op.UPDATE)
+        {
+            rc = tt.update(key, value);
+            if (rc != present)
+                fail("update(\"" + key + "\") returned " + rc + " with the key " + (present ? "present" : "absent"));
+            if (present)
+                model[index] = value;
+        }
+        else
+        {
+            rc = tt.remove(key);
+            if (rc != present)
+                fail("remove(\"" + key + "\") returned " + rc + " with the key " + (present ? "present" : "absent"));
+            model[index] = ABSENT;
+        }
+    }
+
+    // A Value read for key i must belong to key i and must have been written.
+    private void checkRead(int index, Long value)
+    {
+        if (value == null)
+            return;
+
+        int valueIndex = (int) (value >>> 32);
+        long version = value & 0xffffffffL;
+        if (valueIndex != index)
+            fail("Key \"" + keys[index] + "\" holds the Value of \"" + keys[valueIndex] + "\"");
+        else if (version > maxVersion.get(index))
+            fail("Key \"" + keys[index] + "\" holds version " + version + " that was never written");
+    }
+
+    private void verifyFinalState()
+    {
+        HashMap<String, Long> expected = new HashMap<String, Long>();
+        long expectedSum = 0;
+        for (int i = 0; i < keys.length; ++i)
+        {
+            if (model[i] != ABSENT)
+            {
+                expected.put(keys[i], model[i]);
+                expectedSum += model[i];
+            }
+        }
+
+        if (tt.size() != expected.size())
+            fail("size() is " + tt.size() + ", model has " + expected.size());
+        else if (!tt.allKeyValues().equals(expected))
+            fail("Contents differ from the model");
+        else if (tt.aggregate("", sum) != expectedSum)
+            fail("Sum aggregate is " + tt.aggregate("", sum) + ", model sums to " + expectedSum);
+        if (firstFailure.get() != null)
+            return;
+
+        // countWithPrefix reads the reference counts, so checking it for every
+        // prefix of a sample of keys checks the counts along those paths.
+        HashMap<String, Long> prefixCounts = new HashMap<String, Long>();
+        Random random = new Random(seed);
+        List<String> sample = new ArrayList<String>();
+        for (int i = 0; i < Math.min(2000, keys.length); ++i)
+            sample.add(keys[random.nextInt(keys.length)]);
+        for (String key : sample)
+            for (int length = 1; length <= key.length(); ++length)
+                prefixCounts.put(key.substring(0, length), 0L);
+        for (String key : expected.keySet())
+            for (int length = 1; length <= key.length(); ++length)
+            {
+                Long count = prefixCounts.get(key.substring(0, length));
+                if (count != null)
+                    prefixCounts.put(key.substring(0, length), count + 1);
+            }
+        for (Map.Entry<String, Long> entry : prefixCounts.entrySet())
+        {
+            long actual = tt.countWithPrefix(entry.getKey());
+            if (actual != entry.getValue())
+            {
+                fail("countWithPrefix(\"" + entry.getKey() + "\") is " + actual + ", model has " + entry.getValue());
+                return;
+            }
+        }
+
+        for (String key : sample)
+        {
+            if (expected.containsKey(key) && !key.equals(tt.select(tt.rank(key))))
+            {
+                fail("select(rank(\"" + key + "\")) is \"" + tt.select(tt.rank(key)) + "\"");
+                return;
+            }
+        }
+        System.out.println("Checked size, contents, sum aggregate, " + prefixCounts.size()
+            + " prefix counts and rank/select of " + sample.size() + " keys.");
+    }
+
+    private static long encode(int index, long version)
+    {
+        return ((long) index << 32) | (version & 0xffffffffL);
+    }
+
+    private void fail(String message)
+    {
+        firstFailure.compareAndSet(null, message);
+    }
+}
@@ -0,0 +1,162 @@
+package trietree.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import frugalinstant.TrieTreeCsv;
+import trietree.TrieTree;
+
+/**
+ * The bundled words.txt dictionary, loaded once per JVM. The file is looked
+ * up at the trietree.words system property, then at ../words.txt and
+ * words.txt relative to the working directory.
+ */
+public final class Words
+{
+    private static Words instance;
+
+    private final String csv;
+    private final String[] keys;
+    private final int[] values;
+    private final String[] shuffledKeys;
+    private final int[] shuffledValues;
+
+    private Words(String text, LinkedHashMap<String, Integer> kvc)
+    {
+        csv = text;
+        keys = kvc.keySet().toArray(new String[kvc.size()]);
+        values = new int[keys.length];
+        for (int i = 0; i < keys.length; ++i)
+            values[i] = kvc.get(keys[i]);
+
+        // Fixed seed so every run looks up the same sequence.
+        List<String> shuffled = new ArrayList<String>(kvc.keySet());
+        Collections.shuffle(shuffled, new Random(0x5eed));
+        shuffledKeys = shuffled.toArray(new String[shuffled.size()]);
+        shuffledValues = new int[shuffledKeys.length];
+        for (int i = 0; i < shuffledKeys.length; ++i)
+            shuffledValues[i] = kvc.get(shuffledKeys[i]);
+    }
+
+    public static synchronized Words load() throws IOException
+    {
+        if (instance != null)
+            return instance;
+
+        File file = locate();
+        String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        LinkedHashMap<String, Integer> kvc = new LinkedHashMap<String, Integer>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                                         StandardCharsets.UTF_8));
+        try
+        {
+            if (!TrieTreeCsv.read(reader, kvc))
+                throw new IOException("Malformed row in " + file);
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        instance = new Words(text, kvc);
+        return instance;
+    }
+
+    private static File locate() throws IOException
+    {
+        String property = System.getProperty("trietree.words");
+        String[] candidates = property != null ? new String[] { property }
+                                               : new String[] { "../words.txt", "words.txt" };
+        for (String candidate : candidates)
+        {
+            File file = new File(candidate);
+            if (file.isFile())
+                return file;
+        }
+
+        throw new IOException("words.txt not found; set -Dtrietree.words=<path>");
+    }
+
+    /**
+     * @return The whole file, for import benchmarks.
+     */
+    public String csv()
+    {
+        return csv;
+    }
+
+    /**
+     * @return Keys in file order, which is sorted.
+     */
+    public String[] keys()
+    {
+        return keys;
+    }
+
+    /**
+     * @return Keys in a fixed random order.
+     */
+    public String[] shuffledKeys()
+    {
+        return shuffledKeys;
+    }
+
+    public int size()
+    {
+        return keys.length;
+    }
+
+    /**
+     * @return Tree with every word, put in random order.
+     */
+    public TrieTree<Integer> newTree()
+    {
+        TrieTree<Integer> tt = new TrieTree<Integer>();
+        putAll(tt);
+        return tt;
+    }
+
+    /**
+     * This method puts every word into a tree, in random order.
+     */
+    public void putAll(TrieTree<Integer> tt)
+    {
+        for (int i = 0; i < shuffledKeys.length; ++i)
+            tt.put(shuffledKeys[i], shuffledValues[i]);
+    }
+
+    /**
+     * @return Every word and its Value, in the same random order as
+     *         shuffledKeys().
+     */
+    public List<Map.Entry<String, Integer>> shuffledEntries()
+    {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(shuffledKeys.length);
+        for (int i = 0; i < shuffledKeys.length; ++i)
+            entries.add(new AbstractMap.SimpleImmutableEntry<String, Integer>(shuffledKeys[i], shuffledValues[i]));
+        return entries;
+    }
+
+    /**
+     * @return Keys that are not in the dictionary but share its prefixes.
+     */
+    public String[] missingKeys()
+    {
+        String[] missing = new String[shuffledKeys.length];
+        for (int i = 0; i < missing.length; ++i)
+            missing[i] = shuffledKeys[i] + "#";
+        return missing;
+    }
+}
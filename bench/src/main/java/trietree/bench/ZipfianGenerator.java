@@ -0,0 +1,75 @@
+package trietree.bench;
+
+import java.util.Random;
+
+/**
+ * Draws integers in [0, n) with a Zipfian distribution: item 0 is the most
+ * popular, item i has probability proportional to 1 / (i + 1)^theta. Uses the
+ * constant-time method of Gray et al., "Quickly Generating Billion-Record
+ * Synthetic Databases". Not thread-safe; give each thread its own instance.
+ */
+public final class ZipfianGenerator
+{
+    private final int items;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+    private final Random random;
+
+    /**
+     * @param n
+     *            Number of items.
+     * @param skew
+     *            Zipf exponent theta in (0, 1). 0.99 is the usual "hot keys"
+     *            setting.
+     * @param seed
+     *            Seed of the underlying random source.
+     */
+    public ZipfianGenerator(int n, double skew, long seed)
+    {
+        if (n <= 0)
+            throw new IllegalArgumentException("Item count must be positive: " + n);
+        if (skew <= 0 || skew >= 1)
+            throw new IllegalArgumentException("Skew must be in (0, 1): " + skew);
+
+        items = n;
+        theta = skew;
+        zetaN = zeta(n, skew);
+        alpha = 1.0 / (1.0 - skew);
+        eta = (1 - Math.pow(2.0 / n, 1 - skew)) / (1 - zeta(2, skew) / zetaN);
+        random = new Random(seed);
+    }
+
+    private static double zeta(int n, double theta)
+    {
+        double sum = 0;
+        for (int i = 1; i <= n; ++i)
+            sum += 1 / Math.pow(i, theta);
+        return sum;
+    }
+
+    /**
+     * @return Next item, 0 being the most popular.
+     */
+    public int next()
+    {
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1)
+            return 0;
+        if (uz < 1 + Math.pow(0.5, theta))
+            return Math.min(1, items - 1);
+
+        return Math.min(items - 1, (int) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    /**
+     * @return Uniform double in [0, 1) from the same source, for picking the
+     *         operation.
+     */
+    public double nextUniform()
+    {
+        return random.nextDouble();
+    }
+}
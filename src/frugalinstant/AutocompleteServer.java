@@ -0,0 +1,533 @@
+package frugalinstant;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import trietree.BoundedTrieTree;
+import trietree.TrieAggregate;
+import trietree.TrieAggregates;
+import trietree.TrieTree;
+
+/**
+ * Frugal Instant without the GUI: serves a TrieTree<Integer> over HTTP on
+ * localhost with the JDK HttpServer. Every exchange runs on its own virtual
+ * thread when the JDK has them (21 and later), and on a cached pool of daemon
+ * threads otherwise. Responses are JSON.
+ *
+ * GET /get?key=K                 {"key":K,"value":V}, or 404
+ * GET /complete?prefix=P&limit=N the N keys with the greatest Values
+ * GET /stats                     size, version and cache counters
+ * POST /get                      one key per line; Values in the same order
+ * POST /put, POST /update        CSV rows "Key\,Value" as imported by the GUI
+ * POST /remove                   one key per line
+ *
+ * The POST forms batch many keys into one request and one sorted pass over
+ * the tree (getAll, putAll, updateAll, removeAll). Completions are searched
+ * best first with a max aggregate registered on the tree, so a one-letter
+ * prefix costs about as much as a long one. They are also cached in a
+ * BoundedTrieTree with the tree's modificationCount(), and a cached response
+ * is served only while the tree has not changed since.
+ *
+ * Usage: AutocompleteServer [--port N] [--csv FILE]
+ */
+public final class AutocompleteServer
+{
+    /* PRIVATE MEMBERS */
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_LIMIT = 10;
+    private static final int MAX_LIMIT = 1000;
+    private static final int CACHE_ENTRIES = 4096;
+
+    private static final Comparator<Integer> VALUE_ORDER = Comparator.<Integer>naturalOrder();
+
+    // The JDK HttpServer writes the headers and the body of a response
+    // separately. With Nagle's algorithm on, the body then waits for the
+    // client's delayed ACK of the headers, about 40 ms per request on
+    // keep-alive connections. Must be set before the first server is created.
+    static
+    {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final TrieTree<Integer> tt;
+    private final TrieAggregate<Integer, Integer> maxValue = TrieAggregates.max(VALUE_ORDER);
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+
+    // Completion responses, keyed by limit and prefix.
+    private final BoundedTrieTree<CachedResponse> cache = new BoundedTrieTree<CachedResponse>(CACHE_ENTRIES,
+                                                                                              BoundedTrieTree.Policy.LRU);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+
+    // A response body and the version of the tree it was computed from.
+    private static final class CachedResponse
+    {
+        final long version;
+        final byte[] body;
+
+        CachedResponse(long version, byte[] body)
+        {
+            this.version = version;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Constructor. The server does not accept requests before start().
+     *
+     * @param tt
+     *            Tree to serve.
+     * @param port
+     *            Port on the loopback address. 0 for any free port.
+     * @throws IOException
+     *             If the port cannot be bound.
+     */
+    public AutocompleteServer(TrieTree<Integer> tt, int port) throws IOException
+    {
+        this.tt = tt;
+        tt.addAggregate(maxValue);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        virtualThreads = virtual != null;
+        executor = virtual != null ? virtual : Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "autocomplete-server");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+
+        server.createContext("/get", new JsonHandler()
+        {
+            byte[] respond(HttpExchange exchange) throws IOException
+            {
+                return "POST".equals(exchange.getRequestMethod()) ? getAll(exchange) : get(exchange);
+            }
+        });
+        server.createContext("/complete", new JsonHandler()
+        {
+            byte[] respond(HttpExchange exchange) throws IOException
+            {
+                return complete(exchange);
+            }
+        });
+        server.createContext("/put", new JsonHandler()
+        {
+            byte[] respond(HttpExchange exchange) throws IOException
+            {
+                return write(exchange, false);
+            }
+        });
+        server.createContext("/update", new JsonHandler()
+        {
+            byte[] respond(HttpExchange exchange) throws IOException
+            {
+                return write(exchange, true);
+            }
+        });
+        server.createContext("/remove", new JsonHandler()
+        {
+            byte[] respond(HttpExchange exchange) throws IOException
+            {
+                return remove(exchange);
+            }
+        });
+        server.createContext("/stats", new JsonHandler()
+        {
+            byte[] respond(HttpExchange exchange) throws IOException
+            {
+                return stats();
+            }
+        });
+    }
+
+    /**
+     * ENTRY POINT: Serve a CSV until the process is killed.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        int port = DEFAULT_PORT;
+        String csv = null;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            if (args[i].equals("--port"))
+                port = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("--csv"))
+                csv = args[i + 1];
+            else
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+
+        TrieTree<Integer> tt = csv == null ? new TrieTree<Integer>() : TrieTreeCsv.load(csv);
+
+        AutocompleteServer server = new AutocompleteServer(tt, port);
+        server.start();
+        System.out.println("Serving " + tt.size() + " keys on http://localhost:" + server.getPort() + "/ ("
+            + (server.usesVirtualThreads() ? "virtual threads" : "thread pool") + ")");
+    }
+
+    /**
+     * This method starts accepting requests.
+     */
+    public void start()
+    {
+        server.start();
+    }
+
+    /**
+     * This method stops accepting requests, waits up to the delay for the
+     * exchanges in progress, and releases the threads.
+     *
+     * @param delaySeconds
+     *            Most seconds to wait for the exchanges in progress.
+     */
+    public void stop(int delaySeconds)
+    {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        try
+        {
+            executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Port the server is bound to.
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return True if every exchange runs on its own virtual thread.
+     */
+    public boolean usesVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /**
+     * This method returns Executors.newVirtualThreadPerTaskExecutor() if the
+     * JDK has it. It is looked up reflectively so the server still compiles
+     * and runs on older JDKs.
+     *
+     * @return Executor, or null if virtual threads are not available.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return null;
+        }
+    }
+
+    private byte[] get(HttpExchange exchange) throws IOException
+    {
+        String key = query(exchange).get("key");
+        if (key == null)
+            throw new HttpError(400, "Missing key");
+
+        Integer value;
+        boolean found;
+        synchronized (tt)
+        {
+            value = tt.get(key);
+            found = value != null || tt.contains(key);
+        }
+        if (!found)
+            throw new HttpError(404, "Key not found");
+
+        StringBuilder json = new StringBuilder("{\"key\":");
+        appendString(json, key).append(",\"value\":").append(value).append('}');
+        return utf8(json);
+    }
+
+    private byte[] getAll(HttpExchange exchange) throws IOException
+    {
+        ArrayList<String> keys = lines(exchange);
+        ArrayList<Integer> values = tt.getAll(keys);
+
+        StringBuilder json = new StringBuilder("{\"values\":[");
+        for (int i = 0; i < values.size(); ++i)
+            json.append(i == 0 ? "" : ",").append(values.get(i));
+        json.append("]}");
+        return utf8(json);
+    }
+
+    private byte[] complete(HttpExchange exchange) throws IOException
+    {
+        Map<String, String> query = query(exchange);
+        String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        int limit = DEFAULT_LIMIT;
+        if (query.containsKey("limit"))
+        {
+            try
+            {
+                limit = Integer.parseInt(query.get("limit"));
+            }
+            catch (NumberFormatException e)
+            {
+                limit = -1;
+            }
+            if (limit < 0 || limit > MAX_LIMIT)
+                throw new HttpError(400, "limit must be between 0 and " + MAX_LIMIT);
+        }
+
+        String cacheKey = limit + ":" + prefix;
+        CachedResponse cached = cache.get(cacheKey);
+        if (cached != null && cached.version == tt.modificationCount())
+        {
+            cacheHits.increment();
+            return cached.body;
+        }
+
+        // The version and the completions come from the same state of the
+        // tree.
+        long version;
+        LinkedHashMap<String, Integer> top;
+        synchronized (tt)
+        {
+            version = tt.modificationCount();
+            top = tt.topKWithPrefix(prefix, limit, maxValue, VALUE_ORDER);
+        }
+
+        StringBuilder json = new StringBuilder("{\"prefix\":");
+        appendString(json, prefix).append(",\"completions\":[");
+        boolean first = true;
+        for (Map.Entry<String, Integer> entry : top.entrySet())
+        {
+            json.append(first ? "{\"key\":" : ",{\"key\":");
+            appendString(json, entry.getKey()).append(",\"value\":").append(entry.getValue()).append('}');
+            first = false;
+        }
+        json.append("]}");
+        byte[] body = utf8(json);
+
+        CachedResponse response = new CachedResponse(version, body);
+        if (!cache.put(cacheKey, response))
+            cache.update(cacheKey, response);
+        return body;
+    }
+
+    private byte[] write(HttpExchange exchange, boolean update) throws IOException
+    {
+        requirePost(exchange);
+        HashMap<String, Integer> kvc = new HashMap<String, Integer>();
+        BufferedReader buffer = reader(exchange);
+        try
+        {
+            if (!TrieTreeCsv.read(buffer, kvc))
+                throw new HttpError(400, "Every row must be Key" + TrieTreeCsv.DELIMITER + "Value");
+        }
+        catch (NumberFormatException e)
+        {
+            throw new HttpError(400, "Values must be integers");
+        }
+
+        return changed(update ? tt.updateAll(kvc) : tt.putAll(kvc));
+    }
+
+    private byte[] remove(HttpExchange exchange) throws IOException
+    {
+        requirePost(exchange);
+        return changed(tt.removeAll(lines(exchange)));
+    }
+
+    private byte[] stats()
+    {
+        long size;
+        long version;
+        synchronized (tt)
+        {
+            size = tt.size();
+            version = tt.modificationCount();
+        }
+
+        StringBuilder json = new StringBuilder("{\"size\":").append(size);
+        json.append(",\"version\":").append(version);
+        json.append(",\"requests\":").append(requests.sum());
+        json.append(",\"cacheHits\":").append(cacheHits.sum());
+        json.append(",\"cachedResponses\":").append(cache.size());
+        json.append(",\"virtualThreads\":").append(virtualThreads).append('}');
+        return utf8(json);
+    }
+
+    // Counts the keys of a batch write that changed the tree.
+    private static byte[] changed(HashMap<String, Boolean> outcomes)
+    {
+        int changed = 0;
+        for (Boolean rc : outcomes.values())
+        {
+            if (rc)
+                ++changed;
+        }
+
+        return utf8(new StringBuilder("{\"changed\":").append(changed).append(",\"unchanged\":")
+            .append(outcomes.size() - changed).append('}'));
+    }
+
+    private static void requirePost(HttpExchange exchange)
+    {
+        if (!"POST".equals(exchange.getRequestMethod()))
+            throw new HttpError(400, "Use POST");
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) throws UnsupportedEncodingException
+    {
+        HashMap<String, String> params = new HashMap<String, String>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null)
+            return params;
+
+        for (String pair : raw.split("&"))
+        {
+            int eq = pair.indexOf('=');
+            if (eq < 0)
+                params.put(URLDecoder.decode(pair, "UTF-8"), "");
+            else
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                           URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+
+        return params;
+    }
+
+    private static BufferedReader reader(HttpExchange exchange)
+    {
+        return new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+    }
+
+    // Reads the non-empty lines of the request body.
+    private static ArrayList<String> lines(HttpExchange exchange) throws IOException
+    {
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader buffer = reader(exchange);
+        String line;
+        while ((line = buffer.readLine()) != null)
+        {
+            if (!line.isEmpty())
+                lines.add(line);
+        }
+
+        return lines;
+    }
+
+    private static StringBuilder appendString(StringBuilder json, String s)
+    {
+        json.append('"');
+        for (int i = 0; i < s.length(); ++i)
+        {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+
+        return json.append('"');
+    }
+
+    private static byte[] utf8(StringBuilder json)
+    {
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // A request the server cannot serve, answered with the status and an
+    // error message.
+    private static final class HttpError extends RuntimeException
+    {
+        private static final long serialVersionUID = 3461730518623340417L;
+
+        final int status;
+
+        HttpError(int status, String message)
+        {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Sends what respond returns as a JSON response with status 200, or the
+     * HttpError it throws as {"error":message}.
+     */
+    private abstract class JsonHandler implements HttpHandler
+    {
+        abstract byte[] respond(HttpExchange exchange) throws IOException;
+
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            requests.increment();
+            int status = 200;
+            byte[] body;
+            try
+            {
+                body = respond(exchange);
+            }
+            catch (HttpError e)
+            {
+                status = e.status;
+                body = utf8(appendString(new StringBuilder("{\"error\":"), e.getMessage()).append('}'));
+            }
+
+            // Drain what the handler did not read so the connection can be
+            // reused.
+            InputStream in = exchange.getRequestBody();
+            byte[] skip = new byte[4096];
+            while (in.read(skip) != -1)
+                continue;
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            try
+            {
+                out.write(body);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package frugalinstant;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.table.AbstractTableModel;
+
+import trietree.TrieAggregate;
+import trietree.TrieAggregates;
+import trietree.TrieRankedCursor;
+import trietree.TrieTree;
+
+/**
+ * Table of the autocomplete entries for a prefix, ranked in decreasing order
+ * by Value. The number of rows comes from countWithPrefix, which is O(prefix
+ * length), and the rows themselves from a TrieRankedCursor only when the
+ * table asks for them; JTable only asks for the rows in the scroll pane's
+ * viewport, so a prefix with 20,000 keys costs about as much as one with 20
+ * until the user scrolls. Every new prefix fires a single table changed event.
+ *
+ * The cursor stops when the tree changes (an import, an edit in the table, a
+ * clear). Rows already shown stay as they are; the next time more rows are
+ * needed the query runs again, after the current event.
+ */
+public class AutocompleteTableModel extends AbstractTableModel
+{
+    private static final long serialVersionUID = -3187256127651238905L;
+
+    /* PRIVATE MEMBERS */
+    // Rows fetched at a time, at least. A viewport shows a few dozen.
+    private static final int PAGE_ROWS = 64;
+
+    private static final Comparator<Integer> VALUE_ORDER = Comparator.<Integer>naturalOrder();
+
+    // Column names in the autocomplete table.
+    private static enum Columns
+    {
+        KEY("Key", String.class), VALUE("Value", Integer.class);
+
+        final String title;
+        final Class<?> type;
+
+        Columns(String title, Class<?> type)
+        {
+            this.title = title;
+            this.type = type;
+        }
+    }
+
+    private TrieTree<Integer> tt;
+    private final TrieAggregate<Integer, Integer> maxValue = TrieAggregates.max(VALUE_ORDER);
+    private String prefix = "";
+    private int rowCount;
+    private transient TrieRankedCursor<Integer> cursor;
+    private final ArrayList<String> keys = new ArrayList<String>();
+    private final ArrayList<Integer> values = new ArrayList<Integer>();
+    private boolean refreshPending;
+
+    /**
+     * Constructor. Registers a max aggregate with the tree for the ranking.
+     *
+     * @param tt
+     *            Tree to show.
+     */
+    public AutocompleteTableModel(TrieTree<Integer> tt)
+    {
+        this.tt = tt;
+        prepareTree(tt);
+    }
+
+    /**
+     * This method registers the ranking with a tree that is about to be shown
+     * with setTree. It may run on any thread, so a large tree can be prepared
+     * off the event thread.
+     *
+     * @param tree
+     *            Tree to prepare.
+     */
+    public void prepareTree(TrieTree<Integer> tree)
+    {
+        tree.addAggregate(maxValue);
+    }
+
+    /**
+     * This method shows another tree, with the same prefix.
+     *
+     * @param tree
+     *            Tree to show.
+     */
+    public void setTree(TrieTree<Integer> tree)
+    {
+        prepareTree(tree);
+        tt = tree;
+        refresh();
+    }
+
+    /**
+     * This method shows the entries with the prefix, or none for the empty
+     * prefix.
+     *
+     * @param prefix
+     *            String of the prefix.
+     */
+    public void setPrefix(String prefix)
+    {
+        this.prefix = prefix;
+        refreshPending = false;
+        keys.clear();
+        values.clear();
+        if (prefix.isEmpty())
+        {
+            cursor = null;
+            rowCount = 0;
+        }
+        else
+        {
+            // The count and the cursor must see the same tree.
+            synchronized (tt)
+            {
+                cursor = tt.rankedCursor(prefix, maxValue, VALUE_ORDER);
+                rowCount = (int) Math.min(Integer.MAX_VALUE, tt.countWithPrefix(prefix));
+            }
+        }
+
+        fireTableDataChanged();
+    }
+
+    /**
+     * @return Prefix shown.
+     */
+    public String getPrefix()
+    {
+        return prefix;
+    }
+
+    /**
+     * This method runs the query for the current prefix again.
+     */
+    public void refresh()
+    {
+        setPrefix(prefix);
+    }
+
+    /**
+     * @return Number of rows fetched from the tree so far.
+     */
+    public int getFetchedRowCount()
+    {
+        return keys.size();
+    }
+
+    @Override
+    public int getRowCount()
+    {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount()
+    {
+        return Columns.values().length;
+    }
+
+    @Override
+    public String getColumnName(int column)
+    {
+        return Columns.values()[column].title;
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column)
+    {
+        return Columns.values()[column].type;
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column)
+    {
+        return column == Columns.VALUE.ordinal();
+    }
+
+    @Override
+    public Object getValueAt(int row, int column)
+    {
+        if (!fetch(row))
+            return null;
+
+        return column == Columns.KEY.ordinal() ? keys.get(row) : values.get(row);
+    }
+
+    /**
+     * This method only changes the row shown; the tree is updated by the
+     * table's cell listener.
+     */
+    @Override
+    public void setValueAt(Object value, int row, int column)
+    {
+        if (column != Columns.VALUE.ordinal() || !fetch(row))
+            return;
+
+        values.set(row, (Integer) value);
+        fireTableCellUpdated(row, column);
+    }
+
+    /**
+     * This method fetches the rows up to the row from the cursor, a page at a
+     * time.
+     *
+     * @return True if the row is available.
+     */
+    private boolean fetch(int row)
+    {
+        if (row < keys.size())
+            return true;
+        if (cursor == null || row >= rowCount)
+            return false;
+
+        if (cursor.isStale())
+        {
+            // Called while the table paints; query again afterwards.
+            if (!refreshPending)
+            {
+                refreshPending = true;
+                EventQueue.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        if (refreshPending)
+                            refresh();
+                    }
+                });
+            }
+            return false;
+        }
+
+        List<Map.Entry<String, Integer>> page = cursor.next(Math.max(PAGE_ROWS, row + 1 - keys.size()));
+        for (Map.Entry<String, Integer> entry : page)
+        {
+            keys.add(entry.getKey());
+            values.add(entry.getValue());
+        }
+
+        // Keys without a Value are not ranked, so there may be fewer rows.
+        // The event is skipped if another query has replaced the rows since;
+        // its own table changed event already covers them.
+        if (!cursor.hasNext() && keys.size() < rowCount)
+        {
+            final int fetched = keys.size();
+            final int counted = rowCount;
+            final TrieRankedCursor<Integer> shrunk = cursor;
+            rowCount = fetched;
+            EventQueue.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    if (cursor == shrunk)
+                        fireTableRowsDeleted(fetched, counted - 1);
+                }
+            });
+        }
+
+        return row < keys.size();
+    }
+}
@@ -0,0 +1,157 @@
+package frugalinstant;
+
+import java.awt.EventQueue;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+import org.junit.Test;
+
+import trietree.TrieTree;
+
+import static org.junit.Assert.*;
+
+public class AutocompleteTableModelTester
+{
+    // Records the table events as "type first last".
+    private static ArrayList<String> listen(AutocompleteTableModel model)
+    {
+        final ArrayList<String> events = new ArrayList<String>();
+        model.addTableModelListener(new TableModelListener()
+        {
+            public void tableChanged(TableModelEvent e)
+            {
+                synchronized (events)
+                {
+                    events.add(e.getType() + " " + e.getFirstRow() + " " + e.getLastRow());
+                }
+            }
+        });
+        return events;
+    }
+
+    // Runs the events queued so far.
+    private static void flush() throws InterruptedException, InvocationTargetException
+    {
+        EventQueue.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+            }
+        });
+    }
+
+    @Test
+    public void testFetchPages()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        for (int i = 0; i < 200; ++i)
+            tt_integer.put("k" + i, i);
+        tt_integer.put("other", 1000);
+
+        AutocompleteTableModel model = new AutocompleteTableModel(tt_integer);
+        model.setPrefix("k");
+        assertEquals("Row count is the count with the prefix", 200, model.getRowCount());
+        assertEquals("Nothing is fetched before the table asks", 0, model.getFetchedRowCount());
+
+        assertEquals("Greatest Value first", "k199", model.getValueAt(0, 0));
+        assertEquals("Value column", 199, model.getValueAt(0, 1));
+        assertEquals("One page is fetched", 64, model.getFetchedRowCount());
+
+        assertEquals("Rows are ranked", "k49", model.getValueAt(150, 0));
+        assertEquals("Pages are fetched up to the row", 151, model.getFetchedRowCount());
+        assertEquals("Rows past the count are empty", null, model.getValueAt(200, 0));
+
+        model.setPrefix("");
+        assertEquals("Empty prefix shows no rows", 0, model.getRowCount());
+    }
+
+    @Test
+    public void testShrink() throws InterruptedException, InvocationTargetException
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        for (int i = 0; i < 7; ++i)
+            tt_integer.put("k" + i, i);
+        for (int i = 7; i < 10; ++i)
+            tt_integer.put("k" + i, null);
+
+        AutocompleteTableModel model = new AutocompleteTableModel(tt_integer);
+        ArrayList<String> events = listen(model);
+        model.setPrefix("k");
+        assertEquals("Keys without a Value are counted", 10, model.getRowCount());
+
+        assertEquals("Greatest Value first", "k6", model.getValueAt(0, 0));
+        assertEquals("Rows shrink to the ranked keys", 7, model.getRowCount());
+        flush();
+        assertEquals("Changed, then the unranked rows deleted",
+                     "[" + TableModelEvent.UPDATE + " 0 " + Integer.MAX_VALUE + ", " + TableModelEvent.DELETE + " 7 9]",
+                     events.toString());
+    }
+
+    @Test
+    public void testStaleShrinkSkipped() throws InterruptedException, InvocationTargetException
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        tt_integer.put("k1", 1);
+        tt_integer.put("k2", null);
+        tt_integer.put("k3", null);
+        for (int i = 0; i < 5; ++i)
+            tt_integer.put("x" + i, i);
+
+        final AutocompleteTableModel model = new AutocompleteTableModel(tt_integer);
+        ArrayList<String> events = listen(model);
+
+        // On the event thread, a new query comes before the deferred event.
+        final int[] shrunk = new int[1];
+        EventQueue.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                model.setPrefix("k");
+                model.getValueAt(0, 0);
+                shrunk[0] = model.getRowCount();
+                model.setPrefix("x");
+            }
+        });
+        flush();
+        assertEquals("Rows shrank to the ranked key", 1, shrunk[0]);
+        assertEquals("Only the two table changed events", "[" + TableModelEvent.UPDATE + " 0 " + Integer.MAX_VALUE + ", "
+                     + TableModelEvent.UPDATE + " 0 " + Integer.MAX_VALUE + "]", events.toString());
+        assertEquals("New prefix keeps its rows", 5, model.getRowCount());
+    }
+
+    @Test
+    public void testStaleRefresh() throws InterruptedException, InvocationTargetException
+    {
+        final TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        for (int i = 0; i < 100; ++i)
+            tt_integer.put("k" + i, i);
+
+        final AutocompleteTableModel model = new AutocompleteTableModel(tt_integer);
+        model.setPrefix("k");
+        assertEquals("First page", "k99", model.getValueAt(0, 0));
+
+        // On the event thread, the refresh waits for the current event.
+        final Object[] seen = new Object[3];
+        EventQueue.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                tt_integer.put("k100", 100);
+                seen[0] = model.getValueAt(0, 0);
+                seen[1] = model.getValueAt(80, 0);
+                seen[2] = model.getRowCount();
+            }
+        });
+        assertEquals("Fetched rows stay", "k99", seen[0]);
+        assertEquals("A stale cursor fetches nothing", null, seen[1]);
+        assertEquals("Row count is unchanged until the refresh", 100, seen[2]);
+
+        flush();
+        assertEquals("Refresh counts the new key", 101, model.getRowCount());
+        assertEquals("Refresh ranks the new key first", "k100", model.getValueAt(0, 0));
+        assertEquals("Rows past the first page are fetched again", "k20", model.getValueAt(80, 0));
+    }
+}
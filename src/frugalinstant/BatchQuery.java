@@ -0,0 +1,474 @@
+package frugalinstant;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import trietree.TrieAggregate;
+import trietree.TrieAggregates;
+import trietree.TrieTree;
+
+/**
+ * Frugal Instant for batch jobs: loads a CSV or snapshot into a TrieTree,
+ * answers a stream of queries from stdin or a file, and streams the results
+ * to stdout or a file. Throughput goes to stderr at the end.
+ *
+ * Each query line is tab separated:
+ *
+ * get KEY              the Value of the key
+ * prefix PREFIX        every key with the prefix, in key order
+ * top PREFIX [K]       the K (default --limit) keys with the greatest Values
+ *
+ * Queries are read in chunks that a pool of threads answers in parallel; the
+ * gets of a chunk are looked up with one getAll pass. Finished chunks are
+ * written in input order, with at most two chunks per thread in flight, so
+ * the output is the same for any number of threads and memory stays bounded
+ * however long the stream is. Malformed lines are reported on stderr (or
+ * the stream given to setDiagnostics) and skipped.
+ *
+ * TSV output has one row "LINE\tKEY\tVALUE" per result, where LINE is the
+ * query's line number; a get that misses has no row, and a null Value is
+ * empty. Backslash, tab, newline and carriage return in keys are written as
+ * \\, \t, \n and \r. Binary output (big-endian, as DataOutput) has one record
+ * for every valid query: the line number (long), the number of results
+ * (int), then per result the key (byte length as a varint, then UTF-8), a
+ * flag byte and the Value (int) if it is not null.
+ *
+ * Usage: BatchQuery (--csv FILE | --snapshot FILE) [--save-snapshot FILE]
+ * [--queries FILE] [--output FILE] [--format tsv|binary] [--threads N]
+ * [--chunk N] [--limit K]
+ */
+public final class BatchQuery
+{
+    /* PRIVATE MEMBERS */
+    private static final Comparator<Integer> VALUE_ORDER = Comparator.<Integer>naturalOrder();
+
+    private final TrieTree<Integer> tt;
+    private final TrieAggregate<Integer, Integer> maxValue = TrieAggregates.max(VALUE_ORDER);
+    private final boolean binary;
+    private final int threads;
+    private final int chunkSize;
+    private final int defaultLimit;
+    private volatile PrintStream diagnostics = System.err;
+
+    private long queries;
+    private long results;
+    private long errors;
+
+    // Answers of one chunk of query lines.
+    private static final class Chunk
+    {
+        byte[] output;
+        long queries;
+        long results;
+        long errors;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tt
+     *            Tree to query. A max aggregate is registered for top queries.
+     * @param binary
+     *            True for binary output, false for TSV.
+     * @param threads
+     *            Threads that answer chunks.
+     * @param chunkSize
+     *            Query lines per chunk.
+     * @param defaultLimit
+     *            K of top queries that do not give one.
+     */
+    public BatchQuery(TrieTree<Integer> tt, boolean binary, int threads, int chunkSize, int defaultLimit)
+    {
+        if (threads < 1 || chunkSize < 1 || defaultLimit < 0)
+            throw new IllegalArgumentException("threads and chunkSize must be positive and the limit not negative");
+
+        this.tt = tt;
+        this.binary = binary;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.defaultLimit = defaultLimit;
+        tt.addAggregate(maxValue);
+    }
+
+    /**
+     * This method sets where malformed query lines are reported. The default
+     * is System.err.
+     *
+     * @param diagnostics
+     *            Stream for the malformed line messages.
+     */
+    public void setDiagnostics(PrintStream diagnostics)
+    {
+        if (diagnostics == null)
+            throw new IllegalArgumentException("diagnostics is required");
+
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * ENTRY POINT: Answer a query stream.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        String csv = null;
+        String snapshot = null;
+        String saveSnapshot = null;
+        String queryFile = null;
+        String outputFile = null;
+        boolean binary = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunkSize = 4096;
+        int limit = 10;
+        for (int i = 0; i < args.length; i += 2)
+        {
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+
+            String arg = args[i];
+            String value = args[i + 1];
+            if (arg.equals("--csv"))
+                csv = value;
+            else if (arg.equals("--snapshot"))
+                snapshot = value;
+            else if (arg.equals("--save-snapshot"))
+                saveSnapshot = value;
+            else if (arg.equals("--queries"))
+                queryFile = value;
+            else if (arg.equals("--output"))
+                outputFile = value;
+            else if (arg.equals("--format") && (value.equals("tsv") || value.equals("binary")))
+                binary = value.equals("binary");
+            else if (arg.equals("--threads"))
+                threads = Integer.parseInt(value);
+            else if (arg.equals("--chunk"))
+                chunkSize = Integer.parseInt(value);
+            else if (arg.equals("--limit"))
+                limit = Integer.parseInt(value);
+            else
+                throw new IllegalArgumentException("Unknown option " + arg + " " + value);
+        }
+        if ((csv == null) == (snapshot == null))
+            throw new IllegalArgumentException("Give exactly one of --csv and --snapshot");
+
+        long start = System.nanoTime();
+        TrieTree<Integer> tt = load(csv, snapshot);
+        System.err.println(String.format("Loaded %d keys in %.2f s", tt.size(), (System.nanoTime() - start) / 1e9));
+
+        if (saveSnapshot != null)
+        {
+            OutputStream out = new FileOutputStream(saveSnapshot);
+            try
+            {
+                TrieTreeSnapshot.write(tt, out);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+
+        BatchQuery batch = new BatchQuery(tt, binary, threads, chunkSize, limit);
+        InputStream in = queryFile == null ? System.in : new FileInputStream(queryFile);
+        OutputStream out = outputFile == null ? System.out : new FileOutputStream(outputFile);
+        try
+        {
+            start = System.nanoTime();
+            batch.run(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16),
+                      new BufferedOutputStream(out, 1 << 16));
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.println(String.format("%d queries (%d malformed), %d results in %.2f s: %.0f queries/s, %.0f results/s",
+                                             batch.getQueryCount(), batch.getErrorCount(), batch.getResultCount(),
+                                             seconds, batch.getQueryCount() / seconds, batch.getResultCount() / seconds));
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static TrieTree<Integer> load(String csv, String snapshot) throws IOException
+    {
+        if (csv != null)
+            return TrieTreeCsv.load(csv);
+
+        TrieTree<Integer> tt = new TrieTree<Integer>();
+        InputStream in = new FileInputStream(snapshot);
+        try
+        {
+            TrieTreeSnapshot.read(in, tt);
+        }
+        finally
+        {
+            in.close();
+        }
+        return tt;
+    }
+
+    /**
+     * This method answers every query line of the reader and writes the
+     * results in input order. The output is flushed, not closed.
+     *
+     * @param in
+     *            Query lines.
+     * @param out
+     *            Destination of the results.
+     * @throws IOException
+     *             If reading or writing fails.
+     * @throws InterruptedException
+     *             If interrupted while waiting for a chunk.
+     */
+    public void run(BufferedReader in, OutputStream out) throws IOException, InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "batch-query");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+        try
+        {
+            long lineNumber = 0;
+            while (true)
+            {
+                final ArrayList<String> lines = new ArrayList<String>(chunkSize);
+                String line;
+                while (lines.size() < chunkSize && (line = in.readLine()) != null)
+                    lines.add(line);
+                if (lines.isEmpty())
+                    break;
+
+                final long firstLine = lineNumber + 1;
+                lineNumber += lines.size();
+                pending.add(pool.submit(new Callable<Chunk>()
+                {
+                    public Chunk call() throws IOException
+                    {
+                        return answer(lines, firstLine);
+                    }
+                }));
+
+                // Write the oldest chunk once enough are in flight.
+                if (pending.size() >= 2 * threads)
+                    write(pending.poll(), out);
+            }
+
+            while (!pending.isEmpty())
+                write(pending.poll(), out);
+            out.flush();
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return Number of valid queries answered.
+     */
+    public long getQueryCount()
+    {
+        return queries;
+    }
+
+    /**
+     * @return Number of result rows written.
+     */
+    public long getResultCount()
+    {
+        return results;
+    }
+
+    /**
+     * @return Number of malformed query lines skipped.
+     */
+    public long getErrorCount()
+    {
+        return errors;
+    }
+
+    private void write(Future<Chunk> future, OutputStream out) throws IOException, InterruptedException
+    {
+        Chunk chunk;
+        try
+        {
+            chunk = future.get();
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Query chunk failed", e.getCause());
+        }
+
+        out.write(chunk.output);
+        queries += chunk.queries;
+        results += chunk.results;
+        errors += chunk.errors;
+    }
+
+    /**
+     * This method answers one chunk of query lines. The gets are looked up
+     * first, in one getAll pass, and the answers are then written in line
+     * order.
+     */
+    private Chunk answer(ArrayList<String> lines, long firstLine) throws IOException
+    {
+        Chunk chunk = new Chunk();
+        String[][] parsed = new String[lines.size()][];
+        ArrayList<String> getKeys = new ArrayList<String>();
+        for (int i = 0; i < lines.size(); ++i)
+        {
+            String line = lines.get(i);
+            if (line.isEmpty())
+                continue;
+
+            String[] fields = line.split("\t", -1);
+            String error = validate(fields);
+            if (error != null)
+            {
+                diagnostics.println("line " + (firstLine + i) + ": " + error);
+                ++chunk.errors;
+                continue;
+            }
+
+            parsed[i] = fields;
+            if (fields[0].equals("get"))
+                getKeys.add(fields[1]);
+        }
+        BitSet getFound = new BitSet(getKeys.size());
+        ArrayList<Integer> getValues = tt.getAll(getKeys, getFound);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        int nextGet = 0;
+        for (int i = 0; i < parsed.length; ++i)
+        {
+            String[] fields = parsed[i];
+            if (fields == null)
+                continue;
+
+            Map<String, Integer> rows;
+            if (fields[0].equals("get"))
+            {
+                rows = new HashMap<String, Integer>();
+                if (getFound.get(nextGet))
+                    rows.put(fields[1], getValues.get(nextGet));
+                ++nextGet;
+            }
+            else if (fields[0].equals("prefix"))
+                rows = new TreeMap<String, Integer>(tt.keyValueCollectionWithPrefix(fields[1]));
+            else
+            {
+                int k = fields.length == 3 ? Integer.parseInt(fields[2]) : defaultLimit;
+                rows = tt.topKWithPrefix(fields[1], k, maxValue, VALUE_ORDER);
+            }
+
+            ++chunk.queries;
+            chunk.results += rows.size();
+            writeRows(data, firstLine + i, rows);
+        }
+
+        data.flush();
+        chunk.output = bytes.toByteArray();
+        return chunk;
+    }
+
+    // Returns what is wrong with a query line, or null if nothing is.
+    private static String validate(String[] fields)
+    {
+        if (fields[0].equals("get") || fields[0].equals("prefix"))
+            return fields.length == 2 ? null : fields[0] + " takes one argument";
+
+        if (!fields[0].equals("top"))
+            return "unknown query \"" + fields[0] + "\"";
+        if (fields.length != 2 && fields.length != 3)
+            return "top takes a prefix and an optional K";
+        if (fields.length == 3)
+        {
+            try
+            {
+                if (Integer.parseInt(fields[2]) < 0)
+                    return "K must not be negative";
+            }
+            catch (NumberFormatException e)
+            {
+                return "K is not an integer";
+            }
+        }
+
+        return null;
+    }
+
+    private void writeRows(DataOutputStream data, long lineNumber, Map<String, Integer> rows) throws IOException
+    {
+        if (binary)
+        {
+            data.writeLong(lineNumber);
+            data.writeInt(rows.size());
+            for (Map.Entry<String, Integer> row : rows.entrySet())
+            {
+                TrieTreeSnapshot.writeString(data, row.getKey());
+                data.writeBoolean(row.getValue() != null);
+                if (row.getValue() != null)
+                    data.writeInt(row.getValue());
+            }
+            return;
+        }
+
+        StringBuilder tsv = new StringBuilder();
+        for (Map.Entry<String, Integer> row : rows.entrySet())
+        {
+            tsv.append(lineNumber).append('\t');
+            appendEscaped(tsv, row.getKey());
+            tsv.append('\t');
+            if (row.getValue() != null)
+                tsv.append(row.getValue().intValue());
+            tsv.append('\n');
+        }
+        data.write(tsv.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void appendEscaped(StringBuilder tsv, String key)
+    {
+        for (int i = 0; i < key.length(); ++i)
+        {
+            char c = key.charAt(i);
+            if (c == '\\')
+                tsv.append("\\\\");
+            else if (c == '\t')
+                tsv.append("\\t");
+            else if (c == '\n')
+                tsv.append("\\n");
+            else if (c == '\r')
+                tsv.append("\\r");
+            else
+                tsv.append(c);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package frugalinstant;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import trietree.TrieTree;
+
+import static org.junit.Assert.*;
+
+public class BatchQueryTester
+{
+    private static final String LONG_KEY;
+
+    static
+    {
+        char[] chars = new char[70000];
+        Arrays.fill(chars, 'z');
+        LONG_KEY = new String(chars);
+    }
+
+    @Test
+    public void testOutputIndependentOfThreads() throws IOException, InterruptedException
+    {
+        String queries = queries();
+        for (boolean binary : new boolean[] { false, true })
+        {
+            byte[] single = run(queries, binary, 1);
+            byte[] parallel = run(queries, binary, 4);
+            assertTrue((binary ? "Binary" : "TSV") + " output is not empty", single.length > 0);
+            assertArrayEquals((binary ? "Binary" : "TSV") + " output is the same for 1 and 4 threads", single, parallel);
+        }
+    }
+
+    @Test
+    public void testBinaryOutput() throws IOException, InterruptedException
+    {
+        BatchQuery batch = batchQuery(true, 2, 3, 10);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.run(new BufferedReader(new StringReader("get\t" + LONG_KEY + "\nbad\ntop\tk\t2\nget\tmissing\n")), out);
+        assertEquals("Valid queries", 3, batch.getQueryCount());
+        assertEquals("Malformed lines", 1, batch.getErrorCount());
+
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("Line of the get", 1, data.readLong());
+        assertEquals("One result", 1, data.readInt());
+        assertEquals("Keys longer than 65,535 bytes are written", LONG_KEY, TrieTreeSnapshot.readString(data));
+        assertTrue("Value flag", data.readBoolean());
+        assertEquals("Value", -1, data.readInt());
+
+        assertEquals("Line of the top query", 3, data.readLong());
+        assertEquals("Two results", 2, data.readInt());
+        assertEquals("Greatest Value first", "k99", TrieTreeSnapshot.readString(data));
+        assertTrue("Value flag", data.readBoolean());
+        assertEquals("Value", 99, data.readInt());
+        assertEquals("Second greatest", "k98", TrieTreeSnapshot.readString(data));
+        data.readBoolean();
+        data.readInt();
+
+        assertEquals("Line of the missing get", 4, data.readLong());
+        assertEquals("No results", 0, data.readInt());
+        assertEquals("End of output", -1, data.read());
+    }
+
+    @Test
+    public void testNullValueRows() throws IOException, InterruptedException
+    {
+        BatchQuery batch = batchQuery(false, 1, 10, 10);
+        ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+        batch.setDiagnostics(new PrintStream(diagnostics, true, "UTF-8"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.run(new BufferedReader(new StringReader("get\tnone\nbad\nget\tmissing\nget\tk5\n")), out);
+
+        assertEquals("A null Value is an empty column, a miss has no row", "1\tnone\t\n4\tk5\t5\n",
+                     out.toString("UTF-8"));
+        assertEquals("Malformed lines go to the diagnostics stream", "line 2: unknown query \"bad\"",
+                     diagnostics.toString("UTF-8").trim());
+
+        batch = batchQuery(true, 1, 10, 10);
+        out.reset();
+        batch.run(new BufferedReader(new StringReader("get\tnone\n")), out);
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("Line of the get", 1, data.readLong());
+        assertEquals("A null Value is a result", 1, data.readInt());
+        assertEquals("Key", "none", TrieTreeSnapshot.readString(data));
+        assertFalse("Null Value flag", data.readBoolean());
+        assertEquals("End of output", -1, data.read());
+    }
+
+    private static BatchQuery batchQuery(boolean binary, int threads, int chunkSize, int defaultLimit)
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        for (int i = 0; i < 100; ++i)
+            tt_integer.put("k" + i, i);
+        tt_integer.put("tab\tkey", null);
+        tt_integer.put("none", null);
+        BatchQuery batch = new BatchQuery(tt_integer, binary, threads, chunkSize, defaultLimit);
+        batch.setDiagnostics(new PrintStream(OutputStream.nullOutputStream()));
+
+        // The long key goes in after the max aggregate is registered, with
+        // putAll: like getAll, it walks keys without recursion, so the key
+        // does not need a deep stack.
+        HashMap<String, Integer> hm_long = new HashMap<String, Integer>();
+        hm_long.put(LONG_KEY, -1);
+        tt_integer.putAll(hm_long);
+        return batch;
+    }
+
+    // Many chunks of gets, prefixes, tops and malformed lines.
+    private static String queries()
+    {
+        Random random = new Random(46);
+        StringBuilder queries = new StringBuilder();
+        for (int i = 0; i < 500; ++i)
+        {
+            switch (random.nextInt(6))
+            {
+            case 0:
+                queries.append("get\tk").append(random.nextInt(120));
+                break;
+            case 1:
+                queries.append("prefix\tk").append(random.nextInt(10));
+                break;
+            case 2:
+                queries.append("top\tk\t").append(random.nextInt(5));
+                break;
+            case 3:
+                queries.append("prefix\ttab");
+                break;
+            case 4:
+                queries.append("top\tk\tmany");
+                break;
+            default:
+                queries.append("get\t").append(LONG_KEY);
+                break;
+            }
+            queries.append('\n');
+        }
+        return queries.toString();
+    }
+
+    private static byte[] run(String queries, boolean binary, int threads) throws IOException, InterruptedException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batchQuery(binary, threads, 7, 3).run(new BufferedReader(new StringReader(queries)), out);
+        return out.toByteArray();
+    }
+}
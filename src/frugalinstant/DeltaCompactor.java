@@ -0,0 +1,97 @@
+package frugalinstant;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import trietree.TrieTree;
+
+/**
+ * Merges a full CSV export and the delta files that follow it into a new
+ * full export, so a chain of deltas does not grow without bound. The deltas
+ * are applied in the order given to a tree of their own, and each one has to
+ * start at or before the generation the previous one ended at; nothing is
+ * written unless every file is valid. The generation of the result goes to
+ * stderr, for the next delta.
+ *
+ * Usage: DeltaCompactor [--csv FILE] [--generation G] --output FILE DELTA...
+ *
+ * Without --csv the deltas start from an empty tree at generation 0. Without
+ * --generation the first delta is trusted to follow the CSV.
+ */
+public final class DeltaCompactor
+{
+    private DeltaCompactor()
+    {
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        String csv = null;
+        String output = null;
+        long generation = -1;
+        ArrayList<String> deltas = new ArrayList<String>();
+        for (int i = 0; i < args.length; ++i)
+        {
+            String arg = args[i];
+            if (!arg.startsWith("--"))
+            {
+                deltas.add(arg);
+                continue;
+            }
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + arg);
+
+            String value = args[++i];
+            if (arg.equals("--csv"))
+                csv = value;
+            else if (arg.equals("--generation"))
+                generation = Long.parseLong(value);
+            else if (arg.equals("--output"))
+                output = value;
+            else
+                throw new IllegalArgumentException("Unknown option " + arg + " " + value);
+        }
+        if (output == null)
+            throw new IllegalArgumentException("Give --output");
+        if (csv == null && generation < 0)
+            generation = 0;
+
+        long start = System.nanoTime();
+        TrieTree<Integer> tt = csv == null ? new TrieTree<Integer>() : TrieTreeCsv.load(csv);
+
+        for (String delta : deltas)
+        {
+            BufferedReader buffer = new BufferedReader(new FileReader(delta));
+            try
+            {
+                generation = TrieTreeDelta.apply(buffer, tt, generation);
+            }
+            catch (IOException e)
+            {
+                throw new IOException(delta + ": " + e.getMessage(), e);
+            }
+            finally
+            {
+                buffer.close();
+            }
+        }
+
+        BufferedWriter writer = new BufferedWriter(new FileWriter(output));
+        try
+        {
+            TrieTreeCsv.write(tt.allKeyValues(), writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        System.err.println(String.format("Compacted %d deltas into %d keys at generation %d in %.2f s",
+                                         deltas.size(), tt.size(), generation,
+                                         (System.nanoTime() - start) / 1e9));
+    }
+}
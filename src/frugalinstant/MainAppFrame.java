@@ -3,7 +3,6 @@ package frugalinstant;
 import javax.swing.*;
 import javax.swing.border.TitledBorder;
 import javax.swing.filechooser.FileNameExtensionFilter;
-import javax.swing.table.DefaultTableModel;
 
 import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
@@ -19,11 +18,8 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Map;
-import java.util.TreeMap;
 
 import trietree.TrieTree;
 
@@ -66,28 +62,10 @@ public class MainAppFrame extends JFrame
     /**
      * Private members
      */
-    private TrieTree<Integer> tt = new TrieTree<Integer>();
-    private DefaultTableModel tableEntries = new DefaultTableModel(new Object[][]
-    {}, new String[]
-    { "Key", "Value" })
-    {
-        private static final long serialVersionUID = -5625250449981871387L;
-        Class[] columnTypes = new Class[]
-        { String.class, Integer.class };
-
-        public Class getColumnClass(int columnIndex)
-        {
-            return columnTypes[columnIndex];
-        }
-
-        boolean[] columnEditables = new boolean[]
-        { false, true };
-
-        public boolean isCellEditable(int row, int column)
-        {
-            return columnEditables[column];
-        }
-    };
+    // Replaced as a whole by an import; only read and written on the event
+    // thread, volatile for the workers that are handed it.
+    private volatile TrieTree<Integer> tt = new TrieTree<Integer>();
+    private final AutocompleteTableModel tableEntries = new AutocompleteTableModel(tt);
     private final JLabel lblAutocompleteInstructions = new JLabel(
                                                                   "<html>Import data first. Then type in any phrase into the search. Autocomplete terms will appear in the table below in the order of the value ranking. You can update the rank in the table.</html>");
 
@@ -139,55 +117,9 @@ public class MainAppFrame extends JFrame
 
             public void keyReleased(KeyEvent e)
             {
-                // Empty table.
-                tableEntries.setRowCount(0);
-
-                // Retrieve Keys and Values from the trie tree and put them into
-                // the new table.
-                if (!textFieldSearch.getText().isEmpty())
-                {
-                    HashMap<String, Integer> kvc = tt.keyValueCollectionWithPrefix(textFieldSearch.getText());
-
-                    // Create a Value comparator to sort map by Value in
-                    // descending order.
-                    class ValueComparator implements Comparator<String>
-                    {
-                        Map<String, Integer> base;
-
-                        public ValueComparator(Map<String, Integer> base)
-                        {
-                            this.base = base;
-                        }
-
-                        public int compare(String a, String b)
-                        {
-                            // Returning 0 would merge keys
-                            if (base.get(a) >= base.get(b))
-                            {
-                                return -1;
-                            }
-                            else
-                            {
-                                return 1;
-                            }
-                        }
-                    }
-
-                    // Populate the TreeMap.
-                    ValueComparator bvc = new ValueComparator(kvc);
-                    TreeMap<String, Integer> sorted_kvc = new TreeMap<String, Integer>(bvc);
-                    sorted_kvc.putAll(kvc);
-
-                    // Populate the table entries.
-                    for (Map.Entry<String, Integer> entry : sorted_kvc.entrySet())
-                    {
-                        tableEntries.addRow(new Object[]
-                        { entry.getKey(), entry.getValue() });
-                    }
-                }
-
-                // Set the existing table to show the new entries.
-                tableAutocomplete.setModel(tableEntries);
+                // Show the entries with the prefix, fetched from the trie tree
+                // as the table scrolls to them.
+                tableEntries.setPrefix(textFieldSearch.getText());
 
                 return;
             }
@@ -212,8 +144,7 @@ public class MainAppFrame extends JFrame
             {
                 // Empty autocomplete fields.
                 textFieldSearch.setText("");
-                tableEntries.setRowCount(0);
-                tableAutocomplete.setModel(tableEntries);
+                tableEntries.setPrefix("");
 
                 return;
             }
@@ -316,14 +247,62 @@ public class MainAppFrame extends JFrame
                     return;
                 }
 
-                long startTime = new Date().getTime();
-                boolean populateTreeStatus = populateTree(textFieldFilepathInput.getText(), tt, chckbxOverwriteValues.isSelected());
-                long endTime = new Date().getTime();
-                
-                if (populateTreeStatus)
-                    lblStatus.setText("Successfully imported data in " + (endTime - startTime) + " ms.");
-                else
-                    lblStatus.setText("Failed to import data in " + (endTime - startTime) + " ms.");
+                // Mouse listeners still fire on disabled buttons.
+                if (!btnImportCSV.isEnabled())
+                    return;
+
+                // Build the import in a shadow tree off the event thread; the
+                // live tree stays searchable and editable until the swap.
+                final long startTime = new Date().getTime();
+                final String filepath = textFieldFilepathInput.getText();
+                final StagedImport staged = new StagedImport(tt, chckbxOverwriteValues.isSelected());
+                btnImportCSV.setEnabled(false);
+                btnClearTree.setEnabled(false);
+                lblStatus.setText("Importing data...");
+
+                new SwingWorker<Boolean, Void>()
+                {
+                    @Override
+                    protected Boolean doInBackground()
+                    {
+                        tableEntries.prepareTree(staged.getShadow());
+                        return populateTree(filepath, staged);
+                    }
+
+                    @Override
+                    protected void done()
+                    {
+                        boolean populateTreeStatus = false;
+                        try
+                        {
+                            populateTreeStatus = get();
+                        }
+                        catch (Exception err)
+                        {
+                            err.printStackTrace();
+                        }
+
+                        // Publish the shadow in place of the live tree.
+                        if (populateTreeStatus)
+                        {
+                            tt = staged.publish();
+                            tableEntries.setTree(tt);
+                        }
+                        else
+                        {
+                            staged.cancel();
+                        }
+
+                        long endTime = new Date().getTime();
+                        btnImportCSV.setEnabled(true);
+                        btnClearTree.setEnabled(true);
+
+                        if (populateTreeStatus)
+                            lblStatus.setText("Successfully imported data in " + (endTime - startTime) + " ms.");
+                        else
+                            lblStatus.setText("Failed to import data in " + (endTime - startTime) + " ms.");
+                    }
+                }.execute();
             }
         });
 
@@ -335,12 +314,16 @@ public class MainAppFrame extends JFrame
             @Override
             public void mouseClicked(MouseEvent e)
             {
+                if (!btnClearTree.isEnabled())
+                    return;
+
                 int dialogResult = JOptionPane.showConfirmDialog(null,
                                                                  "Are you sure you want to clear your data?",
                                                                  "Warning", JOptionPane.YES_NO_OPTION);
                 if (dialogResult == JOptionPane.YES_OPTION)
                 {
                     tt.removeAll();
+                    tableEntries.refresh();
                     lblStatus.setText("Data all cleared.");
                 }
             }
@@ -492,15 +475,9 @@ public class MainAppFrame extends JFrame
         {
             fw = new FileWriter(file.getAbsoluteFile());
             bw = new BufferedWriter(fw);
-            String content = "";
 
             // Each entry needs to be delimited by "\,".
-            for (Map.Entry<String, Integer> entry : kvc.entrySet())
-            {
-                content = content + entry.getKey() + "\\," + entry.getValue() + "\r\n";
-            }
-
-            bw.write(content);
+            TrieTreeCsv.write(kvc, bw);
         }
         catch (IOException err)
         {
@@ -526,81 +503,32 @@ public class MainAppFrame extends JFrame
     }
 
     /**
-     * This function takes a filepath for a CSV and populates a trie tree. Each
-     * row in the CSV is expected to take the format "String\,Integer". If there
-     * are any misformatted entries, the tree does not get populated. If there
-     * are repeated keys, the last Integer will be used.
+     * This function takes a filepath for a CSV and loads it into a staged
+     * import. Each row in the CSV is expected to take the format
+     * "String\,Integer". If there are any misformatted entries, the import
+     * must not be published. If there are repeated keys, the last Integer will
+     * be used. Runs off the event thread, so it does not touch the GUI.
      * 
      * @param filepath
      *            Input CSV.
-     * @param tt
-     *            Trie tree to populate.
-     * @param update
-     *            If true, update any existing values. If false, skip existing
-     *            entries.
-     * @return True if trie tree was successfully populated. False if there was
-     *         an error reading from the CSV or there are misformatted entries.
+     * @param staged
+     *            Staged import to load.
+     * @return True if the staged import was successfully loaded. False if
+     *         there was an error reading from the CSV or there are
+     *         misformatted entries.
      */
-    private boolean populateTree(final String filepath, TrieTree<Integer> tt, final boolean update)
+    private boolean populateTree(final String filepath, final StagedImport staged)
     {
         boolean rc = true; // Return code
         BufferedReader buffer = null;
 
-        HashMap<String, Integer> kvc = new HashMap<String, Integer>();
-
         try
         {
             FileReader input = new FileReader(filepath);
             buffer = new BufferedReader(input);
-            String line = null;
-            line = buffer.readLine();
 
-            // Extract contents from CSV and put them in a map first.
-            // Once all rows have been validated, insert the entries into the
-            // tree.
-            while (line != null)
-            {
-                // We expect each line to contain two entries, delimited by
-                // "\,".
-                String[] keyValue = line.split("\\\\,");
-                if (keyValue.length == 2)
-                {
-                    if (keyValue[0] != null && keyValue[1] != null)
-                    {
-                        // Remove any whitespaces from the integer string.
-                        keyValue[1] = keyValue[1].replaceAll("\\s+", "");
-                        Integer value = Integer.parseInt(keyValue[1]);
-
-                        kvc.put(keyValue[0], value);
-                    }
-                    else
-                    {
-                        rc = false;
-                        break;
-                    }
-                }
-                else
-                {
-                    rc = false;
-                    break;
-                }
-
-                line = buffer.readLine();
-            }
-
-            // rc is true if there wasn't an issue with the CSV format, so
-            // populate the tree from the HashMap.
-            if (rc)
-            {
-                for (Map.Entry<String, Integer> entry : kvc.entrySet())
-                {
-                    // If it fails to put, then attempt to update if user
-                    // wants to update data.
-                    if (!tt.put(entry.getKey(), entry.getValue()) && update)
-                        // If we fail here, just move on.
-                        tt.update(entry.getKey(), entry.getValue());
-                }
-            }
+            // rc is true if there wasn't an issue with the CSV format.
+            rc = staged.load(buffer);
         }
         catch (FileNotFoundException e)
         {
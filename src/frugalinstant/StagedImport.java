@@ -0,0 +1,148 @@
+package frugalinstant;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import trietree.TrieChangeEvent;
+import trietree.TrieChangeListener;
+import trietree.TrieTree;
+
+/**
+ * Imports a CSV into a shadow copy of a live trie tree, so the live tree is
+ * neither locked nor half imported while a large file loads; the caller then
+ * publishes the shadow in place of the live tree with a single reference swap.
+ *
+ * The rows go straight into the shadow in sorted batches rather than into one
+ * map of the whole file first. Once every row is valid, the live entries are
+ * copied in page by page (the lock is only held for a page). Changes made to
+ * the live tree meanwhile, such as edits in the table, are recorded by a
+ * change listener and replayed onto the shadow by publish(), which must run on
+ * the thread that makes those changes so none fall in between.
+ */
+public final class StagedImport
+{
+    /* PRIVATE MEMBERS */
+    private static final int ROWS_PER_BATCH = 8192;
+    private static final int ENTRIES_PER_PAGE = 4096;
+
+    private final TrieTree<Integer> live;
+    private final TrieTree<Integer> shadow = new TrieTree<Integer>();
+    private final boolean update;
+    private final ConcurrentLinkedQueue<TrieChangeEvent<? extends Integer>> changes = new ConcurrentLinkedQueue<TrieChangeEvent<? extends Integer>>();
+    private final TrieChangeListener<Integer> recorder = new TrieChangeListener<Integer>()
+    {
+        public void changed(TrieChangeEvent<? extends Integer> event)
+        {
+            changes.add(event);
+        }
+    };
+
+    /**
+     * Constructor. Starts recording the changes to the live tree.
+     *
+     * @param live
+     *            Trie tree that the import is merged with.
+     * @param update
+     *            If true, imported values replace existing ones. If false,
+     *            existing entries are kept.
+     */
+    public StagedImport(TrieTree<Integer> live, boolean update)
+    {
+        this.live = live;
+        this.update = update;
+        live.addChangeListener(recorder);
+    }
+
+    /**
+     * @return Trie tree that is being built. Only for preparing it (such as
+     *         registering aggregates) before load.
+     */
+    public TrieTree<Integer> getShadow()
+    {
+        return shadow;
+    }
+
+    /**
+     * This method reads the CSV into the shadow and merges the live entries
+     * into it. May run on any thread.
+     *
+     * @param buffer
+     *            Reader positioned at the first row.
+     * @return True if every row was valid. False otherwise; the import should
+     *         then be cancelled.
+     * @throws IOException
+     *             If reading fails.
+     * @throws NumberFormatException
+     *             If a Value is not an Integer.
+     */
+    public boolean load(BufferedReader buffer) throws IOException
+    {
+        if (!TrieTreeCsv.read(buffer, shadow, ROWS_PER_BATCH))
+            return false;
+
+        String token = null;
+        do
+        {
+            TrieTree.Page<Integer> page = live.pageWithPrefix("", token, ENTRIES_PER_PAGE);
+
+            // Imported values win by putting the live entries only where the
+            // key is new; live values win by overwriting.
+            if (update)
+                shadow.putAll(page.getEntries());
+            else
+                TrieTreeCsv.populate(page.getEntries(), shadow, true);
+
+            token = page.getContinuationToken();
+        }
+        while (token != null);
+
+        return true;
+    }
+
+    /**
+     * This method stops recording, replays the changes made to the live tree
+     * since the import started, and returns the shadow to publish. Call it on
+     * the thread that changes the live tree.
+     *
+     * @return Merged trie tree.
+     */
+    public TrieTree<Integer> publish()
+    {
+        live.removeChangeListener(recorder);
+
+        // A change is newer than the file, so it wins either way.
+        TrieChangeEvent<? extends Integer> event;
+        while ((event = changes.poll()) != null)
+        {
+            switch (event.getType())
+            {
+            case PUT:
+            case UPDATE:
+                if (!shadow.put(event.getKey(), event.getValue()))
+                    shadow.update(event.getKey(), event.getValue());
+                break;
+            case REMOVE:
+                shadow.remove(event.getKey());
+                break;
+            case REMOVE_PREFIX:
+                shadow.removePrefix(event.getKey());
+                break;
+            case CLEAR:
+                shadow.removeAll();
+                break;
+            }
+        }
+
+        return shadow;
+    }
+
+    /**
+     * This method stops recording and drops the shadow.
+     */
+    public void cancel()
+    {
+        live.removeChangeListener(recorder);
+        changes.clear();
+    }
+}
@@ -0,0 +1,130 @@
+package frugalinstant;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import trietree.TrieTree;
+
+import static org.junit.Assert.*;
+
+public class StagedImportTester
+{
+    private static final String CSV = "both\\,2\r\nnew\\,3\r\nlive7\\,-7\r\n";
+
+    // More live entries than one page of the merge.
+    private static TrieTree<Integer> liveTree(HashMap<String, Integer> expected)
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        for (int i = 0; i < 10000; ++i)
+        {
+            tt_integer.put("live" + i, i);
+            expected.put("live" + i, i);
+        }
+        tt_integer.put("both", 1);
+        return tt_integer;
+    }
+
+    @Test
+    public void testImportedValuesWin() throws IOException
+    {
+        HashMap<String, Integer> hm_expected = new HashMap<String, Integer>();
+        TrieTree<Integer> live = liveTree(hm_expected);
+        HashMap<String, Integer> hm_before = live.allKeyValues();
+
+        StagedImport staged = new StagedImport(live, true);
+        assertTrue("Valid file loads", staged.load(new BufferedReader(new StringReader(CSV))));
+        TrieTree<Integer> published = staged.publish();
+
+        hm_expected.put("both", 2);
+        hm_expected.put("new", 3);
+        hm_expected.put("live7", -7);
+        assertEquals("Imported values replace live ones", hm_expected, published.allKeyValues());
+        assertEquals("Live tree is untouched", hm_before, live.allKeyValues());
+    }
+
+    @Test
+    public void testLiveValuesWin() throws IOException
+    {
+        HashMap<String, Integer> hm_expected = new HashMap<String, Integer>();
+        TrieTree<Integer> live = liveTree(hm_expected);
+
+        StagedImport staged = new StagedImport(live, false);
+        assertTrue("Valid file loads", staged.load(new BufferedReader(new StringReader(CSV))));
+        TrieTree<Integer> published = staged.publish();
+
+        hm_expected.put("both", 1);
+        hm_expected.put("new", 3);
+        assertEquals("Live values are kept, new keys added", hm_expected, published.allKeyValues());
+    }
+
+    @Test
+    public void testInvalidFile() throws IOException
+    {
+        HashMap<String, Integer> hm_expected = new HashMap<String, Integer>();
+        TrieTree<Integer> live = liveTree(hm_expected);
+        HashMap<String, Integer> hm_before = live.allKeyValues();
+
+        StagedImport staged = new StagedImport(live, true);
+        assertFalse("Row without a delimiter fails the load",
+                    staged.load(new BufferedReader(new StringReader("both\\,2\r\nno delimiter\r\nnew\\,3\r\n"))));
+        staged.cancel();
+
+        assertEquals("Live tree is untouched", hm_before, live.allKeyValues());
+        assertFalse("Rows before the invalid one stay out of the live tree", live.contains("new"));
+        assertTrue("Live tree still takes changes", live.put("after", 4));
+    }
+
+    @Test
+    public void testLiveChangesReplayed() throws IOException
+    {
+        HashMap<String, Integer> hm_expected = new HashMap<String, Integer>();
+        final TrieTree<Integer> live = liveTree(hm_expected);
+
+        StagedImport staged = new StagedImport(live, true);
+
+        // Edits made while the file is being read.
+        StringReader reader = new StringReader(CSV)
+        {
+            private boolean edited;
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException
+            {
+                if (!edited)
+                {
+                    edited = true;
+                    live.update("both", 5);
+                    live.put("new", 6);
+                    live.remove("live1");
+                }
+                return super.read(cbuf, off, len);
+            }
+        };
+        assertTrue("Valid file loads", staged.load(new BufferedReader(reader)));
+
+        // And edits made after the load, before the publish.
+        live.removePrefix("live2");
+        live.put("late", 7);
+        TrieTree<Integer> published = staged.publish();
+
+        hm_expected.put("both", 5);
+        hm_expected.put("new", 6);
+        hm_expected.put("live7", -7);
+        hm_expected.put("late", 7);
+        hm_expected.remove("live1");
+        for (Iterator<String> it = hm_expected.keySet().iterator(); it.hasNext();)
+        {
+            if (it.next().startsWith("live2"))
+                it.remove();
+        }
+        assertEquals("Live changes win over the file", hm_expected, published.allKeyValues());
+
+        live.put("unrecorded", 8);
+        assertFalse("Publish stops recording", published.contains("unrecorded"));
+    }
+}
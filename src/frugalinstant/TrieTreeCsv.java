@@ -0,0 +1,190 @@
+package frugalinstant;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import trietree.TrieTree;
+
+/**
+ * Reads and writes the Frugal Instant CSV format, where each row consists of
+ * "Key\,Value" with "\," as the delimiter and an Integer Value.
+ */
+public final class TrieTreeCsv
+{
+    private static final int ROWS_PER_BATCH = 8192;
+
+    public static final String DELIMITER = "\\,";
+    static final String DELIMITER_REGEX = "\\\\,";
+
+    private TrieTreeCsv()
+    {
+    }
+
+    /**
+     * This function reads every row of a CSV into a map. If there are repeated
+     * keys, the last Integer will be used.
+     * 
+     * @param buffer
+     *            Reader positioned at the first row.
+     * @param kvc
+     *            Map that receives the rows.
+     * @return True if every row was read. False if a row does not have exactly
+     *         two entries; reading stops at that row.
+     * @throws IOException
+     *             If reading fails.
+     * @throws NumberFormatException
+     *             If a Value is not an Integer.
+     */
+    public static boolean read(BufferedReader buffer, Map<String, Integer> kvc) throws IOException
+    {
+        String line = buffer.readLine();
+        while (line != null)
+        {
+            // We expect each line to contain two entries, delimited by "\,".
+            String[] keyValue = line.split(DELIMITER_REGEX);
+            if (keyValue.length != 2 || keyValue[0] == null || keyValue[1] == null)
+                return false;
+
+            // Remove any whitespaces from the integer string.
+            keyValue[1] = keyValue[1].replaceAll("\\s+", "");
+            kvc.put(keyValue[0], Integer.parseInt(keyValue[1]));
+
+            line = buffer.readLine();
+        }
+
+        return true;
+    }
+
+    /**
+     * This function reads every row of a CSV into a trie tree, a batch of rows
+     * at a time, so only one batch is ever held in a map. If there are
+     * repeated keys, the last Integer will be used.
+     * 
+     * @param buffer
+     *            Reader positioned at the first row.
+     * @param tt
+     *            Trie tree that receives the rows. Partially populated if the
+     *            CSV turns out to be invalid, so it should be a tree of its own
+     *            that the caller can discard.
+     * @param rowsPerBatch
+     *            Number of rows put per sorted batch.
+     * @return True if every row was read. False if a row does not have exactly
+     *         two entries; reading stops at that row.
+     * @throws IOException
+     *             If reading fails.
+     * @throws NumberFormatException
+     *             If a Value is not an Integer.
+     */
+    public static boolean read(BufferedReader buffer, TrieTree<Integer> tt, int rowsPerBatch) throws IOException
+    {
+        HashMap<String, Integer> batch = new HashMap<String, Integer>();
+        String line = buffer.readLine();
+        while (line != null)
+        {
+            String[] keyValue = line.split(DELIMITER_REGEX);
+            if (keyValue.length != 2 || keyValue[0] == null || keyValue[1] == null)
+                return false;
+
+            keyValue[1] = keyValue[1].replaceAll("\\s+", "");
+            batch.put(keyValue[0], Integer.parseInt(keyValue[1]));
+            if (batch.size() >= rowsPerBatch)
+            {
+                // Later rows win over earlier batches.
+                populate(batch, tt, true);
+                batch.clear();
+            }
+
+            line = buffer.readLine();
+        }
+
+        populate(batch, tt, true);
+        return true;
+    }
+
+    /**
+     * This function loads a CSV file into a new trie tree, a batch of rows at
+     * a time. If there are repeated keys, the last Integer will be used.
+     * 
+     * @param filepath
+     *            Path of the CSV.
+     * @return Trie tree with every row.
+     * @throws IOException
+     *             If reading fails or a row does not have exactly two
+     *             entries.
+     * @throws NumberFormatException
+     *             If a Value is not an Integer.
+     */
+    public static TrieTree<Integer> load(String filepath) throws IOException
+    {
+        TrieTree<Integer> tt = new TrieTree<Integer>();
+        BufferedReader buffer = new BufferedReader(new FileReader(filepath));
+        try
+        {
+            if (!read(buffer, tt, ROWS_PER_BATCH))
+                throw new IOException("Every row of " + filepath + " must be Key" + DELIMITER + "Value");
+        }
+        finally
+        {
+            buffer.close();
+        }
+
+        return tt;
+    }
+
+    /**
+     * This function puts every entry of a map into a trie tree.
+     * 
+     * @param kvc
+     *            Validated entries.
+     * @param tt
+     *            Trie tree to populate.
+     * @param update
+     *            If true, update any existing values. If false, skip existing
+     *            entries.
+     */
+    public static void populate(Map<String, Integer> kvc, TrieTree<Integer> tt, boolean update)
+    {
+        // Put the rows as one sorted batch. If a key was already there,
+        // update it instead if the user wants to update data.
+        HashMap<String, Boolean> added = tt.putAll(kvc);
+        if (!update)
+            return;
+
+        HashMap<String, Integer> existing = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : kvc.entrySet())
+        {
+            if (!added.get(entry.getKey()))
+                existing.put(entry.getKey(), entry.getValue());
+        }
+
+        // If we fail here, just move on.
+        tt.updateAll(existing);
+    }
+
+    /**
+     * This function writes every entry of a map as one CSV row.
+     * 
+     * @param kvc
+     *            Entries to write.
+     * @param writer
+     *            Destination. Not closed.
+     * @throws IOException
+     *             If writing fails.
+     */
+    public static void write(Map<String, Integer> kvc, Writer writer) throws IOException
+    {
+        // Write row by row; building the whole file in one String first is
+        // quadratic in the number of rows.
+        for (Map.Entry<String, Integer> entry : kvc.entrySet())
+        {
+            writer.write(entry.getKey());
+            writer.write(DELIMITER);
+            writer.write(String.valueOf(entry.getValue()));
+            writer.write("\r\n");
+        }
+    }
+}
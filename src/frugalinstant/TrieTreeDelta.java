@@ -0,0 +1,187 @@
+package frugalinstant;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import trietree.TrieDelta;
+import trietree.TrieTree;
+
+/**
+ * Reads and writes delta files: the changes to a TrieTree<Integer> between
+ * two generations (see TrieTree.changesSince), so that after a handful of
+ * edits only those have to be exported. A delta applied to the export of the
+ * first generation gives the export of the second; DeltaCompactor merges a
+ * chain of them into a full CSV.
+ *
+ * A delta file is text in the CSV family, with "\," as the delimiter. The
+ * first row is "#delta\,FROM\,TO\,full" or "#delta\,FROM\,TO\,partial", then
+ * one row per change, in the order they are applied:
+ *
+ * *PREFIX          every key with the prefix was removed
+ * -KEY             the key was removed
+ * +KEY\,VALUE      the key was put or updated; an empty VALUE is null
+ *
+ * A full delta starts by clearing the tree. Generations are the
+ * modificationCount() of one TrieTree object, so a chain of deltas only holds
+ * for the tree that produced it; an import that swaps in a new tree needs a
+ * full export before deltas can follow it. Only a tree that has had
+ * TrieTree.enableChangeTracking() called yields partial deltas; any other
+ * tree exports a full one every time.
+ */
+public final class TrieTreeDelta
+{
+    private static final String HEADER = "#delta";
+    private static final String FULL = "full";
+    private static final String PARTIAL = "partial";
+    private static final int ROWS_PER_BATCH = 8192;
+
+    private TrieTreeDelta()
+    {
+    }
+
+    /**
+     * This function writes the changes to a trie tree since a generation.
+     *
+     * @param tt
+     *            Trie tree to export.
+     * @param generation
+     *            Generation of the last export, or 0 for everything.
+     * @param writer
+     *            Destination. Not closed.
+     * @return Generation that the next delta starts from.
+     * @throws IOException
+     *             If writing fails.
+     */
+    public static long exportChangesSince(TrieTree<Integer> tt, long generation, Writer writer) throws IOException
+    {
+        TrieDelta<Integer> delta = tt.changesSince(generation);
+        write(delta, writer);
+        return delta.getToGeneration();
+    }
+
+    /**
+     * This function writes a delta.
+     *
+     * @param delta
+     *            Delta to write.
+     * @param writer
+     *            Destination. Not closed.
+     * @throws IOException
+     *             If writing fails.
+     */
+    public static void write(TrieDelta<Integer> delta, Writer writer) throws IOException
+    {
+        writer.write(HEADER + TrieTreeCsv.DELIMITER + delta.getFromGeneration() + TrieTreeCsv.DELIMITER
+            + delta.getToGeneration() + TrieTreeCsv.DELIMITER + (delta.isFull() ? FULL : PARTIAL) + "\r\n");
+
+        for (String prefix : delta.getRemovedPrefixes())
+        {
+            writer.write('*');
+            writer.write(prefix);
+            writer.write("\r\n");
+        }
+        for (String key : delta.getRemovedKeys())
+        {
+            writer.write('-');
+            writer.write(key);
+            writer.write("\r\n");
+        }
+        for (Map.Entry<String, Integer> entry : delta.getEntries().entrySet())
+        {
+            writer.write('+');
+            writer.write(entry.getKey());
+            writer.write(TrieTreeCsv.DELIMITER);
+            if (entry.getValue() != null)
+                writer.write(String.valueOf(entry.getValue()));
+            writer.write("\r\n");
+        }
+    }
+
+    /**
+     * This function applies a delta file to a trie tree. The tree is changed
+     * row by row, so if the file turns out to be invalid part of it has been
+     * applied; apply deltas to a tree that can be discarded, as DeltaCompactor
+     * does.
+     *
+     * @param buffer
+     *            Reader positioned at the header.
+     * @param tt
+     *            Trie tree at the generation the delta is applied to.
+     * @param generation
+     *            Generation of the trie tree, or -1 if it is not known.
+     * @return Generation of the trie tree after the delta.
+     * @throws IOException
+     *             If reading fails, the file is not a delta, or the delta
+     *             starts after the generation of the tree (changes are
+     *             missing in between).
+     * @throws NumberFormatException
+     *             If a Value is not an Integer.
+     */
+    public static long apply(BufferedReader buffer, TrieTree<Integer> tt, long generation) throws IOException
+    {
+        String line = buffer.readLine();
+        String[] header = line == null ? new String[0] : line.split(TrieTreeCsv.DELIMITER_REGEX);
+        if (header.length != 4 || !header[0].equals(HEADER)
+            || !(header[3].equals(FULL) || header[3].equals(PARTIAL)))
+            throw new IOException("Not a Frugal Instant delta");
+
+        long from = Long.parseLong(header[1]);
+        long to = Long.parseLong(header[2]);
+        boolean full = header[3].equals(FULL);
+        if (!full && generation >= 0 && from > generation)
+            throw new IOException("Delta starts at generation " + from + " but the tree is at " + generation);
+        if (full)
+            tt.removeAll();
+
+        HashMap<String, Integer> batch = new HashMap<String, Integer>();
+        long row = 1;
+        while ((line = buffer.readLine()) != null)
+        {
+            ++row;
+            if (line.isEmpty())
+                throw new IOException("Empty row " + row);
+
+            String rest = line.substring(1);
+            switch (line.charAt(0))
+            {
+            case '*':
+                flush(batch, tt);
+                tt.removePrefix(rest);
+                break;
+            case '-':
+                flush(batch, tt);
+                tt.remove(rest);
+                break;
+            case '+':
+                // Keep the empty Value of a null.
+                String[] keyValue = rest.split(TrieTreeCsv.DELIMITER_REGEX, -1);
+                if (keyValue.length != 2 || keyValue[0].isEmpty())
+                    throw new IOException("Invalid row " + row);
+
+                keyValue[1] = keyValue[1].replaceAll("\\s+", "");
+                batch.put(keyValue[0], keyValue[1].isEmpty() ? null : Integer.valueOf(keyValue[1]));
+                if (batch.size() >= ROWS_PER_BATCH)
+                    flush(batch, tt);
+                break;
+            default:
+                throw new IOException("Invalid row " + row);
+            }
+        }
+
+        flush(batch, tt);
+        return to;
+    }
+
+    // Puts or updates the batched rows.
+    private static void flush(HashMap<String, Integer> batch, TrieTree<Integer> tt)
+    {
+        if (batch.isEmpty())
+            return;
+
+        TrieTreeCsv.populate(batch, tt, true);
+        batch.clear();
+    }
+}
@@ -0,0 +1,207 @@
+package frugalinstant;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import trietree.TrieTree;
+
+import static org.junit.Assert.*;
+
+public class TrieTreeDeltaTester
+{
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        tt_integer.enableChangeTracking();
+        for (int i = 0; i < 100; ++i)
+            tt_integer.put("ab" + i, i);
+        tt_integer.put("cat", 1);
+        tt_integer.put("car", 2);
+        tt_integer.put("nothing", null);
+
+        // A copy starts empty at generation 0.
+        TrieTree<Integer> tt_copy = new TrieTree<Integer>();
+        StringWriter writer = new StringWriter();
+        long generation = TrieTreeDelta.exportChangesSince(tt_integer, 0, writer);
+        assertEquals("Generation of the export", tt_integer.modificationCount(), generation);
+        long copyGeneration = apply(writer.toString(), tt_copy, 0);
+        assertEquals("Apply returns the generation of the delta", generation, copyGeneration);
+        assertEquals("First delta copies the tree", tt_integer.allKeyValues(), tt_copy.allKeyValues());
+
+        tt_integer.removePrefix("ab");
+        tt_integer.put("ab7", -7);
+        tt_integer.remove("cat");
+        tt_integer.update("car", null);
+        tt_integer.put("dog", 3);
+        writer = new StringWriter();
+        generation = TrieTreeDelta.exportChangesSince(tt_integer, generation, writer);
+        String text = writer.toString();
+        assertTrue("Partial header", text.startsWith("#delta\\," + copyGeneration + "\\," + generation + "\\,partial\r\n"));
+        assertTrue("Removed prefix row", text.contains("\r\n*ab\r\n"));
+        assertTrue("Removed key row", text.contains("\r\n-cat\r\n"));
+        assertTrue("Null Value row", text.contains("\r\n+car\\,\r\n"));
+        assertFalse("Unchanged keys are not written", text.contains("+nothing"));
+
+        copyGeneration = apply(text, tt_copy, copyGeneration);
+        assertEquals("Partial delta brings the copy up to date", tt_integer.allKeyValues(), tt_copy.allKeyValues());
+        assertEquals("Null Value survives", null, tt_copy.get("car"));
+        assertTrue("Null Value key is kept", tt_copy.contains("car"));
+
+        // After a clear, only a full delta can follow.
+        tt_integer.removeAll();
+        tt_integer.put("fresh", 4);
+        writer = new StringWriter();
+        generation = TrieTreeDelta.exportChangesSince(tt_integer, generation, writer);
+        text = writer.toString();
+        assertTrue("Full header", text.startsWith("#delta\\," + copyGeneration + "\\," + generation + "\\,full\r\n"));
+        copyGeneration = apply(text, tt_copy, copyGeneration);
+        assertEquals("Full delta replaces the copy", tt_integer.allKeyValues(), tt_copy.allKeyValues());
+        assertEquals("Copy is at the generation of the tree", tt_integer.modificationCount(), copyGeneration);
+    }
+
+    @Test
+    public void testRejectsInvalidDeltas() throws IOException
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        tt_integer.enableChangeTracking();
+        tt_integer.put("cat", 1);
+        long generation = tt_integer.modificationCount();
+        tt_integer.put("dog", 2);
+        long missed = tt_integer.modificationCount();
+        tt_integer.put("cow", 3);
+        StringWriter writer = new StringWriter();
+        TrieTreeDelta.exportChangesSince(tt_integer, missed, writer);
+
+        TrieTree<Integer> tt_copy = new TrieTree<Integer>();
+        tt_copy.put("cat", 1);
+        try
+        {
+            apply(writer.toString(), tt_copy, generation);
+            fail("A delta that starts after the copy leaves a gap");
+        }
+        catch (IOException e)
+        {
+            assertTrue("Gap is reported", e.getMessage().contains("starts at generation " + missed));
+        }
+        assertEquals("Copy is untouched by a rejected delta", 1, tt_copy.size());
+
+        assertEquals("Unknown generation skips the check", missed + 1, apply(writer.toString(), tt_copy, -1));
+
+        String[] invalid = { "", "cat\\,1\r\n", "#delta\\,1\\,2\\,sideways\r\n", "#delta\\,1\\,2\\,partial\r\n?cat\r\n",
+                             "#delta\\,1\\,2\\,partial\r\n+cat\r\n", "#delta\\,1\\,2\\,partial\r\n\r\n" };
+        for (String text : invalid)
+        {
+            try
+            {
+                apply(text, tt_copy, 1);
+                fail("Invalid delta is rejected: " + text);
+            }
+            catch (IOException e)
+            {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testCompactor() throws IOException
+    {
+        Path directory = Files.createTempDirectory("delta");
+        Path csv = directory.resolve("base.csv");
+        Path first = directory.resolve("1.delta");
+        Path second = directory.resolve("2.delta");
+        Path output = directory.resolve("merged.csv");
+        try
+        {
+            TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+            tt_integer.enableChangeTracking();
+            for (int i = 0; i < 50; ++i)
+                tt_integer.put("key" + i, i);
+            write(csv, tt_integer.allKeyValues());
+            String base = String.valueOf(tt_integer.modificationCount());
+            long generation = tt_integer.modificationCount();
+
+            tt_integer.removePrefix("key1");
+            tt_integer.put("new", 1);
+            generation = export(tt_integer, generation, first);
+            tt_integer.remove("key2");
+            tt_integer.update("key3", -3);
+            export(tt_integer, generation, second);
+
+            // Out of order, the second delta starts after the CSV.
+            try
+            {
+                DeltaCompactor.main(new String[] { "--csv", csv.toString(), "--generation", base, "--output",
+                                                   output.toString(), second.toString(), first.toString() });
+                fail("A gap in the chain is rejected");
+            }
+            catch (IOException e)
+            {
+                assertTrue("Gap names the delta", e.getMessage().startsWith(second.toString()));
+            }
+            assertFalse("Nothing is written for a broken chain", Files.exists(output));
+
+            DeltaCompactor.main(new String[] { "--csv", csv.toString(), "--generation", base, "--output",
+                                               output.toString(), first.toString(), second.toString() });
+            HashMap<String, Integer> hm_merged = new HashMap<String, Integer>();
+            BufferedReader buffer = new BufferedReader(new FileReader(output.toFile()));
+            try
+            {
+                assertTrue("Output is a valid CSV", TrieTreeCsv.read(buffer, hm_merged));
+            }
+            finally
+            {
+                buffer.close();
+            }
+            assertEquals("Compacted export matches the tree", tt_integer.allKeyValues(), hm_merged);
+        }
+        finally
+        {
+            for (Path file : new Path[] { csv, first, second, output })
+                Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+
+    private static long apply(String text, TrieTree<Integer> tt, long generation) throws IOException
+    {
+        return TrieTreeDelta.apply(new BufferedReader(new StringReader(text)), tt, generation);
+    }
+
+    private static long export(TrieTree<Integer> tt, long generation, Path file) throws IOException
+    {
+        Writer writer = new FileWriter(file.toFile());
+        try
+        {
+            return TrieTreeDelta.exportChangesSince(tt, generation, writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private static void write(Path file, HashMap<String, Integer> entries) throws IOException
+    {
+        Writer writer = new FileWriter(file.toFile());
+        try
+        {
+            TrieTreeCsv.write(entries, writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package frugalinstant;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import trietree.TrieTree;
+
+import static org.junit.Assert.*;
+
+public class TrieTreeSnapshotTester
+{
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        tt_integer.put("a", 1);
+        tt_integer.put("ab", -2);
+        tt_integer.put("abc", null);
+        tt_integer.put("b", Integer.MAX_VALUE);
+        tt_integer.put("\u00e9t\u00e9", 3);
+        tt_integer.put("\u00e9t\u00e9s", 4);
+        // Two keys whose common prefix ends inside a surrogate pair.
+        tt_integer.put("\uD83D\uDE00", 5);
+        tt_integer.put("\uD83D\uDE01", 6);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TrieTreeSnapshot.write(tt_integer, bytes);
+
+        TrieTree<Integer> tt_read = new TrieTree<Integer>();
+        assertEquals("Every key is read", 8, TrieTreeSnapshot.read(new ByteArrayInputStream(bytes.toByteArray()), tt_read));
+        assertEquals("Snapshot round trips", tt_integer.allKeyValues(), tt_read.allKeyValues());
+
+        TrieTree<Integer> tt_existing = new TrieTree<Integer>();
+        tt_existing.put("a", 100);
+        TrieTreeSnapshot.read(new ByteArrayInputStream(bytes.toByteArray()), tt_existing);
+        assertEquals("Existing keys are left as they are", 100, (int) tt_existing.get("a"));
+        assertEquals("Other keys are added", 8, tt_existing.size());
+
+        bytes.reset();
+        TrieTreeSnapshot.write(new TrieTree<Integer>(), bytes);
+        tt_read = new TrieTree<Integer>();
+        assertEquals("Empty snapshot", 0, TrieTreeSnapshot.read(new ByteArrayInputStream(bytes.toByteArray()), tt_read));
+        assertTrue("Empty tree", tt_read.isEmpty());
+    }
+
+    @Test
+    public void testLongStrings() throws IOException
+    {
+        char[] accents = new char[40000];
+        Arrays.fill(accents, '\u00e9');
+        String[] strings = { "", "z", new String(accents), new String(accents, 0, 65535 / 2) + "\uD83D\uDE00" };
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        for (String s : strings)
+            TrieTreeSnapshot.writeString(data, s);
+        data.flush();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (String s : strings)
+            assertEquals("Strings over 65,535 bytes round trip", s, TrieTreeSnapshot.readString(in));
+        assertEquals("Nothing is left", -1, in.read());
+    }
+
+    @Test
+    public void testRejectsCorruptSnapshots() throws IOException
+    {
+        assertCorrupt("Wrong magic", header(0x46495331, 0));
+        assertCorrupt("Negative count", header(0x46495332, -1));
+        assertCorrupt("Count over an int", header(0x46495332, 1L << 40));
+
+        // Huge counts and lengths fail on the missing bytes, without
+        // allocating for them first.
+        assertCorrupt("Count with no keys", header(0x46495332, Integer.MAX_VALUE));
+        byte[] hugeString = Arrays.copyOf(header(0x46495332, 1), 12 + 6);
+        hugeString[12] = 0; // Shared length.
+        hugeString[13] = (byte) 0xFF; // String length 0x7FFFFFFF.
+        hugeString[14] = (byte) 0xFF;
+        hugeString[15] = (byte) 0xFF;
+        hugeString[16] = (byte) 0xFF;
+        hugeString[17] = (byte) 0x07;
+        assertCorrupt("String longer than the file", hugeString);
+
+        byte[] sharedTooLong = Arrays.copyOf(header(0x46495332, 1), 12 + 1);
+        sharedTooLong[12] = 5;
+        assertCorrupt("Shared length longer than the previous key", sharedTooLong);
+    }
+
+    private static byte[] header(int magic, long count) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(magic);
+        data.writeLong(count);
+        data.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void assertCorrupt(String message, byte[] snapshot)
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        try
+        {
+            TrieTreeSnapshot.read(new ByteArrayInputStream(snapshot), tt_integer);
+            fail(message + " is rejected");
+        }
+        catch (IOException e)
+        {
+            assertTrue(message + " leaves the tree empty", tt_integer.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package trietree;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An Aho-Corasick automaton compiled from the keys of a TrieTree. It reports
+ * every occurrence of every key in a text in one linear pass: each character
+ * moves the automaton by one goto edge or along failure links, so the scan
+ * never restarts at an earlier position, and the output links list all keys
+ * that end at the current character.
+ *
+ * The automaton is a snapshot of the tree when it was compiled and is
+ * immutable, so one scanner can be shared by any number of scanning threads.
+ * isStale() tells whether the tree has changed since, and refresh() compiles
+ * a new scanner if it has.
+ */
+public final class AhoCorasickScanner<Value>
+{
+    /* PRIVATE MEMBERS */
+    private static final int READ_BUFFER_CHARS = 8192;
+    private static final long MAP_REGION_BYTES = 64L << 20;
+
+    private final TrieTree<Value> tree;
+    private final long version; // Modification count of the tree when compiled.
+
+    // States are numbered breadth first, with the root at 0. The children of
+    // state s are the states firstChild[s] to firstChild[s + 1] - 1, sorted
+    // by the character on their incoming edge, label[child].
+    private final char[] label;
+    private final int[] firstChild;
+
+    private final int[] depth;
+    private final int[] failure; // Longest proper suffix that is a state.
+    private final int[] output; // Nearest key state on the failure chain, 0 if none.
+    private final int[] keyIndex; // Index into keys/values, -1 if no key ends here.
+
+    private final String[] keys;
+    private final Object[] values;
+
+    // Progress of one scan.
+    private static final class ScanState
+    {
+        int state;
+        long position;
+        long matches;
+        boolean stopped;
+    }
+
+    private AhoCorasickScanner(TrieTree<Value> tree, long version, String[] keys, Object[] values)
+    {
+        this.tree = tree;
+        this.version = version;
+        this.keys = keys;
+        this.values = values;
+
+        // Build a first-child/next-sibling trie of the sorted keys. With
+        // sorted keys, the child to follow is always the last one created.
+        int capacity = 1;
+        for (String key : keys)
+            capacity += key.length();
+
+        char[] trieLabel = new char[capacity];
+        int[] trieFirstChild = new int[capacity];
+        int[] trieLastChild = new int[capacity];
+        int[] trieNextSibling = new int[capacity];
+        int[] trieKey = new int[capacity];
+        Arrays.fill(trieFirstChild, -1);
+        Arrays.fill(trieLastChild, -1);
+        Arrays.fill(trieNextSibling, -1);
+        Arrays.fill(trieKey, -1);
+
+        int nodes = 1;
+        for (int k = 0; k < keys.length; ++k)
+        {
+            int node = 0;
+            for (int i = 0; i < keys[k].length(); ++i)
+            {
+                char c = keys[k].charAt(i);
+                int last = trieLastChild[node];
+                if (last != -1 && trieLabel[last] == c)
+                {
+                    node = last;
+                    continue;
+                }
+
+                int child = nodes++;
+                trieLabel[child] = c;
+                if (last == -1)
+                    trieFirstChild[node] = child;
+                else
+                    trieNextSibling[last] = child;
+                trieLastChild[node] = child;
+                node = child;
+            }
+            trieKey[node] = k;
+        }
+
+        // Number the states breadth first. Every state but the root has one
+        // incoming edge, so the children of a state get consecutive numbers.
+        label = new char[nodes];
+        firstChild = new int[nodes + 1];
+        depth = new int[nodes];
+        failure = new int[nodes];
+        output = new int[nodes];
+        keyIndex = new int[nodes];
+
+        int[] queue = new int[nodes]; // Trie node of each state.
+        int states = 1;
+        keyIndex[0] = trieKey[0];
+        for (int s = 0; s < nodes; ++s)
+        {
+            firstChild[s] = states;
+            for (int child = trieFirstChild[queue[s]]; child != -1; child = trieNextSibling[child])
+            {
+                queue[states] = child;
+                label[states] = trieLabel[child];
+                keyIndex[states] = trieKey[child];
+                depth[states] = depth[s] + 1;
+                ++states;
+            }
+        }
+        firstChild[nodes] = states;
+
+        // Failure and output links, parents before children. A failure link
+        // always points to a shallower state, which is already linked.
+        for (int s = 0; s < nodes; ++s)
+        {
+            for (int child = firstChild[s]; child < firstChild[s + 1]; ++child)
+            {
+                int f = s == 0 ? 0 : next(failure[s], label[child]);
+                failure[child] = f;
+                output[child] = keyIndex[f] >= 0 ? f : output[f];
+            }
+        }
+    }
+
+    /**
+     * This method compiles the keys and Values the tree holds now into a
+     * scanner. The tree is locked only while its entries are copied out.
+     *
+     * @param tree
+     *            Dictionary to compile.
+     * @return Scanner for every key of the tree.
+     */
+    public static <Value> AhoCorasickScanner<Value> compile(TrieTree<Value> tree)
+    {
+        long version;
+        HashMap<String, Value> entries;
+        synchronized (tree)
+        {
+            version = tree.modificationCount();
+            entries = tree.allKeyValues();
+        }
+
+        String[] keys = entries.keySet().toArray(new String[entries.size()]);
+        Arrays.sort(keys);
+        Object[] values = new Object[keys.length];
+        for (int i = 0; i < keys.length; ++i)
+            values[i] = entries.get(keys[i]);
+
+        return new AhoCorasickScanner<Value>(tree, version, keys, values);
+    }
+
+    /**
+     * This method reports whether the tree has been modified since the scanner
+     * was compiled.
+     *
+     * @return True if the scanner may miss or report keys the tree no longer
+     *         agrees with.
+     */
+    public boolean isStale()
+    {
+        return tree.modificationCount() != version;
+    }
+
+    /**
+     * This method returns a scanner that is current with the tree.
+     *
+     * @return This scanner if the tree has not changed. Otherwise, a newly
+     *         compiled one.
+     */
+    public AhoCorasickScanner<Value> refresh()
+    {
+        return isStale() ? compile(tree) : this;
+    }
+
+    /**
+     * @return Modification count of the tree when the scanner was compiled.
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @return Number of keys the scanner matches.
+     */
+    public int keyCount()
+    {
+        return keys.length;
+    }
+
+    /**
+     * @return Number of automaton states, including the root.
+     */
+    public int stateCount()
+    {
+        return label.length;
+    }
+
+    /**
+     * This method scans a text, such as a String, StringBuilder or CharBuffer
+     * (from its position to its limit).
+     *
+     * @param text
+     *            Text to scan.
+     * @param listener
+     *            Receives every match, with indices into the text.
+     * @return Number of matches reported.
+     */
+    public long scan(CharSequence text, TrieMatchListener<? super Value> listener)
+    {
+        ScanState scan = new ScanState();
+        for (int i = 0; i < text.length() && !scan.stopped; ++i)
+            feed(scan, text.charAt(i), listener);
+
+        return scan.matches;
+    }
+
+    /**
+     * This method scans a character stream in fixed-size chunks, so the text
+     * never has to fit in memory. Matches spanning chunk boundaries are found
+     * because the automaton state carries over. The reader is not closed.
+     *
+     * @param reader
+     *            Text to scan.
+     * @param listener
+     *            Receives every match, with character indices from the start
+     *            of the stream.
+     * @return Number of matches reported.
+     * @throws IOException
+     *             If reading fails.
+     */
+    public long scan(Reader reader, TrieMatchListener<? super Value> listener) throws IOException
+    {
+        ScanState scan = new ScanState();
+        char[] buffer = new char[READ_BUFFER_CHARS];
+        int read;
+        while (!scan.stopped && (read = reader.read(buffer, 0, buffer.length)) != -1)
+        {
+            for (int i = 0; i < read && !scan.stopped; ++i)
+                feed(scan, buffer[i], listener);
+        }
+
+        return scan.matches;
+    }
+
+    /**
+     * This method scans a file by memory-mapping it region by region and
+     * decoding the bytes straight into a small character buffer, so large
+     * files are neither copied onto the heap nor read through a stream.
+     * Malformed input is replaced rather than rejected.
+     *
+     * @param path
+     *            File to scan.
+     * @param charset
+     *            Encoding of the file.
+     * @param listener
+     *            Receives every match, with character (not byte) indices from
+     *            the start of the file.
+     * @return Number of matches reported.
+     * @throws IOException
+     *             If the file cannot be mapped.
+     */
+    public long scan(Path path, Charset charset, TrieMatchListener<? super Value> listener) throws IOException
+    {
+        ScanState scan = new ScanState();
+        CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(READ_BUFFER_CHARS);
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try
+        {
+            long size = channel.size();
+            long offset = 0;
+            do
+            {
+                long region = Math.min(MAP_REGION_BYTES, size - offset);
+                boolean endOfInput = offset + region == size;
+                MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, offset, region);
+
+                CoderResult result;
+                do
+                {
+                    result = decoder.decode(bytes, chars, endOfInput);
+                    drain(scan, chars, listener);
+                } while (result.isOverflow() && !scan.stopped);
+
+                // A character cut at the end of the region is left in the
+                // buffer; the next region starts with its first byte.
+                if (!endOfInput && bytes.position() == 0)
+                    throw new IOException("Cannot decode " + path + " at byte " + offset);
+                offset += bytes.position();
+
+                if (endOfInput)
+                {
+                    while (decoder.flush(chars).isOverflow() && !scan.stopped)
+                        drain(scan, chars, listener);
+                    drain(scan, chars, listener);
+                    break;
+                }
+            } while (!scan.stopped);
+        }
+        finally
+        {
+            channel.close();
+        }
+
+        return scan.matches;
+    }
+
+    // Feeds the decoded characters to the automaton and empties the buffer.
+    private void drain(ScanState scan, CharBuffer chars, TrieMatchListener<? super Value> listener)
+    {
+        chars.flip();
+        while (chars.hasRemaining() && !scan.stopped)
+            feed(scan, chars.get(), listener);
+        chars.clear();
+    }
+
+    /**
+     * This method moves the automaton by one character and reports every key
+     * that ends with it, longest first.
+     */
+    @SuppressWarnings("unchecked")
+    private void feed(ScanState scan, char c, TrieMatchListener<? super Value> listener)
+    {
+        int s = next(scan.state, c);
+        scan.state = s;
+        long end = ++scan.position;
+
+        for (int o = keyIndex[s] >= 0 ? s : output[s]; o != 0; o = output[o])
+        {
+            ++scan.matches;
+            int k = keyIndex[o];
+            if (!listener.matchFound(end - depth[o], end, keys[k], (Value) values[k]))
+            {
+                scan.stopped = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * This method follows the goto edge for the character, falling back along
+     * the failure links until one exists. The root absorbs every character
+     * that starts no key.
+     *
+     * @return Next state.
+     */
+    private int next(int s, char c)
+    {
+        while (true)
+        {
+            int child = child(s, c);
+            if (child != -1)
+                return child;
+            if (s == 0)
+                return 0;
+            s = failure[s];
+        }
+    }
+
+    // Binary search of the sorted children of a state.
+    private int child(int s, char c)
+    {
+        int low = firstChild[s];
+        int high = firstChild[s + 1] - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            char l = label[mid];
+            if (l < c)
+                low = mid + 1;
+            else if (l > c)
+                high = mid - 1;
+            else
+                return mid;
+        }
+
+        return -1;
+    }
+
+    /**
+     * This method collects how many times each key occurs in the text, which
+     * is the usual first step when tagging a document.
+     *
+     * @param text
+     *            Text to scan.
+     * @return HashMap<String, Long> of every key found to its number of
+     *         occurrences.
+     */
+    public HashMap<String, Long> countMatches(CharSequence text)
+    {
+        final HashMap<String, Long> counts = new HashMap<String, Long>();
+        scan(text, new TrieMatchListener<Value>()
+        {
+            public boolean matchFound(long start, long end, String key, Value value)
+            {
+                Long count = counts.get(key);
+                counts.put(key, count == null ? 1L : count + 1);
+                return true;
+            }
+        });
+
+        return counts;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AhoCorasickScanner[keys=" + keys.length + ", states=" + label.length + ", version=" + version + "]";
+    }
+}
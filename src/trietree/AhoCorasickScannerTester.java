@@ -0,0 +1,155 @@
+package trietree;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AhoCorasickScannerTester
+{
+    // Collects matches as "start:key".
+    private static final class Matches implements TrieMatchListener<Integer>
+    {
+        final ArrayList<String> found = new ArrayList<String>();
+
+        public boolean matchFound(long start, long end, String key, Integer value)
+        {
+            assertEquals("Match spans the key", key.length(), end - start);
+            found.add(start + ":" + key);
+            return true;
+        }
+    }
+
+    private static TrieTree<Integer> newTree(String... keys)
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        for (int i = 0; i < keys.length; ++i)
+            tt_integer.put(keys[i], i);
+        return tt_integer;
+    }
+
+    @Test
+    public void testScan() throws Exception
+    {
+        AhoCorasickScanner<Integer> scanner = AhoCorasickScanner.compile(newTree("he", "she", "his", "hers"));
+        assertEquals("Scanner has 4 keys", 4, scanner.keyCount());
+        assertEquals("Scanner has a state per trie node", 10, scanner.stateCount());
+
+        Matches matches = new Matches();
+        assertEquals("\"ushers\" has 3 matches", 3, scanner.scan("ushers", matches));
+        assertEquals("Matches come in end order, longest first", Arrays.asList("1:she", "2:he", "2:hers"), matches.found);
+
+        matches = new Matches();
+        scanner.scan(new StringReader("ahishers"), matches);
+        assertEquals("Reader scan", Arrays.asList("1:his", "3:she", "4:he", "4:hers"), matches.found);
+
+        matches = new Matches();
+        assertEquals("Empty text has no matches", 0, scanner.scan("", matches));
+        assertEquals("Empty dictionary has no matches", 0,
+                     AhoCorasickScanner.compile(new TrieTree<Integer>()).scan("ushers", matches));
+
+        final ArrayList<String> first = new ArrayList<String>();
+        scanner.scan("ushers", new TrieMatchListener<Integer>()
+        {
+            public boolean matchFound(long start, long end, String key, Integer value)
+            {
+                first.add(key);
+                return false;
+            }
+        });
+        assertEquals("Listener can stop the scan", Arrays.asList("she"), first);
+
+        HashMap<String, Long> hm_expected = new HashMap<String, Long>();
+        hm_expected.put("he", 2L);
+        hm_expected.put("she", 1L);
+        assertEquals("Counts per key", hm_expected, scanner.countMatches("she said he"));
+    }
+
+    @Test
+    public void testMatchesBruteForce() throws Exception
+    {
+        Random random = new Random(39);
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        for (int i = 0; i < 300; ++i)
+        {
+            StringBuilder key = new StringBuilder();
+            for (int length = 1 + random.nextInt(5); length > 0; --length)
+                key.append((char) ('a' + random.nextInt(3)));
+            tt_integer.put(key.toString(), i);
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 30000; ++i)
+            text.append((char) ('a' + random.nextInt(3)));
+
+        // Every key at every position, in the scanner's order. Keys are at
+        // most 5 characters long.
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int end = 1; end <= text.length(); ++end)
+        {
+            for (int start = Math.max(0, end - 5); start < end; ++start)
+            {
+                if (tt_integer.contains(text.substring(start, end)))
+                    expected.add(start + ":" + text.substring(start, end));
+            }
+        }
+
+        AhoCorasickScanner<Integer> scanner = AhoCorasickScanner.compile(tt_integer);
+        Matches matches = new Matches();
+        scanner.scan(text, matches);
+        assertEquals("CharSequence scan finds every occurrence", expected, matches.found);
+
+        matches = new Matches();
+        scanner.scan(new StringReader(text.toString()), matches);
+        assertEquals("Reader scan carries state over chunk boundaries", expected, matches.found);
+    }
+
+    @Test
+    public void testScanFile() throws Exception
+    {
+        AhoCorasickScanner<Integer> scanner = AhoCorasickScanner.compile(newTree("caf\u00e9", "\u00e9t\u00e9", "t"));
+        File file = File.createTempFile("scanner", ".txt");
+        try
+        {
+            Files.write(file.toPath(), "un caf\u00e9 d'\u00e9t\u00e9".getBytes(StandardCharsets.UTF_8));
+            Matches matches = new Matches();
+            scanner.scan(file.toPath(), StandardCharsets.UTF_8, matches);
+            List<String> expected = Arrays.asList("3:caf\u00e9", "11:t", "10:\u00e9t\u00e9");
+            assertEquals("Mapped file scan uses character indices", expected, matches.found);
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRefresh()
+    {
+        TrieTree<Integer> tt_integer = newTree("cat");
+        AhoCorasickScanner<Integer> scanner = AhoCorasickScanner.compile(tt_integer);
+        assertFalse("New scanner is current", scanner.isStale());
+        assertSame("Refreshing a current scanner keeps it", scanner, scanner.refresh());
+
+        tt_integer.put("dog", 1);
+        assertTrue("Put makes the scanner stale", scanner.isStale());
+        assertEquals("Stale scanner still matches its own keys", 1, scanner.scan("catdog", new Matches()));
+
+        AhoCorasickScanner<Integer> refreshed = scanner.refresh();
+        assertFalse("Refreshed scanner is current", refreshed.isStale());
+        assertEquals("Refreshed scanner sees the new key", 2, refreshed.scan("catdog", new Matches()));
+
+        tt_integer.update("dog", 2);
+        assertTrue("Update makes the scanner stale", refreshed.isStale());
+        assertFalse("Failed mutation does not", tt_integer.remove("cow") && refreshed.refresh().isStale());
+    }
+}
@@ -0,0 +1,500 @@
+package trietree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A TrieTree used as a prefix-aware cache with a hard capacity. Every entry
+ * has a weight (1 for an entry limit, or an estimate of its bytes), and when a
+ * write takes the total weight over the capacity, entries are evicted through
+ * TrieTree.remove until it fits again.
+ *
+ * Eviction is sampled, like Redis: a few keys are drawn uniformly from the
+ * tree with sampleWithPrefix, which costs O(key length) thanks to the
+ * reference counts, and the least recently (LRU) or least frequently (LFU)
+ * used of them is evicted. The usage of each key, along with its Value, is
+ * kept in a ConcurrentHashMap and updated without locking, so get is one map
+ * read and takes no lock. Writers are serialized by one writer lock so that
+ * the tree, the usage map and the total weight agree.
+ */
+public class BoundedTrieTree<Value>
+{
+    /**
+     * Which sampled key to evict.
+     */
+    public enum Policy
+    {
+        /** The key whose last hit is the oldest. */
+        LRU,
+
+        /** The key with the fewest hits; ties go to the oldest last hit. */
+        LFU
+    }
+
+    /* PRIVATE MEMBERS */
+    // Keys sampled per eviction. More samples approximate the exact policy
+    // better at a higher cost per eviction.
+    private static final int EVICTION_SAMPLES = 8;
+
+    // Keys removed per lock acquisition of the tree by removePrefix.
+    private static final int REMOVE_PAGE_SIZE = 1024;
+
+    private final TrieTree<Value> tree = new TrieTree<Value>();
+    private final long capacity;
+    private final Policy policy;
+    private final TrieWeigher<? super Value> weigher;
+
+    // Usage of every key in the tree. Only added and removed under the writer
+    // lock; touched by readers without it.
+    private final ConcurrentHashMap<String, Usage<Value>> usage = new ConcurrentHashMap<String, Usage<Value>>();
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private final Random random = new Random(); // Used under the writer lock.
+    private volatile long weight; // Written under the writer lock.
+
+    private final CopyOnWriteArrayList<TrieEvictionListener<? super Value>> listeners = new CopyOnWriteArrayList<TrieEvictionListener<? super Value>>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // Usage of one key, and its Value, so that a get sees the key and its
+    // Value in one read. A write replaces the whole Usage. The access fields
+    // are updated racily by concurrent readers; a lost increment only makes
+    // the policy slightly less exact.
+    private static final class Usage<Value>
+    {
+        final long weight;
+        final Value value;
+        volatile long lastAccess;
+        volatile long frequency;
+
+        Usage(long weight, Value value)
+        {
+            this.weight = weight;
+            this.value = value;
+            lastAccess = System.nanoTime();
+            frequency = 1;
+        }
+
+        void touch()
+        {
+            lastAccess = System.nanoTime();
+            frequency = frequency + 1;
+        }
+    }
+
+    /**
+     * Constructor for an entry limit.
+     *
+     * @param maxEntries
+     *            Most keys the tree holds.
+     * @param policy
+     *            Which keys to evict.
+     */
+    public BoundedTrieTree(long maxEntries, Policy policy)
+    {
+        this(maxEntries, policy, entries());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity
+     *            Most total weight the tree holds.
+     * @param policy
+     *            Which keys to evict.
+     * @param weigher
+     *            Weight of each entry, such as entries() or estimatedBytes().
+     */
+    public BoundedTrieTree(long capacity, Policy policy, TrieWeigher<? super Value> weigher)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        if (policy == null || weigher == null)
+            throw new IllegalArgumentException("policy and weigher are required");
+
+        this.capacity = capacity;
+        this.policy = policy;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @return Weigher that counts entries.
+     */
+    public static TrieWeigher<Object> entries()
+    {
+        return new TrieWeigher<Object>()
+        {
+            public long weigh(String key, Object value)
+            {
+                return 1;
+            }
+        };
+    }
+
+    /**
+     * @return Weigher that charges each entry the heap of its key in a
+     *         TrieTree that shares none of its prefix. Shared prefixes make the
+     *         real footprint smaller, so a capacity in bytes is a hard upper
+     *         bound on the tree's nodes. Values are not counted.
+     */
+    public static TrieWeigher<Object> estimatedBytes()
+    {
+        return new TrieWeigher<Object>()
+        {
+            public long weigh(String key, Object value)
+            {
+                return key.length() * TrieTree.BYTES_PER_UNSHARED_KEY_CHAR;
+            }
+        };
+    }
+
+    /**
+     * This method registers a listener for evictions. Explicit removes are
+     * not reported.
+     *
+     * @param listener
+     *            Listener to add.
+     */
+    public void addEvictionListener(TrieEvictionListener<? super Value> listener)
+    {
+        listeners.add(listener);
+    }
+
+    /**
+     * This method unregisters a listener.
+     *
+     * @param listener
+     *            Listener to remove.
+     */
+    public void removeEvictionListener(TrieEvictionListener<? super Value> listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * This method returns the Value of the key and records a hit or a miss.
+     *
+     * @param key
+     *            String of the key.
+     * @return Value associated with the key. Null if the key does not exist or
+     *         no Value associated with key.
+     */
+    public Value get(String key)
+    {
+        Usage<Value> u = key == null ? null : usage.get(key);
+        if (u == null)
+        {
+            misses.increment();
+            return null;
+        }
+
+        u.touch();
+        hits.increment();
+        return u.value;
+    }
+
+    /**
+     * This method checks if the tree contains the key, without counting as a
+     * use of it.
+     *
+     * @param key
+     *            String of the key.
+     * @return True if the tree contains the key. False otherwise.
+     */
+    public boolean contains(String key)
+    {
+        return tree.contains(key);
+    }
+
+    /**
+     * This method adds a key and its Value, then evicts other keys until the
+     * total weight fits the capacity.
+     *
+     * @param key
+     *            String of the key.
+     * @param val
+     *            Value to associate with the key.
+     * @return True if put was successful. False if the key is empty or the
+     *         tree already contains it.
+     */
+    public boolean put(String key, Value val)
+    {
+        ArrayList<Map.Entry<String, Value>> evicted;
+        writerLock.lock();
+        try
+        {
+            if (!tree.put(key, val))
+                return false;
+
+            Usage<Value> u = new Usage<Value>(weigher.weigh(key, val), val);
+            usage.put(key, u);
+            weight += u.weight;
+            evicted = evict(key);
+        }
+        finally
+        {
+            writerLock.unlock();
+        }
+
+        notifyEvicted(evicted);
+        return true;
+    }
+
+    /**
+     * This method updates the Value of the key, then evicts other keys if its
+     * new weight takes the total over the capacity.
+     *
+     * @param key
+     *            String of the key.
+     * @param val
+     *            Value to associate with the key.
+     * @return True if update was successful. False if the tree does not
+     *         contain the key.
+     */
+    public boolean update(String key, Value val)
+    {
+        ArrayList<Map.Entry<String, Value>> evicted;
+        writerLock.lock();
+        try
+        {
+            if (!tree.update(key, val))
+                return false;
+
+            Usage<Value> old = usage.get(key);
+            Usage<Value> u = new Usage<Value>(weigher.weigh(key, val), val);
+            u.frequency = old.frequency;
+            usage.put(key, u);
+            weight += u.weight - old.weight;
+            evicted = evict(key);
+        }
+        finally
+        {
+            writerLock.unlock();
+        }
+
+        notifyEvicted(evicted);
+        return true;
+    }
+
+    /**
+     * This method removes a key from the tree, if it exists.
+     *
+     * @param key
+     *            String of the key.
+     * @return True if the key is removed. False if the key is not in the tree.
+     */
+    public boolean remove(String key)
+    {
+        writerLock.lock();
+        try
+        {
+            if (!tree.remove(key))
+                return false;
+
+            weight -= usage.remove(key).weight;
+            return true;
+        }
+        finally
+        {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * This method removes every key that contains the prefix. The keys are
+     * removed a page at a time, and the weight of each key the tree actually
+     * removed is subtracted, so the entries are never all held at once.
+     *
+     * @param prefix
+     *            String of the prefix.
+     * @return Number of keys removed.
+     */
+    public long removePrefix(String prefix)
+    {
+        writerLock.lock();
+        try
+        {
+            if (prefix == null)
+                return 0;
+
+            // Removed keys leave the tree, so the first page is always the
+            // next one.
+            long removed = 0;
+            TrieTree.Page<Value> page;
+            do
+            {
+                page = tree.pageWithPrefix(prefix, null, REMOVE_PAGE_SIZE);
+                for (Map.Entry<String, Boolean> outcome : tree.removeAll(page.getEntries().keySet()).entrySet())
+                {
+                    if (outcome.getValue())
+                    {
+                        weight -= usage.remove(outcome.getKey()).weight;
+                        ++removed;
+                    }
+                }
+            }
+            while (page.hasMore());
+            return removed;
+        }
+        finally
+        {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * This method returns the entries that contain the prefix, without
+     * counting as a use of them.
+     *
+     * @param prefix
+     *            String of the prefix.
+     * @return HashMap<String, Value> collection of keys with the prefix.
+     */
+    public HashMap<String, Value> keyValueCollectionWithPrefix(String prefix)
+    {
+        return tree.keyValueCollectionWithPrefix(prefix);
+    }
+
+    /**
+     * This method returns the number of keys that contain the prefix.
+     *
+     * @param prefix
+     *            String of the prefix.
+     * @return Number of keys with the prefix.
+     */
+    public long countWithPrefix(String prefix)
+    {
+        return tree.countWithPrefix(prefix);
+    }
+
+    /**
+     * @return Number of keys in the tree.
+     */
+    public long size()
+    {
+        return tree.size();
+    }
+
+    /**
+     * @return Total weight of the entries.
+     */
+    public long weightedSize()
+    {
+        return weight;
+    }
+
+    /**
+     * @return Most total weight the tree holds.
+     */
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return Number of gets that found their key.
+     */
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of gets that did not find their key.
+     */
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return Fraction of gets that found their key. 0 before the first get.
+     */
+    public double getHitRate()
+    {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return Number of keys evicted to stay within the capacity.
+     */
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * This method evicts sampled keys until the total weight fits, called
+     * with the writer lock held. The key just written is only evicted if it is
+     * the last one left, so a single entry heavier than the capacity does not
+     * stay.
+     *
+     * @return Evicted entries, for the listeners.
+     */
+    private ArrayList<Map.Entry<String, Value>> evict(String written)
+    {
+        ArrayList<Map.Entry<String, Value>> evicted = null;
+        while (weight > capacity && !tree.isEmpty())
+        {
+            String victim = null;
+            Usage<Value> victimUsage = null;
+            for (int i = 0; i < EVICTION_SAMPLES; ++i)
+            {
+                String candidate = tree.sampleWithPrefix("", random);
+                if (candidate.equals(written) && tree.size() > 1)
+                    continue;
+
+                Usage<Value> u = usage.get(candidate);
+                if (victim == null || isWorse(u, victimUsage))
+                {
+                    victim = candidate;
+                    victimUsage = u;
+                }
+            }
+            if (victim == null)
+                continue;
+
+            tree.remove(victim);
+            usage.remove(victim);
+            weight -= victimUsage.weight;
+            evictions.increment();
+
+            if (evicted == null)
+                evicted = new ArrayList<Map.Entry<String, Value>>();
+            evicted.add(new AbstractMap.SimpleImmutableEntry<String, Value>(victim, victimUsage.value));
+        }
+
+        return evicted;
+    }
+
+    // True if the policy prefers to evict a over b.
+    private boolean isWorse(Usage<Value> a, Usage<Value> b)
+    {
+        if (policy == Policy.LFU && a.frequency != b.frequency)
+            return a.frequency < b.frequency;
+
+        return a.lastAccess - b.lastAccess < 0;
+    }
+
+    private void notifyEvicted(ArrayList<Map.Entry<String, Value>> evicted)
+    {
+        if (evicted == null)
+            return;
+
+        for (Map.Entry<String, Value> entry : evicted)
+        {
+            for (TrieEvictionListener<? super Value> listener : listeners)
+                listener.evicted(entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package trietree;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BoundedTrieTreeTester
+{
+    @Test
+    public void testEntryLimit()
+    {
+        BoundedTrieTree<Integer> bt_integer = new BoundedTrieTree<Integer>(3, BoundedTrieTree.Policy.LRU);
+        final ArrayList<String> evicted = new ArrayList<String>();
+        bt_integer.addEvictionListener(new TrieEvictionListener<Integer>()
+        {
+            public void evicted(String key, Integer value)
+            {
+                assertEquals("Listener gets the evicted Value", key.length(), (int) value);
+                evicted.add(key);
+            }
+        });
+
+        assertTrue("Put \"a\" returns true", bt_integer.put("a", 1));
+        assertTrue("Put \"ab\" returns true", bt_integer.put("ab", 2));
+        assertTrue("Put \"abc\" returns true", bt_integer.put("abc", 3));
+        assertFalse("Put \"abc\" again returns false", bt_integer.put("abc", 3));
+        assertEquals("Nothing evicted at capacity", 0, bt_integer.getEvictionCount());
+
+        assertTrue("Put \"abcd\" returns true", bt_integer.put("abcd", 4));
+        assertEquals("Size stays at capacity", 3, bt_integer.size());
+        assertEquals("Weight stays at capacity", 3, bt_integer.weightedSize());
+        assertEquals("One key was evicted", 1, bt_integer.getEvictionCount());
+        assertEquals("Listener saw the eviction", 1, evicted.size());
+        assertFalse("Evicted key is gone", bt_integer.contains(evicted.get(0)));
+        assertTrue("Key just put is never the victim", bt_integer.contains("abcd"));
+        assertEquals("Prefix counts follow evictions", 3, bt_integer.countWithPrefix("a"));
+
+        assertTrue("Remove \"abcd\" returns true", bt_integer.remove("abcd"));
+        assertEquals("Weight follows removes", 2, bt_integer.weightedSize());
+        assertEquals("removePrefix removes the rest", 2, bt_integer.removePrefix("a"));
+        assertEquals("Weight follows removePrefix", 0, bt_integer.weightedSize());
+        assertEquals("Explicit removes are not evictions", 1, evicted.size());
+    }
+
+    @Test
+    public void testRemovePrefixPages()
+    {
+        BoundedTrieTree<Integer> bt_integer = new BoundedTrieTree<Integer>(10000000, BoundedTrieTree.Policy.LRU,
+                                                                           BoundedTrieTree.estimatedBytes());
+        for (int i = 0; i < 3000; ++i)
+            bt_integer.put("k" + i, i);
+        bt_integer.put("other", -1);
+        long other = 5 * TrieTree.BYTES_PER_UNSHARED_KEY_CHAR;
+
+        assertEquals("Capacity is not reached", 0, bt_integer.getEvictionCount());
+        assertEquals("removePrefix removes more than a page of keys", 3000, bt_integer.removePrefix("k"));
+        assertEquals("Weight of the removed keys is subtracted", other, bt_integer.weightedSize());
+        assertEquals("Other keys stay", 1, bt_integer.size());
+        assertEquals("Removed keys miss", null, bt_integer.get("k1"));
+        assertEquals("Other keys hit", -1, (int) bt_integer.get("other"));
+        assertEquals("Nothing left to remove", 0, bt_integer.removePrefix("k"));
+
+        bt_integer.update("other", -2);
+        assertEquals("Get sees the update", -2, (int) bt_integer.get("other"));
+    }
+
+    @Test
+    public void testStatistics()
+    {
+        BoundedTrieTree<Integer> bt_integer = new BoundedTrieTree<Integer>(10, BoundedTrieTree.Policy.LFU);
+        assertEquals("No gets, no hit rate", 0, bt_integer.getHitRate(), 0);
+        bt_integer.put("cat", 1);
+        bt_integer.put("dog", null);
+
+        assertEquals("Get \"cat\" returns 1", 1, (int) bt_integer.get("cat"));
+        assertEquals("Get \"dog\" returns null", null, bt_integer.get("dog"));
+        assertEquals("Get missing \"cow\" returns null", null, bt_integer.get("cow"));
+        assertEquals("Get null returns null", null, bt_integer.get(null));
+        assertEquals("Null Values count as hits", 2, bt_integer.getHitCount());
+        assertEquals("Missing keys count as misses", 2, bt_integer.getMissCount());
+        assertEquals("Hit rate", 0.5, bt_integer.getHitRate(), 0);
+    }
+
+    @Test
+    public void testByteLimit()
+    {
+        BoundedTrieTree<Integer> bt_integer = new BoundedTrieTree<Integer>(1000, BoundedTrieTree.Policy.LRU,
+                                                                           BoundedTrieTree.estimatedBytes());
+        bt_integer.put("abc", 1);
+        assertEquals("Weight of a 3-character key", 3 * 144, bt_integer.weightedSize());
+        bt_integer.put("defg", 2);
+        assertTrue("Capacity holds", bt_integer.weightedSize() <= 1000);
+        assertEquals("One key fits", 1, bt_integer.size());
+
+        bt_integer.put("abcdefghijklmnopqrstuvwxyz", 3);
+        assertEquals("A key heavier than the capacity does not stay", 0, bt_integer.size());
+        assertEquals("Weight is back to 0", 0, bt_integer.weightedSize());
+    }
+
+    @Test
+    public void testEstimatedBytesMatchStats()
+    {
+        // Keys that share no prefix, with every character outside the cached
+        // Character range so each one is boxed.
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        String[] keys = { "\u00e9\u00e8\u00ea", "\u00fc\u00f6", "\u00f8", "\u4e2d\u6587\u5b57\u7b26" };
+        long estimate = 0;
+        for (int i = 0; i < keys.length; ++i)
+        {
+            tt_integer.put(keys[i], i);
+            estimate += BoundedTrieTree.estimatedBytes().weigh(keys[i], i);
+        }
+
+        // The root is there before any key.
+        TrieStats empty = new TrieTree<Integer>().stats();
+        TrieStats stats = tt_integer.stats();
+        assertEquals("Estimate matches the node, map and key bytes", estimate,
+                     stats.getNodeBytes() + stats.getChildMapBytes() + stats.getBoxedKeyBytes()
+                         - empty.getNodeBytes() - empty.getChildMapBytes());
+    }
+
+    private static void checkHotKeysSurvive(BoundedTrieTree.Policy policy)
+    {
+        BoundedTrieTree<Integer> bt_integer = new BoundedTrieTree<Integer>(100, policy);
+        for (int i = 0; i < 2000; ++i)
+        {
+            bt_integer.put("cold" + i, i);
+            for (int hot = 0; hot < 10; ++hot)
+            {
+                if (i == 0)
+                    bt_integer.put("hot" + hot, hot);
+                bt_integer.get("hot" + hot);
+            }
+        }
+
+        assertEquals(policy + " stays at capacity", 100, bt_integer.size());
+        assertEquals(policy + " keeps every hot key", 10, bt_integer.countWithPrefix("hot"));
+        assertEquals(policy + " evicts the rest", 2010 - 100, bt_integer.getEvictionCount());
+    }
+
+    @Test
+    public void testPolicies()
+    {
+        checkHotKeysSurvive(BoundedTrieTree.Policy.LRU);
+        checkHotKeysSurvive(BoundedTrieTree.Policy.LFU);
+    }
+}
@@ -0,0 +1,714 @@
+package trietree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This generic data type is a prefix trie tree whose edges are the bytes of an
+ * encoded key instead of UTF-16 chars. Keys are stored as Latin-1 (one byte
+ * per character, for dictionaries that fit) or UTF-8 (full Unicode, one byte
+ * per ASCII character, and every supplementary code point is one four byte
+ * sequence rather than a surrogate pair). Each node keeps its children in a
+ * sorted byte array with a parallel array of nodes, so there is no boxing and
+ * no map per node.
+ *
+ * Keys can be given as Strings, which are encoded, or as byte[]/ByteBuffer
+ * already in the tree's encoding, which go straight to the walk without a
+ * String in between. Direct buffers are read in place with absolute gets,
+ * not copied. Because UTF-8 preserves code point order and never lets one
+ * code point's bytes start another's, byte prefixes and byte order are code
+ * point prefixes and code point order.
+ */
+public class ByteTrieTree<Value>
+{
+    /**
+     * Byte encodings of the keys.
+     */
+    public enum Encoding
+    {
+        /** One byte per character. Only keys up to U+00FF fit. */
+        LATIN_1(StandardCharsets.ISO_8859_1),
+
+        /** Any well-formed Unicode key. */
+        UTF_8(StandardCharsets.UTF_8);
+
+        private final Charset charset;
+
+        private Encoding(Charset charset)
+        {
+            this.charset = charset;
+        }
+
+        public Charset getCharset()
+        {
+            return charset;
+        }
+    }
+
+    /* PRIVATE MEMBERS */
+    private static final byte[] NO_LABELS = new byte[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final Encoding encoding;
+    private final Node rootNode = new Node(); // Its referenceCount is the size.
+
+    // Used to maintain link between the bytes of the keys.
+    private static final class Node
+    {
+        private boolean wordEnd; // True signifies the end of a key.
+        private Object value; // Value assigned when wordEnd is true.
+        private long referenceCount; // Number of keys at or below this node.
+
+        // Children sorted by their unsigned byte label. Arrays are sized
+        // exactly, since most nodes have one child.
+        private byte[] labels = NO_LABELS;
+        private Node[] children = NO_CHILDREN;
+
+        // Binary search for the child, or -(insertion point) - 1.
+        int indexOf(byte label)
+        {
+            int key = label & 0xFF;
+            int low = 0;
+            int high = labels.length - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                int l = labels[mid] & 0xFF;
+                if (l < key)
+                    low = mid + 1;
+                else if (l > key)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+
+            return -(low + 1);
+        }
+
+        Node child(byte label)
+        {
+            int index = indexOf(label);
+            return index >= 0 ? children[index] : null;
+        }
+
+        Node addChild(byte label)
+        {
+            int index = -(indexOf(label) + 1);
+            byte[] newLabels = new byte[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(labels, index, newLabels, index + 1, labels.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+
+            Node child = new Node();
+            newLabels[index] = label;
+            newChildren[index] = child;
+            labels = newLabels;
+            children = newChildren;
+            return child;
+        }
+
+        void removeChild(byte label)
+        {
+            int index = indexOf(label);
+            if (index < 0)
+                return;
+
+            if (labels.length == 1)
+            {
+                labels = NO_LABELS;
+                children = NO_CHILDREN;
+                return;
+            }
+
+            byte[] newLabels = new byte[labels.length - 1];
+            Node[] newChildren = new Node[children.length - 1];
+            System.arraycopy(labels, 0, newLabels, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(labels, index + 1, newLabels, index, labels.length - index - 1);
+            System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+            labels = newLabels;
+            children = newChildren;
+        }
+    }
+
+    /**
+     * Constructor for a UTF-8 tree.
+     */
+    public ByteTrieTree()
+    {
+        this(Encoding.UTF_8);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param encoding
+     *            Byte encoding of the keys.
+     */
+    public ByteTrieTree(Encoding encoding)
+    {
+        if (encoding == null)
+            throw new IllegalArgumentException("encoding");
+        this.encoding = encoding;
+    }
+
+    /**
+     * @return Byte encoding of the keys.
+     */
+    public Encoding getEncoding()
+    {
+        return encoding;
+    }
+
+    /**
+     * This method encodes a key the way the tree stores it. Unlike
+     * String.getBytes, it refuses keys it cannot represent instead of
+     * replacing characters.
+     *
+     * @param key
+     *            String of the key.
+     * @return Encoded key. Null if the key is null, has a character above
+     *         U+00FF in a Latin-1 tree, or has an unpaired surrogate.
+     */
+    public byte[] encode(String key)
+    {
+        if (key == null)
+            return null;
+
+        if (encoding == Encoding.LATIN_1)
+        {
+            byte[] bytes = new byte[key.length()];
+            for (int i = 0; i < key.length(); ++i)
+            {
+                char c = key.charAt(i);
+                if (c > 0xFF)
+                    return null;
+                bytes[i] = (byte) c;
+            }
+            return bytes;
+        }
+
+        // Size first, so the array is exact.
+        int length = 0;
+        for (int i = 0; i < key.length(); ++i)
+        {
+            char c = key.charAt(i);
+            if (c < 0x80)
+                length += 1;
+            else if (c < 0x800)
+                length += 2;
+            else if (!Character.isSurrogate(c))
+                length += 3;
+            else if (Character.isHighSurrogate(c) && i + 1 < key.length() && Character.isLowSurrogate(key.charAt(i + 1)))
+            {
+                length += 4;
+                ++i;
+            }
+            else
+                return null;
+        }
+
+        byte[] bytes = new byte[length];
+        int b = 0;
+        for (int i = 0; i < key.length(); ++i)
+        {
+            int cp = key.codePointAt(i);
+            if (cp < 0x80)
+                bytes[b++] = (byte) cp;
+            else if (cp < 0x800)
+            {
+                bytes[b++] = (byte) (0xC0 | (cp >> 6));
+                bytes[b++] = (byte) (0x80 | (cp & 0x3F));
+            }
+            else if (cp < 0x10000)
+            {
+                bytes[b++] = (byte) (0xE0 | (cp >> 12));
+                bytes[b++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[b++] = (byte) (0x80 | (cp & 0x3F));
+            }
+            else
+            {
+                bytes[b++] = (byte) (0xF0 | (cp >> 18));
+                bytes[b++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[b++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[b++] = (byte) (0x80 | (cp & 0x3F));
+                ++i;
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * This method returns the number of keys in the tree.
+     *
+     * @return Number of keys in the tree.
+     */
+    public synchronized long size()
+    {
+        return rootNode.referenceCount;
+    }
+
+    /**
+     * This method reports whether the tree is empty.
+     *
+     * @return True if the tree is empty. False otherwise.
+     */
+    public synchronized boolean isEmpty()
+    {
+        return rootNode.referenceCount == 0;
+    }
+
+    /**
+     * This method clears the entire tree.
+     */
+    public synchronized void removeAll()
+    {
+        rootNode.labels = NO_LABELS;
+        rootNode.children = NO_CHILDREN;
+        rootNode.referenceCount = 0;
+    }
+
+    /**
+     * This method adds a key and its Value to the tree.
+     *
+     * @param key
+     *            String of the key.
+     * @param val
+     *            Value to associate with the key.
+     * @return True if put was successful. False if the key is empty, cannot be
+     *         encoded, or the tree already contains it.
+     */
+    public boolean put(String key, Value val)
+    {
+        byte[] bytes = encode(key);
+        return bytes != null && put(bytes, null, 0, bytes.length, val);
+    }
+
+    /**
+     * This method adds an encoded key and its Value to the tree.
+     *
+     * @param key
+     *            Key in the tree's encoding.
+     * @param val
+     *            Value to associate with the key.
+     * @return True if put was successful. False if the key is empty, not
+     *         well-formed UTF-8 in a UTF-8 tree, or already in the tree.
+     */
+    public boolean put(byte[] key, Value val)
+    {
+        return key != null && put(key, null, 0, key.length, val);
+    }
+
+    /**
+     * This method adds an encoded key, from the position to the limit of the
+     * buffer, and its Value to the tree. The buffer's position is unchanged.
+     *
+     * @see #put(byte[], Object)
+     */
+    public boolean put(ByteBuffer key, Value val)
+    {
+        if (key == null)
+            return false;
+        if (key.hasArray())
+            return put(key.array(), null, key.arrayOffset() + key.position(), key.remaining(), val);
+        return put(null, key, key.position(), key.remaining(), val);
+    }
+
+    private synchronized boolean put(byte[] key, ByteBuffer buffer, int offset, int length, Value val)
+    {
+        if (length == 0 || !isWellFormed(key, buffer, offset, length) || find(key, buffer, offset, length) != null)
+            return false;
+
+        Node n = rootNode;
+        ++n.referenceCount;
+        for (int i = offset; i < offset + length; ++i)
+        {
+            Node child = n.child(byteAt(key, buffer, i));
+            if (child == null)
+                child = n.addChild(byteAt(key, buffer, i));
+            ++child.referenceCount;
+            n = child;
+        }
+
+        n.wordEnd = true;
+        n.value = val;
+        return true;
+    }
+
+    /**
+     * This method updates the Value associated with the key.
+     *
+     * @param key
+     *            String of the key.
+     * @param val
+     *            Value to associate with the key.
+     * @return True if update was successful. False if the tree does not
+     *         contain the key.
+     */
+    public boolean update(String key, Value val)
+    {
+        byte[] bytes = encode(key);
+        return bytes != null && update(bytes, null, 0, bytes.length, val);
+    }
+
+    /**
+     * @see #update(String, Object)
+     */
+    public boolean update(byte[] key, Value val)
+    {
+        return key != null && update(key, null, 0, key.length, val);
+    }
+
+    /**
+     * @see #update(String, Object)
+     */
+    public boolean update(ByteBuffer key, Value val)
+    {
+        if (key == null)
+            return false;
+        if (key.hasArray())
+            return update(key.array(), null, key.arrayOffset() + key.position(), key.remaining(), val);
+        return update(null, key, key.position(), key.remaining(), val);
+    }
+
+    private synchronized boolean update(byte[] key, ByteBuffer buffer, int offset, int length, Value val)
+    {
+        Node n = find(key, buffer, offset, length);
+        if (n == null)
+            return false;
+
+        n.value = val;
+        return true;
+    }
+
+    /**
+     * This method returns the Value associated with the key.
+     *
+     * @param key
+     *            String of the key.
+     * @return Value associated with the key. Null if the key does not exist or
+     *         no Value associated with key.
+     */
+    public Value get(String key)
+    {
+        byte[] bytes = encode(key);
+        return bytes == null ? null : get(bytes, null, 0, bytes.length);
+    }
+
+    /**
+     * @see #get(String)
+     */
+    public Value get(byte[] key)
+    {
+        return key == null ? null : get(key, null, 0, key.length);
+    }
+
+    /**
+     * @see #get(String)
+     */
+    public Value get(ByteBuffer key)
+    {
+        if (key == null)
+            return null;
+        if (key.hasArray())
+            return get(key.array(), null, key.arrayOffset() + key.position(), key.remaining());
+        return get(null, key, key.position(), key.remaining());
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized Value get(byte[] key, ByteBuffer buffer, int offset, int length)
+    {
+        Node n = find(key, buffer, offset, length);
+        return n == null ? null : (Value) n.value;
+    }
+
+    /**
+     * This method checks if the tree contains the key.
+     *
+     * @param key
+     *            String of the key.
+     * @return True if the tree contains the key. False otherwise.
+     */
+    public boolean contains(String key)
+    {
+        byte[] bytes = encode(key);
+        return bytes != null && contains(bytes, null, 0, bytes.length);
+    }
+
+    /**
+     * @see #contains(String)
+     */
+    public boolean contains(byte[] key)
+    {
+        return key != null && contains(key, null, 0, key.length);
+    }
+
+    /**
+     * @see #contains(String)
+     */
+    public boolean contains(ByteBuffer key)
+    {
+        if (key == null)
+            return false;
+        if (key.hasArray())
+            return contains(key.array(), null, key.arrayOffset() + key.position(), key.remaining());
+        return contains(null, key, key.position(), key.remaining());
+    }
+
+    private synchronized boolean contains(byte[] key, ByteBuffer buffer, int offset, int length)
+    {
+        return find(key, buffer, offset, length) != null;
+    }
+
+    /**
+     * This method removes a key from the tree, if it exists.
+     *
+     * @param key
+     *            String of the key.
+     * @return True if the key is removed. False if the key is not in the tree.
+     */
+    public boolean remove(String key)
+    {
+        byte[] bytes = encode(key);
+        return bytes != null && remove(bytes, null, 0, bytes.length);
+    }
+
+    /**
+     * @see #remove(String)
+     */
+    public boolean remove(byte[] key)
+    {
+        return key != null && remove(key, null, 0, key.length);
+    }
+
+    /**
+     * @see #remove(String)
+     */
+    public boolean remove(ByteBuffer key)
+    {
+        if (key == null)
+            return false;
+        if (key.hasArray())
+            return remove(key.array(), null, key.arrayOffset() + key.position(), key.remaining());
+        return remove(null, key, key.position(), key.remaining());
+    }
+
+    private synchronized boolean remove(byte[] key, ByteBuffer buffer, int offset, int length)
+    {
+        Node end = find(key, buffer, offset, length);
+        if (end == null)
+            return false;
+
+        end.wordEnd = false;
+        end.value = null;
+
+        // Decrement the counts on the way down. The first node left without
+        // keys is unlinked, along with everything below it.
+        Node n = rootNode;
+        --n.referenceCount;
+        for (int i = offset; i < offset + length; ++i)
+        {
+            Node child = n.child(byteAt(key, buffer, i));
+            if (--child.referenceCount == 0)
+            {
+                n.removeChild(byteAt(key, buffer, i));
+                break;
+            }
+            n = child;
+        }
+
+        return true;
+    }
+
+    /**
+     * This method returns the number of keys that contain the prefix.
+     *
+     * @param prefix
+     *            String of the prefix.
+     * @return Number of keys with the prefix. 0 if the prefix cannot be
+     *         encoded.
+     */
+    public long countWithPrefix(String prefix)
+    {
+        byte[] bytes = encode(prefix);
+        return bytes == null ? 0 : countWithPrefix(bytes);
+    }
+
+    /**
+     * This method returns the number of keys whose encoding starts with the
+     * bytes. The prefix may end inside a multi-byte character.
+     *
+     * @param prefix
+     *            Encoded prefix.
+     * @return Number of keys with the prefix.
+     */
+    public synchronized long countWithPrefix(byte[] prefix)
+    {
+        if (prefix == null)
+            return 0;
+
+        Node n = walk(prefix, null, 0, prefix.length);
+        return n == null ? 0 : n.referenceCount;
+    }
+
+    /**
+     * This method returns a HashMap<String, Value> collection of the keys that
+     * contain the prefix, decoded to Strings.
+     *
+     * @param prefix
+     *            String of the prefix.
+     * @return HashMap<String, Value> collection of keys with the prefix.
+     */
+    public HashMap<String, Value> keyValueCollectionWithPrefix(String prefix)
+    {
+        byte[] bytes = encode(prefix);
+        return bytes == null ? new HashMap<String, Value>() : keyValueCollectionWithPrefix(bytes);
+    }
+
+    /**
+     * This method returns a HashMap<String, Value> collection of the keys whose
+     * encoding starts with the bytes, decoded to Strings.
+     *
+     * @param prefix
+     *            Encoded prefix.
+     * @return HashMap<String, Value> collection of keys with the prefix.
+     */
+    public synchronized HashMap<String, Value> keyValueCollectionWithPrefix(byte[] prefix)
+    {
+        HashMap<String, Value> keyCollection = new HashMap<String, Value>();
+        if (prefix == null)
+            return keyCollection;
+
+        Node n = walk(prefix, null, 0, prefix.length);
+        if (n != null)
+        {
+            byte[] path = Arrays.copyOf(prefix, Math.max(16, prefix.length * 2));
+            addToKVPrefixCollection(path, prefix.length, n, keyCollection);
+        }
+        return keyCollection;
+    }
+
+    /**
+     * This method returns every key and Value in the tree.
+     *
+     * @return HashMap<String, Value> collection of all keys.
+     */
+    public HashMap<String, Value> allKeyValues()
+    {
+        return keyValueCollectionWithPrefix(NO_LABELS);
+    }
+
+    /**
+     * This method is called recursively, appending one byte at a time to the
+     * path and decoding it at every key end.
+     */
+    @SuppressWarnings("unchecked")
+    private void addToKVPrefixCollection(byte[] path, int length, Node parentNode, HashMap<String, Value> keyCollection)
+    {
+        if (parentNode.wordEnd)
+            keyCollection.put(new String(path, 0, length, encoding.getCharset()), (Value) parentNode.value);
+
+        for (int i = 0; i < parentNode.labels.length; ++i)
+        {
+            if (length == path.length)
+                path = Arrays.copyOf(path, path.length * 2);
+
+            path[length] = parentNode.labels[i];
+            addToKVPrefixCollection(path, length + 1, parentNode.children[i], keyCollection);
+        }
+    }
+
+    // Returns the node at the end of the bytes, or null if there is none.
+    private Node walk(byte[] key, ByteBuffer buffer, int offset, int length)
+    {
+        Node n = rootNode;
+        for (int i = offset; i < offset + length && n != null; ++i)
+            n = n.child(byteAt(key, buffer, i));
+        return n;
+    }
+
+    // Returns the node of the key, or null if the key is not in the tree.
+    private Node find(byte[] key, ByteBuffer buffer, int offset, int length)
+    {
+        if (length == 0)
+            return null;
+
+        Node n = walk(key, buffer, offset, length);
+        return n != null && n.wordEnd ? n : null;
+    }
+
+    // Keys are either an array, or a buffer without one (direct or read-only)
+    // that is read in place with absolute gets instead of being copied.
+    private static byte byteAt(byte[] key, ByteBuffer buffer, int i)
+    {
+        return key != null ? key[i] : buffer.get(i);
+    }
+
+    /**
+     * This method checks that the bytes are well-formed UTF-8: shortest form,
+     * no surrogates and nothing above U+10FFFF. Every byte sequence is
+     * well-formed Latin-1.
+     *
+     * @return True if the key can be decoded without replacement.
+     */
+    private boolean isWellFormed(byte[] key, ByteBuffer buffer, int offset, int length)
+    {
+        if (encoding == Encoding.LATIN_1)
+            return true;
+
+        int end = offset + length;
+        for (int i = offset; i < end;)
+        {
+            int b = byteAt(key, buffer, i) & 0xFF;
+            if (b < 0x80)
+            {
+                ++i;
+                continue;
+            }
+
+            int trailing;
+            int min;
+            if (b >= 0xC2 && b <= 0xDF)
+            {
+                trailing = 1;
+                min = 0x80;
+            }
+            else if (b >= 0xE0 && b <= 0xEF)
+            {
+                trailing = 2;
+                min = 0x800;
+            }
+            else if (b >= 0xF0 && b <= 0xF4)
+            {
+                trailing = 3;
+                min = 0x10000;
+            }
+            else
+                return false;
+
+            if (i + trailing >= end)
+                return false;
+
+            int cp = b & (0x3F >> trailing);
+            for (int t = 1; t <= trailing; ++t)
+            {
+                int c = byteAt(key, buffer, i + t) & 0xFF;
+                if ((c & 0xC0) != 0x80)
+                    return false;
+                cp = (cp << 6) | (c & 0x3F);
+            }
+
+            if (cp < min || cp > 0x10FFFF || (cp >= 0xD800 && cp <= 0xDFFF))
+                return false;
+            i += trailing + 1;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,137 @@
+package trietree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ByteTrieTreeTester
+{
+    @Test
+    public void testBasicOperations()
+    {
+        ByteTrieTree<Integer> bt_integer = new ByteTrieTree<Integer>();
+        assertTrue("Empty tree returns true", bt_integer.isEmpty());
+        assertFalse("Put null key returns false", bt_integer.put((String) null, 1));
+        assertFalse("Put empty key returns false", bt_integer.put("", 1));
+        assertTrue("Put \"cat\" returns true", bt_integer.put("cat", 1));
+        assertFalse("Put \"cat\" again returns false", bt_integer.put("cat", 2));
+        assertTrue("Put \"cats\" returns true", bt_integer.put("cats", 2));
+        assertTrue("Put \"ca\" returns true", bt_integer.put("ca", 3));
+        assertEquals("Tree has 3 keys", 3, bt_integer.size());
+        assertEquals("Get \"cat\" returns 1", 1, (int) bt_integer.get("cat"));
+        assertEquals("Get missing \"c\" returns null", null, bt_integer.get("c"));
+        assertTrue("Update \"cat\" returns true", bt_integer.update("cat", 10));
+        assertFalse("Update missing \"c\" returns false", bt_integer.update("c", 10));
+        assertEquals("Prefix \"cat\" counts 2 keys", 2, bt_integer.countWithPrefix("cat"));
+
+        assertTrue("Remove \"cat\" returns true", bt_integer.remove("cat"));
+        assertFalse("Remove \"cat\" again returns false", bt_integer.remove("cat"));
+        assertTrue("\"cats\" is kept", bt_integer.contains("cats"));
+        assertTrue("Remove \"cats\" returns true", bt_integer.remove("cats"));
+        assertEquals("Prefix \"cat\" counts nothing", 0, bt_integer.countWithPrefix("cat"));
+
+        HashMap<String, Integer> hm_expected = new HashMap<String, Integer>();
+        hm_expected.put("ca", 3);
+        assertEquals("Only \"ca\" is left", hm_expected, bt_integer.allKeyValues());
+
+        bt_integer.removeAll();
+        assertTrue("Tree is empty after removeAll", bt_integer.isEmpty());
+    }
+
+    @Test
+    public void testEncodings()
+    {
+        ByteTrieTree<Integer> latin1 = new ByteTrieTree<Integer>(ByteTrieTree.Encoding.LATIN_1);
+        assertTrue("Latin-1 tree stores \"caf\\u00e9\"", latin1.put("caf\u00e9", 1));
+        assertArrayEquals("Latin-1 uses one byte per character", new byte[] { 'c', 'a', 'f', (byte) 0xE9 },
+                          latin1.encode("caf\u00e9"));
+        assertFalse("Latin-1 tree rejects \"\\u20ac\"", latin1.put("\u20ac", 2));
+        assertEquals("Latin-1 keys decode back", 1, (int) latin1.allKeyValues().get("caf\u00e9"));
+
+        ByteTrieTree<Integer> utf8 = new ByteTrieTree<Integer>(ByteTrieTree.Encoding.UTF_8);
+        String emoji = new String(Character.toChars(0x1F600));
+        assertTrue("UTF-8 tree stores a supplementary code point", utf8.put("a" + emoji, 1));
+        assertTrue("UTF-8 tree stores a 3-byte character", utf8.put("a\u20ac", 2));
+        assertArrayEquals("Encoding matches the JDK", ("a" + emoji).getBytes(StandardCharsets.UTF_8),
+                          utf8.encode("a" + emoji));
+        assertFalse("Unpaired surrogate is rejected", utf8.put("a\ud83d", 3));
+        assertEquals("Unpaired surrogate cannot be encoded", null, utf8.encode("\ude00"));
+        assertEquals("Prefix \"a\" counts both keys", 2, utf8.countWithPrefix("a"));
+        assertEquals("Whole code point prefix", 1, utf8.countWithPrefix("a" + emoji));
+        assertEquals("Byte prefix inside a code point", 1, utf8.countWithPrefix(new byte[] { 'a', (byte) 0xF0 }));
+        assertEquals("Supplementary key decodes back", 1, (int) utf8.keyValueCollectionWithPrefix("a").get("a" + emoji));
+
+        assertFalse("Malformed UTF-8 is rejected", utf8.put(new byte[] { 'a', (byte) 0xC0, (byte) 0x80 }, 4));
+        assertFalse("Truncated UTF-8 is rejected", utf8.put(new byte[] { 'a', (byte) 0xE2, (byte) 0x82 }, 4));
+        assertFalse("Encoded surrogate is rejected", utf8.put(new byte[] { (byte) 0xED, (byte) 0xA0, (byte) 0x80 }, 4));
+    }
+
+    @Test
+    public void testByteKeys()
+    {
+        ByteTrieTree<Integer> bt_integer = new ByteTrieTree<Integer>();
+        bt_integer.put("dog", 1);
+
+        byte[] packet = "GET dog HTTP".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer heap = ByteBuffer.wrap(packet, 4, 3).slice();
+        assertEquals("Heap buffer slice is looked up in place", 1, (int) bt_integer.get(heap));
+        assertEquals("Buffer position is unchanged", 0, heap.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(8);
+        direct.put("dogs".getBytes(StandardCharsets.UTF_8)).flip();
+        assertTrue("Direct buffer key can be put", bt_integer.put(direct, 2));
+        assertEquals("Buffer position is unchanged", 0, direct.position());
+        assertTrue("byte[] key finds it", bt_integer.contains("dogs".getBytes(StandardCharsets.UTF_8)));
+        assertTrue("byte[] key can be updated", bt_integer.update("dogs".getBytes(StandardCharsets.UTF_8), 3));
+        assertEquals("String key sees the update", 3, (int) bt_integer.get("dogs"));
+        assertTrue("Buffer key can be removed", bt_integer.remove(direct));
+        assertEquals("Tree has 1 key", 1, bt_integer.size());
+
+        ByteBuffer offset = ByteBuffer.allocateDirect(16);
+        offset.put("GET dog HTTP".getBytes(StandardCharsets.UTF_8)).flip();
+        offset.position(4).limit(7);
+        assertEquals("Direct buffer is read from its position to its limit", 1, (int) bt_integer.get(offset));
+        assertTrue("Direct buffer key is found", bt_integer.contains(offset));
+        assertEquals("Buffer position is unchanged", 4, offset.position());
+    }
+
+    @Test
+    public void testMatchesTrieTree()
+    {
+        // Any well-formed key, including supplementary code points, behaves
+        // the same as in TrieTree.
+        Random random = new Random(40);
+        String[] alphabet = { "a", "b", "\u00e9", "\u20ac", new String(Character.toChars(0x1F600)) };
+        ByteTrieTree<Integer> bt_integer = new ByteTrieTree<Integer>();
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        for (int i = 0; i < 20000; ++i)
+        {
+            StringBuilder key = new StringBuilder();
+            for (int length = 1 + random.nextInt(4); length > 0; --length)
+                key.append(alphabet[random.nextInt(alphabet.length)]);
+
+            String k = key.toString();
+            int op = random.nextInt(3);
+            if (op == 0)
+                assertEquals("put(\"" + k + "\")", tt_integer.put(k, i), bt_integer.put(k, i));
+            else if (op == 1)
+                assertEquals("update(\"" + k + "\")", tt_integer.update(k, i), bt_integer.update(k, i));
+            else
+                assertEquals("remove(\"" + k + "\")", tt_integer.remove(k), bt_integer.remove(k));
+        }
+
+        assertEquals("Same size as TrieTree", tt_integer.size(), bt_integer.size());
+        assertEquals("Same entries as TrieTree", tt_integer.allKeyValues(), bt_integer.allKeyValues());
+        for (String prefix : alphabet)
+        {
+            assertEquals("Same prefix entries", tt_integer.keyValueCollectionWithPrefix(prefix),
+                         bt_integer.keyValueCollectionWithPrefix(prefix));
+            assertEquals("Same prefix counts", tt_integer.countWithPrefix(prefix), bt_integer.countWithPrefix(prefix));
+        }
+    }
+}
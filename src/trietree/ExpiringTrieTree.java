@@ -0,0 +1,440 @@
+package trietree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * A TrieTree whose entries expire after a time-to-live, given per put or by
+ * default. Expired entries disappear from get, contains and prefix
+ * enumeration at once, and are removed from the tree by sweep(), which
+ * start() runs in the background every tick.
+ *
+ * Deadlines are kept in a hashed timing wheel: one slot per tick, an entry in
+ * the slot of its deadline (modulo the wheel size), so a sweep only looks at
+ * the slots whose ticks have passed. Expired keys are removed with
+ * TrieTree.removeAll in batches of at most SWEEP_BATCH keys per lock
+ * acquisition, so even a large expiry wave never holds the tree lock for long.
+ */
+public class ExpiringTrieTree<Value> implements AutoCloseable
+{
+    /* PRIVATE MEMBERS */
+    private static final int WHEEL_SLOTS = 512;
+    private static final int SWEEP_BATCH = 256;
+
+    private final TrieTree<Value> tree = new TrieTree<Value>();
+    private final long defaultTtlNanos; // 0 if entries do not expire by default.
+    private final long tickNanos;
+    private final LongSupplier clock;
+
+    // Deadline of every key that expires. Written under the writer lock, read
+    // without it. A deadline is only dropped after its key has left the tree,
+    // so a reader that finds no deadline before reading the tree, or while
+    // holding the tree lock, never sees an expired key.
+    private final ConcurrentHashMap<String, Long> deadlines = new ConcurrentHashMap<String, Long>();
+
+    // The wheel and the sweep position, guarded by the writer lock along with
+    // all mutations of the tree.
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private final ArrayList<ArrayDeque<Expiry>> wheel = new ArrayList<ArrayDeque<Expiry>>(WHEEL_SLOTS);
+    private long sweptTick; // Last tick whose slot has been swept.
+
+    private ScheduledExecutorService sweeper;
+
+    // Deadline of a key when it was put in the wheel. If the key was put
+    // again since, its deadline in the map differs and this one is stale.
+    private static final class Expiry
+    {
+        final String key;
+        final long deadline;
+
+        Expiry(String key, long deadline)
+        {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param defaultTtl
+     *            Time-to-live of entries put without one. 0 or less for none.
+     * @param tick
+     *            Resolution of expiry and period of the background sweep.
+     * @param unit
+     *            Unit of defaultTtl and tick.
+     */
+    public ExpiringTrieTree(long defaultTtl, long tick, TimeUnit unit)
+    {
+        this(defaultTtl, tick, unit, new LongSupplier()
+        {
+            public long getAsLong()
+            {
+                return System.nanoTime();
+            }
+        });
+    }
+
+    // Constructor with a clock in nanoseconds, for tests.
+    ExpiringTrieTree(long defaultTtl, long tick, TimeUnit unit, LongSupplier clock)
+    {
+        if (tick < 1)
+            throw new IllegalArgumentException("tick must be positive: " + tick);
+
+        this.defaultTtlNanos = defaultTtl > 0 ? unit.toNanos(defaultTtl) : 0;
+        this.tickNanos = unit.toNanos(tick);
+        this.clock = clock;
+        for (int i = 0; i < WHEEL_SLOTS; ++i)
+            wheel.add(new ArrayDeque<Expiry>());
+        sweptTick = Math.floorDiv(clock.getAsLong(), tickNanos) - 1;
+    }
+
+    /**
+     * This method starts sweeping expired keys every tick on a daemon thread.
+     */
+    public synchronized void start()
+    {
+        if (sweeper != null)
+            return;
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "trie-expiry-sweeper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                sweep();
+            }
+        }, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * This method stops the background sweep. Expired entries stay invisible.
+     */
+    public synchronized void close()
+    {
+        if (sweeper != null)
+        {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+    }
+
+    /**
+     * This method adds a key with the default time-to-live.
+     *
+     * @see #put(String, Object, long, TimeUnit)
+     */
+    public boolean put(String key, Value val)
+    {
+        return put(key, val, defaultTtlNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * This method adds a key and its Value, which expire after the
+     * time-to-live. An expired key that has not been swept yet is replaced.
+     *
+     * @param key
+     *            String of the key.
+     * @param val
+     *            Value to associate with the key.
+     * @param ttl
+     *            Time-to-live. 0 or less for none.
+     * @param unit
+     *            Unit of ttl.
+     * @return True if put was successful. False if the key is empty or the
+     *         tree already contains it unexpired.
+     */
+    public boolean put(String key, Value val, long ttl, TimeUnit unit)
+    {
+        if (key == null || key.isEmpty())
+            return false;
+
+        writerLock.lock();
+        try
+        {
+            long now = clock.getAsLong();
+            if (isExpired(key, now))
+            {
+                tree.remove(key);
+                deadlines.remove(key);
+            }
+
+            if (!tree.put(key, val))
+                return false;
+
+            schedule(key, ttl > 0 ? now + unit.toNanos(ttl) : 0);
+            return true;
+        }
+        finally
+        {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * This method updates the Value of an unexpired key. Its deadline is
+     * unchanged.
+     *
+     * @param key
+     *            String of the key.
+     * @param val
+     *            Value to associate with the key.
+     * @return True if update was successful. False if the tree does not
+     *         contain the key or it expired.
+     */
+    public boolean update(String key, Value val)
+    {
+        writerLock.lock();
+        try
+        {
+            return !isExpired(key, clock.getAsLong()) && tree.update(key, val);
+        }
+        finally
+        {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * This method sets a new time-to-live for an unexpired key, counted from
+     * now.
+     *
+     * @param key
+     *            String of the key.
+     * @param ttl
+     *            Time-to-live. 0 or less for none.
+     * @param unit
+     *            Unit of ttl.
+     * @return True if the key was found unexpired.
+     */
+    public boolean expireAfter(String key, long ttl, TimeUnit unit)
+    {
+        writerLock.lock();
+        try
+        {
+            long now = clock.getAsLong();
+            if (isExpired(key, now) || !tree.contains(key))
+                return false;
+
+            schedule(key, ttl > 0 ? now + unit.toNanos(ttl) : 0);
+            return true;
+        }
+        finally
+        {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * This method removes a key from the tree, if it exists.
+     *
+     * @param key
+     *            String of the key.
+     * @return True if an unexpired key is removed.
+     */
+    public boolean remove(String key)
+    {
+        writerLock.lock();
+        try
+        {
+            boolean expired = isExpired(key, clock.getAsLong());
+            boolean removed = tree.remove(key);
+            if (key != null)
+                deadlines.remove(key);
+            return removed && !expired;
+        }
+        finally
+        {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * This method returns the Value of an unexpired key.
+     *
+     * @param key
+     *            String of the key.
+     * @return Value associated with the key. Null if the key does not exist,
+     *         expired, or has no Value associated with it.
+     */
+    public Value get(String key)
+    {
+        // The deadline before the tree; see deadlines.
+        Long deadline = key == null ? null : deadlines.get(key);
+        return isExpired(deadline, clock.getAsLong()) ? null : tree.get(key);
+    }
+
+    /**
+     * This method checks if the tree contains the key unexpired.
+     *
+     * @param key
+     *            String of the key.
+     * @return True if the tree contains the key and it has not expired.
+     */
+    public boolean contains(String key)
+    {
+        Long deadline = key == null ? null : deadlines.get(key);
+        return !isExpired(deadline, clock.getAsLong()) && tree.contains(key);
+    }
+
+    /**
+     * This method returns the unexpired entries that contain the prefix.
+     *
+     * @param prefix
+     *            String of the prefix.
+     * @return HashMap<String, Value> collection of keys with the prefix.
+     */
+    public HashMap<String, Value> keyValueCollectionWithPrefix(String prefix)
+    {
+        // The deadlines are read under the tree lock, before a sweep can
+        // remove the keys and then their deadlines.
+        long now = clock.getAsLong();
+        synchronized (tree)
+        {
+            HashMap<String, Value> keyCollection = tree.keyValueCollectionWithPrefix(prefix);
+            for (Iterator<Map.Entry<String, Value>> it = keyCollection.entrySet().iterator(); it.hasNext();)
+            {
+                if (isExpired(it.next().getKey(), now))
+                    it.remove();
+            }
+
+            return keyCollection;
+        }
+    }
+
+    /**
+     * This method returns the number of keys in the tree, including expired
+     * keys the sweep has not removed yet.
+     *
+     * @return Number of keys in the tree.
+     */
+    public long size()
+    {
+        return tree.size();
+    }
+
+    /**
+     * This method removes the keys whose deadline has passed from the tree.
+     * Only the wheel slots of the ticks since the last sweep are visited, and
+     * the writer and tree locks are released after every SWEEP_BATCH keys.
+     *
+     * @return Number of keys removed.
+     */
+    public int sweep()
+    {
+        int removed = 0;
+        while (true)
+        {
+            int batchSize;
+            writerLock.lock();
+            try
+            {
+                // The keys leave the tree before their deadlines; see
+                // deadlines.
+                LinkedHashMap<String, Long> batch = collectExpired(clock.getAsLong());
+                tree.removeAll(batch.keySet(), SWEEP_BATCH);
+                for (Map.Entry<String, Long> expired : batch.entrySet())
+                    deadlines.remove(expired.getKey(), expired.getValue());
+                batchSize = batch.size();
+            }
+            finally
+            {
+                writerLock.unlock();
+            }
+
+            removed += batchSize;
+            if (batchSize < SWEEP_BATCH)
+                return removed;
+        }
+    }
+
+    /**
+     * This method advances the sweep through the wheel and collects up to
+     * SWEEP_BATCH expired keys, called with the writer lock held. Only the
+     * ticks that have ended are swept, so every deadline in their slots has
+     * passed but for those of later turns of the wheel. If the batch fills up
+     * in the middle of a slot, the slot is finished next time.
+     *
+     * @return LinkedHashMap<String, Long> of the expired keys to their
+     *         deadlines, which are still in deadlines.
+     */
+    private LinkedHashMap<String, Long> collectExpired(long now)
+    {
+        LinkedHashMap<String, Long> batch = new LinkedHashMap<String, Long>();
+        long target = Math.floorDiv(now, tickNanos) - 1;
+
+        // After a long pause every slot is due; visit each once.
+        if (target - sweptTick > WHEEL_SLOTS)
+            sweptTick = target - WHEEL_SLOTS;
+
+        while (sweptTick < target)
+        {
+            ArrayDeque<Expiry> slot = wheel.get((int) Math.floorMod(sweptTick + 1, (long) WHEEL_SLOTS));
+            ArrayList<Expiry> later = new ArrayList<Expiry>();
+            Expiry e;
+            while (batch.size() < SWEEP_BATCH && (e = slot.poll()) != null)
+            {
+                if (e.deadline - now > 0)
+                    later.add(e); // Due in a later turn of the wheel.
+                else if (Long.valueOf(e.deadline).equals(deadlines.get(e.key)))
+                    batch.put(e.key, e.deadline);
+                // Otherwise the key was put again or removed, or is in the
+                // batch already; drop it.
+            }
+            slot.addAll(later);
+
+            if (batch.size() == SWEEP_BATCH)
+                break;
+            ++sweptTick;
+        }
+
+        return batch;
+    }
+
+    // Records the deadline of a key, 0 for none. Called with the writer lock
+    // held.
+    private void schedule(String key, long deadline)
+    {
+        if (deadline == 0)
+        {
+            deadlines.remove(key);
+            return;
+        }
+
+        deadlines.put(key, deadline);
+
+        // A deadline in a tick that was already swept goes in the next slot
+        // to be swept.
+        long tick = Math.max(Math.floorDiv(deadline, tickNanos), sweptTick + 1);
+        wheel.get((int) Math.floorMod(tick, (long) WHEEL_SLOTS)).add(new Expiry(key, deadline));
+    }
+
+    private boolean isExpired(String key, long now)
+    {
+        return key != null && isExpired(deadlines.get(key), now);
+    }
+
+    private static boolean isExpired(Long deadline, long now)
+    {
+        return deadline != null && deadline - now <= 0;
+    }
+}
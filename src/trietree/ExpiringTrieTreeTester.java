@@ -0,0 +1,170 @@
+package trietree;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExpiringTrieTreeTester
+{
+    // Clock the test moves by hand, in nanoseconds.
+    private static final class ManualClock implements LongSupplier
+    {
+        long now = 1000;
+
+        public long getAsLong()
+        {
+            return now;
+        }
+
+        void advance(long millis)
+        {
+            now += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    // Clock that runs a sweep of the tree when it is read while armed, which
+    // puts the sweep in the middle of a read.
+    private static final class SweepingClock implements LongSupplier
+    {
+        long now = 1000;
+        ExpiringTrieTree<?> tree;
+        boolean armed;
+
+        public long getAsLong()
+        {
+            if (armed)
+            {
+                armed = false;
+                tree.sweep();
+            }
+            return now;
+        }
+    }
+
+    @Test
+    public void testLazyExpiry()
+    {
+        ManualClock clock = new ManualClock();
+        ExpiringTrieTree<Integer> et_integer = new ExpiringTrieTree<Integer>(100, 10, TimeUnit.MILLISECONDS, clock);
+
+        assertTrue("Put \"cat\" with the default TTL", et_integer.put("cat", 1));
+        assertTrue("Put \"car\" for 300 ms", et_integer.put("car", 2, 300, TimeUnit.MILLISECONDS));
+        assertTrue("Put \"cab\" without TTL", et_integer.put("cab", 3, 0, TimeUnit.MILLISECONDS));
+        assertFalse("Put \"cat\" again returns false", et_integer.put("cat", 4));
+        assertFalse("Put empty key returns false", et_integer.put("", 4));
+
+        clock.advance(99);
+        assertEquals("\"cat\" is alive before its deadline", 1, (int) et_integer.get("cat"));
+
+        clock.advance(1);
+        assertEquals("\"cat\" expires at its deadline", null, et_integer.get("cat"));
+        assertFalse("Contains \"cat\" is false", et_integer.contains("cat"));
+        assertEquals("Expired keys stay until swept", 3, et_integer.size());
+        assertFalse("Update of an expired key fails", et_integer.update("cat", 5));
+        assertFalse("Remove of an expired key returns false", et_integer.remove("cat"));
+        assertEquals("But the key is gone", 2, et_integer.size());
+
+        HashMap<String, Integer> prefix = et_integer.keyValueCollectionWithPrefix("ca");
+        assertEquals("Prefix enumeration sees both live keys", 2, prefix.size());
+
+        assertTrue("Update keeps the deadline", et_integer.update("car", 6));
+        clock.advance(200);
+        prefix = et_integer.keyValueCollectionWithPrefix("ca");
+        assertEquals("Prefix enumeration skips \"car\"", 1, prefix.size());
+        assertEquals("Keys without TTL never expire", 3, (int) prefix.get("cab"));
+
+        assertTrue("Put replaces an expired key", et_integer.put("car", 7));
+        assertEquals("Get the new \"car\"", 7, (int) et_integer.get("car"));
+        assertTrue("expireAfter extends \"car\"", et_integer.expireAfter("car", 1, TimeUnit.SECONDS));
+        clock.advance(500);
+        assertTrue("\"car\" is still alive", et_integer.contains("car"));
+        assertFalse("expireAfter of a missing key fails", et_integer.expireAfter("cow", 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSweep()
+    {
+        ManualClock clock = new ManualClock();
+        ExpiringTrieTree<Integer> et_integer = new ExpiringTrieTree<Integer>(0, 10, TimeUnit.MILLISECONDS, clock);
+
+        // More keys than one batch, with deadlines spread over several ticks.
+        for (int i = 0; i < 1000; ++i)
+            et_integer.put("key" + i, i, 10 + i % 50, TimeUnit.MILLISECONDS);
+        et_integer.put("forever", -1);
+
+        assertEquals("Nothing is due yet", 0, et_integer.sweep());
+        clock.advance(30);
+        int early = et_integer.sweep();
+        assertTrue("Keys due in the first ticks are swept", early > 0 && early < 1000);
+        assertEquals("Size follows the sweep", 1001 - early, et_integer.size());
+
+        // A key put again must not be swept with its old deadline.
+        assertTrue("Remove \"key49\"", et_integer.remove("key49"));
+        assertTrue("Put \"key49\" for 10 s", et_integer.put("key49", 49, 10, TimeUnit.SECONDS));
+
+        clock.advance(70);
+        assertEquals("Every other key is swept", 1000 - early - 1, et_integer.sweep());
+        assertEquals("Live keys remain", 2, et_integer.size());
+        assertTrue("\"key49\" was kept", et_integer.contains("key49"));
+
+        // A pause of more than one turn of the wheel.
+        clock.advance(60000);
+        assertEquals("\"key49\" is swept after a long pause", 1, et_integer.sweep());
+        assertEquals("Only \"forever\" remains", 1, et_integer.size());
+        assertEquals("Get \"forever\"", -1, (int) et_integer.get("forever"));
+    }
+
+    @Test
+    public void testBackgroundSweep() throws InterruptedException
+    {
+        ExpiringTrieTree<Integer> et_integer = new ExpiringTrieTree<Integer>(20, 5, TimeUnit.MILLISECONDS);
+        try
+        {
+            et_integer.start();
+            et_integer.start();
+            for (int i = 0; i < 100; ++i)
+                et_integer.put("word" + i, i);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (et_integer.size() > 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+            assertEquals("The sweeper removed every key", 0, et_integer.size());
+        }
+        finally
+        {
+            et_integer.close();
+        }
+    }
+
+    @Test
+    public void testSweepDuringRead()
+    {
+        SweepingClock clock = new SweepingClock();
+        ExpiringTrieTree<Integer> et_integer = new ExpiringTrieTree<Integer>(100, 10, TimeUnit.MILLISECONDS, clock);
+        clock.tree = et_integer;
+
+        et_integer.put("cat", 1);
+        clock.now += TimeUnit.MILLISECONDS.toNanos(150);
+        clock.armed = true;
+        assertEquals("get does not return a key swept during the call", null, et_integer.get("cat"));
+        assertEquals("The sweep ran", 0, et_integer.size());
+
+        et_integer.put("cat", 2);
+        clock.now += TimeUnit.MILLISECONDS.toNanos(150);
+        clock.armed = true;
+        assertFalse("contains is false for a key swept during the call", et_integer.contains("cat"));
+        assertEquals("The sweep ran", 0, et_integer.size());
+
+        et_integer.put("cat", 3);
+        et_integer.put("cab", 4, 0, TimeUnit.MILLISECONDS);
+        clock.now += TimeUnit.MILLISECONDS.toNanos(150);
+        clock.armed = true;
+        HashMap<String, Integer> prefix = et_integer.keyValueCollectionWithPrefix("ca");
+        assertEquals("Prefix enumeration only has the key without TTL", 1, prefix.size());
+        assertEquals("Key without TTL", 4, (int) prefix.get("cab"));
+    }
+}
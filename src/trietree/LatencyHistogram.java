@@ -0,0 +1,136 @@
+package trietree;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe log-linear histogram of non-negative long values, in the spirit
+ * of HdrHistogram. Values below 64 are counted exactly; above that every power
+ * of two is split into 32 buckets, so any reported value is within about 3% of
+ * the recorded one. Recording is lock-free and never allocates.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + 2 * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalSum = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * This method records one value. Negative values are recorded as 0.
+     * 
+     * @param value
+     *            Value to record, e.g. a latency in nanoseconds.
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(bucketOf(value));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(value);
+
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value))
+            max = maxValue.get();
+    }
+
+    /**
+     * @return Number of recorded values.
+     */
+    public long getCount()
+    {
+        return totalCount.get();
+    }
+
+    /**
+     * @return Highest recorded value. 0 if nothing was recorded.
+     */
+    public long getMax()
+    {
+        return maxValue.get();
+    }
+
+    /**
+     * @return Mean of the recorded values. 0 if nothing was recorded.
+     */
+    public double getMean()
+    {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) totalSum.get() / count;
+    }
+
+    /**
+     * This method returns the value at a percentile, as the highest value that
+     * falls in the same bucket.
+     * 
+     * @param percentile
+     *            Percentile between 0 and 100.
+     * @return Value at the percentile. 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile)
+    {
+        long count = totalCount.get();
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * count);
+        if (rank == 0)
+            rank = 1;
+
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValueIn(i), maxValue.get());
+        }
+
+        return maxValue.get();
+    }
+
+    /**
+     * This method clears all recorded values. Values recorded concurrently
+     * with the reset may be partly kept.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; ++i)
+            counts.set(i, 0);
+        totalCount.set(0);
+        totalSum.set(0);
+        maxValue.set(0);
+    }
+
+    private static int bucketOf(long value)
+    {
+        if (value < 2 * SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_COUNT + (int) (value >>> shift);
+    }
+
+    private static long highestValueIn(int bucket)
+    {
+        if (bucket < 2 * SUB_BUCKET_COUNT)
+            return bucket;
+
+        int shift = bucket / SUB_BUCKET_COUNT - 1;
+        long subBucket = bucket - shift * SUB_BUCKET_COUNT;
+        return (subBucket << shift) + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount() + ", mean=" + String.format("%.1f", getMean()) + ", p50="
+            + getPercentile(50) + ", p99=" + getPercentile(99) + ", p99.9=" + getPercentile(99.9) + ", max="
+            + getMax();
+    }
+}
@@ -0,0 +1,87 @@
+package trietree;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * This generic data type is a prefix trie tree whose nodes live outside the
+ * Java heap. Every node is a fixed-size record in a direct ByteBuffer slab,
+ * addressed by an int index; children are a sorted first-child/next-sibling
+ * list of record indices and the Value is stored inline as 64 bits through a
+ * TrieValueCodec. The garbage collector only sees the slab objects, however
+ * many keys there are. Records of removed nodes go on a free list and are
+ * reused by later puts.
+ *
+ * The records are those of RecordTrieTree, in native byte order.
+ */
+public class OffHeapTrieTree<Value> extends RecordTrieTree<Value>
+{
+    /* PRIVATE MEMBERS */
+    private static final int SLAB_SHIFT = 16; // 65536 records (2 MB) per slab.
+    private static final int SLAB_MASK = (1 << SLAB_SHIFT) - 1;
+
+    private final SlabStore slabs;
+
+    /**
+     * Constructor.
+     *
+     * @param codec
+     *            Converts Values to and from the bits stored in the records.
+     */
+    public OffHeapTrieTree(TrieValueCodec<Value> codec)
+    {
+        this(codec, new SlabStore());
+    }
+
+    private OffHeapTrieTree(TrieValueCodec<Value> codec, SlabStore slabs)
+    {
+        super(codec, slabs);
+        this.slabs = slabs;
+        allocate(); // The root.
+    }
+
+    /**
+     * @return Bytes of direct memory held by the slabs.
+     */
+    public synchronized long offHeapBytes()
+    {
+        return (long) slabs.slabs.length << (SLAB_SHIFT + RECORD_SHIFT);
+    }
+
+    // Records in direct slabs, added one at a time as the records grow.
+    private static final class SlabStore implements TrieRecordStore
+    {
+        private ByteBuffer[] slabs = new ByteBuffer[0];
+
+        @Override
+        public ByteBuffer read(int r)
+        {
+            return slabs[r >>> SLAB_SHIFT];
+        }
+
+        @Override
+        public ByteBuffer write(int r)
+        {
+            return slabs[r >>> SLAB_SHIFT];
+        }
+
+        @Override
+        public int offset(int r)
+        {
+            return (r & SLAB_MASK) << RECORD_SHIFT;
+        }
+
+        @Override
+        public void extend(int records)
+        {
+            while (((long) slabs.length << SLAB_SHIFT) < records)
+            {
+                ByteBuffer slab = ByteBuffer.allocateDirect(1 << (SLAB_SHIFT + RECORD_SHIFT))
+                    .order(ByteOrder.nativeOrder());
+                slabs = Arrays.copyOf(slabs, slabs.length + 1);
+                slabs[slabs.length - 1] = slab;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package trietree;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OffHeapTrieTreeTester
+{
+    @Test
+    public void testBasicOperations()
+    {
+        OffHeapTrieTree<Integer> ot_integer = new OffHeapTrieTree<Integer>(TrieValueCodecs.integers());
+        assertTrue("Empty tree returns true", ot_integer.isEmpty());
+        assertFalse("Put null key returns false", ot_integer.put(null, 1));
+        assertFalse("Put empty key returns false", ot_integer.put("", 1));
+        assertTrue("Put \"cat\" returns true", ot_integer.put("cat", 1));
+        assertFalse("Put \"cat\" again returns false", ot_integer.put("cat", 2));
+        assertTrue("Put \"cats\" returns true", ot_integer.put("cats", -2));
+        assertTrue("Put \"ca\" with a null Value returns true", ot_integer.put("ca", null));
+        assertTrue("Put \"dog\" returns true", ot_integer.put("dog", Integer.MIN_VALUE));
+        assertEquals("Tree has 4 keys", 4, ot_integer.size());
+        assertEquals("Negative Values round trip", -2, (int) ot_integer.get("cats"));
+        assertEquals("Extreme Values round trip", Integer.MIN_VALUE, (int) ot_integer.get("dog"));
+        assertTrue("Key with a null Value is contained", ot_integer.contains("ca"));
+        assertEquals("Null Value is kept", null, ot_integer.get("ca"));
+        assertFalse("Missing \"c\" is not contained", ot_integer.contains("c"));
+        assertEquals("Prefix \"ca\" counts 3 keys", 3, ot_integer.countWithPrefix("ca"));
+        assertEquals("Empty prefix counts every key", 4, ot_integer.countWithPrefix(""));
+
+        assertTrue("Update \"ca\" returns true", ot_integer.update("ca", 3));
+        assertFalse("Update missing \"c\" returns false", ot_integer.update("c", 3));
+        assertTrue("Remove \"cat\" returns true", ot_integer.remove("cat"));
+        assertFalse("Remove \"cat\" again returns false", ot_integer.remove("cat"));
+
+        HashMap<String, Integer> hm_expected = new HashMap<String, Integer>();
+        hm_expected.put("ca", 3);
+        hm_expected.put("cats", -2);
+        assertEquals("Prefix \"c\" collection", hm_expected, ot_integer.keyValueCollectionWithPrefix("c"));
+
+        ot_integer.removeAll();
+        assertTrue("Tree is empty after removeAll", ot_integer.isEmpty());
+        assertEquals("Only the root record is left", 1, ot_integer.recordCount());
+    }
+
+    @Test
+    public void testFreeList()
+    {
+        OffHeapTrieTree<Long> ot_long = new OffHeapTrieTree<Long>(TrieValueCodecs.longs());
+        ot_long.put("catalog", 1L);
+        int records = ot_long.recordCount();
+        assertEquals("A record per character and the root", 8, records);
+
+        ot_long.put("catalogue", 2L);
+        assertTrue("Remove \"catalogue\" returns true", ot_long.remove("catalogue"));
+        assertEquals("Removed records are freed", 2, ot_long.freeRecordCount());
+        assertEquals("Record count is back", records, ot_long.recordCount());
+
+        ot_long.put("catalogs", 3L);
+        assertEquals("Put reuses a free record", 1, ot_long.freeRecordCount());
+
+        assertTrue("Remove \"catalog\" returns true", ot_long.remove("catalog"));
+        assertTrue("Remove \"catalogs\" returns true", ot_long.remove("catalogs"));
+        assertEquals("Every record but the root is free", 1, ot_long.recordCount());
+    }
+
+    @Test
+    public void testMatchesTrieTree()
+    {
+        // Enough keys to fill more than one slab.
+        Random random = new Random(41);
+        OffHeapTrieTree<Double> ot_double = new OffHeapTrieTree<Double>(TrieValueCodecs.doubles());
+        TrieTree<Double> tt_double = new TrieTree<Double>();
+        for (int i = 0; i < 120000; ++i)
+        {
+            String key = Long.toString(random.nextInt(200000), 7) + (char) ('a' + random.nextInt(26));
+            Double value = random.nextInt(10) == 0 ? null : random.nextDouble();
+            int op = random.nextInt(4);
+            if (op <= 1)
+                assertEquals("put(\"" + key + "\")", tt_double.put(key, value), ot_double.put(key, value));
+            else if (op == 2)
+                assertEquals("update(\"" + key + "\")", tt_double.update(key, value), ot_double.update(key, value));
+            else
+                assertEquals("remove(\"" + key + "\")", tt_double.remove(key), ot_double.remove(key));
+        }
+
+        assertTrue("Tree spans several slabs", ot_double.offHeapBytes() > 2 << 20);
+        assertEquals("Same size as TrieTree", tt_double.size(), ot_double.size());
+        assertEquals("Same entries as TrieTree", tt_double.allKeyValues(), ot_double.allKeyValues());
+        assertEquals("Same prefix counts", tt_double.countWithPrefix("12"), ot_double.countWithPrefix("12"));
+        assertEquals("Same prefix entries", tt_double.keyValueCollectionWithPrefix("345"),
+                     ot_double.keyValueCollectionWithPrefix("345"));
+    }
+}
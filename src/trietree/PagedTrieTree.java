@@ -0,0 +1,358 @@
+package trietree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This generic data type is a prefix trie tree stored in a file, for
+ * dictionaries that do not fit in the heap. The nodes are 32-byte records,
+ * 256 to a page of the file, and only the pages in a buffer pool of a fixed
+ * size are in memory (see TriePageFile for the clock eviction and the copy on
+ * write pages), so the working set can be much larger than RAM.
+ *
+ * Changes are made in the buffer pool and become durable with commit(): the
+ * file always holds the last commit in full, whatever happens before the
+ * next one finishes, and rollback() returns to it. close() commits.
+ *
+ * Records are allocated in the order the keys are put. putAll into an empty
+ * tree lays out every sibling run and every subtree contiguously, so lookups
+ * touch few pages and a prefix scan reads consecutive pages; commits write
+ * dirty pages in page order, so those pages also follow each other in the
+ * file.
+ *
+ * The records are those of RecordTrieTree, big-endian.
+ *
+ * I/O errors are thrown as UncheckedIOException from the tree operations.
+ */
+public class PagedTrieTree<Value> extends RecordTrieTree<Value> implements AutoCloseable
+{
+    /* PRIVATE MEMBERS */
+    private static final int PAGE_SHIFT = 8; // 256 records per page.
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    // Header metadata of the tree.
+    private static final int META_NEXT_RECORD = 0;
+    private static final int META_FREE_LIST = 1;
+    private static final int META_FREE_RECORDS = 2;
+
+    private final TriePageFile pages;
+
+    /**
+     * Constructor. Opens the tree in the file, or creates an empty one if the
+     * file is new or empty.
+     *
+     * @param file
+     *            File of the tree.
+     * @param codec
+     *            Converts Values to and from the bits stored in the records.
+     * @param cachePages
+     *            Number of 8 KB pages kept in memory. At least 2.
+     * @throws IOException
+     *             If the file cannot be read or is not a tree.
+     */
+    public PagedTrieTree(Path file, TrieValueCodec<Value> codec, int cachePages) throws IOException
+    {
+        this(file, codec, cachePages, TriePageFile.MAX_PAGES);
+    }
+
+    // With a smaller limit on the pages of records, for the tests.
+    PagedTrieTree(Path file, TrieValueCodec<Value> codec, int cachePages, int maxPages) throws IOException
+    {
+        this(codec, open(file, codec, cachePages, maxPages));
+    }
+
+    private PagedTrieTree(TrieValueCodec<Value> codec, PageStore store)
+    {
+        super(codec, store);
+        pages = store.pages;
+        load();
+    }
+
+    /**
+     * This method makes every change since the last commit durable.
+     *
+     * @throws IOException
+     *             If writing fails. The file still holds the last commit.
+     */
+    public synchronized void commit() throws IOException
+    {
+        pages.setMetadata(META_NEXT_RECORD, nextRecord);
+        pages.setMetadata(META_FREE_LIST, freeList);
+        pages.setMetadata(META_FREE_RECORDS, freeRecords);
+        pages.commit();
+    }
+
+    /**
+     * This method drops every change since the last commit.
+     *
+     * @throws IOException
+     *             If the file cannot be read.
+     */
+    public synchronized void rollback() throws IOException
+    {
+        pages.recover();
+        load();
+    }
+
+    /**
+     * This method commits and closes the file.
+     *
+     * @throws IOException
+     *             If the commit fails. The file is closed anyway.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        try
+        {
+            commit();
+        }
+        finally
+        {
+            pages.close();
+        }
+    }
+
+    /**
+     * This method puts every entry of the map whose key is not in the tree
+     * yet, in key order. Into an empty tree, the entries are bulk loaded
+     * instead: the children of every node are laid out as one run of
+     * consecutive records, followed by the subtree of each child in key
+     * order, so a lookup reads about one page per level that is not cached
+     * and a prefix scan reads its subtree front to back.
+     *
+     * @param entries
+     *            Keys and Values to put.
+     * @return HashMap<String, Boolean> of every key to whether it was added.
+     */
+    public synchronized HashMap<String, Boolean> putAll(Map<String, ? extends Value> entries)
+    {
+        ArrayList<String> keys = new ArrayList<String>(entries.size());
+        HashMap<String, Boolean> outcomes = new HashMap<String, Boolean>();
+        for (String key : entries.keySet())
+        {
+            if (key == null || key.isEmpty())
+                outcomes.put(key, Boolean.FALSE);
+            else
+                keys.add(key);
+        }
+        Collections.sort(keys);
+
+        if (!isEmpty() || keys.isEmpty())
+        {
+            for (String key : keys)
+                outcomes.put(key, put(key, entries.get(key)));
+            return outcomes;
+        }
+
+        // One record per distinct prefix, made room for before anything
+        // changes. Every record but the root is free, so allocate from the
+        // start.
+        long records = 0;
+        for (int i = 0; i < keys.size(); ++i)
+            records += keys.get(i).length() - (i == 0 ? 0 : commonPrefix(keys.get(i - 1), keys.get(i)));
+        reserve(records);
+        removeAll();
+        setCount(ROOT, keys.size());
+        addChildren(ROOT, keys, entries, 0, keys.size(), 0);
+
+        for (String key : keys)
+            outcomes.put(key, Boolean.TRUE);
+        return outcomes;
+    }
+
+    /**
+     * This method is called recursively to bulk load the sorted keys [lo, hi),
+     * which all continue past the depth, under the record: first a run of one
+     * record per distinct character at the depth, then the keys under each
+     * of those.
+     */
+    private void addChildren(int r, ArrayList<String> keys, Map<String, ? extends Value> entries, int lo, int hi,
+                             int depth)
+    {
+        ArrayList<Integer> bounds = new ArrayList<Integer>();
+        for (int i = lo; i < hi; ++i)
+        {
+            if (i == lo || keys.get(i).charAt(depth) != keys.get(i - 1).charAt(depth))
+                bounds.add(i);
+        }
+        bounds.add(hi);
+
+        int[] children = new int[bounds.size() - 1];
+        int previous = NONE;
+        for (int g = 0; g < children.length; ++g)
+        {
+            int start = bounds.get(g);
+            int child = allocate();
+            setLabel(child, keys.get(start).charAt(depth));
+            setCount(child, bounds.get(g + 1) - start);
+            if (previous == NONE)
+                setFirstChild(r, child);
+            else
+                setNextSibling(previous, child);
+            previous = child;
+            children[g] = child;
+        }
+
+        for (int g = 0; g < children.length; ++g)
+        {
+            // The key that ends here sorts first in its group.
+            int start = bounds.get(g);
+            int end = bounds.get(g + 1);
+            if (keys.get(start).length() == depth + 1)
+            {
+                setValue(children[g], entries.get(keys.get(start)));
+                ++start;
+            }
+            if (start < end)
+                addChildren(children[g], keys, entries, start, end, depth + 1);
+        }
+    }
+
+    private static int commonPrefix(String a, String b)
+    {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i))
+            ++i;
+        return i;
+    }
+
+    /**
+     * @return Number of the last commit, counting from 0 for a new file.
+     */
+    public synchronized long commitSequence()
+    {
+        return pages.getSequence();
+    }
+
+    /**
+     * @return Page accesses served by the buffer pool.
+     */
+    public synchronized long cacheHits()
+    {
+        return pages.getHits();
+    }
+
+    /**
+     * @return Page accesses that had to read the page or create it.
+     */
+    public synchronized long cacheMisses()
+    {
+        return pages.getMisses();
+    }
+
+    /**
+     * @return Pages read from the file, including page table and header
+     *         pages.
+     */
+    public synchronized long pageReads()
+    {
+        return pages.getPageReads();
+    }
+
+    /**
+     * @return Pages written to the file, including page table and header
+     *         pages.
+     */
+    public synchronized long pageWrites()
+    {
+        return pages.getPageWrites();
+    }
+
+    /**
+     * @return Size of the file in bytes, free pages included.
+     */
+    public synchronized long fileBytes()
+    {
+        return pages.getFileBytes();
+    }
+
+    // Reads the record allocator from the last commit, creating the root in a
+    // new file.
+    private void load()
+    {
+        nextRecord = (int) pages.metadata(META_NEXT_RECORD);
+        freeList = (int) pages.metadata(META_FREE_LIST);
+        freeRecords = (int) pages.metadata(META_FREE_RECORDS);
+        if (nextRecord == 0)
+            allocate(); // The root.
+    }
+
+    // Opens the pages once the arguments are checked, so that a bad codec
+    // leaves no file open.
+    private static PageStore open(Path file, TrieValueCodec<?> codec, int cachePages, int maxPages) throws IOException
+    {
+        if (codec == null)
+            throw new IllegalArgumentException("codec");
+        return new PageStore(new TriePageFile(file, cachePages, maxPages));
+    }
+
+    // Records in the pages of the file, added one page at a time as the
+    // records grow. A buffer is only valid until the next page access.
+    private static final class PageStore implements TrieRecordStore
+    {
+        private final TriePageFile pages;
+
+        PageStore(TriePageFile pages)
+        {
+            this.pages = pages;
+        }
+
+        @Override
+        public ByteBuffer read(int r)
+        {
+            try
+            {
+                return pages.read(r >>> PAGE_SHIFT);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public ByteBuffer write(int r)
+        {
+            try
+            {
+                return pages.write(r >>> PAGE_SHIFT);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public int offset(int r)
+        {
+            return (r & PAGE_MASK) << RECORD_SHIFT;
+        }
+
+        @Override
+        public void extend(int records)
+        {
+            int needed = (int) (((long) records + PAGE_MASK) >>> PAGE_SHIFT);
+            if (needed > pages.maxPages())
+                throw new IllegalStateException("PagedTrieTree is full");
+
+            try
+            {
+                while (pages.pageCount() < needed)
+                    pages.addPage();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package trietree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PagedTrieTreeTester
+{
+    @Test
+    public void testBasicOperations() throws IOException
+    {
+        Path file = Files.createTempFile("paged", ".trie");
+        try
+        {
+            PagedTrieTree<Integer> pt_integer = new PagedTrieTree<Integer>(file, TrieValueCodecs.integers(), 4);
+            assertTrue("Empty tree returns true", pt_integer.isEmpty());
+            assertFalse("Put null key returns false", pt_integer.put(null, 1));
+            assertFalse("Put empty key returns false", pt_integer.put("", 1));
+            assertTrue("Put \"cat\" returns true", pt_integer.put("cat", 1));
+            assertFalse("Put \"cat\" again returns false", pt_integer.put("cat", 2));
+            assertTrue("Put \"cats\" returns true", pt_integer.put("cats", -2));
+            assertTrue("Put \"ca\" with a null Value returns true", pt_integer.put("ca", null));
+            assertTrue("Put \"dog\" returns true", pt_integer.put("dog", Integer.MIN_VALUE));
+            assertEquals("Tree has 4 keys", 4, pt_integer.size());
+            assertEquals("Negative Values round trip", -2, (int) pt_integer.get("cats"));
+            assertEquals("Null Value is kept", null, pt_integer.get("ca"));
+            assertFalse("Missing \"c\" is not contained", pt_integer.contains("c"));
+            assertEquals("Prefix \"ca\" counts 3 keys", 3, pt_integer.countWithPrefix("ca"));
+
+            assertTrue("Update \"ca\" returns true", pt_integer.update("ca", 3));
+            assertTrue("Remove \"cat\" returns true", pt_integer.remove("cat"));
+            assertFalse("Remove \"cat\" again returns false", pt_integer.remove("cat"));
+            pt_integer.close();
+
+            pt_integer = new PagedTrieTree<Integer>(file, TrieValueCodecs.integers(), 4);
+            HashMap<String, Integer> hm_expected = new HashMap<String, Integer>();
+            hm_expected.put("ca", 3);
+            hm_expected.put("cats", -2);
+            hm_expected.put("dog", Integer.MIN_VALUE);
+            assertEquals("Close commits", hm_expected, pt_integer.allKeyValues());
+
+            pt_integer.removeAll();
+            assertTrue("Tree is empty after removeAll", pt_integer.isEmpty());
+            assertEquals("Only the root record is left", 1, pt_integer.recordCount());
+            pt_integer.close();
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testCommitAndRecovery() throws IOException
+    {
+        Path file = Files.createTempFile("paged", ".trie");
+        try
+        {
+            PagedTrieTree<Long> pt_long = new PagedTrieTree<Long>(file, TrieValueCodecs.longs(), 2);
+            for (long i = 0; i < 2000; ++i)
+                pt_long.put("key" + i, i);
+            pt_long.commit();
+            HashMap<String, Long> committed = pt_long.allKeyValues();
+
+            // Enough changes to evict dirty pages before the commit.
+            for (long i = 0; i < 2000; i += 2)
+                pt_long.remove("key" + i);
+            pt_long.put("new", -1L);
+            pt_long.rollback();
+            assertEquals("Rollback returns to the commit", committed, pt_long.allKeyValues());
+
+            // A crash before the commit: the changes never reach another
+            // opener.
+            pt_long.put("lost", 1L);
+            for (long i = 1; i < 2000; i += 2)
+                pt_long.remove("key" + i);
+            PagedTrieTree<Long> reopened = new PagedTrieTree<Long>(file, TrieValueCodecs.longs(), 8);
+            assertEquals("Uncommitted changes are not in the file", committed, reopened.allKeyValues());
+            reopened.close();
+            pt_long.rollback();
+
+            for (long i = 0; i < 2000; i += 3)
+                pt_long.update("key" + i, -i);
+            pt_long.commit();
+            long sequence = pt_long.commitSequence();
+            reopened = new PagedTrieTree<Long>(file, TrieValueCodecs.longs(), 8);
+            assertEquals("Committed changes are in the file", pt_long.allKeyValues(), reopened.allKeyValues());
+            reopened.close();
+
+            // A torn write of the newest header falls back to the commit
+            // before it.
+            RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw");
+            try
+            {
+                raw.seek((sequence % 2) * TriePageFile.PAGE_SIZE + 100);
+                raw.write(0x5A);
+            }
+            finally
+            {
+                raw.close();
+            }
+            reopened = new PagedTrieTree<Long>(file, TrieValueCodecs.longs(), 8);
+            assertEquals("Previous commit", sequence - 1, reopened.commitSequence());
+            assertEquals("Previous commit is intact", committed, reopened.allKeyValues());
+            reopened.close();
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testMatchesTrieTree() throws IOException
+    {
+        // Far more pages than the buffer pool holds.
+        Path file = Files.createTempFile("paged", ".trie");
+        try
+        {
+            Random random = new Random(43);
+            PagedTrieTree<Double> pt_double = new PagedTrieTree<Double>(file, TrieValueCodecs.doubles(), 8);
+            TrieTree<Double> tt_double = new TrieTree<Double>();
+            for (int i = 0; i < 60000; ++i)
+            {
+                String key = Long.toString(random.nextInt(100000), 7) + (char) ('a' + random.nextInt(26));
+                Double value = random.nextInt(10) == 0 ? null : random.nextDouble();
+                int op = random.nextInt(4);
+                if (op <= 1)
+                    assertEquals("put(\"" + key + "\")", tt_double.put(key, value), pt_double.put(key, value));
+                else if (op == 2)
+                    assertEquals("update(\"" + key + "\")", tt_double.update(key, value), pt_double.update(key, value));
+                else
+                    assertEquals("remove(\"" + key + "\")", tt_double.remove(key), pt_double.remove(key));
+
+                if (i % 10000 == 9999)
+                    pt_double.commit();
+            }
+
+            assertTrue("Pages were evicted", pt_double.cacheMisses() > 8);
+            assertEquals("Same size as TrieTree", tt_double.size(), pt_double.size());
+            assertEquals("Same entries as TrieTree", tt_double.allKeyValues(), pt_double.allKeyValues());
+            assertEquals("Same prefix entries", tt_double.keyValueCollectionWithPrefix("345"),
+                         pt_double.keyValueCollectionWithPrefix("345"));
+            pt_double.close();
+
+            pt_double = new PagedTrieTree<Double>(file, TrieValueCodecs.doubles(), 8);
+            assertEquals("Same entries after reopening", tt_double.allKeyValues(), pt_double.allKeyValues());
+            assertEquals("Same prefix counts after reopening", tt_double.countWithPrefix("12"),
+                         pt_double.countWithPrefix("12"));
+            pt_double.close();
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testBulkLoad() throws IOException
+    {
+        Path file = Files.createTempFile("paged", ".trie");
+        try
+        {
+            Random random = new Random(47);
+            HashMap<String, Integer> hm_entries = new HashMap<String, Integer>();
+            for (int i = 0; i < 30000; ++i)
+                hm_entries.put(Integer.toString(random.nextInt(1000000), 5), random.nextInt(5) == 0 ? null : i);
+            hm_entries.put("", 1);
+
+            PagedTrieTree<Integer> pt_integer = new PagedTrieTree<Integer>(file, TrieValueCodecs.integers(), 8);
+            pt_integer.put("gone", 1);
+            pt_integer.remove("gone");
+            HashMap<String, Boolean> added = pt_integer.putAll(hm_entries);
+            assertEquals("Empty key is not added", Boolean.FALSE, added.get(""));
+            hm_entries.remove("");
+            assertEquals("Bulk load has every entry", hm_entries, pt_integer.allKeyValues());
+            assertEquals("Bulk load counts", hm_entries.size(), pt_integer.size());
+            assertEquals("One record per distinct prefix and the root", 1 + prefixCount(hm_entries),
+                         pt_integer.recordCount());
+
+            // Base 5 keys never contain a '5'.
+            String existing = hm_entries.keySet().iterator().next();
+            HashMap<String, Integer> hm_more = new HashMap<String, Integer>();
+            hm_more.put(existing, -1);
+            hm_more.put("555", -2);
+            added = pt_integer.putAll(hm_more);
+            assertEquals("Existing key is skipped", Boolean.FALSE, added.get(existing));
+            assertEquals("New key is added", Boolean.TRUE, added.get("555"));
+            assertEquals("Existing Value is kept", hm_entries.get(existing), pt_integer.get(existing));
+            assertTrue("Remove after a bulk load", pt_integer.remove("555"));
+            pt_integer.close();
+
+            pt_integer = new PagedTrieTree<Integer>(file, TrieValueCodecs.integers(), 8);
+            assertEquals("Same entries after reopening", hm_entries, pt_integer.allKeyValues());
+            pt_integer.close();
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testFull() throws IOException
+    {
+        Path file = Files.createTempFile("paged", ".trie");
+        try
+        {
+            // One page: the root and 255 records.
+            PagedTrieTree<Integer> pt_integer = new PagedTrieTree<Integer>(file, TrieValueCodecs.integers(), 2, 1);
+            assertTrue("Put a 200 character key returns true", pt_integer.put(repeat('a', 200), 1));
+            try
+            {
+                pt_integer.put(repeat('b', 60), 2);
+                fail("Put past the last page throws");
+            }
+            catch (IllegalStateException e)
+            {
+                assertEquals("Full tree is reported", "PagedTrieTree is full", e.getMessage());
+            }
+            assertEquals("Failed put leaves the size", 1, pt_integer.size());
+            assertEquals("Failed put leaves the prefix counts", 0, pt_integer.countWithPrefix("b"));
+            assertEquals("Failed put allocates no records", 201, pt_integer.recordCount());
+            assertTrue("Put that fits the page returns true", pt_integer.put(repeat('b', 55), 3));
+            assertEquals("Page is full", 256, pt_integer.recordCount());
+            assertTrue("Remove frees records", pt_integer.remove(repeat('a', 200)));
+            assertTrue("Freed records are reused", pt_integer.put(repeat('c', 100), 4));
+            pt_integer.removeAll();
+
+            HashMap<String, Integer> hm_entries = new HashMap<String, Integer>();
+            hm_entries.put(repeat('d', 150), 5);
+            hm_entries.put(repeat('e', 150), 6);
+            try
+            {
+                pt_integer.putAll(hm_entries);
+                fail("Bulk load past the last page throws");
+            }
+            catch (IllegalStateException e)
+            {
+                assertTrue("Failed bulk load leaves the tree empty", pt_integer.isEmpty());
+                assertEquals("Failed bulk load allocates no records", 1, pt_integer.recordCount());
+            }
+            pt_integer.close();
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    private static String repeat(char c, int n)
+    {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static int prefixCount(HashMap<String, Integer> entries)
+    {
+        HashSet<String> prefixes = new HashSet<String>();
+        for (String key : entries.keySet())
+        {
+            for (int i = 1; i <= key.length(); ++i)
+                prefixes.add(key.substring(0, i));
+        }
+        return prefixes.size();
+    }
+}
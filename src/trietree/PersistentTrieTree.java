@@ -0,0 +1,672 @@
+package trietree;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.stream.Collector;
+
+/**
+ * This generic data type is a persistent (copy-on-write) prefix trie tree
+ * with the same keys and Values as TrieTree. Every commit produces a new
+ * version whose root shares all unchanged nodes with the previous version,
+ * and publishes it with a single volatile write.
+ * 
+ * Readers never lock: get, contains, prefix collections and snapshot() all
+ * work on the latest published version, and a Snapshot keeps working on its
+ * version no matter what writers do afterwards. Writers are serialized by a
+ * writer lock that readers never touch. Several mutations can be grouped into
+ * one commit with beginBatch(); nodes copied by a batch are changed in place
+ * for the rest of it, so a batch only copies each node once.
+ */
+public class PersistentTrieTree<Value>
+{
+    // Subtrees with at most this many keys are collected by a single task.
+    private static final long PARALLEL_SEQUENTIAL_THRESHOLD = 4096;
+
+    private static final char[] NO_LABELS = new char[0];
+
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private volatile Snapshot<Value> current;
+
+    // Trie node. Immutable once published; before that, only the batch whose
+    // edit token it carries may change it.
+    private static final class Node<V>
+    {
+        private char[] labels; // Sorted characters of the children.
+        private Node<V>[] children; // Child for the label at the same index.
+        private boolean wordEnd;
+        private V value;
+        private long count; // Keys at or below this node.
+        private Object edit; // Token of the batch that created this copy.
+
+        Node(Object e)
+        {
+            labels = NO_LABELS;
+            children = newNodeArray(0);
+            edit = e;
+        }
+
+        Node(Node<V> n, Object e)
+        {
+            labels = n.labels.clone();
+            children = n.children.clone();
+            wordEnd = n.wordEnd;
+            value = n.value;
+            count = n.count;
+            edit = e;
+        }
+
+        Node<V> child(char c)
+        {
+            int index = Arrays.binarySearch(labels, c);
+            return index < 0 ? null : children[index];
+        }
+    }
+
+    /**
+     * An immutable version of the tree. All reads on a snapshot see exactly
+     * the keys that were committed when it was taken.
+     */
+    public static final class Snapshot<Value>
+    {
+        private final Node<Value> root;
+        private final long version;
+
+        Snapshot(Node<Value> r, long v)
+        {
+            root = r;
+            version = v;
+        }
+
+        /**
+         * @return Number of commits before this version.
+         */
+        public long version()
+        {
+            return version;
+        }
+
+        /**
+         * @return Number of keys in this version.
+         */
+        public long size()
+        {
+            return root.count;
+        }
+
+        /**
+         * @return True if this version has no keys.
+         */
+        public boolean isEmpty()
+        {
+            return root.count == 0;
+        }
+
+        /**
+         * @param key
+         *            String of the key.
+         * @return Value associated with the key. Null if the key does not
+         *         exist or no Value associated with key.
+         */
+        public Value get(String key)
+        {
+            Node<Value> n = find(root, key);
+            return n == null || !n.wordEnd ? null : n.value;
+        }
+
+        /**
+         * @param key
+         *            String of the key.
+         * @return True if the key is in this version.
+         */
+        public boolean contains(String key)
+        {
+            Node<Value> n = find(root, key);
+            return n != null && n.wordEnd;
+        }
+
+        /**
+         * @param prefix
+         *            String of the prefix.
+         * @return Number of keys that contain the prefix.
+         */
+        public long countWithPrefix(String prefix)
+        {
+            Node<Value> n = prefix == null ? null : prefix.isEmpty() ? root : find(root, prefix);
+            return n == null ? 0 : n.count;
+        }
+
+        /**
+         * @param prefix
+         *            String of the prefix.
+         * @return HashMap<String, Value> collection of all entries that match
+         *         the prefix in this version.
+         */
+        public HashMap<String, Value> keyValueCollectionWithPrefix(String prefix)
+        {
+            HashMap<String, Value> keyCollection = new HashMap<String, Value>();
+            Node<Value> n = prefix == null ? null : prefix.isEmpty() ? root : find(root, prefix);
+            if (n != null)
+                addToKVPrefixCollection(new StringBuilder(prefix), n, keyCollection);
+            return keyCollection;
+        }
+
+        /**
+         * @return HashMap<String, Value> collection of all entries in this
+         *         version.
+         */
+        public HashMap<String, Value> allKeyValues()
+        {
+            return keyValueCollectionWithPrefix("");
+        }
+
+        /**
+         * This method collects all entries that contain the prefix with the
+         * given collector, splitting the subtree into fork/join tasks by child
+         * branches. No lock is involved, as the version cannot change.
+         * 
+         * @param prefix
+         *            String of the prefix.
+         * @param collector
+         *            Collector that receives every matching key/value entry.
+         * @param pool
+         *            Fork/join pool that runs the traversal.
+         * @return Result of the collector.
+         */
+        @SuppressWarnings("unchecked")
+        public <A, R> R collectWithPrefix(String prefix, Collector<? super Map.Entry<String, Value>, A, R> collector,
+            ForkJoinPool pool)
+        {
+            Node<Value> n = prefix == null ? null : prefix.isEmpty() ? root : find(root, prefix);
+            A container = n == null ? collector.supplier().get()
+                                    : pool.invoke(new CollectTask<Value, A>(prefix, n, collector));
+
+            if (collector.characteristics().contains(Collector.Characteristics.IDENTITY_FINISH))
+                return (R) container;
+            return collector.finisher().apply(container);
+        }
+    }
+
+    // Fork/join task that collects one subtree of a snapshot.
+    private static final class CollectTask<V, A> extends RecursiveTask<A>
+    {
+        private static final long serialVersionUID = -3150779384431934338L;
+
+        private final String prefix;
+        private final Node<V> node;
+        private final Collector<? super Map.Entry<String, V>, A, ?> collector;
+
+        CollectTask(String p, Node<V> n, Collector<? super Map.Entry<String, V>, A, ?> c)
+        {
+            prefix = p;
+            node = n;
+            collector = c;
+        }
+
+        @Override
+        protected A compute()
+        {
+            A container = collector.supplier().get();
+            BiConsumer<A, ? super Map.Entry<String, V>> accumulator = collector.accumulator();
+            if (node.count <= PARALLEL_SEQUENTIAL_THRESHOLD)
+            {
+                addToCollector(new StringBuilder(prefix), node, container, accumulator);
+                return container;
+            }
+
+            if (node.wordEnd)
+                accumulator.accept(container, new AbstractMap.SimpleImmutableEntry<String, V>(prefix, node.value));
+
+            @SuppressWarnings({ "unchecked", "rawtypes" })
+            CollectTask<V, A>[] subtasks = new CollectTask[node.children.length];
+            for (int i = 0; i < subtasks.length; ++i)
+                subtasks[i] = new CollectTask<V, A>(prefix + node.labels[i], node.children[i], collector);
+            invokeAll(subtasks);
+
+            for (CollectTask<V, A> subtask : subtasks)
+                container = collector.combiner().apply(container, subtask.join());
+            return container;
+        }
+
+        private static <V, A> void addToCollector(StringBuilder prefix, Node<V> parentNode, A container,
+            BiConsumer<A, ? super Map.Entry<String, V>> accumulator)
+        {
+            if (parentNode.wordEnd)
+                accumulator.accept(container,
+                                   new AbstractMap.SimpleImmutableEntry<String, V>(prefix.toString(), parentNode.value));
+
+            for (int i = 0; i < parentNode.labels.length; ++i)
+            {
+                prefix.append(parentNode.labels[i]);
+                addToCollector(prefix, parentNode.children[i], container, accumulator);
+                prefix.deleteCharAt(prefix.length() - 1);
+            }
+        }
+    }
+
+    /**
+     * A group of mutations that is published as one new version on commit.
+     * Other readers and writers see none of its mutations before that. A
+     * batch holds the writer lock from beginBatch() until commit() or
+     * abort(), and must be used by the thread that began it.
+     */
+    public final class Batch implements AutoCloseable
+    {
+        private final Object edit = new Object();
+        private Node<Value> root;
+        private boolean open = true;
+
+        Batch()
+        {
+            root = current.root;
+        }
+
+        /**
+         * This method puts a key with a Value into the batch. Duplicates will
+         * not be added.
+         * 
+         * @return True if put was successful. False if the key is empty or
+         *         already in the batch's view of the tree.
+         */
+        public boolean put(String key, Value val)
+        {
+            checkOpen();
+            if (key == null || key.isEmpty() || contains(key))
+                return false;
+
+            root = editable(root, edit);
+            Node<Value> n = root;
+            ++n.count;
+            for (int i = 0; i < key.length(); ++i)
+            {
+                char c = key.charAt(i);
+                int index = Arrays.binarySearch(n.labels, c);
+                Node<Value> child;
+                if (index >= 0)
+                {
+                    child = editable(n.children[index], edit);
+                    n.children[index] = child;
+                }
+                else
+                {
+                    child = new Node<Value>(edit);
+                    insertChild(n, -index - 1, c, child);
+                }
+
+                ++child.count;
+                n = child;
+            }
+
+            n.wordEnd = true;
+            n.value = val;
+            return true;
+        }
+
+        /**
+         * This method updates the Value of a key in the batch.
+         * 
+         * @return True if update was successful. False if the key is empty or
+         *         not in the batch's view of the tree.
+         */
+        public boolean update(String key, Value val)
+        {
+            checkOpen();
+            if (key == null || key.isEmpty() || !contains(key))
+                return false;
+
+            root = editable(root, edit);
+            Node<Value> n = root;
+            for (int i = 0; i < key.length(); ++i)
+            {
+                int index = Arrays.binarySearch(n.labels, key.charAt(i));
+                Node<Value> child = editable(n.children[index], edit);
+                n.children[index] = child;
+                n = child;
+            }
+
+            n.value = val;
+            return true;
+        }
+
+        /**
+         * This method removes a key from the batch, if it exists.
+         * 
+         * @return True if the key is removed. False if the key is not in the
+         *         batch's view of the tree.
+         */
+        public boolean remove(String key)
+        {
+            checkOpen();
+            if (key == null || key.isEmpty() || !contains(key))
+                return false;
+
+            // Copy the path, decrementing the counts. The first node whose
+            // count drops to 0 is unlinked along with everything below it.
+            root = editable(root, edit);
+            Node<Value> n = root;
+            --n.count;
+            for (int i = 0; i < key.length(); ++i)
+            {
+                int index = Arrays.binarySearch(n.labels, key.charAt(i));
+                if (n.children[index].count == 1)
+                {
+                    removeChild(n, index);
+                    return true;
+                }
+
+                Node<Value> child = editable(n.children[index], edit);
+                n.children[index] = child;
+                --child.count;
+                n = child;
+            }
+
+            n.wordEnd = false;
+            n.value = null;
+            return true;
+        }
+
+        /**
+         * This method clears the batch's view of the tree.
+         */
+        public void removeAll()
+        {
+            checkOpen();
+            root = new Node<Value>(edit);
+        }
+
+        /**
+         * @return Value of the key in the batch's view of the tree.
+         */
+        public Value get(String key)
+        {
+            Node<Value> n = find(root, key);
+            return n == null || !n.wordEnd ? null : n.value;
+        }
+
+        /**
+         * @return True if the key is in the batch's view of the tree.
+         */
+        public boolean contains(String key)
+        {
+            Node<Value> n = find(root, key);
+            return n != null && n.wordEnd;
+        }
+
+        /**
+         * @return Number of keys in the batch's view of the tree.
+         */
+        public long size()
+        {
+            return root.count;
+        }
+
+        /**
+         * This method publishes the batch as the new version of the tree with
+         * a single volatile write and releases the writer lock.
+         * 
+         * @return The published version.
+         */
+        public Snapshot<Value> commit()
+        {
+            checkOpen();
+            open = false;
+            try
+            {
+                // Unchanged batches do not need a new version.
+                if (root != current.root)
+                    current = new Snapshot<Value>(root, current.version + 1);
+                return current;
+            }
+            finally
+            {
+                writerLock.unlock();
+            }
+        }
+
+        /**
+         * This method drops every mutation of the batch and releases the
+         * writer lock.
+         */
+        public void abort()
+        {
+            if (!open)
+                return;
+
+            open = false;
+            writerLock.unlock();
+        }
+
+        /**
+         * Same as abort(), so uncommitted batches in try-with-resources are
+         * dropped.
+         */
+        @Override
+        public void close()
+        {
+            abort();
+        }
+
+        private void checkOpen()
+        {
+            if (!open)
+                throw new IllegalStateException("Batch is already committed or aborted.");
+            if (!writerLock.isHeldByCurrentThread())
+                throw new ConcurrentModificationException("Batch used by a thread that did not begin it.");
+        }
+    }
+
+    /* METHODS */
+    public PersistentTrieTree()
+    {
+        current = new Snapshot<Value>(new Node<Value>(null), 0);
+    }
+
+    /**
+     * This method returns the latest published version. It never blocks.
+     * 
+     * @return Snapshot of the tree.
+     */
+    public Snapshot<Value> snapshot()
+    {
+        return current;
+    }
+
+    /**
+     * This method starts a batch of mutations. It waits for the batch or
+     * single mutation in progress, if any.
+     * 
+     * @return New batch, holding the writer lock.
+     */
+    public Batch beginBatch()
+    {
+        writerLock.lock();
+        return new Batch();
+    }
+
+    public long size()
+    {
+        return current.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return current.isEmpty();
+    }
+
+    public Value get(String key)
+    {
+        return current.get(key);
+    }
+
+    public boolean contains(String key)
+    {
+        return current.contains(key);
+    }
+
+    public long countWithPrefix(String prefix)
+    {
+        return current.countWithPrefix(prefix);
+    }
+
+    public HashMap<String, Value> keyValueCollectionWithPrefix(String prefix)
+    {
+        return current.keyValueCollectionWithPrefix(prefix);
+    }
+
+    public HashMap<String, Value> allKeyValues()
+    {
+        return current.allKeyValues();
+    }
+
+    /**
+     * This method puts a key with a Value and commits it as a new version.
+     * Duplicates will not be added.
+     * 
+     * @return True if put was successful. False if the key is empty or the
+     *         tree already contains key.
+     */
+    public boolean put(String key, Value val)
+    {
+        Batch batch = beginBatch();
+        try
+        {
+            boolean rc = batch.put(key, val);
+            batch.commit();
+            return rc;
+        }
+        finally
+        {
+            batch.abort();
+        }
+    }
+
+    /**
+     * This method updates the Value of a key and commits it as a new version.
+     * 
+     * @return True if update was successful. False if the key is empty or the
+     *         tree does not contain key.
+     */
+    public boolean update(String key, Value val)
+    {
+        Batch batch = beginBatch();
+        try
+        {
+            boolean rc = batch.update(key, val);
+            batch.commit();
+            return rc;
+        }
+        finally
+        {
+            batch.abort();
+        }
+    }
+
+    /**
+     * This method removes a key and commits it as a new version.
+     * 
+     * @return True if the key is removed. False if the key is not in the tree.
+     */
+    public boolean remove(String key)
+    {
+        Batch batch = beginBatch();
+        try
+        {
+            boolean rc = batch.remove(key);
+            batch.commit();
+            return rc;
+        }
+        finally
+        {
+            batch.abort();
+        }
+    }
+
+    /**
+     * This method clears the entire tree as a new version. Existing snapshots
+     * keep their keys.
+     */
+    public void removeAll()
+    {
+        Batch batch = beginBatch();
+        try
+        {
+            batch.removeAll();
+            batch.commit();
+        }
+        finally
+        {
+            batch.abort();
+        }
+    }
+
+    /* HELPERS */
+    private static <V> Node<V> find(Node<V> root, String key)
+    {
+        if (key == null || key.isEmpty())
+            return null;
+
+        Node<V> n = root;
+        for (int i = 0; i < key.length() && n != null; ++i)
+            n = n.child(key.charAt(i));
+        return n;
+    }
+
+    // Generic arrays can only be created raw.
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <V> Node<V>[] newNodeArray(int length)
+    {
+        return (Node<V>[]) new Node[length];
+    }
+
+    // Returns the node itself if the batch owns it, or the batch's own copy.
+    private static <V> Node<V> editable(Node<V> n, Object edit)
+    {
+        return n.edit == edit ? n : new Node<V>(n, edit);
+    }
+
+    private static <V> void insertChild(Node<V> n, int index, char c, Node<V> child)
+    {
+        char[] labels = new char[n.labels.length + 1];
+        Node<V>[] children = newNodeArray(labels.length);
+        System.arraycopy(n.labels, 0, labels, 0, index);
+        System.arraycopy(n.children, 0, children, 0, index);
+        labels[index] = c;
+        children[index] = child;
+        System.arraycopy(n.labels, index, labels, index + 1, n.labels.length - index);
+        System.arraycopy(n.children, index, children, index + 1, n.children.length - index);
+        n.labels = labels;
+        n.children = children;
+    }
+
+    private static <V> void removeChild(Node<V> n, int index)
+    {
+        char[] labels = new char[n.labels.length - 1];
+        Node<V>[] children = newNodeArray(labels.length);
+        System.arraycopy(n.labels, 0, labels, 0, index);
+        System.arraycopy(n.children, 0, children, 0, index);
+        System.arraycopy(n.labels, index + 1, labels, index, labels.length - index);
+        System.arraycopy(n.children, index + 1, children, index, children.length - index);
+        n.labels = labels;
+        n.children = children;
+    }
+
+    private static <V> void addToKVPrefixCollection(StringBuilder prefix, Node<V> parentNode,
+        HashMap<String, V> keyCollection)
+    {
+        if (parentNode.wordEnd)
+            keyCollection.put(prefix.toString(), parentNode.value);
+
+        for (int i = 0; i < parentNode.labels.length; ++i)
+        {
+            prefix.append(parentNode.labels[i]);
+            addToKVPrefixCollection(prefix, parentNode.children[i], keyCollection);
+            prefix.deleteCharAt(prefix.length() - 1);
+        }
+    }
+}
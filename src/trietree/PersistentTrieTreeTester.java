@@ -0,0 +1,188 @@
+package trietree;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PersistentTrieTreeTester
+{
+    @Test
+    public void testBasicOperations()
+    {
+        PersistentTrieTree<Integer> pt_integer = new PersistentTrieTree<Integer>();
+        assertTrue("Empty tree returns true", pt_integer.isEmpty());
+        assertEquals("Empty tree has no entries", Collections.emptyMap(), pt_integer.allKeyValues());
+
+        assertFalse("Put null key returns false", pt_integer.put(null, 1));
+        assertFalse("Put empty key returns false", pt_integer.put("", 1));
+        assertTrue("Put new key returns true", pt_integer.put("cat", 1));
+        assertFalse("Put existing key returns false", pt_integer.put("cat", 7));
+        assertTrue("Put prefix of a key returns true", pt_integer.put("ca", 2));
+        assertTrue("Put extension of a key returns true", pt_integer.put("cats", 3));
+        assertTrue("Put another branch returns true", pt_integer.put("dog", 4));
+        assertEquals("Tree has 4 entries", 4, pt_integer.size());
+        assertEquals("Get \"cat\" returns 1", 1, (int) pt_integer.get("cat"));
+        assertEquals("Get missing \"c\" returns null", null, pt_integer.get("c"));
+        assertFalse("Contains missing \"c\" returns false", pt_integer.contains("c"));
+        assertEquals("Prefix \"ca\" counts 3 keys", 3, pt_integer.countWithPrefix("ca"));
+
+        assertFalse("Update missing key returns false", pt_integer.update("c", 1));
+        assertTrue("Update \"cat\" returns true", pt_integer.update("cat", 10));
+        assertEquals("Get \"cat\" returns 10 after update", 10, (int) pt_integer.get("cat"));
+
+        assertFalse("Remove missing key returns false", pt_integer.remove("c"));
+        assertTrue("Remove \"cat\" returns true", pt_integer.remove("cat"));
+        assertTrue("\"cats\" is still there", pt_integer.contains("cats"));
+        assertTrue("Remove \"cats\" returns true", pt_integer.remove("cats"));
+        assertEquals("Prefix \"cat\" counts nothing", 0, pt_integer.countWithPrefix("cat"));
+
+        HashMap<String, Integer> hm_expected = new HashMap<String, Integer>();
+        hm_expected.put("ca", 2);
+        hm_expected.put("dog", 4);
+        assertEquals("Tree has \"ca\" and \"dog\" left", hm_expected, pt_integer.allKeyValues());
+
+        pt_integer.removeAll();
+        assertTrue("Tree is empty after removeAll", pt_integer.isEmpty());
+    }
+
+    @Test
+    public void testSnapshotIsolation()
+    {
+        PersistentTrieTree<Integer> pt_integer = new PersistentTrieTree<Integer>();
+        pt_integer.put("cat", 1);
+        pt_integer.put("cats", 2);
+
+        PersistentTrieTree.Snapshot<Integer> before = pt_integer.snapshot();
+        pt_integer.update("cat", 10);
+        pt_integer.remove("cats");
+        pt_integer.put("catnap", 3);
+        pt_integer.removeAll();
+        pt_integer.put("dog", 4);
+
+        assertEquals("Snapshot keeps its size", 2, before.size());
+        assertEquals("Snapshot keeps its Values", 1, (int) before.get("cat"));
+        assertTrue("Snapshot keeps removed keys", before.contains("cats"));
+        assertFalse("Snapshot does not see later keys", before.contains("catnap"));
+        assertEquals("Latest version has only \"dog\"", Collections.singletonMap("dog", 4), pt_integer.allKeyValues());
+        assertEquals("Every single mutation is its own version", before.version() + 5,
+                     pt_integer.snapshot().version());
+    }
+
+    @Test
+    public void testBatch()
+    {
+        PersistentTrieTree<Integer> pt_integer = new PersistentTrieTree<Integer>();
+        pt_integer.put("cat", 1);
+        PersistentTrieTree.Snapshot<Integer> before = pt_integer.snapshot();
+
+        PersistentTrieTree<Integer>.Batch batch = pt_integer.beginBatch();
+        assertTrue("Batch put returns true", batch.put("cats", 2));
+        assertTrue("Batch put returns true", batch.put("catnap", 3));
+        assertTrue("Batch update returns true", batch.update("cats", 20));
+        assertTrue("Batch remove returns true", batch.remove("cat"));
+        assertFalse("Batch sees its own remove", batch.contains("cat"));
+        assertEquals("Batch sees its own update", 20, (int) batch.get("cats"));
+        assertTrue("Readers do not see the open batch", pt_integer.contains("cat"));
+        assertSame("Readers stay on the old version", before, pt_integer.snapshot());
+
+        PersistentTrieTree.Snapshot<Integer> after = batch.commit();
+        assertSame("Commit publishes the version", after, pt_integer.snapshot());
+        assertEquals("Whole batch is one version", before.version() + 1, after.version());
+        assertEquals("Batch result has 2 keys", 2, after.size());
+        assertFalse("\"cat\" is gone", after.contains("cat"));
+
+        try
+        {
+            batch.put("dog", 4);
+            fail("Committed batch rejects mutations");
+        }
+        catch (IllegalStateException e)
+        {
+            // Expected.
+        }
+
+        PersistentTrieTree<Integer>.Batch aborted = pt_integer.beginBatch();
+        aborted.removeAll();
+        aborted.put("dog", 4);
+        aborted.abort();
+        assertSame("Aborted batch publishes nothing", after, pt_integer.snapshot());
+        assertTrue("Writer lock is released after abort", pt_integer.put("dog", 4));
+    }
+
+    @Test
+    public void testMatchesTrieTree()
+    {
+        PersistentTrieTree<Integer> pt_integer = new PersistentTrieTree<Integer>();
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 20000; ++i)
+        {
+            String key = Integer.toString(random.nextInt(3000), 5);
+            int op = random.nextInt(3);
+            if (op == 0)
+                assertEquals("put(\"" + key + "\")", tt_integer.put(key, i), pt_integer.put(key, i));
+            else if (op == 1)
+                assertEquals("update(\"" + key + "\")", tt_integer.update(key, i), pt_integer.update(key, i));
+            else
+                assertEquals("remove(\"" + key + "\")", tt_integer.remove(key), pt_integer.remove(key));
+        }
+
+        assertEquals("Same size as TrieTree", tt_integer.size(), pt_integer.size());
+        assertEquals("Same entries as TrieTree", tt_integer.allKeyValues(), pt_integer.allKeyValues());
+        assertEquals("Same prefix entries as TrieTree", tt_integer.keyValueCollectionWithPrefix("12"),
+                     pt_integer.keyValueCollectionWithPrefix("12"));
+        assertEquals("Parallel snapshot collection matches", tt_integer.allKeyValues().keySet(),
+                     pt_integer.snapshot().collectWithPrefix("", Collectors.mapping(new Function<Map.Entry<String, Integer>, String>()
+                     {
+                         public String apply(Map.Entry<String, Integer> entry)
+                         {
+                             return entry.getKey();
+                         }
+                     }, Collectors.toSet()), ForkJoinPool.commonPool()));
+    }
+
+    @Test
+    public void testReadersDuringWrites() throws InterruptedException
+    {
+        final PersistentTrieTree<Integer> pt_integer = new PersistentTrieTree<Integer>();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final int keys = 2000;
+
+        Thread reader = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                // Every version a writer publishes has either all of a batch
+                // or none of it, so sizes are always even.
+                while (pt_integer.size() < keys)
+                {
+                    PersistentTrieTree.Snapshot<Integer> snapshot = pt_integer.snapshot();
+                    if (snapshot.size() % 2 != 0 || snapshot.allKeyValues().size() != snapshot.size())
+                        failure.compareAndSet(null, "Torn version of size " + snapshot.size());
+                }
+            }
+        });
+        reader.start();
+
+        for (int i = 0; i < keys; i += 2)
+        {
+            PersistentTrieTree<Integer>.Batch batch = pt_integer.beginBatch();
+            batch.put("k" + i, i);
+            batch.put("k" + (i + 1), i + 1);
+            batch.commit();
+        }
+        reader.join();
+
+        assertEquals("Readers never see half a batch", null, failure.get());
+    }
+}
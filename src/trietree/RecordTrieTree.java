@@ -0,0 +1,520 @@
+package trietree;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Prefix trie tree of fixed-size records addressed by int indices, shared by
+ * OffHeapTrieTree and PagedTrieTree; the subclasses only provide the
+ * TrieRecordStore. Children are a sorted first-child/next-sibling list of
+ * record indices and the Value is stored inline as 64 bits through a
+ * TrieValueCodec. Records of removed nodes go on a free list and are reused
+ * by later puts.
+ *
+ * Record layout, 32 bytes, in the byte order of the store:
+ *
+ * <pre>
+ *  0 int  first child (0 for none)
+ *  4 int  next sibling (0 for none), or next free record
+ *  8 char label of the edge into this node
+ * 10 byte flags: word end, null Value
+ * 16 long reference count (keys at or below this node)
+ * 24 long Value bits
+ * </pre>
+ */
+abstract class RecordTrieTree<Value>
+{
+    static final int RECORD_SHIFT = 5; // 32-byte records.
+
+    static final int NONE = 0; // The root is record 0 and never a child.
+    static final int ROOT = 0;
+
+    int nextRecord; // First record never allocated.
+    int freeList = NONE; // Removed records, chained by NEXT_SIBLING.
+    int freeRecords;
+
+    /* PRIVATE MEMBERS */
+    private static final int FIRST_CHILD = 0;
+    private static final int NEXT_SIBLING = 4;
+    private static final int LABEL = 8;
+    private static final int FLAGS = 10;
+    private static final int COUNT = 16;
+    private static final int VALUE = 24;
+
+    private static final byte WORD_END = 1;
+    private static final byte NULL_VALUE = 2;
+
+    private final TrieValueCodec<Value> codec;
+    private final TrieRecordStore store;
+
+    /**
+     * Constructor. The subclass allocates the root, or loads its records.
+     *
+     * @param codec
+     *            Converts Values to and from the bits stored in the records.
+     * @param store
+     *            Storage of the records.
+     */
+    RecordTrieTree(TrieValueCodec<Value> codec, TrieRecordStore store)
+    {
+        if (codec == null)
+            throw new IllegalArgumentException("codec");
+        this.codec = codec;
+        this.store = store;
+    }
+
+    /**
+     * This method returns the number of keys in the tree.
+     *
+     * @return Number of keys in the tree.
+     */
+    public synchronized long size()
+    {
+        return count(ROOT);
+    }
+
+    /**
+     * This method reports whether the tree is empty.
+     *
+     * @return True if the tree is empty. False otherwise.
+     */
+    public synchronized boolean isEmpty()
+    {
+        return count(ROOT) == 0;
+    }
+
+    /**
+     * This method clears the entire tree. The storage is kept for reuse.
+     */
+    public synchronized void removeAll()
+    {
+        nextRecord = 0;
+        freeList = NONE;
+        freeRecords = 0;
+        allocate();
+    }
+
+    /**
+     * This method adds a key and its Value to the tree. If the tree cannot
+     * hold the records of the key, it throws before changing anything.
+     *
+     * @param key
+     *            String of the key.
+     * @param val
+     *            Value to associate with the key.
+     * @return True if put was successful. False if the key is empty or the
+     *         tree already contains it.
+     * @throws IllegalStateException
+     *             If the tree is full.
+     */
+    public synchronized boolean put(String key, Value val)
+    {
+        if (key == null || key.isEmpty())
+            return false;
+
+        // Walk the part of the key already in the tree, and make room for the
+        // records of the rest before any count changes.
+        int r = ROOT;
+        int depth = 0;
+        while (depth < key.length())
+        {
+            int child = child(r, key.charAt(depth));
+            if (child == NONE)
+                break;
+            r = child;
+            ++depth;
+        }
+        if (depth == key.length() && (flags(r) & WORD_END) != 0)
+            return false;
+        reserve(key.length() - depth);
+
+        r = ROOT;
+        setCount(r, count(r) + 1);
+        for (int i = 0; i < key.length(); ++i)
+        {
+            r = childOrNew(r, key.charAt(i));
+            setCount(r, count(r) + 1);
+        }
+
+        setValue(r, val);
+        return true;
+    }
+
+    /**
+     * This method updates the Value associated with the key.
+     *
+     * @param key
+     *            String of the key.
+     * @param val
+     *            Value to associate with the key.
+     * @return True if update was successful. False if the tree does not
+     *         contain the key.
+     */
+    public synchronized boolean update(String key, Value val)
+    {
+        if (key == null || key.isEmpty())
+            return false;
+
+        int r = find(key);
+        if (r == NONE)
+            return false;
+
+        setValue(r, val);
+        return true;
+    }
+
+    /**
+     * This method returns the Value associated with the key.
+     *
+     * @param key
+     *            String of the key.
+     * @return Value associated with the key. Null if the key does not exist or
+     *         no Value associated with key.
+     */
+    public synchronized Value get(String key)
+    {
+        if (key == null || key.isEmpty())
+            return null;
+
+        int r = find(key);
+        return r == NONE ? null : value(r);
+    }
+
+    /**
+     * This method checks if the tree contains the key.
+     *
+     * @param key
+     *            String of the key.
+     * @return True if the tree contains the key. False otherwise.
+     */
+    public synchronized boolean contains(String key)
+    {
+        return key != null && !key.isEmpty() && find(key) != NONE;
+    }
+
+    /**
+     * This method removes a key from the tree, if it exists. Records left
+     * without keys go on the free list.
+     *
+     * @param key
+     *            String of the key.
+     * @return True if the key is removed. False if the key is not in the tree.
+     */
+    public synchronized boolean remove(String key)
+    {
+        if (key == null || key.isEmpty())
+            return false;
+
+        int end = find(key);
+        if (end == NONE)
+            return false;
+
+        setFlags(end, (byte) 0);
+
+        // Decrement the counts on the way down. The first record left without
+        // keys is unlinked, and it and the chain below it are freed.
+        int r = ROOT;
+        setCount(r, count(r) - 1);
+        for (int i = 0; i < key.length(); ++i)
+        {
+            int child = child(r, key.charAt(i));
+            setCount(child, count(child) - 1);
+            if (count(child) == 0)
+            {
+                unlink(r, child);
+                while (child != NONE)
+                {
+                    int next = firstChild(child);
+                    free(child);
+                    child = next;
+                }
+                break;
+            }
+            r = child;
+        }
+
+        return true;
+    }
+
+    /**
+     * This method returns the number of keys that contain the prefix.
+     *
+     * @param prefix
+     *            String of the prefix.
+     * @return Number of keys with the prefix.
+     */
+    public synchronized long countWithPrefix(String prefix)
+    {
+        if (prefix == null)
+            return 0;
+
+        int r = walk(prefix);
+        return r == NONE && !prefix.isEmpty() ? 0 : count(r);
+    }
+
+    /**
+     * This method returns a HashMap<String, Value> collection of the keys that
+     * contain the prefix.
+     *
+     * @param prefix
+     *            String of the prefix.
+     * @return HashMap<String, Value> collection of keys with the prefix.
+     */
+    public synchronized HashMap<String, Value> keyValueCollectionWithPrefix(String prefix)
+    {
+        HashMap<String, Value> keyCollection = new HashMap<String, Value>();
+        if (prefix == null)
+            return keyCollection;
+
+        int r = walk(prefix);
+        if (r != NONE || prefix.isEmpty())
+            addToKVPrefixCollection(new StringBuilder(prefix), r, keyCollection);
+        return keyCollection;
+    }
+
+    /**
+     * This method returns every key and Value in the tree.
+     *
+     * @return HashMap<String, Value> collection of all keys.
+     */
+    public HashMap<String, Value> allKeyValues()
+    {
+        return keyValueCollectionWithPrefix("");
+    }
+
+    /**
+     * @return Number of records in use, including the root.
+     */
+    public synchronized int recordCount()
+    {
+        return nextRecord - freeRecords;
+    }
+
+    /**
+     * @return Number of removed records waiting to be reused.
+     */
+    public synchronized int freeRecordCount()
+    {
+        return freeRecords;
+    }
+
+    /**
+     * This method makes room for new records, so that allocating them cannot
+     * fail.
+     *
+     * @param records
+     *            Number of records about to be allocated.
+     * @throws IllegalStateException
+     *             If the tree is full.
+     */
+    void reserve(long records)
+    {
+        if (records > freeRecords)
+            extend(nextRecord + records - freeRecords);
+    }
+
+    /**
+     * This method returns a cleared record, from the free list if there is
+     * one. The store is extended when the last record is taken.
+     *
+     * @return Record index.
+     */
+    int allocate()
+    {
+        int r;
+        if (freeList != NONE)
+        {
+            r = freeList;
+            freeList = nextSibling(r);
+            --freeRecords;
+        }
+        else
+        {
+            extend(nextRecord + 1L);
+            r = nextRecord++;
+        }
+
+        ByteBuffer buffer = store.write(r);
+        int offset = store.offset(r);
+        buffer.putLong(offset, 0);
+        buffer.putLong(offset + 8, 0);
+        buffer.putLong(offset + 16, 0);
+        buffer.putLong(offset + 24, 0);
+        return r;
+    }
+
+    int firstChild(int r)
+    {
+        return store.read(r).getInt(store.offset(r) + FIRST_CHILD);
+    }
+
+    void setFirstChild(int r, int child)
+    {
+        store.write(r).putInt(store.offset(r) + FIRST_CHILD, child);
+    }
+
+    int nextSibling(int r)
+    {
+        return store.read(r).getInt(store.offset(r) + NEXT_SIBLING);
+    }
+
+    void setNextSibling(int r, int sibling)
+    {
+        store.write(r).putInt(store.offset(r) + NEXT_SIBLING, sibling);
+    }
+
+    char label(int r)
+    {
+        return store.read(r).getChar(store.offset(r) + LABEL);
+    }
+
+    void setLabel(int r, char c)
+    {
+        store.write(r).putChar(store.offset(r) + LABEL, c);
+    }
+
+    long count(int r)
+    {
+        return store.read(r).getLong(store.offset(r) + COUNT);
+    }
+
+    void setCount(int r, long count)
+    {
+        store.write(r).putLong(store.offset(r) + COUNT, count);
+    }
+
+    void setValue(int r, Value val)
+    {
+        if (val == null)
+        {
+            setFlags(r, (byte) (WORD_END | NULL_VALUE));
+            return;
+        }
+
+        store.write(r).putLong(store.offset(r) + VALUE, codec.encode(val));
+        setFlags(r, WORD_END);
+    }
+
+    /**
+     * This method is called recursively, appending the label of each child to
+     * the prefix.
+     */
+    private void addToKVPrefixCollection(StringBuilder prefix, int r, HashMap<String, Value> keyCollection)
+    {
+        if ((flags(r) & WORD_END) != 0)
+            keyCollection.put(prefix.toString(), value(r));
+
+        for (int child = firstChild(r); child != NONE; child = nextSibling(child))
+        {
+            prefix.append(label(child));
+            addToKVPrefixCollection(prefix, child, keyCollection);
+            prefix.setLength(prefix.length() - 1);
+        }
+    }
+
+    // Returns the record at the end of the characters, or NONE. The empty key
+    // returns the root, which is also 0, so callers check for it first.
+    private int walk(String key)
+    {
+        int r = ROOT;
+        for (int i = 0; i < key.length(); ++i)
+        {
+            r = child(r, key.charAt(i));
+            if (r == NONE)
+                break;
+        }
+        return r;
+    }
+
+    // Returns the record of the key, or NONE if the key is not in the tree.
+    private int find(String key)
+    {
+        int r = walk(key);
+        return r != NONE && (flags(r) & WORD_END) != 0 ? r : NONE;
+    }
+
+    // Finds the child by label. Siblings are sorted, so the scan stops at the
+    // first higher label.
+    private int child(int r, char c)
+    {
+        for (int child = firstChild(r); child != NONE; child = nextSibling(child))
+        {
+            char l = label(child);
+            if (l == c)
+                return child;
+            if (l > c)
+                break;
+        }
+
+        return NONE;
+    }
+
+    private int childOrNew(int r, char c)
+    {
+        int previous = NONE;
+        int child = firstChild(r);
+        while (child != NONE && label(child) < c)
+        {
+            previous = child;
+            child = nextSibling(child);
+        }
+
+        if (child != NONE && label(child) == c)
+            return child;
+
+        int created = allocate();
+        setLabel(created, c);
+        setNextSibling(created, child);
+        if (previous == NONE)
+            setFirstChild(r, created);
+        else
+            setNextSibling(previous, created);
+        return created;
+    }
+
+    private void unlink(int r, int child)
+    {
+        int first = firstChild(r);
+        if (first == child)
+        {
+            setFirstChild(r, nextSibling(child));
+            return;
+        }
+
+        int previous = first;
+        while (nextSibling(previous) != child)
+            previous = nextSibling(previous);
+        setNextSibling(previous, nextSibling(child));
+    }
+
+    private void free(int r)
+    {
+        setNextSibling(r, freeList);
+        freeList = r;
+        ++freeRecords;
+    }
+
+    // Record indices are ints, so the tree is full at Integer.MAX_VALUE
+    // records whatever the store can hold.
+    private void extend(long records)
+    {
+        if (records > Integer.MAX_VALUE)
+            throw new IllegalStateException(getClass().getSimpleName() + " is full");
+        store.extend((int) records);
+    }
+
+    private byte flags(int r)
+    {
+        return store.read(r).get(store.offset(r) + FLAGS);
+    }
+
+    private void setFlags(int r, byte flags)
+    {
+        store.write(r).put(store.offset(r) + FLAGS, flags);
+    }
+
+    private Value value(int r)
+    {
+        return (flags(r) & NULL_VALUE) != 0 ? null : codec.decode(store.read(r).getLong(store.offset(r) + VALUE));
+    }
+}
@@ -0,0 +1,35 @@
+package trietree;
+
+/**
+ * A monoid over the Values of a trie tree. Once registered with
+ * TrieTree.addAggregate, every node keeps the aggregate of all the Values at
+ * or below it, so the aggregate of a prefix can be read without walking the
+ * keys under it.
+ * 
+ * combine must be associative and identity must be neutral for it. It is only
+ * ever called with the tree locked, and should be cheap as it runs along the
+ * key path on every put, update and remove.
+ */
+public interface TrieAggregate<Value, A>
+{
+    /**
+     * @return Aggregate of no Values at all.
+     */
+    A identity();
+
+    /**
+     * @param value
+     *            Value associated with a key. May be null.
+     * @return Aggregate of the single Value.
+     */
+    A lift(Value value);
+
+    /**
+     * @param left
+     *            Aggregate of the lower keys.
+     * @param right
+     *            Aggregate of the higher keys.
+     * @return Aggregate of both.
+     */
+    A combine(A left, A right);
+}
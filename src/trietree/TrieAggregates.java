@@ -0,0 +1,151 @@
+package trietree;
+
+import java.util.Comparator;
+
+/**
+ * Common aggregates for TrieTree.addAggregate. Null Values are ignored by all
+ * of them.
+ */
+public final class TrieAggregates
+{
+    private TrieAggregates()
+    {
+    }
+
+    /**
+     * @return Sum of the Values as a long.
+     */
+    public static TrieAggregate<Number, Long> sum()
+    {
+        return new TrieAggregate<Number, Long>()
+        {
+            public Long identity()
+            {
+                return 0L;
+            }
+
+            public Long lift(Number value)
+            {
+                return value == null ? 0L : value.longValue();
+            }
+
+            public Long combine(Long left, Long right)
+            {
+                return left + right;
+            }
+        };
+    }
+
+    /**
+     * @return Number of keys with a non-null Value.
+     */
+    public static TrieAggregate<Object, Long> countNonNull()
+    {
+        return new TrieAggregate<Object, Long>()
+        {
+            public Long identity()
+            {
+                return 0L;
+            }
+
+            public Long lift(Object value)
+            {
+                return value == null ? 0L : 1L;
+            }
+
+            public Long combine(Long left, Long right)
+            {
+                return left + right;
+            }
+        };
+    }
+
+    /**
+     * @return Lowest Value in natural order. Null if there is none.
+     */
+    public static <V extends Comparable<? super V>> TrieAggregate<V, V> min()
+    {
+        return TrieAggregates.<V> min(TrieAggregates.<V> naturalOrder());
+    }
+
+    /**
+     * @return Highest Value in natural order. Null if there is none.
+     */
+    public static <V extends Comparable<? super V>> TrieAggregate<V, V> max()
+    {
+        return TrieAggregates.<V> max(TrieAggregates.<V> naturalOrder());
+    }
+
+    /**
+     * @param comparator
+     *            Order of the Values.
+     * @return Lowest Value in the given order. Null if there is none.
+     */
+    public static <V> TrieAggregate<V, V> min(final Comparator<? super V> comparator)
+    {
+        return new TrieAggregate<V, V>()
+        {
+            public V identity()
+            {
+                return null;
+            }
+
+            public V lift(V value)
+            {
+                return value;
+            }
+
+            public V combine(V left, V right)
+            {
+                if (left == null)
+                    return right;
+                if (right == null)
+                    return left;
+
+                return comparator.compare(right, left) < 0 ? right : left;
+            }
+        };
+    }
+
+    /**
+     * @param comparator
+     *            Order of the Values.
+     * @return Highest Value in the given order. Null if there is none.
+     */
+    public static <V> TrieAggregate<V, V> max(final Comparator<? super V> comparator)
+    {
+        return new TrieAggregate<V, V>()
+        {
+            public V identity()
+            {
+                return null;
+            }
+
+            public V lift(V value)
+            {
+                return value;
+            }
+
+            public V combine(V left, V right)
+            {
+                if (left == null)
+                    return right;
+                if (right == null)
+                    return left;
+
+                return comparator.compare(right, left) > 0 ? right : left;
+            }
+        };
+    }
+
+    private static <V extends Comparable<? super V>> Comparator<V> naturalOrder()
+    {
+        return new Comparator<V>()
+        {
+            public int compare(V a, V b)
+            {
+                return a.compareTo(b);
+            }
+        };
+    }
+}
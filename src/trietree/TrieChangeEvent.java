@@ -0,0 +1,106 @@
+package trietree;
+
+/**
+ * One change to a TrieTree, as published to TrieChangeListeners and
+ * TrieChangePublisher subscribers.
+ */
+public final class TrieChangeEvent<Value>
+{
+    /**
+     * What changed.
+     */
+    public enum Type
+    {
+        /** A key was added. The Value is its Value. */
+        PUT,
+
+        /** The Value of a key was replaced. The Value is the new one. */
+        UPDATE,
+
+        /** A key was removed. The Value is null. */
+        REMOVE,
+
+        /** Every key with a prefix was removed. The key is the prefix. */
+        REMOVE_PREFIX,
+
+        /** Every key was removed. The key is empty. */
+        CLEAR
+    }
+
+    /* PRIVATE MEMBERS */
+    private final Type type;
+    private final String key;
+    private final Value value;
+    private final long version;
+
+    TrieChangeEvent(Type type, String key, Value value, long version)
+    {
+        this.type = type;
+        this.key = key;
+        this.value = value;
+        this.version = version;
+    }
+
+    /**
+     * @return What changed.
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return Key that changed, the prefix for REMOVE_PREFIX, or "" for
+     *         CLEAR.
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @return Value of the key after the change. Null for removals.
+     */
+    public Value getValue()
+    {
+        return value;
+    }
+
+    /**
+     * @return Modification count of the tree right after the change. A
+     *         consumer that read the tree at version v applies only the events
+     *         after v.
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * This method tells whether the change can affect keys with the prefix.
+     * 
+     * @param prefix
+     *            String of the prefix.
+     * @return True if a key with the prefix was, or may have been, changed.
+     */
+    public boolean affects(String prefix)
+    {
+        switch (type)
+        {
+        case CLEAR:
+            return true;
+
+        case REMOVE_PREFIX:
+            return key.startsWith(prefix) || prefix.startsWith(key);
+
+        default:
+            return key.startsWith(prefix);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return type + "[key=" + key + ", value=" + value + ", version=" + version + "]";
+    }
+}
@@ -0,0 +1,17 @@
+package trietree;
+
+/**
+ * Receives every change to a TrieTree. Called on the thread that changed the
+ * tree, with the tree lock held, so the events arrive in the order of their
+ * versions. A batch write calls it before the batch is settled, so
+ * implementations should neither read the tree nor block; they record or
+ * hand off the event and return.
+ */
+public interface TrieChangeListener<Value>
+{
+    /**
+     * @param event
+     *            Change that was just applied.
+     */
+    void changed(TrieChangeEvent<? extends Value> event);
+}
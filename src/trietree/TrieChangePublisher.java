@@ -0,0 +1,316 @@
+package trietree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the changes to a TrieTree as a Flow.Publisher, so consumers can
+ * keep derived views (tables, caches, indexes, replicas) up to date without
+ * re-querying the tree.
+ *
+ * Every subscriber has its own bounded buffer, filled by the writer threads
+ * under the tree lock and drained on the executor. One item is a batch of up
+ * to maxBatch consecutive events, and one request(n) asks for n batches, so a
+ * slow consumer gets fewer, larger batches instead of falling behind event by
+ * event. Writers never wait for consumers: a subscriber whose buffer
+ * overflows gets onError with an IllegalStateException and must resubscribe
+ * and read the tree again.
+ *
+ * A consumer that needs a starting point reads the tree and its
+ * modificationCount() in a synchronized (tree) block after subscribing, and
+ * then skips the events whose version is not greater.
+ */
+public class TrieChangePublisher<Value> implements Flow.Publisher<List<TrieChangeEvent<Value>>>, AutoCloseable
+{
+    /* PRIVATE MEMBERS */
+    private static final int DEFAULT_BUFFER_CAPACITY = 8192;
+    private static final int DEFAULT_MAX_BATCH = 256;
+
+    private final TrieTree<Value> tree;
+    private final Executor executor;
+    private final int bufferCapacity;
+    private final int maxBatch;
+    private final CopyOnWriteArrayList<ChangeSubscription> subscriptions = new CopyOnWriteArrayList<ChangeSubscription>();
+    private volatile boolean closed;
+
+    private final TrieChangeListener<Value> listener = new TrieChangeListener<Value>()
+    {
+        @SuppressWarnings("unchecked")
+        public void changed(TrieChangeEvent<? extends Value> event)
+        {
+            // Events are immutable, so reading one as a TrieChangeEvent<Value>
+            // is safe.
+            for (ChangeSubscription subscription : subscriptions)
+                subscription.offer((TrieChangeEvent<Value>) event);
+        }
+    };
+
+    /**
+     * Constructor that delivers on the common fork/join pool.
+     *
+     * @param tree
+     *            Tree whose changes to publish.
+     */
+    public TrieChangePublisher(TrieTree<Value> tree)
+    {
+        this(tree, ForkJoinPool.commonPool(), DEFAULT_BUFFER_CAPACITY, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tree
+     *            Tree whose changes to publish.
+     * @param executor
+     *            Runs the deliveries to subscribers.
+     * @param bufferCapacity
+     *            Most undelivered events per subscriber.
+     * @param maxBatch
+     *            Most events per delivered batch.
+     */
+    public TrieChangePublisher(TrieTree<Value> tree, Executor executor, int bufferCapacity, int maxBatch)
+    {
+        if (bufferCapacity < 1 || maxBatch < 1)
+            throw new IllegalArgumentException("bufferCapacity and maxBatch must be positive: " + bufferCapacity
+                + ", " + maxBatch);
+
+        this.tree = tree;
+        this.executor = executor;
+        this.bufferCapacity = bufferCapacity;
+        this.maxBatch = maxBatch;
+        tree.addChangeListener(listener);
+    }
+
+    /**
+     * This method subscribes to every change.
+     *
+     * @param subscriber
+     *            Subscriber to add.
+     */
+    public void subscribe(Flow.Subscriber<? super List<TrieChangeEvent<Value>>> subscriber)
+    {
+        subscribe(subscriber, "");
+    }
+
+    /**
+     * This method subscribes to the changes that affect keys with the prefix.
+     *
+     * @param subscriber
+     *            Subscriber to add.
+     * @param prefix
+     *            String of the prefix. Empty for every change.
+     */
+    public synchronized void subscribe(Flow.Subscriber<? super List<TrieChangeEvent<Value>>> subscriber, String prefix)
+    {
+        if (subscriber == null || prefix == null)
+            throw new NullPointerException();
+
+        ChangeSubscription subscription = new ChangeSubscription(subscriber, prefix);
+        if (closed)
+            subscription.complete();
+        else
+            subscriptions.add(subscription);
+        subscription.signal();
+    }
+
+    /**
+     * @return Number of current subscribers.
+     */
+    public int getSubscriberCount()
+    {
+        return subscriptions.size();
+    }
+
+    /**
+     * This method stops listening to the tree. Subscribers receive the events
+     * already buffered, then onComplete.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        tree.removeChangeListener(listener);
+        for (ChangeSubscription subscription : subscriptions)
+            subscription.complete();
+    }
+
+    /**
+     * One subscriber's buffer and demand. Signals to the subscriber are
+     * serialized by the work-in-progress counter: only the thread that raises
+     * it from 0 runs the drain loop, and it loops until no signal is missed.
+     */
+    private final class ChangeSubscription implements Flow.Subscription, Runnable
+    {
+        private final Flow.Subscriber<? super List<TrieChangeEvent<Value>>> subscriber;
+        private final String prefix;
+        private final AtomicInteger pendingSignals = new AtomicInteger();
+
+        // Guarded by this.
+        private final ArrayDeque<TrieChangeEvent<Value>> buffer = new ArrayDeque<TrieChangeEvent<Value>>();
+        private long demand;
+        private boolean subscribed;
+        private boolean completed;
+        private boolean cancelled;
+        private Throwable error;
+
+        ChangeSubscription(Flow.Subscriber<? super List<TrieChangeEvent<Value>>> subscriber, String prefix)
+        {
+            this.subscriber = subscriber;
+            this.prefix = prefix;
+        }
+
+        // Called by the writer with the tree locked.
+        void offer(TrieChangeEvent<Value> event)
+        {
+            if (!event.affects(prefix))
+                return;
+
+            synchronized (this)
+            {
+                if (cancelled || completed || error != null)
+                    return;
+
+                if (buffer.size() == bufferCapacity)
+                {
+                    buffer.clear();
+                    error = new IllegalStateException("Change buffer overflowed after " + bufferCapacity
+                        + " events; resubscribe and read the tree again");
+                }
+                else
+                    buffer.add(event);
+            }
+            signal();
+        }
+
+        public void request(long n)
+        {
+            synchronized (this)
+            {
+                if (n <= 0)
+                    error = new IllegalArgumentException("Requested " + n + " batches; must be positive");
+                else
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            signal();
+        }
+
+        public void cancel()
+        {
+            synchronized (this)
+            {
+                cancelled = true;
+                buffer.clear();
+            }
+            subscriptions.remove(this);
+        }
+
+        void complete()
+        {
+            synchronized (this)
+            {
+                completed = true;
+            }
+            signal();
+        }
+
+        void signal()
+        {
+            if (pendingSignals.getAndIncrement() != 0)
+                return;
+
+            try
+            {
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException e)
+            {
+                cancel();
+            }
+        }
+
+        public void run()
+        {
+            int missed = 1;
+            do
+            {
+                drain();
+                missed = pendingSignals.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        // Delivers what the demand allows. Only one thread runs it at a time.
+        private void drain()
+        {
+            while (true)
+            {
+                ArrayList<TrieChangeEvent<Value>> batch = null;
+                Throwable failure = null;
+                boolean done = false;
+                boolean first = false;
+                synchronized (this)
+                {
+                    if (cancelled)
+                        return;
+
+                    if (!subscribed)
+                    {
+                        subscribed = true;
+                        first = true;
+                    }
+                    else if (error != null)
+                    {
+                        failure = error;
+                        cancelled = true;
+                    }
+                    else if (!buffer.isEmpty() && demand > 0)
+                    {
+                        batch = new ArrayList<TrieChangeEvent<Value>>(Math.min(buffer.size(), maxBatch));
+                        while (batch.size() < maxBatch && !buffer.isEmpty())
+                            batch.add(buffer.poll());
+                        if (demand != Long.MAX_VALUE)
+                            --demand;
+                    }
+                    else if (completed && buffer.isEmpty())
+                    {
+                        done = true;
+                        cancelled = true;
+                    }
+                    else
+                        return;
+                }
+
+                try
+                {
+                    if (first)
+                        subscriber.onSubscribe(this);
+                    else if (failure != null)
+                    {
+                        subscriptions.remove(this);
+                        subscriber.onError(failure);
+                        return;
+                    }
+                    else if (done)
+                    {
+                        subscriptions.remove(this);
+                        subscriber.onComplete();
+                        return;
+                    }
+                    else
+                        subscriber.onNext(batch);
+                }
+                catch (RuntimeException e)
+                {
+                    // A subscriber that throws is treated as cancelled.
+                    cancel();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package trietree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrieChangePublisherTester
+{
+    // Runs deliveries on the calling thread, so the test sees them at once.
+    private static final Executor DIRECT = new Executor()
+    {
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    // Records what it receives and requests batches by hand.
+    private static final class RecordingSubscriber implements Flow.Subscriber<List<TrieChangeEvent<Integer>>>
+    {
+        Flow.Subscription subscription;
+        final ArrayList<List<TrieChangeEvent<Integer>>> batches = new ArrayList<List<TrieChangeEvent<Integer>>>();
+        Throwable error;
+        boolean completed;
+
+        public void onSubscribe(Flow.Subscription s)
+        {
+            subscription = s;
+        }
+
+        public void onNext(List<TrieChangeEvent<Integer>> batch)
+        {
+            batches.add(batch);
+        }
+
+        public void onError(Throwable t)
+        {
+            error = t;
+        }
+
+        public void onComplete()
+        {
+            completed = true;
+        }
+
+        int events()
+        {
+            int n = 0;
+            for (List<TrieChangeEvent<Integer>> batch : batches)
+                n += batch.size();
+            return n;
+        }
+    }
+
+    @Test
+    public void testBackpressureAndBatches()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        TrieChangePublisher<Integer> publisher = new TrieChangePublisher<Integer>(tt_integer, DIRECT, 100, 4);
+        RecordingSubscriber all = new RecordingSubscriber();
+        RecordingSubscriber cars = new RecordingSubscriber();
+        publisher.subscribe(all);
+        publisher.subscribe(cars, "car");
+        assertNotNull("onSubscribe was called", all.subscription);
+        assertEquals("Two subscribers", 2, publisher.getSubscriberCount());
+
+        for (int i = 0; i < 10; ++i)
+            tt_integer.put("cat" + i, i);
+        tt_integer.put("car", 10);
+        tt_integer.update("car", 11);
+        assertEquals("Nothing is delivered without demand", 0, all.batches.size());
+
+        all.subscription.request(2);
+        assertEquals("One batch per request", 2, all.batches.size());
+        assertEquals("Batches hold at most maxBatch events", 4, all.batches.get(0).size());
+        assertEquals("Events arrive in order", "cat0", all.batches.get(0).get(0).getKey());
+        all.subscription.request(Long.MAX_VALUE);
+        assertEquals("Unbounded demand drains the buffer", 12, all.events());
+
+        cars.subscription.request(1);
+        assertEquals("The prefix filter lets one batch through", 1, cars.batches.size());
+        assertEquals("Only \"car\" events", 2, cars.events());
+        assertEquals("Update Value", 11, (int) cars.batches.get(0).get(1).getValue());
+
+        tt_integer.removePrefix("ca");
+        cars.subscription.request(1);
+        assertEquals("A shorter removed prefix passes the filter", TrieChangeEvent.Type.REMOVE_PREFIX,
+                     cars.batches.get(1).get(0).getType());
+
+        cars.subscription.cancel();
+        assertEquals("Cancel unsubscribes", 1, publisher.getSubscriberCount());
+
+        publisher.close();
+        assertTrue("Close completes subscribers", all.completed);
+        tt_integer.put("cow", 1);
+        assertEquals("Closed publisher hears nothing", 13, all.events());
+    }
+
+    @Test
+    public void testOverflow()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        TrieChangePublisher<Integer> publisher = new TrieChangePublisher<Integer>(tt_integer, DIRECT, 5, 10);
+        RecordingSubscriber slow = new RecordingSubscriber();
+        publisher.subscribe(slow);
+
+        for (int i = 0; i < 6; ++i)
+            tt_integer.put("key" + i, i);
+        assertTrue("Overflow is an error", slow.error instanceof IllegalStateException);
+        assertEquals("The overflowed subscriber is dropped", 0, publisher.getSubscriberCount());
+        assertEquals("Writes were not blocked", 6, tt_integer.size());
+
+        RecordingSubscriber bad = new RecordingSubscriber();
+        publisher.subscribe(bad);
+        bad.subscription.request(0);
+        assertTrue("Non-positive requests are errors", bad.error instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void testAsynchronousDelivery() throws InterruptedException
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        TrieChangePublisher<Integer> publisher = new TrieChangePublisher<Integer>(tt_integer);
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] seen = new long[2];
+        publisher.subscribe(new Flow.Subscriber<List<TrieChangeEvent<Integer>>>()
+        {
+            public void onSubscribe(Flow.Subscription s)
+            {
+                s.request(Long.MAX_VALUE);
+            }
+
+            public void onNext(List<TrieChangeEvent<Integer>> batch)
+            {
+                for (TrieChangeEvent<Integer> event : batch)
+                {
+                    if (event.getVersion() != seen[1] + 1)
+                        seen[0] = -1;
+                    seen[1] = event.getVersion();
+                }
+            }
+
+            public void onError(Throwable t)
+            {
+                seen[0] = -2;
+                done.countDown();
+            }
+
+            public void onComplete()
+            {
+                done.countDown();
+            }
+        });
+
+        for (int i = 0; i < 5000; ++i)
+            tt_integer.put("word" + i, i);
+        publisher.close();
+
+        assertTrue("Completed", done.await(10, TimeUnit.SECONDS));
+        assertEquals("Versions arrive in order without gaps", 0, seen[0]);
+        assertEquals("Every event arrived", 5000, seen[1]);
+    }
+}
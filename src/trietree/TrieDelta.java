@@ -0,0 +1,97 @@
+package trietree;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes to a TrieTree between two generations (modification counts), as
+ * returned by TrieTree.changesSince. Applying a delta to a copy of the tree
+ * as it was at the first generation gives the tree at the second one: clear
+ * the copy if the delta is full, then remove the prefixes, then remove the
+ * keys, then put or update the entries.
+ */
+public final class TrieDelta<Value>
+{
+    /* PRIVATE MEMBERS */
+    private final long fromGeneration;
+    private final long toGeneration;
+    private final boolean full;
+    private final List<String> removedPrefixes;
+    private final List<String> removedKeys;
+    private final Map<String, Value> entries;
+
+    TrieDelta(long fromGeneration, long toGeneration, boolean full, List<String> removedPrefixes,
+              List<String> removedKeys, LinkedHashMap<String, Value> entries)
+    {
+        this.fromGeneration = fromGeneration;
+        this.toGeneration = toGeneration;
+        this.full = full;
+        this.removedPrefixes = Collections.unmodifiableList(removedPrefixes);
+        this.removedKeys = Collections.unmodifiableList(removedKeys);
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * @return Generation the delta starts from.
+     */
+    public long getFromGeneration()
+    {
+        return fromGeneration;
+    }
+
+    /**
+     * @return Modification count of the tree when the delta was taken. Pass
+     *         it to the next changesSince.
+     */
+    public long getToGeneration()
+    {
+        return toGeneration;
+    }
+
+    /**
+     * @return True if the delta holds every entry of the tree, because the
+     *         changes since fromGeneration are no longer recorded (the tree
+     *         was cleared or its tombstones purged). The copy must be cleared
+     *         before the delta is applied.
+     */
+    public boolean isFull()
+    {
+        return full;
+    }
+
+    /**
+     * @return Prefixes whose keys were all removed, in lexicographic order.
+     */
+    public List<String> getRemovedPrefixes()
+    {
+        return removedPrefixes;
+    }
+
+    /**
+     * @return Keys that were removed and are not in the tree any more, in
+     *         lexicographic order.
+     */
+    public List<String> getRemovedKeys()
+    {
+        return removedKeys;
+    }
+
+    /**
+     * @return Keys that were put or updated, with their current Values, in
+     *         lexicographic order.
+     */
+    public Map<String, Value> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * @return True if nothing changed.
+     */
+    public boolean isEmpty()
+    {
+        return !full && removedPrefixes.isEmpty() && removedKeys.isEmpty() && entries.isEmpty();
+    }
+}
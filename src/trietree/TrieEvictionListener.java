@@ -0,0 +1,17 @@
+package trietree;
+
+/**
+ * Receives the entries a BoundedTrieTree evicts to stay within its capacity.
+ * Called on the thread whose write caused the eviction, after the tree's
+ * writer lock was released.
+ */
+public interface TrieEvictionListener<Value>
+{
+    /**
+     * @param key
+     *            Key that was evicted.
+     * @param value
+     *            Its Value when it was evicted.
+     */
+    void evicted(String key, Value value);
+}
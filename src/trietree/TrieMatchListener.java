@@ -0,0 +1,21 @@
+package trietree;
+
+/**
+ * Receives the dictionary matches of an AhoCorasickScanner, in the order their
+ * last characters are read. Called on the scanning thread.
+ */
+public interface TrieMatchListener<Value>
+{
+    /**
+     * @param start
+     *            Index of the first character of the match in the text.
+     * @param end
+     *            Index after the last character of the match.
+     * @param key
+     *            Key that matched.
+     * @param value
+     *            Value of the key when the scanner was compiled.
+     * @return True to keep scanning. False to stop after this match.
+     */
+    boolean matchFound(long start, long end, String key, Value value);
+}
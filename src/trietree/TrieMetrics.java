@@ -0,0 +1,257 @@
+package trietree;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Operation metrics of a TrieTree: per operation counts and latency
+ * histograms, prefix collection result sizes, and how long callers waited
+ * for and held the tree lock. Attach an instance with TrieTree.setMetrics;
+ * a tree without metrics only pays for one volatile read per operation.
+ * Batch operations (getAll, putAll, updateAll, removeAll of keys) take the
+ * lock once per chunk, and each chunk is recorded as one operation.
+ * 
+ * Every recorded operation is also handed to the registered listeners and,
+ * while a JFR recording has it enabled, emitted as a trietree.Operation event.
+ * The metrics can be exposed over JMX with registerMBean.
+ */
+public class TrieMetrics implements TrieMetricsMXBean
+{
+    /**
+     * Instrumented operations.
+     */
+    public static enum Operation
+    {
+        GET, CONTAINS, PUT, UPDATE, REMOVE, PREFIX_COLLECTION,
+
+        /** One chunk of a batch; the result size is the keys found or changed. */
+        GET_ALL, PUT_ALL, UPDATE_ALL, REMOVE_ALL
+    }
+
+    private final EnumMap<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+    private final LatencyHistogram lockHold = new LatencyHistogram();
+    private final LatencyHistogram resultSizes = new LatencyHistogram();
+    private final CopyOnWriteArrayList<TrieMetricsListener> listeners = new CopyOnWriteArrayList<TrieMetricsListener>();
+    private ObjectName registeredName;
+
+    public TrieMetrics()
+    {
+        for (Operation op : Operation.values())
+            latencies.put(op, new LatencyHistogram());
+    }
+
+    /**
+     * This method records one completed operation. The tree calls it after
+     * releasing its lock.
+     * 
+     * @param operation
+     *            Operation that completed.
+     * @param startNanos
+     *            System.nanoTime() when the operation was called.
+     * @param acquiredNanos
+     *            System.nanoTime() when the tree lock was acquired.
+     * @param releasedNanos
+     *            System.nanoTime() when the tree lock was released.
+     * @param resultSize
+     *            Number of entries returned or affected.
+     */
+    public void record(Operation operation, long startNanos, long acquiredNanos, long releasedNanos,
+        long resultSize)
+    {
+        long latency = releasedNanos - startNanos;
+        long wait = acquiredNanos - startNanos;
+        long hold = releasedNanos - acquiredNanos;
+
+        latencies.get(operation).record(latency);
+        lockWait.record(wait);
+        lockHold.record(hold);
+        if (operation == Operation.PREFIX_COLLECTION)
+            resultSizes.record(resultSize);
+
+        for (TrieMetricsListener listener : listeners)
+            listener.operationCompleted(operation, latency, wait, hold, resultSize);
+
+        TrieOperationEvent event = new TrieOperationEvent();
+        if (event.isEnabled())
+        {
+            event.operation = operation.name();
+            event.latency = latency;
+            event.lockWait = wait;
+            event.lockHold = hold;
+            event.resultSize = resultSize;
+            event.commit();
+        }
+    }
+
+    public void addListener(TrieMetricsListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeListener(TrieMetricsListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param operation
+     *            Instrumented operation.
+     * @return Latency histogram of the operation, in nanoseconds.
+     */
+    public LatencyHistogram getLatency(Operation operation)
+    {
+        return latencies.get(operation);
+    }
+
+    /**
+     * @return Histogram of the time spent waiting for the tree lock, in
+     *         nanoseconds.
+     */
+    public LatencyHistogram getLockWait()
+    {
+        return lockWait;
+    }
+
+    /**
+     * @return Histogram of the time the tree lock was held, in nanoseconds.
+     */
+    public LatencyHistogram getLockHold()
+    {
+        return lockHold;
+    }
+
+    /**
+     * @return Histogram of the number of entries returned by prefix
+     *         collections.
+     */
+    public LatencyHistogram getResultSizes()
+    {
+        return resultSizes;
+    }
+
+    /**
+     * This method registers the metrics with the platform MBean server under
+     * trietree:type=TrieMetrics,name=<name>.
+     * 
+     * @param name
+     *            Name that tells this tree apart from others.
+     * @throws JMException
+     *             If the name is invalid or already registered.
+     */
+    public synchronized void registerMBean(String name) throws JMException
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("trietree:type=TrieMetrics,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        registeredName = objectName;
+    }
+
+    /**
+     * This method removes the metrics from the platform MBean server, if they
+     * were registered.
+     * 
+     * @throws JMException
+     *             If the MBean server fails to unregister them.
+     */
+    public synchronized void unregisterMBean() throws JMException
+    {
+        if (registeredName == null)
+            return;
+
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        registeredName = null;
+    }
+
+    public Map<String, Long> getOperationCounts()
+    {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet())
+            counts.put(entry.getKey().name(), entry.getValue().getCount());
+        return counts;
+    }
+
+    public Map<String, Long> getLatencyP50Nanos()
+    {
+        return latencyPercentiles(50);
+    }
+
+    public Map<String, Long> getLatencyP99Nanos()
+    {
+        return latencyPercentiles(99);
+    }
+
+    public Map<String, Long> getLatencyMaxNanos()
+    {
+        return latencyPercentiles(100);
+    }
+
+    private Map<String, Long> latencyPercentiles(double percentile)
+    {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet())
+            values.put(entry.getKey().name(), entry.getValue().getPercentile(percentile));
+        return values;
+    }
+
+    public long getLockWaitP50Nanos()
+    {
+        return lockWait.getPercentile(50);
+    }
+
+    public long getLockWaitP99Nanos()
+    {
+        return lockWait.getPercentile(99);
+    }
+
+    public long getLockWaitMaxNanos()
+    {
+        return lockWait.getMax();
+    }
+
+    public long getLockHoldP50Nanos()
+    {
+        return lockHold.getPercentile(50);
+    }
+
+    public long getLockHoldP99Nanos()
+    {
+        return lockHold.getPercentile(99);
+    }
+
+    public long getLockHoldMaxNanos()
+    {
+        return lockHold.getMax();
+    }
+
+    public long getResultSizeP50()
+    {
+        return resultSizes.getPercentile(50);
+    }
+
+    public long getResultSizeP99()
+    {
+        return resultSizes.getPercentile(99);
+    }
+
+    public long getResultSizeMax()
+    {
+        return resultSizes.getMax();
+    }
+
+    public void reset()
+    {
+        for (LatencyHistogram histogram : latencies.values())
+            histogram.reset();
+        lockWait.reset();
+        lockHold.reset();
+        resultSizes.reset();
+    }
+}
@@ -0,0 +1,24 @@
+package trietree;
+
+/**
+ * Receives every operation recorded by a TrieMetrics instance. Called on the
+ * thread that performed the operation, after the tree lock was released, so
+ * implementations should return quickly.
+ */
+public interface TrieMetricsListener
+{
+    /**
+     * @param operation
+     *            Operation that completed.
+     * @param latencyNanos
+     *            Time from the call to the release of the tree lock.
+     * @param lockWaitNanos
+     *            Time spent waiting for the tree lock.
+     * @param lockHoldNanos
+     *            Time the tree lock was held.
+     * @param resultSize
+     *            Number of entries returned or affected.
+     */
+    void operationCompleted(TrieMetrics.Operation operation, long latencyNanos, long lockWaitNanos,
+        long lockHoldNanos, long resultSize);
+}
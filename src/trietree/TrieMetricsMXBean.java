@@ -0,0 +1,37 @@
+package trietree;
+
+import java.util.Map;
+
+/**
+ * JMX view of a TrieMetrics instance. Maps are keyed by operation name.
+ */
+public interface TrieMetricsMXBean
+{
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Long> getLatencyP50Nanos();
+
+    Map<String, Long> getLatencyP99Nanos();
+
+    Map<String, Long> getLatencyMaxNanos();
+
+    long getLockWaitP50Nanos();
+
+    long getLockWaitP99Nanos();
+
+    long getLockWaitMaxNanos();
+
+    long getLockHoldP50Nanos();
+
+    long getLockHoldP99Nanos();
+
+    long getLockHoldMaxNanos();
+
+    long getResultSizeP50();
+
+    long getResultSizeP99();
+
+    long getResultSizeMax();
+
+    void reset();
+}
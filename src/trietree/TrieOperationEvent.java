@@ -0,0 +1,39 @@
+package trietree;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event for one trie tree operation, emitted by TrieMetrics while a
+ * recording has the event enabled.
+ */
+@Name("trietree.Operation")
+@Label("Trie Tree Operation")
+@Category("Trie Tree")
+@Description("A get, put, update, remove or prefix collection on a TrieTree")
+@StackTrace(false)
+final class TrieOperationEvent extends Event
+{
+    @Label("Operation")
+    String operation;
+
+    @Label("Latency")
+    @Timespan(Timespan.NANOSECONDS)
+    long latency;
+
+    @Label("Lock Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long lockWait;
+
+    @Label("Lock Hold")
+    @Timespan(Timespan.NANOSECONDS)
+    long lockHold;
+
+    @Label("Result Size")
+    long resultSize;
+}
@@ -0,0 +1,594 @@
+package trietree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * File of fixed-size pages behind a PagedTrieTree, with a buffer pool of a
+ * fixed number of frames in front of it. Callers address logical pages;
+ * a page table maps them to physical pages of the file.
+ *
+ * Pages are copy on write: the first time a logical page is written back
+ * after a commit, it goes to a free physical page instead of over the one
+ * the last commit refers to, and the page table entry moves with it. A
+ * commit writes the remaining dirty pages and the changed page table pages
+ * the same way, forces the file, and only then writes a header to the header
+ * slot the last commit did not use, and forces it again. Opening a file
+ * takes the header with the highest sequence whose CRC is valid, so a crash
+ * at any point leaves either the new commit or the previous one, never a mix.
+ * Physical pages replaced by a commit become free once it is durable.
+ *
+ * The buffer pool evicts with the clock algorithm: each frame has a
+ * referenced bit that every access sets and the hand clears as it sweeps;
+ * the first frame found without it is evicted, and written back if dirty.
+ *
+ * Header layout, one page per slot (pages 0 and 1), big-endian:
+ *
+ * <pre>
+ *  0 int  magic "PTT1"
+ *  4 int  page size
+ *  8 long commit sequence (the slot is sequence % 2)
+ * 16 int  number of logical pages
+ * 20 int  number of page table pages
+ * 24 long metadata[8], for the tree
+ * 88 int  physical page of each page table page
+ * PAGE_SIZE - 4 int CRC32 of the bytes before it
+ * </pre>
+ *
+ * Each page table page holds the physical page (int, -1 for none) of
+ * PAGE_SIZE / 4 consecutive logical pages. Not thread safe; PagedTrieTree
+ * serializes the calls.
+ */
+final class TriePageFile
+{
+    static final int PAGE_SIZE = 8192;
+    static final int METADATA_LONGS = 8;
+
+    /* PRIVATE MEMBERS */
+    private static final int MAGIC = 0x50545431; // "PTT1"
+    private static final int HEADER_SLOTS = 2;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_PAGE_SIZE = 4;
+    private static final int HEADER_SEQUENCE = 8;
+    private static final int HEADER_PAGE_COUNT = 16;
+    private static final int HEADER_TABLE_PAGES = 20;
+    private static final int HEADER_METADATA = 24;
+    private static final int HEADER_TABLE = HEADER_METADATA + 8 * METADATA_LONGS;
+    private static final int HEADER_CRC = PAGE_SIZE - 4;
+
+    private static final int ENTRIES_PER_TABLE_PAGE = PAGE_SIZE / 4;
+    private static final int MAX_TABLE_PAGES = (HEADER_CRC - HEADER_TABLE) / 4;
+    static final int MAX_PAGES = MAX_TABLE_PAGES * ENTRIES_PER_TABLE_PAGE;
+
+    private static final int NO_PAGE = -1;
+    private static final int NO_FRAME = -1;
+    private static final byte[] ZEROS = new byte[PAGE_SIZE];
+
+    private final FileChannel channel;
+    private final int maxPages;
+
+    // Committed state, and the state of the transaction since.
+    private long sequence;
+    private int pageCount;
+    private final long[] metadata = new long[METADATA_LONGS];
+    private boolean changed;
+
+    // Physical page of every logical page and of every page table page.
+    private int[] physical = new int[0];
+    private int[] tablePhysical = new int[0];
+    private int filePages;
+
+    // Pages that already have a physical page of their own in this
+    // transaction, and page table pages to write at the commit.
+    private final BitSet relocated = new BitSet();
+    private final BitSet tableRelocated = new BitSet();
+    private final BitSet tableDirty = new BitSet();
+
+    // Physical pages the last commit does not use, and pages replaced in
+    // this transaction, which the last commit still uses.
+    private final BitSet freePhysical = new BitSet();
+    private final BitSet pendingFree = new BitSet();
+
+    // Buffer pool.
+    private final ByteBuffer[] frames;
+    private final int[] framePage;
+    private final boolean[] referenced;
+    private final boolean[] dirty;
+    private int[] pageFrame = new int[0];
+    private int hand;
+    private final ByteBuffer io = ByteBuffer.allocateDirect(PAGE_SIZE);
+
+    private long hits;
+    private long misses;
+    private long pageReads;
+    private long pageWrites;
+
+    /**
+     * Constructor. Opens the file, creating it if it is empty, and recovers
+     * the last commit.
+     *
+     * @param path
+     *            File of the pages.
+     * @param cachePages
+     *            Number of frames in the buffer pool. At least 2.
+     * @param maxPages
+     *            Most logical pages, at most MAX_PAGES.
+     * @throws IOException
+     *             If the file cannot be read or neither header is valid.
+     */
+    TriePageFile(Path path, int cachePages, int maxPages) throws IOException
+    {
+        if (cachePages < 2)
+            throw new IllegalArgumentException("cachePages must be at least 2: " + cachePages);
+        if (maxPages < 1 || maxPages > MAX_PAGES)
+            throw new IllegalArgumentException("maxPages must be between 1 and " + MAX_PAGES + ": " + maxPages);
+        this.maxPages = maxPages;
+
+        frames = new ByteBuffer[cachePages];
+        framePage = new int[cachePages];
+        referenced = new boolean[cachePages];
+        dirty = new boolean[cachePages];
+        for (int f = 0; f < cachePages; ++f)
+            frames[f] = ByteBuffer.allocateDirect(PAGE_SIZE);
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            if (channel.size() == 0)
+            {
+                filePages = HEADER_SLOTS;
+                writeHeader();
+                channel.force(true);
+            }
+            recover();
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * This method drops the buffer pool and every change since the last
+     * commit, and loads the last commit from the file again.
+     *
+     * @throws IOException
+     *             If the file cannot be read or neither header is valid.
+     */
+    void recover() throws IOException
+    {
+        Arrays.fill(framePage, NO_PAGE);
+        Arrays.fill(referenced, false);
+        Arrays.fill(dirty, false);
+        relocated.clear();
+        tableRelocated.clear();
+        tableDirty.clear();
+        pendingFree.clear();
+        changed = false;
+
+        // The newest header that is intact.
+        ByteBuffer header = null;
+        long newest = -1;
+        for (int slot = 0; slot < HEADER_SLOTS; ++slot)
+        {
+            ByteBuffer candidate = ByteBuffer.allocate(PAGE_SIZE);
+            if (!readHeader(slot, candidate))
+                continue;
+
+            long candidateSequence = candidate.getLong(HEADER_SEQUENCE);
+            if (candidateSequence % HEADER_SLOTS == slot && candidateSequence > newest)
+            {
+                header = candidate;
+                newest = candidateSequence;
+            }
+        }
+        if (header == null)
+            throw new IOException("Not a PagedTrieTree file, or both headers are damaged");
+
+        filePages = (int) Math.max(HEADER_SLOTS, (channel.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+        sequence = newest;
+        pageCount = header.getInt(HEADER_PAGE_COUNT);
+        int tablePages = header.getInt(HEADER_TABLE_PAGES);
+        if (pageCount < 0 || tablePages < 0 || tablePages > MAX_TABLE_PAGES
+            || (long) tablePages * ENTRIES_PER_TABLE_PAGE < pageCount)
+            throw new IOException("Invalid page counts " + pageCount + " and " + tablePages);
+
+        for (int i = 0; i < METADATA_LONGS; ++i)
+            metadata[i] = header.getLong(HEADER_METADATA + 8 * i);
+
+        BitSet used = new BitSet(filePages);
+        used.set(0, HEADER_SLOTS);
+        tablePhysical = new int[tablePages];
+        physical = new int[Math.max(16, pageCount)];
+        Arrays.fill(physical, NO_PAGE);
+        for (int t = 0; t < tablePages; ++t)
+        {
+            tablePhysical[t] = checkPhysical(header.getInt(HEADER_TABLE + 4 * t));
+            used.set(tablePhysical[t]);
+
+            readPage(io, tablePhysical[t]);
+            int end = Math.min(pageCount, (t + 1) * ENTRIES_PER_TABLE_PAGE);
+            for (int page = t * ENTRIES_PER_TABLE_PAGE; page < end; ++page)
+            {
+                int p = io.getInt(4 * (page - t * ENTRIES_PER_TABLE_PAGE));
+                if (p != NO_PAGE)
+                    used.set(checkPhysical(p));
+                physical[page] = p;
+            }
+        }
+
+        freePhysical.clear();
+        freePhysical.set(HEADER_SLOTS, filePages);
+        freePhysical.andNot(used);
+
+        pageFrame = new int[physical.length];
+        Arrays.fill(pageFrame, NO_FRAME);
+    }
+
+    /**
+     * @return Number of logical pages.
+     */
+    int pageCount()
+    {
+        return pageCount;
+    }
+
+    /**
+     * @return Most logical pages the file can have.
+     */
+    int maxPages()
+    {
+        return maxPages;
+    }
+
+    /**
+     * @return Metadata of the tree, as of the last setMetadata.
+     */
+    long metadata(int index)
+    {
+        return metadata[index];
+    }
+
+    void setMetadata(int index, long value)
+    {
+        if (metadata[index] != value)
+        {
+            metadata[index] = value;
+            changed = true;
+        }
+    }
+
+    /**
+     * This method returns a page for reading. The buffer stays valid until the
+     * next call that may evict; use absolute gets on it right away.
+     *
+     * @param page
+     *            Logical page.
+     * @return Buffer of the page.
+     */
+    ByteBuffer read(int page) throws IOException
+    {
+        return frames[frameOf(page)];
+    }
+
+    /**
+     * This method returns a page for writing and marks it dirty.
+     *
+     * @param page
+     *            Logical page.
+     * @return Buffer of the page.
+     */
+    ByteBuffer write(int page) throws IOException
+    {
+        int f = frameOf(page);
+        dirty[f] = true;
+        changed = true;
+        return frames[f];
+    }
+
+    /**
+     * This method adds a zeroed logical page.
+     *
+     * @return The new page.
+     * @throws IllegalStateException
+     *             If the page table is full.
+     */
+    int addPage() throws IOException
+    {
+        if (pageCount >= maxPages)
+            throw new IllegalStateException("PagedTrieTree is full");
+
+        int page = pageCount;
+        if (page == physical.length)
+        {
+            physical = Arrays.copyOf(physical, page * 2);
+            Arrays.fill(physical, page, physical.length, NO_PAGE);
+            pageFrame = Arrays.copyOf(pageFrame, page * 2);
+            Arrays.fill(pageFrame, page, pageFrame.length, NO_FRAME);
+        }
+        if (page / ENTRIES_PER_TABLE_PAGE == tablePhysical.length)
+        {
+            tablePhysical = Arrays.copyOf(tablePhysical, tablePhysical.length + 1);
+            tablePhysical[tablePhysical.length - 1] = NO_PAGE;
+        }
+        ++pageCount;
+        tableDirty.set(page / ENTRIES_PER_TABLE_PAGE);
+
+        int f = victim();
+        frames[f].clear();
+        frames[f].put(ZEROS);
+        framePage[f] = page;
+        pageFrame[page] = f;
+        referenced[f] = true;
+        dirty[f] = true;
+        changed = true;
+        return page;
+    }
+
+    /**
+     * This method makes every change since the last commit durable, as
+     * described above. Does nothing if nothing changed.
+     *
+     * @throws IOException
+     *             If writing fails. The previous commit is then still intact.
+     */
+    void commit() throws IOException
+    {
+        if (!changed)
+            return;
+
+        // Write the data pages in logical order, so that the pages of a bulk
+        // load also follow each other in the file.
+        long[] order = new long[frames.length];
+        int dirtyFrames = 0;
+        for (int f = 0; f < frames.length; ++f)
+        {
+            if (dirty[f])
+                order[dirtyFrames++] = (long) framePage[f] << 32 | f;
+        }
+        Arrays.sort(order, 0, dirtyFrames);
+        for (int i = 0; i < dirtyFrames; ++i)
+            writeBack((int) order[i]);
+
+        for (int t = tableDirty.nextSetBit(0); t >= 0; t = tableDirty.nextSetBit(t + 1))
+        {
+            if (!tableRelocated.get(t))
+            {
+                if (tablePhysical[t] != NO_PAGE)
+                    pendingFree.set(tablePhysical[t]);
+                tablePhysical[t] = allocatePhysical();
+                tableRelocated.set(t);
+            }
+
+            io.clear();
+            io.put(ZEROS);
+            int end = Math.min(pageCount, (t + 1) * ENTRIES_PER_TABLE_PAGE);
+            for (int page = t * ENTRIES_PER_TABLE_PAGE; page < end; ++page)
+                io.putInt(4 * (page - t * ENTRIES_PER_TABLE_PAGE), physical[page]);
+            for (int page = end; page < (t + 1) * ENTRIES_PER_TABLE_PAGE; ++page)
+                io.putInt(4 * (page - t * ENTRIES_PER_TABLE_PAGE), NO_PAGE);
+            writePage(io, tablePhysical[t]);
+        }
+
+        // Everything the new header refers to must be on disk before it.
+        channel.force(true);
+        ++sequence;
+        try
+        {
+            writeHeader();
+            channel.force(true);
+        }
+        catch (IOException e)
+        {
+            --sequence;
+            throw e;
+        }
+
+        freePhysical.or(pendingFree);
+        pendingFree.clear();
+        relocated.clear();
+        tableRelocated.clear();
+        tableDirty.clear();
+        changed = false;
+    }
+
+    /**
+     * This method closes the file without committing.
+     */
+    void close() throws IOException
+    {
+        channel.close();
+    }
+
+    long getSequence()
+    {
+        return sequence;
+    }
+
+    long getHits()
+    {
+        return hits;
+    }
+
+    long getMisses()
+    {
+        return misses;
+    }
+
+    long getPageReads()
+    {
+        return pageReads;
+    }
+
+    long getPageWrites()
+    {
+        return pageWrites;
+    }
+
+    long getFileBytes()
+    {
+        return (long) filePages * PAGE_SIZE;
+    }
+
+    // Returns the frame of the page, reading it in if it is not cached.
+    private int frameOf(int page) throws IOException
+    {
+        if (page < 0 || page >= pageCount)
+            throw new IndexOutOfBoundsException("Page " + page + " of " + pageCount);
+
+        int f = pageFrame[page];
+        if (f != NO_FRAME)
+        {
+            ++hits;
+            referenced[f] = true;
+            return f;
+        }
+
+        ++misses;
+        f = victim();
+        if (physical[page] == NO_PAGE)
+        {
+            frames[f].clear();
+            frames[f].put(ZEROS);
+        }
+        else
+        {
+            readPage(frames[f], physical[page]);
+        }
+        framePage[f] = page;
+        pageFrame[page] = f;
+        referenced[f] = true;
+        return f;
+    }
+
+    // Returns an empty frame, evicting the first page the clock hand finds
+    // that was not referenced since the last sweep.
+    private int victim() throws IOException
+    {
+        for (;;)
+        {
+            int f = hand;
+            hand = (hand + 1) % frames.length;
+            if (framePage[f] == NO_PAGE)
+                return f;
+            if (referenced[f])
+            {
+                referenced[f] = false;
+                continue;
+            }
+
+            if (dirty[f])
+                writeBack(f);
+            pageFrame[framePage[f]] = NO_FRAME;
+            framePage[f] = NO_PAGE;
+            return f;
+        }
+    }
+
+    // Writes a dirty frame to the page's physical page of this transaction,
+    // moving it off the committed one first.
+    private void writeBack(int f) throws IOException
+    {
+        int page = framePage[f];
+        if (!relocated.get(page))
+        {
+            if (physical[page] != NO_PAGE)
+                pendingFree.set(physical[page]);
+            physical[page] = allocatePhysical();
+            relocated.set(page);
+            tableDirty.set(page / ENTRIES_PER_TABLE_PAGE);
+        }
+
+        writePage(frames[f], physical[page]);
+        dirty[f] = false;
+    }
+
+    // Returns the lowest free physical page, or a new one at the end.
+    private int allocatePhysical()
+    {
+        int p = freePhysical.nextSetBit(0);
+        if (p >= 0)
+        {
+            freePhysical.clear(p);
+            return p;
+        }
+
+        return filePages++;
+    }
+
+    private int checkPhysical(int p) throws IOException
+    {
+        if (p < HEADER_SLOTS || p >= filePages)
+            throw new IOException("Page table refers to page " + p + " of " + filePages);
+        return p;
+    }
+
+    private void writeHeader() throws IOException
+    {
+        io.clear();
+        io.put(ZEROS);
+        io.putInt(HEADER_MAGIC, MAGIC);
+        io.putInt(HEADER_PAGE_SIZE, PAGE_SIZE);
+        io.putLong(HEADER_SEQUENCE, sequence);
+        io.putInt(HEADER_PAGE_COUNT, pageCount);
+        io.putInt(HEADER_TABLE_PAGES, tablePhysical.length);
+        for (int i = 0; i < METADATA_LONGS; ++i)
+            io.putLong(HEADER_METADATA + 8 * i, metadata[i]);
+        for (int t = 0; t < tablePhysical.length; ++t)
+            io.putInt(HEADER_TABLE + 4 * t, tablePhysical[t]);
+
+        io.putInt(HEADER_CRC, crc(io));
+        writePage(io, (int) (sequence % HEADER_SLOTS));
+    }
+
+    // Reads a header slot. False if it is short, not a header, or damaged.
+    private boolean readHeader(int slot, ByteBuffer header) throws IOException
+    {
+        if (channel.size() < (long) (slot + 1) * PAGE_SIZE)
+            return false;
+
+        readPage(header, slot);
+        return header.getInt(HEADER_MAGIC) == MAGIC && header.getInt(HEADER_PAGE_SIZE) == PAGE_SIZE
+            && header.getInt(HEADER_CRC) == crc(header);
+    }
+
+    private static int crc(ByteBuffer header)
+    {
+        ByteBuffer covered = header.duplicate();
+        covered.clear();
+        covered.limit(HEADER_CRC);
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+
+    private void readPage(ByteBuffer buffer, int p) throws IOException
+    {
+        buffer.clear();
+        long position = (long) p * PAGE_SIZE;
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Page " + p + " is past the end of the file");
+        }
+        ++pageReads;
+    }
+
+    private void writePage(ByteBuffer buffer, int p) throws IOException
+    {
+        buffer.clear();
+        long position = (long) p * PAGE_SIZE;
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+        ++pageWrites;
+    }
+}
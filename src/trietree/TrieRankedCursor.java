@@ -0,0 +1,39 @@
+package trietree;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The keys with a prefix in decreasing order of their Values, produced on
+ * demand by TrieTree.rankedCursor. Each call to next continues a best-first
+ * search where the previous one stopped, so reading the first n entries costs
+ * about the same whether the prefix has a hundred keys or a million.
+ *
+ * A cursor reads the tree as it was when the cursor was created. Once the
+ * tree changes, the cursor is stale and next throws; create a new one.
+ */
+public interface TrieRankedCursor<Value>
+{
+    /**
+     * This method returns the next entries in rank order: greatest Value
+     * first, equal Values in key order, keys without a Value skipped.
+     * 
+     * @param n
+     *            Most entries to return.
+     * @return Up to n entries. Fewer only when the cursor is exhausted.
+     * @throws java.util.ConcurrentModificationException
+     *             If the tree changed since the cursor was created.
+     */
+    List<Map.Entry<String, Value>> next(int n);
+
+    /**
+     * @return True if next would return at least one entry, or if the cursor
+     *         is stale.
+     */
+    boolean hasNext();
+
+    /**
+     * @return True if the tree changed since the cursor was created.
+     */
+    boolean isStale();
+}
@@ -0,0 +1,45 @@
+package trietree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Storage of the fixed-size records of a RecordTrieTree: direct ByteBuffer
+ * slabs for OffHeapTrieTree, pages of a file for PagedTrieTree. A record is
+ * addressed by its index; each buffer holds many records.
+ */
+interface TrieRecordStore
+{
+    /**
+     * @param r
+     *            Record index.
+     * @return Buffer holding the record, for reading. Valid until the next
+     *         call to the store.
+     */
+    ByteBuffer read(int r);
+
+    /**
+     * @param r
+     *            Record index.
+     * @return Buffer holding the record, for writing. Valid until the next
+     *         call to the store.
+     */
+    ByteBuffer write(int r);
+
+    /**
+     * @param r
+     *            Record index.
+     * @return Offset of the record in its buffer.
+     */
+    int offset(int r);
+
+    /**
+     * This method makes room for the records [0, records), adding buffers as
+     * needed. Records already allocated are left as they are if it throws.
+     *
+     * @param records
+     *            Number of records to hold.
+     * @throws IllegalStateException
+     *             If the store cannot hold that many records.
+     */
+    void extend(int records);
+}
@@ -0,0 +1,201 @@
+package trietree;
+
+import java.util.Arrays;
+
+/**
+ * Shape and estimated heap footprint of a trie tree, as reported by
+ * TrieTree.stats().
+ * 
+ * Byte counts are estimates for a 64-bit JVM with compressed object pointers
+ * (12 byte object headers, 4 byte references, 8 byte alignment). They only
+ * count what the tree itself retains; Values shared between keys are counted
+ * once per key.
+ */
+public final class TrieStats
+{
+    private long nodeCount;
+    private long edgeCount;
+    private long leafCount;
+    private long keyCount;
+    private int maxDepth;
+    private long[] depthHistogram = new long[16]; // Nodes per depth.
+    private long[] fanOutHistogram = new long[8]; // Nodes per child count.
+
+    private long nodeBytes;
+    private long childMapBytes;
+    private long boxedKeyBytes;
+    private long valueBytes;
+    private long aggregateBytes;
+
+    TrieStats()
+    {
+    }
+
+    /**
+     * Records one node. Called by the tree walk only.
+     */
+    void addNode(int depth, int fanOut, boolean wordEnd, long shallowNodeBytes, long mapBytes,
+        long keyBytes, long valBytes, long aggBytes)
+    {
+        ++nodeCount;
+        edgeCount += fanOut;
+        if (fanOut == 0)
+            ++leafCount;
+        if (wordEnd)
+            ++keyCount;
+        maxDepth = Math.max(maxDepth, depth);
+
+        depthHistogram = increment(depthHistogram, depth);
+        fanOutHistogram = increment(fanOutHistogram, fanOut);
+
+        nodeBytes += shallowNodeBytes;
+        childMapBytes += mapBytes;
+        boxedKeyBytes += keyBytes;
+        valueBytes += valBytes;
+        aggregateBytes += aggBytes;
+    }
+
+    private static long[] increment(long[] histogram, int bucket)
+    {
+        if (bucket >= histogram.length)
+            histogram = Arrays.copyOf(histogram, Math.max(bucket + 1, histogram.length * 2));
+        ++histogram[bucket];
+        return histogram;
+    }
+
+    /**
+     * @return Number of nodes, including the root.
+     */
+    public long getNodeCount()
+    {
+        return nodeCount;
+    }
+
+    /**
+     * @return Number of parent to child links.
+     */
+    public long getEdgeCount()
+    {
+        return edgeCount;
+    }
+
+    /**
+     * @return Number of nodes without children.
+     */
+    public long getLeafCount()
+    {
+        return leafCount;
+    }
+
+    /**
+     * @return Number of keys seen by the walk.
+     */
+    public long getKeyCount()
+    {
+        return keyCount;
+    }
+
+    /**
+     * @return Depth of the deepest node, i.e. the length of the longest key.
+     */
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * @return Element i is the number of nodes at depth i. The root is at
+     *         depth 0.
+     */
+    public long[] getDepthHistogram()
+    {
+        return Arrays.copyOf(depthHistogram, maxDepth + 1);
+    }
+
+    /**
+     * @return Element i is the number of nodes with i children.
+     */
+    public long[] getFanOutHistogram()
+    {
+        int last = fanOutHistogram.length - 1;
+        while (last > 0 && fanOutHistogram[last] == 0)
+            --last;
+        return Arrays.copyOf(fanOutHistogram, last + 1);
+    }
+
+    /**
+     * @return Average number of children of the nodes that have any.
+     */
+    public double getAverageFanOut()
+    {
+        long innerNodes = nodeCount - leafCount;
+        return innerNodes == 0 ? 0 : (double) edgeCount / innerNodes;
+    }
+
+    /**
+     * @return Estimated bytes of the node objects themselves.
+     */
+    public long getNodeBytes()
+    {
+        return nodeBytes;
+    }
+
+    /**
+     * @return Estimated bytes of the child maps and their entries.
+     */
+    public long getChildMapBytes()
+    {
+        return childMapBytes;
+    }
+
+    /**
+     * @return Estimated bytes of the boxed Character map keys that are not
+     *         shared from the Character cache.
+     */
+    public long getBoxedKeyBytes()
+    {
+        return boxedKeyBytes;
+    }
+
+    /**
+     * @return Estimated bytes of the Values.
+     */
+    public long getValueBytes()
+    {
+        return valueBytes;
+    }
+
+    /**
+     * @return Estimated bytes of the per-node aggregate arrays.
+     */
+    public long getAggregateBytes()
+    {
+        return aggregateBytes;
+    }
+
+    /**
+     * @return Estimated bytes retained by the tree in total.
+     */
+    public long getTotalBytes()
+    {
+        return nodeBytes + childMapBytes + boxedKeyBytes + valueBytes + aggregateBytes;
+    }
+
+    /**
+     * @return Estimated bytes retained per key. 0 for an empty tree.
+     */
+    public double getBytesPerKey()
+    {
+        return keyCount == 0 ? 0 : (double) getTotalBytes() / keyCount;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TrieStats[keys=" + keyCount + ", nodes=" + nodeCount + ", edges=" + edgeCount + ", leaves="
+            + leafCount + ", maxDepth=" + maxDepth + ", avgFanOut=" + String.format("%.2f", getAverageFanOut())
+            + ", bytes=" + getTotalBytes() + " (nodes=" + nodeBytes + ", childMaps=" + childMapBytes
+            + ", boxedKeys=" + boxedKeyBytes + ", values=" + valueBytes + ", aggregates=" + aggregateBytes
+            + "), bytesPerKey=" + String.format("%.1f", getBytesPerKey()) + "]";
+    }
+}
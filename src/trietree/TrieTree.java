@@ -1,9 +1,33 @@
 package trietree;
 
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
 import java.util.Stack;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
 
 /**
  * This generic data type is a prefix trie tree that utilizes hashmaps to link
@@ -14,9 +38,76 @@ import java.util.Stack;
 public class TrieTree<Value>
 {
     /* PRIVATE MEMBERS */
+    // Subtrees with at most this many keys are walked sequentially by a single
+    // fork/join task instead of being split further.
+    private static final long PARALLEL_SEQUENTIAL_THRESHOLD = 4096;
+
+    // Outcomes of an ordered range walk.
+    private static final int WALK_CONTINUE = 0;
+    private static final int WALK_PAST_UPPER_BOUND = 1;
+    private static final int WALK_LIMIT_REACHED = 2;
+
+    // Batched mutations, and the keys they apply per lock acquisition.
+    private static final int BATCH_PUT = 0;
+    private static final int BATCH_UPDATE = 1;
+    private static final int BATCH_REMOVE = 2;
+    private static final int BATCH_KEYS_PER_LOCK = 4096;
+
+    // Orders a batch by key, null keys first.
+    private static final Comparator<Map.Entry<String, ?>> BATCH_KEY_ORDER = new Comparator<Map.Entry<String, ?>>()
+    {
+        public int compare(Map.Entry<String, ?> left, Map.Entry<String, ?> right)
+        {
+            if (left.getKey() == null || right.getKey() == null)
+                return left.getKey() == null ? (right.getKey() == null ? 0 : -1) : 1;
+
+            return left.getKey().compareTo(right.getKey());
+        }
+    };
+
+    // Nodes visited per lock acquisition by stats(), which bounds how long
+    // writers wait on the walk.
+    private static final int STATS_NODES_PER_LOCK = 16384;
+
+    // Estimated shallow sizes for a 64-bit JVM with compressed pointers.
+    private static final long NODE_BYTES = 40; // Header, 4 refs, long, boolean.
+    private static final long TRACKED_NODE_BYTES = NODE_BYTES + 16; // Two generations.
+    private static final long TREE_MAP_BYTES = 48;
+    private static final long TREE_MAP_ENTRY_BYTES = 40;
+    private static final long BOXED_CHARACTER_BYTES = 16; // Above the cache.
+
+    // Bytes per key character of an entry that shares no prefix: the node,
+    // its child map, the entry in its parent's map and the boxed character.
+    static final long BYTES_PER_UNSHARED_KEY_CHAR = NODE_BYTES + TREE_MAP_BYTES + TREE_MAP_ENTRY_BYTES
+        + BOXED_CHARACTER_BYTES;
+
     private long sizeOfTrie; // Number of words added
+    private long modificationCount; // Number of successful mutations
     private Node rootNode; // Root node
 
+    // Removed keys and prefixes to the generation of their removal, for
+    // changesSince. Changes at or before the horizon are no longer fully
+    // recorded (tracking started after them, the tombstones were purged or
+    // the tree was cleared), so a delta from before it has to be a full one.
+    // Nothing is recorded until enableChangeTracking, and from then on every
+    // node is a TrackedNode.
+    private boolean changeTracking;
+    private final HashMap<String, Long> tombstones = new HashMap<String, Long>();
+    private final HashMap<String, Long> prefixTombstones = new HashMap<String, Long>();
+    private long tombstoneHorizon;
+
+    // Registered aggregates. Index i of every node's aggregate values belongs
+    // to aggregate i.
+    private final ArrayList<TrieAggregate<? super Value, ?>> aggregates = new ArrayList<TrieAggregate<? super Value, ?>>();
+
+    // Optional operation metrics. Null when disabled, which costs one
+    // volatile read per operation.
+    private volatile TrieMetrics metrics;
+
+    // Change listeners, called under the tree lock. When there are none, a
+    // mutation only checks that the list is empty.
+    private final CopyOnWriteArrayList<TrieChangeListener<? super Value>> changeListeners = new CopyOnWriteArrayList<TrieChangeListener<? super Value>>();
+
     // Used to maintain link between characters of the keys.
     private class Node
     {
@@ -29,15 +120,32 @@ public class TrieTree<Value>
         private long referenceCount;
         
         // Link branches via maps. Alternatively, we could use a 256-element
-        // array for the extended ASCII character map. Note: HashMap is not
-        // thread safe. We need to ensure calling functions are synchronized.
-        HashMap<Character, Node> childrenNodes;
+        // array for the extended ASCII character map. The map is sorted so
+        // that walking the children visits keys in lexicographic order. Note:
+        // TreeMap is not thread safe. We need to ensure calling functions are
+        // synchronized.
+        TreeMap<Character, Node> childrenNodes;
+
+        // Aggregates of all Values at or below this node, one per registered
+        // aggregate. Null while no aggregates are registered.
+        Object[] aggregateValues;
 
         public Node()
         {
-            childrenNodes = new HashMap<Character, Node>();
+            childrenNodes = new TreeMap<Character, Node>();
             wordEnd = false;
             value = null;
+            aggregateValues = aggregates.isEmpty() ? null : new Object[aggregates.size()];
+        }
+
+        // Takes over the state and the children of another node.
+        Node(Node other)
+        {
+            wordEnd = other.wordEnd;
+            value = other.value;
+            referenceCount = other.referenceCount;
+            childrenNodes = other.childrenNodes;
+            aggregateValues = other.aggregateValues;
         }
 
         public void setWordEndTrue(Value val)
@@ -79,6 +187,27 @@ public class TrieTree<Value>
         }
     }
 
+    // Node of a tree that tracks changes.
+    private final class TrackedNode extends Node
+    {
+        // Generation (the modification count) of the latest change at or
+        // below this node, and of the latest put or update of its own Value.
+        // changesSince skips the subtrees that have not changed.
+        long generation;
+        long valueGeneration;
+
+        TrackedNode()
+        {
+        }
+
+        TrackedNode(Node other, long generation)
+        {
+            super(other);
+            this.generation = generation;
+            valueGeneration = generation;
+        }
+    }
+
     // Pair <Node, character>
     private final class PairNodeChar
     {
@@ -102,12 +231,179 @@ public class TrieTree<Value>
         }
     }
 
+    /**
+     * One page of entries in lexicographic order, along with the opaque token
+     * that resumes the walk right after the last entry of the page.
+     */
+    public static final class Page<Value>
+    {
+        private final LinkedHashMap<String, Value> entries;
+        private final String continuationToken;
+
+        Page(LinkedHashMap<String, Value> e, String token)
+        {
+            entries = e;
+            continuationToken = token;
+        }
+
+        /**
+         * @return Entries of this page in lexicographic order of the keys.
+         */
+        public LinkedHashMap<String, Value> getEntries()
+        {
+            return entries;
+        }
+
+        /**
+         * @return Token to pass in for the next page. Null if this is the last
+         *         page.
+         */
+        public String getContinuationToken()
+        {
+            return continuationToken;
+        }
+
+        /**
+         * @return True if there are entries after this page.
+         */
+        public boolean hasMore()
+        {
+            return continuationToken != null;
+        }
+    }
+
+    // Node waiting to be visited by the stats walk.
+    private final class NodeAtDepth
+    {
+        private final Node node;
+        private final int depth;
+
+        NodeAtDepth(Node n, int d)
+        {
+            node = n;
+            depth = d;
+        }
+    }
+
+    // Fork/join task that collects the key/value pairs of one subtree. Large
+    // subtrees are split into one task per child branch, which lets idle
+    // workers steal whole branches.
+    private final class CollectTask<A> extends RecursiveTask<A>
+    {
+        private static final long serialVersionUID = 2402412553371014585L;
+
+        private final String prefix;
+        private final Node node;
+        private final Collector<? super Map.Entry<String, Value>, A, ?> collector;
+        private final A sharedContainer; // Non-null for concurrent collectors.
+
+        CollectTask(String p, Node n, Collector<? super Map.Entry<String, Value>, A, ?> c, A shared)
+        {
+            prefix = p;
+            node = n;
+            collector = c;
+            sharedContainer = shared;
+        }
+
+        @Override
+        protected A compute()
+        {
+            A container = sharedContainer != null ? sharedContainer : collector.supplier().get();
+            BiConsumer<A, ? super Map.Entry<String, Value>> accumulator = collector.accumulator();
+
+            // Small subtrees are cheaper to walk than to split.
+            if (countOf(node) <= PARALLEL_SEQUENTIAL_THRESHOLD)
+            {
+                addToCollector(new StringBuilder(prefix), node, container, accumulator);
+                return container;
+            }
+
+            if (node.isWordEnd())
+                accumulator.accept(container, new AbstractMap.SimpleImmutableEntry<String, Value>(prefix, node.getValue()));
+
+            List<CollectTask<A>> subtasks = new ArrayList<CollectTask<A>>(node.childrenNodes.size());
+            for (Map.Entry<Character, Node> child : node.childrenNodes.entrySet())
+            {
+                subtasks.add(new CollectTask<A>(prefix + child.getKey(), child.getValue(), collector,
+                                                sharedContainer));
+            }
+            invokeAll(subtasks);
+
+            // Concurrent collectors all accumulated into the same container,
+            // so there is nothing left to combine.
+            if (sharedContainer != null)
+                return container;
+
+            for (CollectTask<A> subtask : subtasks)
+                container = collector.combiner().apply(container, subtask.join());
+
+            return container;
+        }
+    }
+
     /* METHODS */
     public TrieTree()
     {
         rootNode = new Node();
     }
 
+    /**
+     * This method attaches operation metrics to the tree, or detaches them.
+     * 
+     * @param m
+     *            Metrics that record the operations from now on. Null to stop
+     *            recording.
+     */
+    public void setMetrics(TrieMetrics m)
+    {
+        metrics = m;
+    }
+
+    /**
+     * @return Metrics attached to the tree. Null if there are none.
+     */
+    public TrieMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * This method registers a listener for every change to the tree. To start
+     * from a consistent view, register it and read the tree in one
+     * synchronized (tree) block; the events then carry the versions after
+     * modificationCount().
+     * 
+     * @param listener
+     *            Listener to add.
+     */
+    public void addChangeListener(TrieChangeListener<? super Value> listener)
+    {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * This method unregisters a change listener.
+     * 
+     * @param listener
+     *            Listener to remove.
+     */
+    public void removeChangeListener(TrieChangeListener<? super Value> listener)
+    {
+        changeListeners.remove(listener);
+    }
+
+    // Tells the change listeners about a change, called with the tree locked
+    // after the modification count was incremented.
+    private void fireChange(TrieChangeEvent.Type type, String key, Value val)
+    {
+        if (changeListeners.isEmpty())
+            return;
+
+        TrieChangeEvent<Value> event = new TrieChangeEvent<Value>(type, key, val, modificationCount);
+        for (TrieChangeListener<? super Value> listener : changeListeners)
+            listener.changed(event);
+    }
+
     /**
      * This method returns the number of keys in the tree.
      * 
@@ -118,6 +414,166 @@ public class TrieTree<Value>
         return sizeOfTrie;
     }
 
+    /**
+     * This method returns the number of successful mutations since the tree
+     * was created. It changes whenever a put, update or remove changes the
+     * tree, so a structure derived from the tree can tell that it is stale.
+     * 
+     * @return Modification count.
+     */
+    public synchronized long modificationCount()
+    {
+        return modificationCount;
+    }
+
+    /**
+     * This method starts recording changes for changesSince: every node is
+     * stamped with the generation of its latest change, which costs 16 bytes
+     * per node, and every removal leaves a tombstone until purgeTombstones.
+     * The nodes already in the tree are replaced by stamped copies, so this
+     * costs one walk over the tree. Deltas from before this call are full
+     * ones. Calling it again does nothing.
+     */
+    public synchronized void enableChangeTracking()
+    {
+        if (changeTracking)
+            return;
+
+        changeTracking = true;
+        rootNode = new TrackedNode(rootNode, modificationCount);
+        ArrayDeque<Node> pending = new ArrayDeque<Node>();
+        pending.push(rootNode);
+        while (!pending.isEmpty())
+        {
+            for (Map.Entry<Character, Node> child : pending.pop().childrenNodes.entrySet())
+            {
+                Node tracked = new TrackedNode(child.getValue(), modificationCount);
+                child.setValue(tracked);
+                pending.push(tracked);
+            }
+        }
+        tombstoneHorizon = modificationCount;
+    }
+
+    /**
+     * This method reports whether the tree records changes for changesSince.
+     * 
+     * @return True after enableChangeTracking.
+     */
+    public synchronized boolean isChangeTracking()
+    {
+        return changeTracking;
+    }
+
+    /**
+     * This method returns what changed since a generation, such as the
+     * modificationCount() at the last export, so that only the changes have
+     * to be written out. The walk skips every subtree without a change after
+     * the generation, so a few edits cost little more than their key paths.
+     * Removed keys and prefixes are kept as tombstones until
+     * purgeTombstones. Changes are only recorded after
+     * enableChangeTracking; without it, every delta is a full one.
+     * 
+     * @param generation
+     *            Generation of the copy that the delta is for. 0 for an empty
+     *            copy.
+     * @return Delta from the generation to the current modificationCount(). A
+     *         full delta if the changes since the generation are not all
+     *         recorded.
+     * @throws IllegalArgumentException
+     *             If the generation is negative or later than the tree.
+     */
+    public synchronized TrieDelta<Value> changesSince(long generation)
+    {
+        if (generation < 0 || generation > modificationCount)
+            throw new IllegalArgumentException("Generation " + generation + " is not between 0 and "
+                + modificationCount);
+
+        ArrayList<String> removedPrefixes = new ArrayList<String>();
+        ArrayList<String> removedKeys = new ArrayList<String>();
+        LinkedHashMap<String, Value> entries = new LinkedHashMap<String, Value>();
+        boolean full = !changeTracking || generation < tombstoneHorizon;
+        if (full)
+        {
+            addToChanges(new StringBuilder(), rootNode, -1, entries);
+        }
+        else
+        {
+            for (Map.Entry<String, Long> tombstone : prefixTombstones.entrySet())
+            {
+                if (tombstone.getValue() > generation)
+                    removedPrefixes.add(tombstone.getKey());
+            }
+            for (Map.Entry<String, Long> tombstone : tombstones.entrySet())
+            {
+                if (tombstone.getValue() > generation)
+                    removedKeys.add(tombstone.getKey());
+            }
+            Collections.sort(removedPrefixes);
+            Collections.sort(removedKeys);
+
+            addToChanges(new StringBuilder(), rootNode, generation, entries);
+        }
+
+        return new TrieDelta<Value>(generation, modificationCount, full, removedPrefixes, removedKeys, entries);
+    }
+
+    /**
+     * This method walks the subtrees of the parent node that changed after the
+     * generation, in lexicographic order, and adds the keys whose Value was
+     * put or updated after it. A negative generation adds every key, and only
+     * then may the nodes be untracked.
+     */
+    private void addToChanges(StringBuilder path, Node parentNode, long generation,
+                              LinkedHashMap<String, Value> entries)
+    {
+        if (parentNode.isWordEnd() && (generation < 0 || ((TrackedNode) parentNode).valueGeneration > generation))
+            entries.put(path.toString(), parentNode.getValue());
+
+        for (Map.Entry<Character, Node> child : parentNode.childrenNodes.entrySet())
+        {
+            if (generation >= 0 && ((TrackedNode) child.getValue()).generation <= generation)
+                continue;
+
+            path.append(child.getKey());
+            addToChanges(path, child.getValue(), generation, entries);
+            path.setLength(path.length() - 1);
+        }
+    }
+
+    /**
+     * This method drops the tombstones of the removals at or before a
+     * generation, once every copy has caught up with it. Deltas from before
+     * the generation are full ones from then on.
+     * 
+     * @param generation
+     *            Oldest generation still needed.
+     * @return Number of tombstones dropped.
+     */
+    public synchronized int purgeTombstones(long generation)
+    {
+        int purged = 0;
+        for (Iterator<Map.Entry<String, Long>> it = tombstones.entrySet().iterator(); it.hasNext();)
+        {
+            if (it.next().getValue() <= generation)
+            {
+                it.remove();
+                ++purged;
+            }
+        }
+        for (Iterator<Map.Entry<String, Long>> it = prefixTombstones.entrySet().iterator(); it.hasNext();)
+        {
+            if (it.next().getValue() <= generation)
+            {
+                it.remove();
+                ++purged;
+            }
+        }
+
+        tombstoneHorizon = Math.max(tombstoneHorizon, Math.min(generation, modificationCount));
+        return purged;
+    }
+
     /**
      * This method reports whether the tree is empty.
      * 
@@ -137,7 +593,33 @@ public class TrieTree<Value>
      * @return Value associated with the key. Null if the key does not exist or
      *         no Value associated with key.
      */
-    public synchronized Value get(String key)
+    public Value get(String key)
+    {
+        TrieMetrics m = metrics;
+        if (m == null)
+        {
+            synchronized (this)
+            {
+                return getLocked(key);
+            }
+        }
+
+        long start = System.nanoTime();
+        long acquired;
+        long released;
+        Value rc;
+        synchronized (this)
+        {
+            acquired = System.nanoTime();
+            rc = getLocked(key);
+            released = System.nanoTime();
+        }
+        m.record(TrieMetrics.Operation.GET, start, acquired, released, rc == null ? 0 : 1);
+        return rc;
+    }
+
+    // Body of get, called with the tree locked.
+    private Value getLocked(String key)
     {
         if (key == null || key.isEmpty() || isEmpty())
             return null;
@@ -188,6 +670,133 @@ public class TrieTree<Value>
         return get(key.substring(1), child, isPrefix);
     }
 
+    /**
+     * This method looks up a batch of keys. See getAll(List, int).
+     * 
+     * @param keys
+     *            Keys to look up.
+     * @return ArrayList<Value> with the Value of keys.get(i) at index i.
+     */
+    public ArrayList<Value> getAll(List<String> keys)
+    {
+        return getAll(keys, BATCH_KEYS_PER_LOCK, null);
+    }
+
+    /**
+     * This method looks up a batch of keys and marks the keys it finds. See
+     * getAll(List, int, BitSet).
+     * 
+     * @param keys
+     *            Keys to look up.
+     * @param found
+     *            Set to mark the found keys in.
+     * @return ArrayList<Value> with the Value of keys.get(i) at index i.
+     */
+    public ArrayList<Value> getAll(List<String> keys, BitSet found)
+    {
+        return getAll(keys, BATCH_KEYS_PER_LOCK, found);
+    }
+
+    /**
+     * This method looks up a batch of keys. See getAll(List, int, BitSet).
+     * 
+     * @param keys
+     *            Keys to look up.
+     * @param keysPerLock
+     *            Number of keys looked up per lock acquisition.
+     * @return ArrayList<Value> with the Value of keys.get(i) at index i.
+     */
+    public ArrayList<Value> getAll(List<String> keys, int keysPerLock)
+    {
+        return getAll(keys, keysPerLock, null);
+    }
+
+    /**
+     * This method looks up a batch of keys, like calling get for each of them,
+     * but the keys are visited in sorted order so that the walk from one key
+     * to the next only climbs back to their common prefix. A sorted dictionary
+     * lookup costs about one walk over the union of the key paths. The lock is
+     * released and taken again every keysPerLock keys, so a large batch does
+     * not stop writers for long; each chunk sees one consistent tree, but
+     * different chunks may see different trees. With metrics attached, each
+     * chunk is recorded as one GET_ALL operation.
+     * 
+     * A null in the result is either a missing key or a null Value; bit i of
+     * found tells them apart, in the same pass.
+     * 
+     * @param keys
+     *            Keys to look up.
+     * @param keysPerLock
+     *            Number of keys looked up per lock acquisition.
+     * @param found
+     *            Set in which bit i is set if keys.get(i) is in the tree, and
+     *            other bits are left as they are. Null if not needed.
+     * @return ArrayList<Value> with the Value of keys.get(i) at index i. Null
+     *         where the key is null, empty, missing or has a null Value.
+     */
+    public ArrayList<Value> getAll(List<String> keys, int keysPerLock, BitSet found)
+    {
+        if (keysPerLock < 1)
+            throw new IllegalArgumentException("keysPerLock must be positive: " + keysPerLock);
+
+        // Sort the positions rather than the keys, so the results can be
+        // written straight to their index.
+        final String[] keyArray = keys.toArray(new String[keys.size()]);
+        Integer[] order = new Integer[keyArray.length];
+        for (int i = 0; i < order.length; ++i)
+            order[i] = i;
+
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer left, Integer right)
+            {
+                String l = keyArray[left];
+                String r = keyArray[right];
+                if (l == null || r == null)
+                    return l == null ? (r == null ? 0 : -1) : 1;
+
+                return l.compareTo(r);
+            }
+        });
+
+        ArrayList<Value> values = new ArrayList<Value>(Collections.<Value> nCopies(keyArray.length, null));
+        int next = 0;
+        while (next < order.length)
+        {
+            int end = (int) Math.min(order.length, (long) next + keysPerLock);
+            TrieMetrics m = metrics;
+            long start = m == null ? 0 : System.nanoTime();
+            long acquired;
+            long released;
+            long hits = 0;
+            synchronized (this)
+            {
+                acquired = m == null ? 0 : System.nanoTime();
+                PathCursor cursor = new PathCursor();
+                for (; next < end; ++next)
+                {
+                    String key = keyArray[order[next]];
+                    if (key == null || key.isEmpty())
+                        continue;
+
+                    Node n = cursor.seek(key, false);
+                    if (n != null && n.isWordEnd())
+                    {
+                        values.set(order[next], n.getValue());
+                        if (found != null)
+                            found.set(order[next]);
+                        ++hits;
+                    }
+                }
+                released = m == null ? 0 : System.nanoTime();
+            }
+            if (m != null)
+                m.record(TrieMetrics.Operation.GET_ALL, start, acquired, released, hits);
+        }
+
+        return values;
+    }
+
     /**
      * This method checks if a key is in the trie tree.
      * 
@@ -195,7 +804,33 @@ public class TrieTree<Value>
      *            String of the key.
      * @return True if the key is in the trie tree. False if it is not.
      */
-    public synchronized boolean contains(String key)
+    public boolean contains(String key)
+    {
+        TrieMetrics m = metrics;
+        if (m == null)
+        {
+            synchronized (this)
+            {
+                return containsLocked(key);
+            }
+        }
+
+        long start = System.nanoTime();
+        long acquired;
+        long released;
+        boolean rc;
+        synchronized (this)
+        {
+            acquired = System.nanoTime();
+            rc = containsLocked(key);
+            released = System.nanoTime();
+        }
+        m.record(TrieMetrics.Operation.CONTAINS, start, acquired, released, rc ? 1 : 0);
+        return rc;
+    }
+
+    // Body of contains, called with the tree locked.
+    private boolean containsLocked(String key)
     {
         if (key == null || key.isEmpty() || isEmpty())
             return false;
@@ -214,12 +849,45 @@ public class TrieTree<Value>
      * @return True if put was successful. False if the key is empty or trie
      *         already contains key.
      */
-    public synchronized boolean put(String key, Value val)
+    public boolean put(String key, Value val)
+    {
+        TrieMetrics m = metrics;
+        if (m == null)
+        {
+            synchronized (this)
+            {
+                return putLocked(key, val);
+            }
+        }
+
+        long start = System.nanoTime();
+        long acquired;
+        long released;
+        boolean rc;
+        synchronized (this)
+        {
+            acquired = System.nanoTime();
+            rc = putLocked(key, val);
+            released = System.nanoTime();
+        }
+        m.record(TrieMetrics.Operation.PUT, start, acquired, released, rc ? 1 : 0);
+        return rc;
+    }
+
+    // Body of put, called with the tree locked.
+    private boolean putLocked(String key, Value val)
     {
-        if (key == null || key.isEmpty() || contains(key))
+        if (key == null || key.isEmpty() || containsLocked(key))
             return false;
 
-        return put(key, val, rootNode);
+        long generation = modificationCount + 1;
+        boolean rc = put(key, val, rootNode, generation);
+        settle(rootNode, generation);
+        modificationCount = generation;
+        if (changeTracking)
+            tombstones.remove(key);
+        fireChange(TrieChangeEvent.Type.PUT, key, val);
+        return rc;
     }
 
     /**
@@ -231,7 +899,7 @@ public class TrieTree<Value>
      * @return True once we're finished adding the key. We can't really fail
      *         here.
      */
-    private boolean put(String key, Value val, Node parentNode)
+    private boolean put(String key, Value val, Node parentNode, long generation)
     {
         assert !key.isEmpty(); // Empty key should not be possible due to the
                                // check at the public call and the return
@@ -241,7 +909,7 @@ public class TrieTree<Value>
         Node child = parentNode.childrenNodes.get(currentCharacter);
         if (child == null)
         {
-            child = new Node();
+            child = newNode();
             parentNode.childrenNodes.put(currentCharacter, child);
         }
         child.incrementRefCount();
@@ -251,13 +919,18 @@ public class TrieTree<Value>
         if (key.length() == 1)
         {
             child.setWordEndTrue(val);
+            stampValue(child, generation);
+            settle(child, generation);
             ++sizeOfTrie;
             return true;
         }
 
         // If we're not down to our last character, pass in the rest of the
-        // key substring for another cycle.
-        return put(key.substring(1), val, child);
+        // key substring for another cycle. The aggregates are refreshed on the
+        // way back up.
+        boolean rc = put(key.substring(1), val, child, generation);
+        settle(child, generation);
+        return rc;
     }
 
     /**
@@ -270,12 +943,46 @@ public class TrieTree<Value>
      * @return True if update was successful. False if the key is empty or trie
      *         does not contain key.
      */
-    public synchronized boolean update(String key, Value val)
+    public boolean update(String key, Value val)
+    {
+        TrieMetrics m = metrics;
+        if (m == null)
+        {
+            synchronized (this)
+            {
+                return updateLocked(key, val);
+            }
+        }
+
+        long start = System.nanoTime();
+        long acquired;
+        long released;
+        boolean rc;
+        synchronized (this)
+        {
+            acquired = System.nanoTime();
+            rc = updateLocked(key, val);
+            released = System.nanoTime();
+        }
+        m.record(TrieMetrics.Operation.UPDATE, start, acquired, released, rc ? 1 : 0);
+        return rc;
+    }
+
+    // Body of update, called with the tree locked.
+    private boolean updateLocked(String key, Value val)
     {
         if (key == null || key.isEmpty() || isEmpty())
             return false;
 
-        return update(key, val, rootNode);
+        long generation = modificationCount + 1;
+        boolean rc = update(key, val, rootNode, generation);
+        if (rc)
+        {
+            settle(rootNode, generation);
+            modificationCount = generation;
+            fireChange(TrieChangeEvent.Type.UPDATE, key, val);
+        }
+        return rc;
     }
 
     /**
@@ -286,7 +993,7 @@ public class TrieTree<Value>
      * @return True once we're finished updating the value. False if the key
      *         doesn't exist.
      */
-    private boolean update(String key, Value val, Node parentNode)
+    private boolean update(String key, Value val, Node parentNode, long generation)
     {
         assert !key.isEmpty(); // Empty key should not be possible due to the
                                // check at the public call and the return
@@ -309,6 +1016,8 @@ public class TrieTree<Value>
             if (child.isWordEnd())
             {
                 child.setWordEndTrue(val);
+                stampValue(child, generation);
+                settle(child, generation);
                 return true;
             }
 
@@ -316,7 +1025,10 @@ public class TrieTree<Value>
         }
 
         // Pass in the rest of the key substring for another cycle.
-        return update(key.substring(1), val, child);
+        boolean rc = update(key.substring(1), val, child, generation);
+        if (rc)
+            settle(child, generation);
+        return rc;
     }
 
     /**
@@ -326,16 +1038,52 @@ public class TrieTree<Value>
      *            String of the key.
      * @return True if the key is removed. False if the key is not in the tree.
      */
-    public synchronized boolean remove(String key)
+    public boolean remove(String key)
     {
-        if (key == null || key.isEmpty() || isEmpty())
-            return false;
+        TrieMetrics m = metrics;
+        if (m == null)
+        {
+            synchronized (this)
+            {
+                return removeLocked(key);
+            }
+        }
 
-        // We will add <parentNode, char> pairs that are to be removed from
+        long start = System.nanoTime();
+        long acquired;
+        long released;
+        boolean rc;
+        synchronized (this)
+        {
+            acquired = System.nanoTime();
+            rc = removeLocked(key);
+            released = System.nanoTime();
+        }
+        m.record(TrieMetrics.Operation.REMOVE, start, acquired, released, rc ? 1 : 0);
+        return rc;
+    }
+
+    // Body of remove, called with the tree locked.
+    private boolean removeLocked(String key)
+    {
+        if (key == null || key.isEmpty() || isEmpty())
+            return false;
+
+        // We will add <parentNode, char> pairs that are to be removed from
         // the tree.
         Stack<PairNodeChar> keyCharacters = new Stack<PairNodeChar>();
 
-        return remove(key, rootNode, keyCharacters);
+        long generation = modificationCount + 1;
+        boolean rc = remove(key, rootNode, keyCharacters, generation);
+        if (rc)
+        {
+            settle(rootNode, generation);
+            modificationCount = generation;
+            if (changeTracking)
+                tombstones.put(key, generation);
+            fireChange(TrieChangeEvent.Type.REMOVE, key, null);
+        }
+        return rc;
     }
 
     /**
@@ -350,7 +1098,7 @@ public class TrieTree<Value>
      * @return True if remove was successful. False if the key is empty or trie
      *         did not contain key.
      */
-    private boolean remove(String key, Node parentNode, Stack<PairNodeChar> keyCharacters)
+    private boolean remove(String key, Node parentNode, Stack<PairNodeChar> keyCharacters, long generation)
     {
         assert !key.isEmpty(); // Empty key should not be possible due to the
                                // check at the public call and the return
@@ -384,6 +1132,8 @@ public class TrieTree<Value>
                 {
                     parentNode.childrenNodes.remove(currentCharacter);
                 }
+                else
+                    settle(child, generation);
 
                 while (!keyCharacters.isEmpty())
                 {
@@ -395,6 +1145,8 @@ public class TrieTree<Value>
                     {
                         previousPair.getNode().childrenNodes.remove(previousPair.getChar());
                     }
+                    else
+                        settle(childNode, generation);
                 }
 
                 --sizeOfTrie;
@@ -410,7 +1162,7 @@ public class TrieTree<Value>
         keyCharacters.push(new PairNodeChar(parentNode, currentCharacter));
 
         // Pass in the rest of the key substring for another cycle.
-        return remove(key.substring(1), child, keyCharacters);
+        return remove(key.substring(1), child, keyCharacters, generation);
     }
 
     /**
@@ -420,6 +1172,452 @@ public class TrieTree<Value>
     {
         rootNode.childrenNodes.clear();
         sizeOfTrie = 0;
+        ++modificationCount;
+        settle(rootNode, modificationCount);
+
+        // Nothing before the clear is needed to describe the tree any more.
+        tombstones.clear();
+        prefixTombstones.clear();
+        tombstoneHorizon = modificationCount;
+        fireChange(TrieChangeEvent.Type.CLEAR, "", null);
+    }
+
+    /**
+     * This method removes every key that contains the prefix. The subtree
+     * under the prefix is unlinked in one step, and only the nodes on the
+     * prefix path are adjusted, by the reference count of the subtree, so the
+     * cost is O(prefix length) however many keys are removed. The garbage
+     * collector reclaims the detached subtree.
+     * 
+     * @param prefix
+     *            String of the prefix. The empty prefix removes every key.
+     * @return Number of keys removed. 0 if the prefix is null or no key
+     *         contains it.
+     */
+    public synchronized long removePrefix(String prefix)
+    {
+        if (prefix == null)
+            return 0;
+
+        if (prefix.isEmpty())
+        {
+            long removed = sizeOfTrie;
+            removeAll();
+            return removed;
+        }
+
+        // Walk down the prefix, remembering the path.
+        ArrayList<Node> path = new ArrayList<Node>(prefix.length() + 1);
+        Node n = rootNode;
+        path.add(n);
+        for (int i = 0; i < prefix.length(); ++i)
+        {
+            n = n.childrenNodes.get(prefix.charAt(i));
+            if (n == null)
+                return 0;
+            path.add(n);
+        }
+
+        long removed = n.getRefCount();
+
+        // Every key under the prefix node also counts on its ancestors. The
+        // shallowest ancestor that has no other key is unlinked from its
+        // parent, taking the prefix node with it.
+        for (int depth = 1; depth < path.size(); ++depth)
+        {
+            Node ancestor = path.get(depth);
+            ancestor.referenceCount -= removed;
+            if (ancestor.getRefCount() == 0)
+            {
+                path.get(depth - 1).childrenNodes.remove(prefix.charAt(depth - 1));
+                path.subList(depth, path.size()).clear();
+                break;
+            }
+        }
+
+        sizeOfTrie -= removed;
+        ++modificationCount;
+        for (int depth = path.size() - 1; depth >= 0; --depth)
+            settle(path.get(depth), modificationCount);
+        if (changeTracking)
+            prefixTombstones.put(prefix, modificationCount);
+        fireChange(TrieChangeEvent.Type.REMOVE_PREFIX, prefix, null);
+
+        return removed;
+    }
+
+    /**
+     * This method puts every entry of the map whose key is not in the tree
+     * yet. See putAll(Iterable, int).
+     * 
+     * @param entries
+     *            Keys and Values to put.
+     * @return HashMap<String, Boolean> of every key to whether it was added.
+     */
+    public HashMap<String, Boolean> putAll(Map<String, ? extends Value> entries)
+    {
+        return putAll(entries.entrySet());
+    }
+
+    /**
+     * This method puts every entry whose key is not in the tree yet. See
+     * putAll(Iterable, int).
+     * 
+     * @param entries
+     *            Keys and Values to put.
+     * @return HashMap<String, Boolean> of every key to whether it was added.
+     */
+    public HashMap<String, Boolean> putAll(Iterable<? extends Map.Entry<String, ? extends Value>> entries)
+    {
+        return putAll(entries, BATCH_KEYS_PER_LOCK);
+    }
+
+    /**
+     * This method puts a batch of entries, like calling put for each of them,
+     * but the keys are sorted first so that the walk from one key to the next
+     * only climbs back to their common prefix. Reference counts and aggregates
+     * are settled once per node as the walk leaves it, so a sorted dictionary
+     * costs about one walk over the union of the key paths. The lock is taken
+     * once per keysPerLock keys; other threads may see a batch partially
+     * applied, one chunk at a time. With metrics attached, each chunk is
+     * recorded as one PUT_ALL operation (UPDATE_ALL and REMOVE_ALL for the
+     * batches of updateAll and removeAll).
+     * 
+     * @param entries
+     *            Keys and Values to put. If a key repeats, its first Value is
+     *            put.
+     * @param keysPerLock
+     *            Number of keys applied per lock acquisition.
+     * @return HashMap<String, Boolean> of every key to whether it was added.
+     *         Null and empty keys map to false.
+     */
+    public HashMap<String, Boolean> putAll(Iterable<? extends Map.Entry<String, ? extends Value>> entries, int keysPerLock)
+    {
+        return applyAll(sortedEntries(entries), BATCH_PUT, keysPerLock);
+    }
+
+    /**
+     * This method updates the Value of every key of the map that is in the
+     * tree. See updateAll(Iterable, int).
+     * 
+     * @param entries
+     *            Keys and their new Values.
+     * @return HashMap<String, Boolean> of every key to whether it was updated.
+     */
+    public HashMap<String, Boolean> updateAll(Map<String, ? extends Value> entries)
+    {
+        return updateAll(entries.entrySet());
+    }
+
+    /**
+     * This method updates the Value of every key that is in the tree. See
+     * updateAll(Iterable, int).
+     * 
+     * @param entries
+     *            Keys and their new Values.
+     * @return HashMap<String, Boolean> of every key to whether it was updated.
+     */
+    public HashMap<String, Boolean> updateAll(Iterable<? extends Map.Entry<String, ? extends Value>> entries)
+    {
+        return updateAll(entries, BATCH_KEYS_PER_LOCK);
+    }
+
+    /**
+     * This method updates a batch of entries with the same sorted, shared
+     * traversal as putAll(Iterable, int).
+     * 
+     * @param entries
+     *            Keys and their new Values. If a key repeats, its last Value
+     *            wins.
+     * @param keysPerLock
+     *            Number of keys applied per lock acquisition.
+     * @return HashMap<String, Boolean> of every key to whether it was updated.
+     */
+    public HashMap<String, Boolean> updateAll(Iterable<? extends Map.Entry<String, ? extends Value>> entries,
+                                              int keysPerLock)
+    {
+        return applyAll(sortedEntries(entries), BATCH_UPDATE, keysPerLock);
+    }
+
+    /**
+     * This method removes every key of the collection that is in the tree. See
+     * removeAll(Collection, int).
+     * 
+     * @param keys
+     *            Keys to remove.
+     * @return HashMap<String, Boolean> of every key to whether it was removed.
+     */
+    public HashMap<String, Boolean> removeAll(Collection<String> keys)
+    {
+        return removeAll(keys, BATCH_KEYS_PER_LOCK);
+    }
+
+    /**
+     * This method removes a batch of keys with the same sorted, shared
+     * traversal as putAll(Iterable, int). Branches left without keys are
+     * unlinked once, when the walk leaves them.
+     * 
+     * @param keys
+     *            Keys to remove.
+     * @param keysPerLock
+     *            Number of keys applied per lock acquisition.
+     * @return HashMap<String, Boolean> of every key to whether it was removed.
+     */
+    public HashMap<String, Boolean> removeAll(Collection<String> keys, int keysPerLock)
+    {
+        ArrayList<Map.Entry<String, Value>> batch = new ArrayList<Map.Entry<String, Value>>(keys.size());
+        for (String key : keys)
+            batch.add(new AbstractMap.SimpleImmutableEntry<String, Value>(key, null));
+
+        Collections.sort(batch, BATCH_KEY_ORDER);
+        return applyAll(batch, BATCH_REMOVE, keysPerLock);
+    }
+
+    // Copies the entries into a list sorted by key. The sort is stable, so
+    // repeated keys keep their order.
+    private ArrayList<Map.Entry<String, Value>> sortedEntries(Iterable<? extends Map.Entry<String, ? extends Value>> entries)
+    {
+        ArrayList<Map.Entry<String, Value>> batch = new ArrayList<Map.Entry<String, Value>>();
+        for (Map.Entry<String, ? extends Value> entry : entries)
+            batch.add(new AbstractMap.SimpleImmutableEntry<String, Value>(entry.getKey(), entry.getValue()));
+
+        Collections.sort(batch, BATCH_KEY_ORDER);
+        return batch;
+    }
+
+    /**
+     * This method applies one kind of mutation to a sorted batch, taking the
+     * lock once per chunk. Every chunk leaves the tree consistent before the
+     * lock is released.
+     * 
+     * @return HashMap<String, Boolean> of every key to whether it changed the
+     *         tree.
+     */
+    private HashMap<String, Boolean> applyAll(ArrayList<Map.Entry<String, Value>> batch, int operation, int keysPerLock)
+    {
+        if (keysPerLock < 1)
+            throw new IllegalArgumentException("keysPerLock must be positive: " + keysPerLock);
+
+        HashMap<String, Boolean> outcomes = new HashMap<String, Boolean>();
+        int next = 0;
+        while (next < batch.size())
+        {
+            int end = (int) Math.min(batch.size(), (long) next + keysPerLock);
+            TrieMetrics m = metrics;
+            long start = m == null ? 0 : System.nanoTime();
+            long acquired;
+            long released;
+            long changed = 0;
+            synchronized (this)
+            {
+                acquired = m == null ? 0 : System.nanoTime();
+                PathCursor cursor = new PathCursor();
+                for (; next < end; ++next)
+                {
+                    Map.Entry<String, Value> entry = batch.get(next);
+                    boolean rc = applyOne(cursor, entry.getKey(), entry.getValue(), operation);
+
+                    // A repeated key changed the tree if any of its entries
+                    // did.
+                    if (rc)
+                    {
+                        outcomes.put(entry.getKey(), Boolean.TRUE);
+                        ++changed;
+                    }
+                    else if (!outcomes.containsKey(entry.getKey()))
+                        outcomes.put(entry.getKey(), Boolean.FALSE);
+                }
+                cursor.finish();
+                released = m == null ? 0 : System.nanoTime();
+            }
+            if (m != null)
+                m.record(operation == BATCH_PUT ? TrieMetrics.Operation.PUT_ALL
+                    : operation == BATCH_UPDATE ? TrieMetrics.Operation.UPDATE_ALL
+                    : TrieMetrics.Operation.REMOVE_ALL, start, acquired, released, changed);
+        }
+
+        return outcomes;
+    }
+
+    // Applies one batched mutation at the cursor, called with the tree locked.
+    private boolean applyOne(PathCursor cursor, String key, Value val, int operation)
+    {
+        if (key == null || key.isEmpty())
+            return false;
+
+        Node n = cursor.seek(key, operation == BATCH_PUT);
+        if (n == null)
+            return false;
+
+        switch (operation)
+        {
+        case BATCH_PUT:
+            if (n.isWordEnd())
+                return false;
+
+            n.setWordEndTrue(val);
+            cursor.changed(1);
+            stampValue(n, modificationCount);
+            if (changeTracking)
+                tombstones.remove(key);
+            fireChange(TrieChangeEvent.Type.PUT, key, val);
+            return true;
+
+        case BATCH_UPDATE:
+            if (!n.isWordEnd())
+                return false;
+
+            n.setWordEndTrue(val);
+            cursor.changed(0);
+            stampValue(n, modificationCount);
+            fireChange(TrieChangeEvent.Type.UPDATE, key, val);
+            return true;
+
+        default:
+            if (!n.isWordEnd())
+                return false;
+
+            n.setWordEndFalse();
+            cursor.changed(-1);
+            if (changeTracking)
+                tombstones.put(key, modificationCount);
+            fireChange(TrieChangeEvent.Type.REMOVE, key, null);
+            return true;
+        }
+    }
+
+    /**
+     * Position in the tree for a walk over sorted keys. The cursor keeps the
+     * nodes from the root to the last key, and moving to the next key only
+     * pops the nodes below their common prefix. Changes to the number of keys
+     * under a node are collected while it is on the path and settled when it
+     * is popped: its reference count is adjusted, it is unlinked if no key is
+     * left under it, and it is stamped with the generation of the latest
+     * change and its aggregates refreshed if anything below it changed (the
+     * latest change is always below the nodes on the path). Only used with
+     * the tree locked.
+     */
+    private final class PathCursor
+    {
+        // nodes[d] is the node at depth d, reached by chars[d]. nodes[0] is
+        // the root. Node is an inner class of TrieTree<Value>, so Node[] is
+        // typed; only its creation has to go through the raw type.
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private Node[] nodes = (Node[]) new TrieTree.Node[16];
+        private char[] chars = new char[16];
+
+        // Pending change of the number of keys under nodes[d], and whether
+        // anything at or below nodes[d] changed.
+        private long[] countDeltas = new long[16];
+        private boolean[] dirty = new boolean[16];
+
+        private int depth;
+
+        PathCursor()
+        {
+            nodes[0] = rootNode;
+        }
+
+        /**
+         * This method moves the cursor to the key.
+         * 
+         * @param create
+         *            If true, missing nodes are created on the way down.
+         * @return The node at the end of the key. Null if create is false and
+         *         the key is not in the tree; the cursor then stays at the
+         *         longest prefix of the key that is.
+         */
+        Node seek(String key, boolean create)
+        {
+            int common = 0;
+            int limit = Math.min(depth, key.length());
+            while (common < limit && chars[common + 1] == key.charAt(common))
+                ++common;
+
+            unwind(common);
+            while (depth < key.length())
+            {
+                char c = key.charAt(depth);
+                Node child = nodes[depth].childrenNodes.get(c);
+                if (child == null)
+                {
+                    if (!create)
+                        return null;
+
+                    child = newNode();
+                    nodes[depth].childrenNodes.put(c, child);
+                }
+                push(child, c);
+            }
+
+            return nodes[depth];
+        }
+
+        /**
+         * This method records a change at the node the cursor is on.
+         * 
+         * @param keyDelta
+         *            Change of the number of keys ending at the node.
+         */
+        void changed(long keyDelta)
+        {
+            countDeltas[depth] += keyDelta;
+            dirty[depth] = true;
+            ++modificationCount;
+        }
+
+        /**
+         * This method settles every node on the path, leaving the tree
+         * consistent.
+         */
+        void finish()
+        {
+            unwind(0);
+            sizeOfTrie += countDeltas[0];
+            if (dirty[0])
+                settle(rootNode, modificationCount);
+
+            countDeltas[0] = 0;
+            dirty[0] = false;
+        }
+
+        private void push(Node child, char c)
+        {
+            if (++depth == nodes.length)
+            {
+                nodes = Arrays.copyOf(nodes, depth * 2);
+                chars = Arrays.copyOf(chars, depth * 2);
+                countDeltas = Arrays.copyOf(countDeltas, depth * 2);
+                dirty = Arrays.copyOf(dirty, depth * 2);
+            }
+
+            nodes[depth] = child;
+            chars[depth] = c;
+        }
+
+        // Pops and settles the nodes below the depth.
+        private void unwind(int toDepth)
+        {
+            for (; depth > toDepth; --depth)
+            {
+                Node n = nodes[depth];
+                if (dirty[depth])
+                {
+                    n.referenceCount += countDeltas[depth];
+                    if (n.referenceCount <= 0)
+                        nodes[depth - 1].childrenNodes.remove(chars[depth]);
+                    else
+                        settle(n, modificationCount);
+
+                    countDeltas[depth - 1] += countDeltas[depth];
+                    dirty[depth - 1] = true;
+                }
+
+                nodes[depth] = null;
+                countDeltas[depth] = 0;
+                dirty[depth] = false;
+            }
+        }
     }
 
     /**
@@ -431,7 +1629,33 @@ public class TrieTree<Value>
      * @return HashMap<String, Value> collection of all entries that match the
      *         prefix in the trie tree.
      */
-    public synchronized HashMap<String, Value> keyValueCollectionWithPrefix(String prefix)
+    public HashMap<String, Value> keyValueCollectionWithPrefix(String prefix)
+    {
+        TrieMetrics m = metrics;
+        if (m == null)
+        {
+            synchronized (this)
+            {
+                return keyValueCollectionWithPrefixLocked(prefix);
+            }
+        }
+
+        long start = System.nanoTime();
+        long acquired;
+        long released;
+        HashMap<String, Value> rc;
+        synchronized (this)
+        {
+            acquired = System.nanoTime();
+            rc = keyValueCollectionWithPrefixLocked(prefix);
+            released = System.nanoTime();
+        }
+        m.record(TrieMetrics.Operation.PREFIX_COLLECTION, start, acquired, released, rc.size());
+        return rc;
+    }
+
+    // Body of keyValueCollectionWithPrefix, called with the tree locked.
+    private HashMap<String, Value> keyValueCollectionWithPrefixLocked(String prefix)
     {
         HashMap<String, Value> keyCollection = new HashMap<String, Value>();
 
@@ -495,4 +1719,1149 @@ public class TrieTree<Value>
     {
         return keyValueCollectionWithPrefix("");
     }
+
+    /**
+     * This method collects all entries that contain the prefix input with the
+     * given collector, walking the subtree under the prefix in parallel on the
+     * common fork/join pool.
+     * 
+     * @param prefix
+     *            String of the prefix.
+     * @param collector
+     *            Collector that receives every matching key/value entry.
+     * @return Result of the collector. The result of an empty collection if
+     *         nothing matches the prefix.
+     */
+    public <A, R> R collectWithPrefix(String prefix, Collector<? super Map.Entry<String, Value>, A, R> collector)
+    {
+        return collectWithPrefix(prefix, collector, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * This method collects all entries that contain the prefix input with the
+     * given collector. The subtree under the prefix is split into fork/join
+     * tasks by child branches, so idle workers steal whole branches and the
+     * partial results are combined with the collector's combiner. Concurrent
+     * collectors share a single container instead.
+     * 
+     * The tree is locked for the duration of the call, so the workers see a
+     * stable tree while writers wait.
+     * 
+     * @param prefix
+     *            String of the prefix.
+     * @param collector
+     *            Collector that receives every matching key/value entry.
+     * @param pool
+     *            Fork/join pool that runs the traversal.
+     * @return Result of the collector. The result of an empty collection if
+     *         nothing matches the prefix.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <A, R> R collectWithPrefix(String prefix,
+        Collector<? super Map.Entry<String, Value>, A, R> collector, ForkJoinPool pool)
+    {
+        Node n = getPrefixNode(prefix);
+
+        A container;
+        if (n == null)
+            container = collector.supplier().get();
+        else if (collector.characteristics().contains(Collector.Characteristics.CONCURRENT)
+            && collector.characteristics().contains(Collector.Characteristics.UNORDERED))
+        {
+            container = collector.supplier().get();
+            pool.invoke(new CollectTask<A>(prefix, n, collector, container));
+        }
+        else
+            container = pool.invoke(new CollectTask<A>(prefix, n, collector, null));
+
+        if (collector.characteristics().contains(Collector.Characteristics.IDENTITY_FINISH))
+            return (R) container;
+
+        return collector.finisher().apply(container);
+    }
+
+    /**
+     * This method returns a HashMap<String, Value> collection that contain the
+     * prefix input in the trie tree, walking the subtree in parallel.
+     * 
+     * @param prefix
+     *            String of the prefix.
+     * @return HashMap<String, Value> collection of all entries that match the
+     *         prefix in the trie tree.
+     */
+    public HashMap<String, Value> parallelKeyValueCollectionWithPrefix(String prefix)
+    {
+        Collector<Map.Entry<String, Value>, HashMap<String, Value>, HashMap<String, Value>> toHashMap = Collector.of(
+            new Supplier<HashMap<String, Value>>()
+            {
+                public HashMap<String, Value> get()
+                {
+                    return new HashMap<String, Value>();
+                }
+            }, new BiConsumer<HashMap<String, Value>, Map.Entry<String, Value>>()
+            {
+                public void accept(HashMap<String, Value> keyCollection, Map.Entry<String, Value> entry)
+                {
+                    keyCollection.put(entry.getKey(), entry.getValue());
+                }
+            }, new BinaryOperator<HashMap<String, Value>>()
+            {
+                public HashMap<String, Value> apply(HashMap<String, Value> left, HashMap<String, Value> right)
+                {
+                    // Merge the smaller map into the larger one.
+                    if (left.size() < right.size())
+                    {
+                        right.putAll(left);
+                        return right;
+                    }
+                    left.putAll(right);
+                    return left;
+                }
+            }, Collector.Characteristics.IDENTITY_FINISH);
+
+        return collectWithPrefix(prefix, toHashMap);
+    }
+
+    /**
+     * This method returns the node at the end of the prefix, the root for the
+     * empty prefix, or null if nothing in the tree has the prefix.
+     */
+    private Node getPrefixNode(String prefix)
+    {
+        if (prefix == null)
+            return null;
+
+        // Walk with charAt rather than substrings so the lookup stays linear
+        // in the prefix length.
+        Node n = rootNode;
+        for (int i = 0; i < prefix.length() && n != null; ++i)
+            n = n.childrenNodes.get(prefix.charAt(i));
+
+        return n;
+    }
+
+    /**
+     * This method returns the number of keys at or below a node. The root node
+     * does not keep a reference count, so the size of the tree is used.
+     */
+    private long countOf(Node n)
+    {
+        return n == rootNode ? sizeOfTrie : n.getRefCount();
+    }
+
+    /**
+     * This method accumulates every key/value entry under the parent node into
+     * a collector container. Same walk as addToKVPrefixCollection.
+     */
+    private <A> void addToCollector(StringBuilder prefix, Node parentNode, A container,
+        BiConsumer<A, ? super Map.Entry<String, Value>> accumulator)
+    {
+        if (parentNode.isWordEnd())
+            accumulator.accept(container,
+                               new AbstractMap.SimpleImmutableEntry<String, Value>(prefix.toString(),
+                                                                                   parentNode.getValue()));
+
+        for (Map.Entry<Character, Node> child : parentNode.childrenNodes.entrySet())
+        {
+            prefix.append(child.getKey());
+            addToCollector(prefix, child.getValue(), container, accumulator);
+            prefix.deleteCharAt(prefix.length() - 1);
+        }
+    }
+
+    /**
+     * This method returns the entries whose keys fall in the range
+     * [fromKey, toKey), in lexicographic order of the keys.
+     * 
+     * @param fromKey
+     *            Lowest key of the range, inclusive. Null for no lower bound.
+     * @param toKey
+     *            Highest key of the range, exclusive. Null for no upper bound.
+     * @return LinkedHashMap<String, Value> collection of the entries in the
+     *         range, ordered by key.
+     */
+    public synchronized LinkedHashMap<String, Value> range(String fromKey, String toKey)
+    {
+        return range(fromKey, toKey, Integer.MAX_VALUE);
+    }
+
+    /**
+     * This method returns at most limit entries whose keys fall in the range
+     * [fromKey, toKey), in lexicographic order of the keys.
+     * 
+     * @param fromKey
+     *            Lowest key of the range, inclusive. Null for no lower bound.
+     * @param toKey
+     *            Highest key of the range, exclusive. Null for no upper bound.
+     * @param limit
+     *            Maximum number of entries to return.
+     * @return LinkedHashMap<String, Value> collection of the first entries in
+     *         the range, ordered by key.
+     */
+    public synchronized LinkedHashMap<String, Value> range(String fromKey, String toKey, int limit)
+    {
+        LinkedHashMap<String, Value> keyCollection = new LinkedHashMap<String, Value>();
+        if (limit <= 0 || (fromKey != null && toKey != null && fromKey.compareTo(toKey) >= 0))
+            return keyCollection;
+
+        addToRangeCollection(new StringBuilder(), rootNode, fromKey, true, fromKey != null, toKey,
+                             toKey != null, limit, keyCollection);
+        return keyCollection;
+    }
+
+    /**
+     * This method returns the lowest key in the tree that is greater than or
+     * equal to the given key.
+     * 
+     * @param key
+     *            String of the key.
+     * @return The ceiling key. Null if there is no such key.
+     */
+    public synchronized String ceilingKey(String key)
+    {
+        if (key == null)
+            return null;
+
+        LinkedHashMap<String, Value> first = range(key, null, 1);
+        return first.isEmpty() ? null : first.keySet().iterator().next();
+    }
+
+    /**
+     * This method returns the highest key in the tree that is less than or
+     * equal to the given key.
+     * 
+     * @param key
+     *            String of the key.
+     * @return The floor key. Null if there is no such key.
+     */
+    public synchronized String floorKey(String key)
+    {
+        if (key == null || key.isEmpty())
+            return null;
+
+        // Walk down the key. At every depth the best candidate so far is
+        // either the key prefix itself (if it is a word) or the highest key
+        // of the highest branch that sorts before the next key character.
+        // Deeper candidates are always higher than shallower ones.
+        Node candidateNode = null;
+        int candidateDepth = 0;
+        char candidateChar = 0;
+        boolean candidateIsBranch = false;
+
+        Node n = rootNode;
+        for (int depth = 0; depth < key.length(); ++depth)
+        {
+            char c = key.charAt(depth);
+            if (n != rootNode && n.isWordEnd())
+            {
+                candidateNode = n;
+                candidateDepth = depth;
+                candidateIsBranch = false;
+            }
+
+            Map.Entry<Character, Node> lower = n.childrenNodes.lowerEntry(c);
+            if (lower != null)
+            {
+                candidateNode = lower.getValue();
+                candidateDepth = depth;
+                candidateChar = lower.getKey();
+                candidateIsBranch = true;
+            }
+
+            n = n.childrenNodes.get(c);
+            if (n == null)
+                break;
+        }
+
+        if (n != null && n.isWordEnd())
+            return key;
+        if (candidateNode == null)
+            return null;
+
+        // A candidate reached through a lower branch stands for the highest
+        // key below it, so keep taking the last child.
+        StringBuilder floor = new StringBuilder(key.substring(0, candidateDepth));
+        if (candidateIsBranch)
+        {
+            floor.append(candidateChar);
+            while (!candidateNode.childrenNodes.isEmpty())
+            {
+                Map.Entry<Character, Node> last = candidateNode.childrenNodes.lastEntry();
+                floor.append(last.getKey());
+                candidateNode = last.getValue();
+            }
+        }
+
+        return floor.toString();
+    }
+
+    /**
+     * This method returns the longest key that is a prefix of the input. See
+     * longestPrefixLength(CharSequence, int).
+     * 
+     * @param input
+     *            Characters to match.
+     * @return The longest key that the input starts with. Null if there is
+     *         none.
+     */
+    public String longestPrefixOf(CharSequence input)
+    {
+        return longestPrefixOf(input, 0);
+    }
+
+    /**
+     * This method returns the longest key that is a prefix of the input from
+     * the offset on. See longestPrefixLength(CharSequence, int).
+     * 
+     * @param input
+     *            Characters to match.
+     * @param offset
+     *            Index of the first character to match.
+     * @return The longest key that the input starts with at the offset. Null
+     *         if there is none.
+     */
+    public String longestPrefixOf(CharSequence input, int offset)
+    {
+        int length = longestPrefixLength(input, offset);
+        return length == 0 ? null : input.subSequence(offset, offset + length).toString();
+    }
+
+    /**
+     * This method returns the length of the longest key that is a prefix of
+     * the input from the offset on. It is a single forward walk that stops at
+     * the first character without a child, and it allocates nothing, so it
+     * suits routing and tokenizing long inputs.
+     * 
+     * @param input
+     *            Characters to match.
+     * @param offset
+     *            Index of the first character to match.
+     * @return Length of the longest matching key. 0 if the input is null or no
+     *         key matches.
+     */
+    public synchronized int longestPrefixLength(CharSequence input, int offset)
+    {
+        if (input == null)
+            return 0;
+        checkOffset(input, offset);
+
+        int longest = 0;
+        Node n = rootNode;
+        for (int i = offset; i < input.length(); ++i)
+        {
+            n = n.childrenNodes.get(input.charAt(i));
+            if (n == null)
+                break;
+
+            if (n.isWordEnd())
+                longest = i - offset + 1;
+        }
+
+        return longest;
+    }
+
+    /**
+     * This method returns every key that is a prefix of the input from the
+     * offset on, in one forward walk that stops at the first character without
+     * a child.
+     * 
+     * @param input
+     *            Characters to match.
+     * @param offset
+     *            Index of the first character to match.
+     * @return LinkedHashMap<String, Value> collection of the matching keys,
+     *         shortest first. Empty if the input is null or no key matches.
+     */
+    public synchronized LinkedHashMap<String, Value> prefixesOf(CharSequence input, int offset)
+    {
+        LinkedHashMap<String, Value> keyCollection = new LinkedHashMap<String, Value>();
+        if (input == null)
+            return keyCollection;
+        checkOffset(input, offset);
+
+        Node n = rootNode;
+        for (int i = offset; i < input.length(); ++i)
+        {
+            n = n.childrenNodes.get(input.charAt(i));
+            if (n == null)
+                break;
+
+            if (n.isWordEnd())
+                keyCollection.put(input.subSequence(offset, i + 1).toString(), n.getValue());
+        }
+
+        return keyCollection;
+    }
+
+    private static void checkOffset(CharSequence input, int offset)
+    {
+        if (offset < 0 || offset > input.length())
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + input.length());
+    }
+
+    /**
+     * This method returns one page of the entries that contain the prefix, in
+     * lexicographic order of the keys. Pass the continuation token of a page
+     * in to get the page after it. The walk only visits the entries it
+     * returns, so large result sets never have to be materialized.
+     * 
+     * @param prefix
+     *            String of the prefix.
+     * @param continuationToken
+     *            Token of the previous page. Null for the first page.
+     * @param limit
+     *            Maximum number of entries on the page.
+     * @return Page of entries that contain the prefix.
+     * @throws IllegalArgumentException
+     *             If the token was not produced for this prefix or the limit
+     *             is not positive.
+     */
+    public synchronized Page<Value> pageWithPrefix(String prefix, String continuationToken, int limit)
+    {
+        if (limit <= 0)
+            throw new IllegalArgumentException("Page limit must be positive: " + limit);
+
+        LinkedHashMap<String, Value> keyCollection = new LinkedHashMap<String, Value>();
+        String lastKey = continuationToken == null ? null : decodeContinuationToken(continuationToken);
+        if (prefix == null)
+            return new Page<Value>(keyCollection, null);
+        if (lastKey != null && !lastKey.startsWith(prefix))
+            throw new IllegalArgumentException("Continuation token does not belong to prefix \"" + prefix + "\"");
+
+        Node n = getPrefixNode(prefix);
+        if (n == null)
+            return new Page<Value>(keyCollection, null);
+
+        int rc = addToRangeCollection(new StringBuilder(prefix), n, lastKey, false, lastKey != null, null,
+                                      false, limit, keyCollection);
+
+        String nextToken = null;
+        if (rc == WALK_LIMIT_REACHED)
+        {
+            String last = null;
+            for (String key : keyCollection.keySet())
+                last = key;
+            nextToken = encodeContinuationToken(last);
+        }
+
+        return new Page<Value>(keyCollection, nextToken);
+    }
+
+    /**
+     * This method walks the subtree of the parent node in lexicographic order
+     * and adds the entries within the bounds to the key-value collection.
+     * Branches entirely outside the bounds are skipped without being walked.
+     * 
+     * @param path
+     *            Key prefix that leads to the parent node.
+     * @param parentNode
+     *            Node at the end of the path.
+     * @param lower
+     *            Lower bound, or null.
+     * @param lowerInclusive
+     *            True if a key equal to the lower bound is in range.
+     * @param onLowerPath
+     *            True if the path is a prefix of the lower bound. Otherwise
+     *            the whole subtree is above the lower bound.
+     * @param upper
+     *            Exclusive upper bound, or null.
+     * @param onUpperPath
+     *            True if the path is a prefix of the upper bound. Otherwise
+     *            the whole subtree is below the upper bound.
+     * @param limit
+     *            Maximum number of entries in the collection.
+     * @param keyCollection
+     *            Ordered collection of the entries in range.
+     * @return WALK_CONTINUE if the walk should go on with the next sibling.
+     *         WALK_PAST_UPPER_BOUND or WALK_LIMIT_REACHED if it is over.
+     */
+    private int addToRangeCollection(StringBuilder path, Node parentNode, String lower, boolean lowerInclusive,
+        boolean onLowerPath, String upper, boolean onUpperPath, int limit,
+        LinkedHashMap<String, Value> keyCollection)
+    {
+        int depth = path.length();
+        if (onUpperPath && depth == upper.length())
+            return WALK_PAST_UPPER_BOUND; // Every key left is >= upper.
+
+        // A path that is a proper prefix of the lower bound sorts before it.
+        boolean atLowerBound = onLowerPath && depth == lower.length();
+        if (parentNode.isWordEnd() && (!onLowerPath || (atLowerBound && lowerInclusive)))
+        {
+            if (keyCollection.size() >= limit)
+                return WALK_LIMIT_REACHED;
+            keyCollection.put(path.toString(), parentNode.getValue());
+        }
+
+        // Below the lower bound itself every key is higher, so only the
+        // branches from the next lower bound character onwards matter.
+        Map<Character, Node> children = parentNode.childrenNodes;
+        if (onLowerPath && !atLowerBound)
+            children = parentNode.childrenNodes.tailMap(lower.charAt(depth), true);
+
+        for (Map.Entry<Character, Node> child : children.entrySet())
+        {
+            char c = child.getKey();
+            boolean childOnLowerPath = onLowerPath && !atLowerBound && c == lower.charAt(depth);
+            boolean childOnUpperPath = false;
+            if (onUpperPath)
+            {
+                char upperChar = upper.charAt(depth);
+                if (c > upperChar)
+                    return WALK_PAST_UPPER_BOUND;
+                childOnUpperPath = c == upperChar;
+            }
+
+            path.append(c);
+            int rc = addToRangeCollection(path, child.getValue(), lower, lowerInclusive, childOnLowerPath,
+                                          upper, childOnUpperPath, limit, keyCollection);
+            path.deleteCharAt(path.length() - 1);
+            if (rc != WALK_CONTINUE)
+                return rc;
+        }
+
+        return WALK_CONTINUE;
+    }
+
+    private static String encodeContinuationToken(String lastKey)
+    {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(lastKey.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeContinuationToken(String token)
+    {
+        try
+        {
+            return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Malformed continuation token: " + token, e);
+        }
+    }
+
+    /**
+     * This method returns the k keys with the greatest Values among those that
+     * contain the prefix, such as the best autocomplete entries for what the
+     * user typed. Only the best k entries are kept while the keys under the
+     * prefix are walked, so no collection of every match is built and the cost
+     * is O(n log k) for n matches.
+     * 
+     * @param prefix
+     *            String of the prefix.
+     * @param k
+     *            Most keys to return.
+     * @param comparator
+     *            Order of the Values.
+     * @return LinkedHashMap<String, Value> of the top keys, greatest Value
+     *         first; equal Values in key order. Keys without a Value are
+     *         skipped.
+     */
+    public synchronized LinkedHashMap<String, Value> topKWithPrefix(String prefix, int k,
+        final Comparator<? super Value> comparator)
+    {
+        if (k < 0)
+            throw new IllegalArgumentException("k must not be negative: " + k);
+
+        LinkedHashMap<String, Value> top = new LinkedHashMap<String, Value>();
+        Node n = getPrefixNode(prefix);
+        if (n == null || k == 0)
+            return top;
+
+        // The heap keeps the worst of the best entries at its head.
+        Comparator<Map.Entry<String, Value>> rank = new Comparator<Map.Entry<String, Value>>()
+        {
+            public int compare(Map.Entry<String, Value> left, Map.Entry<String, Value> right)
+            {
+                int c = comparator.compare(left.getValue(), right.getValue());
+                return c != 0 ? c : right.getKey().compareTo(left.getKey());
+            }
+        };
+        PriorityQueue<Map.Entry<String, Value>> heap = new PriorityQueue<Map.Entry<String, Value>>(
+            Math.min(k, 1024) + 1, rank);
+        addToTopK(new StringBuilder(prefix), n, k, comparator, heap);
+
+        ArrayList<Map.Entry<String, Value>> sorted = new ArrayList<Map.Entry<String, Value>>(heap);
+        Collections.sort(sorted, Collections.reverseOrder(rank));
+        for (Map.Entry<String, Value> entry : sorted)
+            top.put(entry.getKey(), entry.getValue());
+
+        return top;
+    }
+
+    /**
+     * This method returns the k keys with the greatest Values among those that
+     * contain the prefix, like topKWithPrefix(String, int, Comparator), but
+     * searches best first: every node knows the greatest Value below it from
+     * the max aggregate, so only the nodes on the way to the top keys and
+     * their siblings are visited, whatever the number of matches. This is the
+     * one to use for short prefixes of large trees.
+     * 
+     * @param prefix
+     *            String of the prefix.
+     * @param k
+     *            Most keys to return.
+     * @param max
+     *            TrieAggregates.max(comparator), registered with addAggregate.
+     * @param comparator
+     *            Order of the Values.
+     * @return LinkedHashMap<String, Value> of the top keys, greatest Value
+     *         first; equal Values in key order. Keys without a Value are
+     *         skipped.
+     * @throws IllegalArgumentException
+     *             If the aggregate is not registered.
+     */
+    public synchronized LinkedHashMap<String, Value> topKWithPrefix(String prefix, int k,
+        TrieAggregate<? super Value, ? extends Value> max, Comparator<? super Value> comparator)
+    {
+        if (k < 0)
+            throw new IllegalArgumentException("k must not be negative: " + k);
+
+        LinkedHashMap<String, Value> top = new LinkedHashMap<String, Value>();
+        for (Map.Entry<String, Value> entry : rankedCursor(prefix, max, comparator).next(k))
+            top.put(entry.getKey(), entry.getValue());
+
+        return top;
+    }
+
+    /**
+     * This method starts a best-first search of the keys with the prefix in
+     * decreasing order of their Values, which the cursor continues as entries
+     * are asked for. Nothing is visited until the first call to next, so a
+     * cursor for a prefix with many keys is as cheap to create as any other.
+     * 
+     * @param prefix
+     *            String of the prefix.
+     * @param max
+     *            TrieAggregates.max(comparator), registered with addAggregate.
+     * @param comparator
+     *            Order of the Values.
+     * @return Cursor over the keys with the prefix, in rank order.
+     * @throws IllegalArgumentException
+     *             If the aggregate is not registered.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized TrieRankedCursor<Value> rankedCursor(String prefix,
+        TrieAggregate<? super Value, ? extends Value> max, Comparator<? super Value> comparator)
+    {
+        int index = aggregates.indexOf(max);
+        if (index < 0)
+            throw new IllegalArgumentException("Aggregate is not registered with this tree.");
+
+        RankedSearch search = new RankedSearch(index, comparator);
+        Node n = getPrefixNode(prefix);
+        if (n != null && n.aggregateValues[index] != null)
+            search.queue.add(new TopKCandidate(n, prefix, (Value) n.aggregateValues[index]));
+
+        return search;
+    }
+
+    /**
+     * Best-first search behind rankedCursor. The queue holds subtrees, bounded
+     * by the greatest Value in them, and keys already found, with their own
+     * Value; whenever a key is at the head of the queue, no key still to be
+     * found can beat it. Only used with the tree locked.
+     */
+    private final class RankedSearch implements TrieRankedCursor<Value>
+    {
+        private final int index;
+        private final long version = modificationCount;
+        private final PriorityQueue<TopKCandidate> queue;
+
+        RankedSearch(int index, final Comparator<? super Value> comparator)
+        {
+            this.index = index;
+
+            // Greatest bound first. A node's path sorts before every key below
+            // it, so on equal Values the keys still come out in key order.
+            queue = new PriorityQueue<TopKCandidate>(16, new Comparator<TopKCandidate>()
+            {
+                public int compare(TopKCandidate left, TopKCandidate right)
+                {
+                    int c = comparator.compare(right.bound, left.bound);
+                    if (c != 0)
+                        return c;
+
+                    c = left.path.compareTo(right.path);
+                    if (c != 0)
+                        return c;
+
+                    return (left.node == null ? 0 : 1) - (right.node == null ? 0 : 1);
+                }
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        public List<Map.Entry<String, Value>> next(int n)
+        {
+            synchronized (TrieTree.this)
+            {
+                if (isStale())
+                    throw new ConcurrentModificationException("The tree changed since the cursor was created.");
+
+                ArrayList<Map.Entry<String, Value>> entries = new ArrayList<Map.Entry<String, Value>>();
+                while (entries.size() < n && !queue.isEmpty())
+                {
+                    TopKCandidate candidate = queue.poll();
+                    if (candidate.node == null)
+                    {
+                        entries.add(new AbstractMap.SimpleImmutableEntry<String, Value>(candidate.path,
+                                                                                         candidate.bound));
+                        continue;
+                    }
+
+                    Node node = candidate.node;
+                    if (node.isWordEnd() && node.getValue() != null)
+                        queue.add(new TopKCandidate(null, candidate.path, node.getValue()));
+
+                    for (Map.Entry<Character, Node> child : node.childrenNodes.entrySet())
+                    {
+                        Value bound = (Value) child.getValue().aggregateValues[index];
+                        if (bound != null)
+                            queue.add(new TopKCandidate(child.getValue(), candidate.path + child.getKey(), bound));
+                    }
+                }
+
+                return entries;
+            }
+        }
+
+        public boolean hasNext()
+        {
+            synchronized (TrieTree.this)
+            {
+                return !queue.isEmpty() || isStale();
+            }
+        }
+
+        public boolean isStale()
+        {
+            synchronized (TrieTree.this)
+            {
+                return modificationCount != version;
+            }
+        }
+    }
+
+    // A subtree to search (node is set) or a key found (node is null) in a
+    // best-first search. bound is the greatest Value in the subtree, or the
+    // Value of the key.
+    private final class TopKCandidate
+    {
+        final Node node;
+        final String path;
+        final Value bound;
+
+        TopKCandidate(Node node, String path, Value bound)
+        {
+            this.node = node;
+            this.path = path;
+            this.bound = bound;
+        }
+    }
+
+    /**
+     * This method walks the keys under the node in order and keeps the best k
+     * in the heap. Keys come in increasing order, so a key whose Value only
+     * ties the worst kept entry loses to it, and its String is never built.
+     */
+    private void addToTopK(StringBuilder prefix, Node parentNode, int k, Comparator<? super Value> comparator,
+        PriorityQueue<Map.Entry<String, Value>> heap)
+    {
+        Value val = parentNode.getValue();
+        if (parentNode.isWordEnd() && val != null)
+        {
+            if (heap.size() < k)
+                heap.add(new AbstractMap.SimpleImmutableEntry<String, Value>(prefix.toString(), val));
+            else if (comparator.compare(val, heap.peek().getValue()) > 0)
+            {
+                heap.poll();
+                heap.add(new AbstractMap.SimpleImmutableEntry<String, Value>(prefix.toString(), val));
+            }
+        }
+
+        for (Map.Entry<Character, Node> child : parentNode.childrenNodes.entrySet())
+        {
+            prefix.append(child.getKey());
+            addToTopK(prefix, child.getValue(), k, comparator, heap);
+            prefix.deleteCharAt(prefix.length() - 1);
+        }
+    }
+
+    /**
+     * This method returns the number of keys that contain the prefix, using
+     * the reference count of the node at the end of the prefix.
+     * 
+     * @param prefix
+     *            String of the prefix.
+     * @return Number of keys that contain the prefix. The size of the tree for
+     *         the empty prefix.
+     */
+    public synchronized long countWithPrefix(String prefix)
+    {
+        Node n = getPrefixNode(prefix);
+        return n == null ? 0 : countOf(n);
+    }
+
+    /**
+     * This method returns the rank of a key, i.e. the number of keys in the
+     * tree that sort before it. The key does not have to be in the tree, in
+     * which case the rank is the index it would be inserted at.
+     * 
+     * @param key
+     *            String of the key.
+     * @return Number of keys in the tree lower than the key. -1 if the key is
+     *         null or empty.
+     */
+    public synchronized long rank(String key)
+    {
+        if (key == null || key.isEmpty())
+            return -1;
+
+        // Every word on the way down is a prefix of the key and sorts before
+        // it, as does every branch that sorts before the next character.
+        long rank = 0;
+        Node n = rootNode;
+        for (int depth = 0; depth < key.length(); ++depth)
+        {
+            char c = key.charAt(depth);
+            if (n.isWordEnd())
+                ++rank;
+
+            for (Node lowerChild : n.childrenNodes.headMap(c, false).values())
+                rank += lowerChild.getRefCount();
+
+            n = n.childrenNodes.get(c);
+            if (n == null)
+                break;
+        }
+
+        return rank;
+    }
+
+    /**
+     * This method returns the key at the given index in lexicographic order.
+     * 
+     * @param index
+     *            Zero-based index of the key.
+     * @return Key at the index. Null if the index is out of range.
+     */
+    public synchronized String select(long index)
+    {
+        return select("", index);
+    }
+
+    /**
+     * This method returns the key at the given index in lexicographic order
+     * among the keys that contain the prefix.
+     * 
+     * @param prefix
+     *            String of the prefix.
+     * @param index
+     *            Zero-based index of the key among the keys with the prefix.
+     * @return Key at the index. Null if the index is out of range.
+     */
+    public synchronized String select(String prefix, long index)
+    {
+        Node n = getPrefixNode(prefix);
+        if (n == null || index < 0 || index >= countOf(n))
+            return null;
+
+        // Skip whole branches by their reference counts until the branch that
+        // holds the index is found, then go down into it.
+        StringBuilder key = new StringBuilder(prefix);
+        while (true)
+        {
+            if (n.isWordEnd())
+            {
+                if (index == 0)
+                    return key.toString();
+                --index;
+            }
+
+            Node next = null;
+            for (Map.Entry<Character, Node> child : n.childrenNodes.entrySet())
+            {
+                long childCount = child.getValue().getRefCount();
+                if (index < childCount)
+                {
+                    key.append(child.getKey());
+                    next = child.getValue();
+                    break;
+                }
+                index -= childCount;
+            }
+
+            // Reference counts always add up, so the index is under a child.
+            assert next != null;
+            n = next;
+        }
+    }
+
+    /**
+     * This method returns a key that contains the prefix, picked uniformly at
+     * random without enumerating the keys.
+     * 
+     * @param prefix
+     *            String of the prefix.
+     * @param random
+     *            Source of randomness.
+     * @return Random key with the prefix. Null if no key has the prefix.
+     */
+    public synchronized String sampleWithPrefix(String prefix, Random random)
+    {
+        long count = countWithPrefix(prefix);
+        if (count == 0)
+            return null;
+
+        return select(prefix, nextRandomIndex(random, count));
+    }
+
+    /**
+     * This method returns a uniformly distributed index in [0, bound), even
+     * for bounds above the int range.
+     */
+    private static long nextRandomIndex(Random random, long bound)
+    {
+        if (bound <= Integer.MAX_VALUE)
+            return random.nextInt((int) bound);
+
+        // Reject the top of the long range that would bias the modulo.
+        long bits, index;
+        do
+        {
+            bits = random.nextLong() >>> 1;
+            index = bits % bound;
+        }
+        while (bits - index + (bound - 1) < 0);
+
+        return index;
+    }
+
+    /**
+     * This method registers an aggregate that is then kept up to date in every
+     * node, the same way as the reference counts. The aggregate of the current
+     * tree is computed once here; after that, put, update and remove refresh
+     * it along the key path only.
+     * 
+     * @param aggregate
+     *            Aggregate to maintain. Registering it again does nothing.
+     */
+    public synchronized void addAggregate(TrieAggregate<? super Value, ?> aggregate)
+    {
+        if (aggregates.contains(aggregate))
+            return;
+
+        aggregates.add(aggregate);
+        extendAggregates(rootNode);
+    }
+
+    /**
+     * This method returns the aggregate of all the Values of the keys that
+     * contain the prefix in O(prefix length).
+     * 
+     * @param prefix
+     *            String of the prefix.
+     * @param aggregate
+     *            Aggregate registered with addAggregate.
+     * @return Aggregate of the Values under the prefix. The identity of the
+     *         aggregate if no key has the prefix.
+     * @throws IllegalArgumentException
+     *             If the aggregate is not registered.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <A> A aggregate(String prefix, TrieAggregate<? super Value, A> aggregate)
+    {
+        int index = aggregates.indexOf(aggregate);
+        if (index < 0)
+            throw new IllegalArgumentException("Aggregate is not registered with this tree.");
+
+        Node n = getPrefixNode(prefix);
+        if (n == null)
+            return aggregate.identity();
+
+        return (A) n.aggregateValues[index];
+    }
+
+    /**
+     * This method settles a node on the path of a change, bottom up: it is
+     * stamped with the generation of the change and its aggregates are
+     * recomputed.
+     */
+    private void settle(Node n, long generation)
+    {
+        if (changeTracking)
+            ((TrackedNode) n).generation = generation;
+        refreshAggregates(n);
+    }
+
+    // Stamps a node with the generation of a put or update of its Value.
+    private void stampValue(Node n, long generation)
+    {
+        if (changeTracking)
+            ((TrackedNode) n).valueGeneration = generation;
+    }
+
+    // Creates a node, stamped if the tree tracks changes.
+    private Node newNode()
+    {
+        return changeTracking ? new TrackedNode() : new Node();
+    }
+
+    /**
+     * This method recomputes the aggregates of a node from its own Value and
+     * the aggregates of its children. Callers go bottom up along the key path,
+     * so the children are always current.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void refreshAggregates(Node n)
+    {
+        if (aggregates.isEmpty())
+            return;
+
+        for (int i = 0; i < aggregates.size(); ++i)
+        {
+            TrieAggregate aggregate = aggregates.get(i);
+            Object a = n.isWordEnd() ? aggregate.lift(n.getValue()) : aggregate.identity();
+            for (Node child : n.childrenNodes.values())
+                a = aggregate.combine(a, child.aggregateValues[i]);
+
+            n.aggregateValues[i] = a;
+        }
+    }
+
+    /**
+     * This method grows the aggregate values of every node under the parent
+     * node by the newest registered aggregate and computes it bottom up.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void extendAggregates(Node parentNode)
+    {
+        int index = aggregates.size() - 1;
+        Object[] values = new Object[aggregates.size()];
+        if (parentNode.aggregateValues != null)
+            System.arraycopy(parentNode.aggregateValues, 0, values, 0, index);
+        parentNode.aggregateValues = values;
+
+        TrieAggregate aggregate = aggregates.get(index);
+        Object a = parentNode.isWordEnd() ? aggregate.lift(parentNode.getValue()) : aggregate.identity();
+        for (Node child : parentNode.childrenNodes.values())
+        {
+            extendAggregates(child);
+            a = aggregate.combine(a, child.aggregateValues[index]);
+        }
+
+        values[index] = a;
+    }
+
+    /**
+     * This method reports the shape of the tree and an estimate of the heap it
+     * retains, broken down by structure. See stats(int).
+     * 
+     * @return Statistics of the tree.
+     */
+    public TrieStats stats()
+    {
+        return stats(STATS_NODES_PER_LOCK);
+    }
+
+    /**
+     * This method reports the shape of the tree and an estimate of the heap it
+     * retains, broken down by structure. The walk visits at most nodesPerLock
+     * nodes each time it holds the lock and lets writers in between, so it
+     * never stops them for long. Mutations that happen during the walk may or
+     * may not be reflected in the result.
+     * 
+     * @param nodesPerLock
+     *            Maximum number of nodes visited per lock acquisition.
+     * @return Statistics of the tree.
+     */
+    public TrieStats stats(int nodesPerLock)
+    {
+        if (nodesPerLock <= 0)
+            throw new IllegalArgumentException("Nodes per lock must be positive: " + nodesPerLock);
+
+        TrieStats stats = new TrieStats();
+        ArrayDeque<NodeAtDepth> pending = new ArrayDeque<NodeAtDepth>();
+        synchronized (this)
+        {
+            pending.push(new NodeAtDepth(rootNode, 0));
+        }
+
+        while (!pending.isEmpty())
+        {
+            synchronized (this)
+            {
+                for (int visited = 0; visited < nodesPerLock && !pending.isEmpty(); ++visited)
+                {
+                    NodeAtDepth next = pending.pop();
+                    addToStats(next.node, next.depth, stats, pending);
+                }
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * This method records one node in the stats and queues its children.
+     */
+    private void addToStats(Node n, int depth, TrieStats stats, ArrayDeque<NodeAtDepth> pending)
+    {
+        int fanOut = n.childrenNodes.size();
+        long mapBytes = TREE_MAP_BYTES + fanOut * TREE_MAP_ENTRY_BYTES;
+        long keyBytes = 0;
+        for (Map.Entry<Character, Node> child : n.childrenNodes.entrySet())
+        {
+            // Character.valueOf shares instances for the ASCII range.
+            if (child.getKey() > 127)
+                keyBytes += BOXED_CHARACTER_BYTES;
+            pending.push(new NodeAtDepth(child.getValue(), depth + 1));
+        }
+
+        long aggregateBytes = 0;
+        if (n.aggregateValues != null)
+        {
+            aggregateBytes = align(16 + 4L * n.aggregateValues.length);
+            for (Object a : n.aggregateValues)
+                aggregateBytes += estimateBytes(a);
+        }
+
+        stats.addNode(depth, fanOut, n.isWordEnd(), n instanceof TrackedNode ? TRACKED_NODE_BYTES : NODE_BYTES,
+                      mapBytes, keyBytes, n.isWordEnd() ? estimateBytes(n.getValue()) : 0, aggregateBytes);
+    }
+
+    /**
+     * This method estimates the shallow size of common Value types. Unknown
+     * types are counted as a bare object.
+     */
+    private static long estimateBytes(Object o)
+    {
+        if (o == null)
+            return 0;
+        if (o instanceof Integer || o instanceof Short || o instanceof Byte)
+        {
+            // Boxes of small values come from a shared cache.
+            long v = ((Number) o).longValue();
+            return v >= -128 && v <= 127 ? 0 : 16;
+        }
+        if (o instanceof Long)
+        {
+            long v = (Long) o;
+            return v >= -128 && v <= 127 ? 0 : 24;
+        }
+        if (o instanceof Double)
+            return 24;
+        if (o instanceof String)
+        {
+            // String object plus its byte array, assuming compact Latin-1.
+            return 24 + align(16 + ((String) o).length());
+        }
+
+        return 16;
+    }
+
+    private static long align(long bytes)
+    {
+        return (bytes + 7) & ~7L;
+    }
 }
@@ -1,7 +1,17 @@
 package trietree;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
 
@@ -209,4 +219,846 @@ public class TrieTreeTester
         assertTrue("All keys: \"cat\", \"catastrophe\", \"cats\", \"catnap\", \"catacomb\", \"ca\", \"c\", \"dog\", and \"dogged\"",
                    hm_expected.equals(tt_integer.allKeyValues()));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCollectWithPrefix()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        assertEquals("Empty tree collects nothing", Collections.emptyMap(),
+                     tt_integer.parallelKeyValueCollectionWithPrefix(""));
+
+        // Enough keys under "a" to split the walk into several tasks.
+        HashMap<String, Integer> hm_expected = new HashMap<String, Integer>();
+        for (int i = 0; i < 20000; ++i)
+        {
+            tt_integer.put("a" + Integer.toString(i, 7), i);
+            hm_expected.put("a" + Integer.toString(i, 7), i);
+        }
+        tt_integer.put("b", null);
+
+        assertTrue("Parallel prefix 'a' matches every key under \"a\"",
+                   hm_expected.equals(tt_integer.parallelKeyValueCollectionWithPrefix("a")));
+        assertEquals("Parallel prefix 'a' matches the sequential walk",
+                     tt_integer.keyValueCollectionWithPrefix("a"),
+                     tt_integer.parallelKeyValueCollectionWithPrefix("a"));
+        assertEquals("Parallel prefix 'z' has no matches", Collections.emptyMap(),
+                     tt_integer.parallelKeyValueCollectionWithPrefix("z"));
+        assertEquals("Null values are collected", 20001, tt_integer.parallelKeyValueCollectionWithPrefix("").size());
+        assertEquals("Counting collector counts every key", 20001L,
+                     (long) tt_integer.collectWithPrefix("", Collectors.counting()));
+        assertEquals("Concurrent collector receives every key under \"a1\"",
+                     tt_integer.keyValueCollectionWithPrefix("a1").keySet(),
+                     tt_integer.collectWithPrefix("a1", Collectors.toConcurrentMap(
+                         new Function<Map.Entry<String, Integer>, String>()
+                         {
+                             public String apply(Map.Entry<String, Integer> entry)
+                             {
+                                 return entry.getKey();
+                             }
+                         }, new Function<Map.Entry<String, Integer>, Integer>()
+                         {
+                             public Integer apply(Map.Entry<String, Integer> entry)
+                             {
+                                 return entry.getValue();
+                             }
+                         })).keySet());
+    }
+
+    @Test
+    public void testOrderedTraversal()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        assertEquals("Empty tree has an empty range", Collections.emptyMap(), tt_integer.range(null, null));
+        assertEquals("Empty tree has no ceiling", null, tt_integer.ceilingKey("cat"));
+        assertEquals("Empty tree has no floor", null, tt_integer.floorKey("cat"));
+
+        String[] keys = { "c", "ca", "cat", "catacomb", "catastrophe", "catnap", "cats", "dog", "dogged" };
+        for (int i = keys.length - 1; i >= 0; --i)
+            tt_integer.put(keys[i], i);
+
+        assertEquals("Full range is sorted", Arrays.asList(keys),
+                     new ArrayList<String>(tt_integer.range(null, null).keySet()));
+        assertEquals("Range [\"cat\", \"cats\") excludes \"cats\"",
+                     Arrays.asList("cat", "catacomb", "catastrophe", "catnap"),
+                     new ArrayList<String>(tt_integer.range("cat", "cats").keySet()));
+        assertEquals("Range [\"catb\", \"dogz\") starts after the \"cata\" branch",
+                     Arrays.asList("catnap", "cats", "dog", "dogged"),
+                     new ArrayList<String>(tt_integer.range("catb", "dogz").keySet()));
+        assertEquals("Range [\"b\", \"ca\") has only \"c\"", Arrays.asList("c"),
+                     new ArrayList<String>(tt_integer.range("b", "ca").keySet()));
+        assertEquals("Range with limit stops early", Arrays.asList("c", "ca"),
+                     new ArrayList<String>(tt_integer.range(null, null, 2).keySet()));
+        assertEquals("Empty range", Collections.emptyMap(), tt_integer.range("dog", "dog"));
+        assertEquals("Range keeps values", 2, (int) tt_integer.range("cat", "cata").get("cat"));
+
+        assertEquals("Ceiling of existing key is the key", "cat", tt_integer.ceilingKey("cat"));
+        assertEquals("Ceiling of \"catb\" is \"catnap\"", "catnap", tt_integer.ceilingKey("catb"));
+        assertEquals("Ceiling of \"a\" is \"c\"", "c", tt_integer.ceilingKey("a"));
+        assertEquals("Ceiling of \"cav\" is \"dog\"", "dog", tt_integer.ceilingKey("cav"));
+        assertEquals("Nothing is above \"doggy\"", null, tt_integer.ceilingKey("doggy"));
+
+        assertEquals("Floor of existing key is the key", "catnap", tt_integer.floorKey("catnap"));
+        assertEquals("Floor of \"catb\" is \"catastrophe\"", "catastrophe", tt_integer.floorKey("catb"));
+        assertEquals("Floor of \"catab\" is \"cat\"", "cat", tt_integer.floorKey("catab"));
+        assertEquals("Floor of \"do\" is \"cats\"", "cats", tt_integer.floorKey("do"));
+        assertEquals("Floor of \"z\" is \"dogged\"", "dogged", tt_integer.floorKey("z"));
+        assertEquals("Nothing is below \"b\"", null, tt_integer.floorKey("b"));
+    }
+
+    @Test
+    public void testPageWithPrefix()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 1000; ++i)
+        {
+            tt_integer.put("k" + i, i);
+            expected.add("k" + i);
+        }
+        tt_integer.put("j", 0);
+        tt_integer.put("l", 0);
+        Collections.sort(expected);
+
+        ArrayList<String> paged = new ArrayList<String>();
+        String token = null;
+        int pages = 0;
+        do
+        {
+            TrieTree.Page<Integer> page = tt_integer.pageWithPrefix("k", token, 64);
+            assertTrue("Page is not larger than its limit", page.getEntries().size() <= 64);
+            paged.addAll(page.getEntries().keySet());
+            token = page.getContinuationToken();
+            ++pages;
+        }
+        while (token != null);
+
+        assertEquals("Pages cover every key with prefix \"k\" in order", expected, paged);
+        assertEquals("1000 keys fit in 16 pages of 64", 16, pages);
+        assertFalse("Page of a missing prefix has no more entries", tt_integer.pageWithPrefix("z", null, 5).hasMore());
+
+        try
+        {
+            tt_integer.pageWithPrefix("j", tt_integer.pageWithPrefix("k", null, 5).getContinuationToken(), 5);
+            fail("Token of another prefix is rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testOrderStatistics()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        assertEquals("Empty tree has nothing with prefix \"\"", 0, tt_integer.countWithPrefix(""));
+        assertEquals("Empty tree has nothing to select", null, tt_integer.select(0));
+        assertEquals("Empty tree has nothing to sample", null, tt_integer.sampleWithPrefix("", new Random(1)));
+
+        String[] keys = { "c", "ca", "cat", "catacomb", "catastrophe", "catnap", "cats", "dog", "dogged" };
+        for (int i = keys.length - 1; i >= 0; --i)
+            tt_integer.put(keys[i], i);
+
+        assertEquals("Prefix \"\" counts every key", 9, tt_integer.countWithPrefix(""));
+        assertEquals("Prefix \"cat\" counts 5 keys", 5, tt_integer.countWithPrefix("cat"));
+        assertEquals("Prefix \"cata\" counts 2 keys", 2, tt_integer.countWithPrefix("cata"));
+        assertEquals("Prefix \"z\" counts nothing", 0, tt_integer.countWithPrefix("z"));
+        assertEquals("Null prefix counts nothing", 0, tt_integer.countWithPrefix(null));
+
+        for (int i = 0; i < keys.length; ++i)
+        {
+            assertEquals("Rank of \"" + keys[i] + "\" is its index", i, tt_integer.rank(keys[i]));
+            assertEquals("Select " + i + " is \"" + keys[i] + "\"", keys[i], tt_integer.select(i));
+        }
+        assertEquals("Rank of missing \"catb\" is its insertion point", 5, tt_integer.rank("catb"));
+        assertEquals("Rank of missing \"a\" is 0", 0, tt_integer.rank("a"));
+        assertEquals("Rank of missing \"z\" is the size", 9, tt_integer.rank("z"));
+        assertEquals("Select past the end is null", null, tt_integer.select(9));
+        assertEquals("Select negative is null", null, tt_integer.select(-1));
+        assertEquals("Select 1 under \"cat\" is \"catacomb\"", "catacomb", tt_integer.select("cat", 1));
+        assertEquals("Select 2 under \"cata\" is out of range", null, tt_integer.select("cata", 2));
+
+        tt_integer.remove("catacomb");
+        assertEquals("Rank follows removals", 3, tt_integer.rank("catastrophe"));
+        assertEquals("Select follows removals", "catastrophe", tt_integer.select("cat", 1));
+
+        Random random = new Random(42);
+        HashMap<String, Integer> samples = new HashMap<String, Integer>();
+        for (int i = 0; i < 4000; ++i)
+        {
+            String key = tt_integer.sampleWithPrefix("cat", random);
+            assertTrue("Sample \"" + key + "\" has the prefix", key.startsWith("cat"));
+            samples.put(key, samples.containsKey(key) ? samples.get(key) + 1 : 1);
+        }
+        assertEquals("Every key under \"cat\" gets sampled", 4, samples.size());
+        for (int count : samples.values())
+            assertTrue("Samples are roughly uniform", count > 800 && count < 1200);
+    }
+
+    @Test
+    public void testAggregates()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        TrieAggregate<Number, Long> sum = TrieAggregates.sum();
+        TrieAggregate<Integer, Integer> max = TrieAggregates.max();
+
+        tt_integer.put("cat", 1);
+        tt_integer.put("catastrophe", 2);
+        tt_integer.put("cats", 3);
+        tt_integer.addAggregate(sum);
+        tt_integer.addAggregate(max);
+        tt_integer.addAggregate(sum);
+
+        assertEquals("Sum of existing keys is computed on registration", 6L, (long) tt_integer.aggregate("", sum));
+        assertEquals("Max of existing keys is computed on registration", 3, (int) tt_integer.aggregate("", max));
+
+        tt_integer.put("catnap", 4);
+        tt_integer.put("catacomb", 5);
+        tt_integer.put("ca", 6);
+        tt_integer.put("dog", 8);
+        tt_integer.put("dogged", 9);
+        assertEquals("Sum under \"cat\" follows puts", 15L, (long) tt_integer.aggregate("cat", sum));
+        assertEquals("Sum under \"cata\"", 7L, (long) tt_integer.aggregate("cata", sum));
+        assertEquals("Max under \"c\"", 6, (int) tt_integer.aggregate("c", max));
+        assertEquals("Sum under a missing prefix is the identity", 0L, (long) tt_integer.aggregate("z", sum));
+        assertEquals("Max under a missing prefix is the identity", null, tt_integer.aggregate("z", max));
+
+        tt_integer.update("catnap", 40);
+        assertEquals("Max under \"cat\" follows updates", 40, (int) tt_integer.aggregate("cat", max));
+        assertEquals("Sum of all follows updates", 74L, (long) tt_integer.aggregate("", sum));
+
+        tt_integer.remove("catnap");
+        tt_integer.remove("ca");
+        assertEquals("Max under \"c\" follows removals", 5, (int) tt_integer.aggregate("c", max));
+        assertEquals("Sum under \"ca\" follows removals", 11L, (long) tt_integer.aggregate("ca", sum));
+        assertFalse("Removing a missing key changes nothing", tt_integer.remove("catnap"));
+        assertEquals("Sum of all after removals", 28L, (long) tt_integer.aggregate("", sum));
+
+        tt_integer.removeAll();
+        assertEquals("Sum of an empty tree is the identity", 0L, (long) tt_integer.aggregate("", sum));
+
+        try
+        {
+            tt_integer.aggregate("", TrieAggregates.countNonNull());
+            fail("Unregistered aggregate is rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testStats()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        TrieStats empty = tt_integer.stats();
+        assertEquals("Empty tree has only the root", 1, empty.getNodeCount());
+        assertEquals("Empty tree has no keys", 0, empty.getKeyCount());
+        assertEquals("Empty tree has no edges", 0, empty.getEdgeCount());
+
+        tt_integer.put("cat", 1);
+        tt_integer.put("cats", 1000);
+        tt_integer.put("ca", 2);
+        tt_integer.put("dog", 3);
+
+        // Walk two nodes at a time to go through several lock acquisitions.
+        TrieStats stats = tt_integer.stats(2);
+        assertEquals("Root plus c, a, t, s, d, o, g", 8, stats.getNodeCount());
+        assertEquals("Every node but the root has an edge", 7, stats.getEdgeCount());
+        assertEquals("\"cats\" and \"dog\" end in leaves", 2, stats.getLeafCount());
+        assertEquals("Walk sees every key", 4, stats.getKeyCount());
+        assertEquals("Deepest node is the end of \"cats\"", 4, stats.getMaxDepth());
+        assertTrue("Depth histogram", Arrays.equals(new long[] { 1, 2, 2, 2, 1 }, stats.getDepthHistogram()));
+        assertTrue("Fan-out histogram", Arrays.equals(new long[] { 2, 5, 1 }, stats.getFanOutHistogram()));
+        assertEquals("Only 1000 needs its own Integer box", 16, stats.getValueBytes());
+        assertEquals("ASCII keys are never boxed separately", 0, stats.getBoxedKeyBytes());
+        assertTrue("Total adds up the parts", stats.getTotalBytes() == stats.getNodeBytes()
+            + stats.getChildMapBytes() + stats.getBoxedKeyBytes() + stats.getValueBytes()
+            + stats.getAggregateBytes());
+        assertEquals("Stats match the default walk", stats.toString(), tt_integer.stats().toString());
+    }
+
+    @Test
+    public void testBatchWrites()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        TrieAggregate<Number, Long> sum = TrieAggregates.sum();
+        tt_integer.addAggregate(sum);
+        tt_integer.put("cat", 1);
+
+        ArrayList<Map.Entry<String, Integer>> puts = new ArrayList<Map.Entry<String, Integer>>();
+        puts.add(new AbstractMap.SimpleEntry<String, Integer>("cats", 2));
+        puts.add(new AbstractMap.SimpleEntry<String, Integer>("cat", 10));
+        puts.add(new AbstractMap.SimpleEntry<String, Integer>("ca", 3));
+        puts.add(new AbstractMap.SimpleEntry<String, Integer>("cats", 20));
+        puts.add(new AbstractMap.SimpleEntry<String, Integer>("", 4));
+        puts.add(new AbstractMap.SimpleEntry<String, Integer>(null, 5));
+
+        HashMap<String, Boolean> hm_expected = new HashMap<String, Boolean>();
+        hm_expected.put("cats", true);
+        hm_expected.put("cat", false);
+        hm_expected.put("ca", true);
+        hm_expected.put("", false);
+        hm_expected.put(null, false);
+        assertEquals("putAll reports every key", hm_expected, tt_integer.putAll(puts, 2));
+        assertEquals("First Value of a repeated key is put", 2, (int) tt_integer.get("cats"));
+        assertEquals("Existing key keeps its Value", 1, (int) tt_integer.get("cat"));
+        assertEquals("Tree has 3 keys", 3, tt_integer.size());
+        assertEquals("Prefix \"cat\" counts 2 keys", 2, tt_integer.countWithPrefix("cat"));
+        assertEquals("Sum follows putAll", 6L, (long) tt_integer.aggregate("", sum));
+
+        HashMap<String, Integer> updates = new HashMap<String, Integer>();
+        updates.put("cat", 100);
+        updates.put("dog", 7);
+        hm_expected.clear();
+        hm_expected.put("cat", true);
+        hm_expected.put("dog", false);
+        assertEquals("updateAll reports every key", hm_expected, tt_integer.updateAll(updates));
+        assertEquals("Sum follows updateAll", 105L, (long) tt_integer.aggregate("ca", sum));
+
+        hm_expected.clear();
+        hm_expected.put("cats", true);
+        hm_expected.put("c", false);
+        hm_expected.put("ca", true);
+        assertEquals("removeAll reports every key", hm_expected, tt_integer.removeAll(Arrays.asList("cats", "c", "ca", "ca")));
+        assertEquals("Only \"cat\" is left", Collections.singletonMap("cat", 100), tt_integer.allKeyValues());
+        assertEquals("Removed branches are unlinked", 3, tt_integer.stats().getNodeCount() - 1);
+
+        // Batches must leave exactly the tree that single operations do,
+        // whatever the chunk size.
+        Random random = new Random(35);
+        TrieTree<Integer> tt_single = new TrieTree<Integer>();
+        TrieTree<Integer> tt_batch = new TrieTree<Integer>();
+        tt_batch.addAggregate(sum);
+        for (int round = 0; round < 60; ++round)
+        {
+            ArrayList<Map.Entry<String, Integer>> batch = new ArrayList<Map.Entry<String, Integer>>();
+            ArrayList<String> keys = new ArrayList<String>();
+            HashMap<String, Boolean> hm_single = new HashMap<String, Boolean>();
+            int operation = random.nextInt(3);
+            for (int i = 0; i < 200; ++i)
+            {
+                String key = Integer.toString(random.nextInt(2000), 4);
+                batch.add(new AbstractMap.SimpleEntry<String, Integer>(key, round * 1000 + i));
+                keys.add(key);
+
+                boolean rc = operation == 0 ? tt_single.put(key, round * 1000 + i)
+                           : operation == 1 ? tt_single.update(key, round * 1000 + i) : tt_single.remove(key);
+                hm_single.put(key, rc || Boolean.TRUE.equals(hm_single.get(key)));
+            }
+
+            int keysPerLock = 1 + random.nextInt(64);
+            HashMap<String, Boolean> hm_batch = operation == 0 ? tt_batch.putAll(batch, keysPerLock)
+                                              : operation == 1 ? tt_batch.updateAll(batch, keysPerLock)
+                                              : tt_batch.removeAll(keys, keysPerLock);
+            assertEquals("Round " + round + " outcomes", hm_single, hm_batch);
+        }
+
+        assertEquals("Batched tree has the same entries", tt_single.allKeyValues(), tt_batch.allKeyValues());
+        assertEquals("Batched tree has the same shape", tt_single.stats().getNodeCount(), tt_batch.stats().getNodeCount());
+        long expectedSum = 0;
+        for (int v : tt_single.allKeyValues().values())
+            expectedSum += v;
+        assertEquals("Batched aggregates match", expectedSum, (long) tt_batch.aggregate("", sum));
+        for (int i = 0; i < 64; ++i)
+        {
+            String prefix = Integer.toString(i, 4);
+            assertEquals("Count under \"" + prefix + "\"", tt_single.countWithPrefix(prefix), tt_batch.countWithPrefix(prefix));
+        }
+    }
+
+    @Test
+    public void testGetAll()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        tt_integer.put("cat", 1);
+        tt_integer.put("cats", 2);
+        tt_integer.put("catnap", 3);
+        tt_integer.put("dog", null);
+
+        assertEquals("Empty batch returns no Values", Collections.emptyList(),
+                     tt_integer.getAll(Collections.<String> emptyList()));
+        assertEquals("Values line up with the keys",
+                     Arrays.asList(2, null, 1, null, null, 3, null, 1),
+                     tt_integer.getAll(Arrays.asList("cats", "ca", "cat", null, "", "catnap", "dog", "cat"), 3));
+        BitSet found = new BitSet();
+        tt_integer.getAll(Arrays.asList("cats", "ca", "cat", null, "", "catnap", "dog", "cat"), 3, found);
+        assertEquals("Found keys are marked, null Values included", "{0, 2, 5, 6, 7}", found.toString());
+
+        Random random = new Random(36);
+        for (int i = 0; i < 3000; ++i)
+            tt_integer.put(Integer.toString(random.nextInt(5000), 6), i);
+
+        ArrayList<String> keys = new ArrayList<String>();
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 2000; ++i)
+        {
+            String key = Integer.toString(random.nextInt(6000), 6);
+            keys.add(key);
+            expected.add(tt_integer.get(key));
+        }
+        assertEquals("getAll matches get", expected, tt_integer.getAll(keys));
+        assertEquals("getAll matches get in small chunks", expected, tt_integer.getAll(keys, 7));
+    }
+
+    @Test
+    public void testRemovePrefix()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        TrieAggregate<Number, Long> sum = TrieAggregates.sum();
+        tt_integer.addAggregate(sum);
+        tt_integer.put("ca", 1);
+        tt_integer.put("cat", 2);
+        tt_integer.put("cats", 3);
+        tt_integer.put("catnap", 4);
+        tt_integer.put("dog", 5);
+
+        assertEquals("Null prefix removes nothing", 0, tt_integer.removePrefix(null));
+        assertEquals("Missing prefix removes nothing", 0, tt_integer.removePrefix("catz"));
+        assertEquals("Prefix \"cat\" removes 3 keys", 3, tt_integer.removePrefix("cat"));
+        assertEquals("Tree has 2 keys left", 2, tt_integer.size());
+        assertEquals("\"ca\" is kept", 1, (int) tt_integer.get("ca"));
+        assertFalse("\"cats\" is gone", tt_integer.contains("cats"));
+        assertEquals("Ancestor counts are fixed", 1, tt_integer.countWithPrefix("c"));
+        assertEquals("Ancestor aggregates are fixed", 1L, (long) tt_integer.aggregate("c", sum));
+        assertEquals("Subtree is unlinked", 5, tt_integer.stats().getNodeCount() - 1);
+
+        assertEquals("Prefix \"do\" removes the whole branch", 1, tt_integer.removePrefix("do"));
+        assertEquals("Branch nodes are unlinked", 2, tt_integer.stats().getNodeCount() - 1);
+        assertTrue("Put into a purged branch works", tt_integer.put("dogs", 6));
+        assertEquals("Empty prefix removes every key", 2, tt_integer.removePrefix(""));
+        assertTrue("Tree is empty", tt_integer.isEmpty());
+        assertEquals("Sum of an empty tree is the identity", 0L, (long) tt_integer.aggregate("", sum));
+
+        // Same result as removing every key with the prefix one at a time.
+        Random random = new Random(37);
+        TrieTree<Integer> tt_single = new TrieTree<Integer>();
+        for (int i = 0; i < 4000; ++i)
+        {
+            String key = Integer.toString(random.nextInt(20000), 3);
+            tt_integer.put(key, i);
+            tt_single.put(key, i);
+        }
+        for (String prefix : Arrays.asList("1", "20", "2221", "10"))
+        {
+            long expected = 0;
+            for (String key : tt_single.keyValueCollectionWithPrefix(prefix).keySet())
+                expected += tt_single.remove(key) ? 1 : 0;
+            assertEquals("Prefix \"" + prefix + "\"", expected, tt_integer.removePrefix(prefix));
+        }
+        assertEquals("Same entries as single removes", tt_single.allKeyValues(), tt_integer.allKeyValues());
+        assertEquals("Same shape as single removes", tt_single.stats().getNodeCount(), tt_integer.stats().getNodeCount());
+        assertEquals("Same counts as single removes", tt_single.countWithPrefix("2"), tt_integer.countWithPrefix("2"));
+    }
+
+    @Test
+    public void testPrefixesOf()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        tt_integer.put("a", 1);
+        tt_integer.put("cat", 2);
+        tt_integer.put("catalog", 3);
+        tt_integer.put("catalogue", 4);
+        tt_integer.put("dog", 5);
+
+        assertEquals("Null input has no prefix", null, tt_integer.longestPrefixOf(null));
+        assertEquals("Empty input has no prefix", null, tt_integer.longestPrefixOf(""));
+        assertEquals("Longest prefix of \"catalogs\"", "catalog", tt_integer.longestPrefixOf("catalogs"));
+        assertEquals("Longest prefix of \"catalogue\" is itself", "catalogue", tt_integer.longestPrefixOf("catalogue"));
+        assertEquals("No key is a prefix of \"ca\"", null, tt_integer.longestPrefixOf("ca"));
+        assertEquals("Longest prefix at an offset", "dog", tt_integer.longestPrefixOf("hotdogs", 3));
+        assertEquals("Length of the longest prefix", 3, tt_integer.longestPrefixLength(new StringBuilder("catapult"), 0));
+        assertEquals("Offset at the end matches nothing", 0, tt_integer.longestPrefixLength("cat", 3));
+
+        LinkedHashMap<String, Integer> hm_expected = new LinkedHashMap<String, Integer>();
+        hm_expected.put("cat", 2);
+        hm_expected.put("catalog", 3);
+        hm_expected.put("catalogue", 4);
+        assertEquals("Every prefix of \"catalogues\", shortest first",
+                     new ArrayList<Map.Entry<String, Integer>>(hm_expected.entrySet()),
+                     new ArrayList<Map.Entry<String, Integer>>(tt_integer.prefixesOf("the catalogues", 4).entrySet()));
+        assertTrue("No prefixes of \"zebra\"", tt_integer.prefixesOf("zebra", 0).isEmpty());
+
+        try
+        {
+            tt_integer.prefixesOf("cat", 4);
+            fail("Offset past the end is rejected");
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        tt_integer.put("cat", 1);
+        assertEquals("Tree has no metrics by default", null, tt_integer.getMetrics());
+
+        TrieMetrics metrics = new TrieMetrics();
+        final ArrayList<TrieMetrics.Operation> heard = new ArrayList<TrieMetrics.Operation>();
+        metrics.addListener(new TrieMetricsListener()
+        {
+            public void operationCompleted(TrieMetrics.Operation operation, long latencyNanos,
+                long lockWaitNanos, long lockHoldNanos, long resultSize)
+            {
+                heard.add(operation);
+            }
+        });
+        tt_integer.setMetrics(metrics);
+
+        tt_integer.put("cats", 2);
+        tt_integer.put("dog", 3);
+        tt_integer.get("cat");
+        tt_integer.get("cow");
+        tt_integer.contains("dog");
+        tt_integer.update("dog", 4);
+        tt_integer.remove("dog");
+        tt_integer.keyValueCollectionWithPrefix("ca");
+
+        Map<String, Long> counts = metrics.getOperationCounts();
+        assertEquals("2 puts recorded", 2L, (long) counts.get("PUT"));
+        assertEquals("2 gets recorded", 2L, (long) counts.get("GET"));
+        assertEquals("Put does not count as a contains", 1L, (long) counts.get("CONTAINS"));
+        assertEquals("1 update recorded", 1L, (long) counts.get("UPDATE"));
+        assertEquals("1 remove recorded", 1L, (long) counts.get("REMOVE"));
+        assertEquals("1 prefix collection recorded", 1L, (long) counts.get("PREFIX_COLLECTION"));
+        assertEquals("Result size of prefix \"ca\" is 2", 2, metrics.getResultSizeMax());
+        assertEquals("Every operation waited for the lock", 8, metrics.getLockWait().getCount());
+        assertEquals("Listener hears every operation", 8, heard.size());
+        assertTrue("Latency covers lock hold", metrics.getLatency(TrieMetrics.Operation.GET).getMax() >= 0);
+
+        // Batches are recorded once per lock acquisition.
+        HashMap<String, Integer> hm_batch = new HashMap<String, Integer>();
+        for (int i = 0; i < 5; ++i)
+            hm_batch.put("batch" + i, i);
+        tt_integer.putAll(hm_batch.entrySet(), 2);
+        tt_integer.updateAll(hm_batch.entrySet(), 5);
+        tt_integer.getAll(Arrays.asList("batch0", "batch9", "cat"), 1);
+        tt_integer.removeAll(hm_batch.keySet(), 4);
+        counts = metrics.getOperationCounts();
+        assertEquals("3 chunks of putAll", 3L, (long) counts.get("PUT_ALL"));
+        assertEquals("1 chunk of updateAll", 1L, (long) counts.get("UPDATE_ALL"));
+        assertEquals("3 chunks of getAll", 3L, (long) counts.get("GET_ALL"));
+        assertEquals("2 chunks of removeAll", 2L, (long) counts.get("REMOVE_ALL"));
+        assertEquals("Listener hears every chunk", 17, heard.size());
+        assertEquals("Batches are not prefix collections", 2, metrics.getResultSizeMax());
+
+        metrics.registerMBean("testMetrics");
+        javax.management.ObjectName name = new javax.management.ObjectName(
+            "trietree:type=TrieMetrics,name=\"testMetrics\"");
+        assertTrue("Metrics are visible over JMX",
+                   java.lang.management.ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        metrics.unregisterMBean();
+
+        tt_integer.setMetrics(null);
+        tt_integer.get("cat");
+        assertEquals("Detached metrics record nothing", 2L, (long) metrics.getOperationCounts().get("GET"));
+
+        metrics.reset();
+        assertEquals("Reset clears the counts", 0L, (long) metrics.getOperationCounts().get("PUT"));
+    }
+
+    @Test
+    public void testLatencyHistogram()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals("Empty histogram has no percentiles", 0, histogram.getPercentile(99));
+
+        for (long v = 1; v <= 100000; ++v)
+            histogram.record(v);
+
+        assertEquals("Every value is counted", 100000, histogram.getCount());
+        assertEquals("Max is exact", 100000, histogram.getMax());
+        assertEquals("Mean is exact", 50000.5, histogram.getMean(), 1e-9);
+        LatencyHistogram small = new LatencyHistogram();
+        small.record(10);
+        assertEquals("Small values are exact", 10, small.getPercentile(50));
+        long p50 = histogram.getPercentile(50);
+        long p99 = histogram.getPercentile(99);
+        assertTrue("p50 within 3% (" + p50 + ")", Math.abs(p50 - 50000) <= 1500);
+        assertTrue("p99 within 3% (" + p99 + ")", Math.abs(p99 - 99000) <= 3000);
+    }
+
+    @Test
+    public void testChangeListener()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        final ArrayList<TrieChangeEvent<? extends Integer>> heard = new ArrayList<TrieChangeEvent<? extends Integer>>();
+        TrieChangeListener<Integer> listener = new TrieChangeListener<Integer>()
+        {
+            public void changed(TrieChangeEvent<? extends Integer> event)
+            {
+                heard.add(event);
+            }
+        };
+        tt_integer.addChangeListener(listener);
+
+        tt_integer.put("cat", 1);
+        tt_integer.put("cat", 2);
+        tt_integer.update("cat", 3);
+        tt_integer.update("dog", 4);
+        tt_integer.remove("cat");
+        HashMap<String, Integer> batch = new HashMap<String, Integer>();
+        batch.put("car", 5);
+        batch.put("cab", 6);
+        tt_integer.putAll(batch);
+        tt_integer.removeAll(Arrays.asList("cab", "cow"));
+        tt_integer.removePrefix("ca");
+        tt_integer.removeAll();
+
+        assertEquals("Only changes are heard", 8, heard.size());
+        assertEquals("Put", TrieChangeEvent.Type.PUT, heard.get(0).getType());
+        assertEquals("Update carries the new Value", 3, (int) heard.get(1).getValue());
+        assertEquals("Remove", TrieChangeEvent.Type.REMOVE, heard.get(2).getType());
+        assertEquals("Batches are heard per key, in key order", "cab", heard.get(3).getKey());
+        assertEquals("Batch remove", TrieChangeEvent.Type.REMOVE, heard.get(5).getType());
+        assertEquals("removePrefix carries the prefix", "ca", heard.get(6).getKey());
+        assertEquals("Clear", TrieChangeEvent.Type.CLEAR, heard.get(7).getType());
+        for (int i = 0; i < heard.size(); ++i)
+            assertEquals("Versions follow the modification count", i + 1, heard.get(i).getVersion());
+        assertEquals("Last version is the modification count", tt_integer.modificationCount(), heard.get(7).getVersion());
+
+        assertTrue("REMOVE_PREFIX affects keys under it", heard.get(6).affects("cat"));
+        assertTrue("REMOVE_PREFIX affects shorter prefixes", heard.get(6).affects("c"));
+        assertFalse("REMOVE_PREFIX does not affect other keys", heard.get(6).affects("dog"));
+
+        tt_integer.removeChangeListener(listener);
+        tt_integer.put("cow", 7);
+        assertEquals("Removed listener hears nothing", 8, heard.size());
+    }
+
+    @Test
+    public void testTopKWithPrefix()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        Comparator<Integer> natural = Comparator.naturalOrder();
+        assertTrue("Empty tree has no top keys", tt_integer.topKWithPrefix("", 3, natural).isEmpty());
+
+        tt_integer.put("car", 5);
+        tt_integer.put("cart", 9);
+        tt_integer.put("cat", 7);
+        tt_integer.put("cab", 7);
+        tt_integer.put("cow", 1);
+        tt_integer.put("can", null);
+        tt_integer.put("dog", 100);
+
+        LinkedHashMap<String, Integer> top = tt_integer.topKWithPrefix("ca", 3, natural);
+        assertEquals("Top 3 in rank order, ties in key order", Arrays.asList("cart", "cab", "cat"),
+                     new ArrayList<String>(top.keySet()));
+        assertEquals("Values come along", 9, (int) top.get("cart"));
+        assertEquals("Null Values are skipped", 4, tt_integer.topKWithPrefix("ca", 10, natural).size());
+        assertEquals("Reverse order gives the lowest", "car",
+                     tt_integer.topKWithPrefix("ca", 1, Collections.reverseOrder(natural)).keySet().iterator().next());
+        assertEquals("Empty prefix ranks every key", "dog",
+                     tt_integer.topKWithPrefix("", 1, natural).keySet().iterator().next());
+        assertTrue("k = 0", tt_integer.topKWithPrefix("c", 0, natural).isEmpty());
+        assertTrue("Missing prefix", tt_integer.topKWithPrefix("x", 3, natural).isEmpty());
+
+        // Against sorting every match.
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; ++i)
+            tt_integer.put("k" + random.nextInt(100000), random.nextInt(50));
+        HashMap<String, Integer> all = tt_integer.keyValueCollectionWithPrefix("k1");
+        ArrayList<Map.Entry<String, Integer>> expected = new ArrayList<Map.Entry<String, Integer>>(all.entrySet());
+        Collections.sort(expected, new Comparator<Map.Entry<String, Integer>>()
+        {
+            public int compare(Map.Entry<String, Integer> left, Map.Entry<String, Integer> right)
+            {
+                int c = right.getValue().compareTo(left.getValue());
+                return c != 0 ? c : left.getKey().compareTo(right.getKey());
+            }
+        });
+        ArrayList<Map.Entry<String, Integer>> actual = new ArrayList<Map.Entry<String, Integer>>(
+            tt_integer.topKWithPrefix("k1", 25, natural).entrySet());
+        assertEquals("Same as sorting every match", expected.subList(0, 25), actual);
+
+        // Best first, with a max aggregate.
+        TrieAggregate<Integer, Integer> max = TrieAggregates.max(natural);
+        try
+        {
+            tt_integer.topKWithPrefix("k", 3, max, natural);
+            fail("Unregistered aggregate throws");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+        tt_integer.addAggregate(max);
+        for (String prefix : Arrays.asList("", "c", "ca", "k", "k1", "k12", "x"))
+        {
+            for (int k : new int[] { 0, 1, 3, 25, 5000 })
+                assertEquals("Best first matches the walk for \"" + prefix + "\", " + k,
+                             new ArrayList<Map.Entry<String, Integer>>(tt_integer.topKWithPrefix(prefix, k, natural).entrySet()),
+                             new ArrayList<Map.Entry<String, Integer>>(tt_integer.topKWithPrefix(prefix, k, max, natural).entrySet()));
+        }
+        tt_integer.update("cart", 1);
+        tt_integer.remove("cab");
+        assertEquals("Best first follows writes", Arrays.asList("cat", "car", "cart"),
+                     new ArrayList<String>(tt_integer.topKWithPrefix("ca", 3, max, natural).keySet()));
+    }
+
+    @Test
+    public void testRankedCursor()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        Comparator<Integer> natural = Comparator.naturalOrder();
+        TrieAggregate<Integer, Integer> max = TrieAggregates.max(natural);
+        tt_integer.addAggregate(max);
+
+        Random random = new Random(11);
+        for (int i = 0; i < 3000; ++i)
+            tt_integer.put("w" + random.nextInt(100000), random.nextInt(100));
+        tt_integer.put("wnull", null);
+
+        TrieRankedCursor<Integer> cursor = tt_integer.rankedCursor("w", max, natural);
+        ArrayList<Map.Entry<String, Integer>> paged = new ArrayList<Map.Entry<String, Integer>>();
+        for (int n = 1; cursor.hasNext(); n = n * 2 + 1)
+            paged.addAll(cursor.next(n));
+        assertEquals("Pages add up to every key with a Value", tt_integer.size() - 1, paged.size());
+        assertEquals("Pages in rank order", new ArrayList<Map.Entry<String, Integer>>(
+            tt_integer.topKWithPrefix("w", 5000, natural).entrySet()), paged);
+        assertTrue("Exhausted cursor returns nothing", cursor.next(10).isEmpty());
+
+        TrieRankedCursor<Integer> empty = tt_integer.rankedCursor("x", max, natural);
+        assertFalse("Missing prefix has nothing", empty.hasNext());
+
+        cursor = tt_integer.rankedCursor("w", max, natural);
+        assertEquals("First page", 10, cursor.next(10).size());
+        assertFalse("Not stale before a write", cursor.isStale());
+        tt_integer.put("wx", 1);
+        assertTrue("Stale after a write", cursor.isStale());
+        assertTrue("Stale cursor has next", cursor.hasNext());
+        try
+        {
+            cursor.next(10);
+            fail("Stale cursor throws");
+        }
+        catch (java.util.ConcurrentModificationException e)
+        {
+        }
+    }
+
+    @Test
+    public void testChangeTrackingOptIn()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        tt_integer.put("car", 1);
+        tt_integer.put("cart", 2);
+        long generation = tt_integer.modificationCount();
+        tt_integer.remove("car");
+        tt_integer.removePrefix("x");
+        assertFalse("Tracking is off by default", tt_integer.isChangeTracking());
+        long untracked = tt_integer.stats().getNodeBytes();
+
+        TrieDelta<Integer> delta = tt_integer.changesSince(generation);
+        assertTrue("Untracked trees only give full deltas", delta.isFull());
+        assertTrue("No tombstones", delta.getRemovedKeys().isEmpty());
+        assertEquals("Full delta holds the tree", tt_integer.allKeyValues(), new HashMap<String, Integer>(delta.getEntries()));
+
+        tt_integer.enableChangeTracking();
+        assertTrue("Tracking is on", tt_integer.isChangeTracking());
+        assertEquals("Tracked nodes cost 16 more bytes", untracked + 16 * tt_integer.stats().getNodeCount(),
+                     tt_integer.stats().getNodeBytes());
+        assertEquals("Keys are kept", 2, (int) tt_integer.get("cart"));
+        assertTrue("Deltas from before tracking are full", tt_integer.changesSince(generation).isFull());
+
+        generation = tt_integer.modificationCount();
+        assertTrue("Nothing since tracking started", tt_integer.changesSince(generation).isEmpty());
+        tt_integer.put("cat", 3);
+        tt_integer.remove("cart");
+        tt_integer.enableChangeTracking();
+        delta = tt_integer.changesSince(generation);
+        assertFalse("Partial delta once tracked", delta.isFull());
+        assertEquals("Put after tracking", Arrays.asList("cat"), new ArrayList<String>(delta.getEntries().keySet()));
+        assertEquals("Remove after tracking", Arrays.asList("cart"), delta.getRemovedKeys());
+    }
+
+    @Test
+    public void testChangesSince()
+    {
+        TrieTree<Integer> tt_integer = new TrieTree<Integer>();
+        tt_integer.enableChangeTracking();
+        TrieTree<Integer> copy = new TrieTree<Integer>();
+        assertTrue("Nothing changed", tt_integer.changesSince(0).isEmpty());
+
+        tt_integer.put("car", 1);
+        tt_integer.put("cart", 2);
+        tt_integer.put("dog", 3);
+        long generation = applyDelta(tt_integer.changesSince(0), copy);
+        assertEquals("Copy caught up", tt_integer.allKeyValues(), copy.allKeyValues());
+
+        tt_integer.update("cart", 20);
+        tt_integer.remove("car");
+        tt_integer.put("cat", 4);
+        TrieDelta<Integer> delta = tt_integer.changesSince(generation);
+        assertFalse("Partial delta", delta.isFull());
+        assertEquals("Only the changed entries", Arrays.asList("cart", "cat"),
+                     new ArrayList<String>(delta.getEntries().keySet()));
+        assertEquals("Tombstone for the removal", Arrays.asList("car"), delta.getRemovedKeys());
+        generation = applyDelta(delta, copy);
+        assertEquals("Copy follows", tt_integer.allKeyValues(), copy.allKeyValues());
+        assertTrue("Nothing since", tt_integer.changesSince(generation).isEmpty());
+
+        Random random = new Random(5);
+        for (int round = 0; round < 50; ++round)
+        {
+            for (int i = 0; i < 40; ++i)
+            {
+                String key = "k" + random.nextInt(300);
+                int op = random.nextInt(10);
+                if (op < 4)
+                    tt_integer.put(key, i);
+                else if (op < 7)
+                    tt_integer.update(key, round * 100 + i);
+                else if (op < 9)
+                    tt_integer.remove(key);
+                else
+                    tt_integer.removePrefix(key.substring(0, Math.min(3, key.length())));
+            }
+            HashMap<String, Integer> batch = new HashMap<String, Integer>();
+            for (int i = 0; i < 10; ++i)
+                batch.put("k" + random.nextInt(300), i);
+            tt_integer.putAll(batch);
+            tt_integer.removeAll(Arrays.asList("k" + random.nextInt(300), "k" + random.nextInt(300)));
+            if (round == 20)
+                tt_integer.removeAll();
+            if (round == 30)
+                tt_integer.purgeTombstones(tt_integer.modificationCount() - 10);
+
+            delta = tt_integer.changesSince(generation);
+            assertEquals("Full only after a clear or a purge", round == 20 || round == 30, delta.isFull());
+            generation = applyDelta(delta, copy);
+            assertEquals("Copy follows round " + round, tt_integer.allKeyValues(), copy.allKeyValues());
+        }
+
+        try
+        {
+            tt_integer.changesSince(tt_integer.modificationCount() + 1);
+            fail("Future generation");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+
+    // Applies a delta to a copy and returns its generation.
+    private static long applyDelta(TrieDelta<Integer> delta, TrieTree<Integer> copy)
+    {
+        if (delta.isFull())
+            copy.removeAll();
+        for (String prefix : delta.getRemovedPrefixes())
+            copy.removePrefix(prefix);
+        for (String key : delta.getRemovedKeys())
+            copy.remove(key);
+        for (Map.Entry<String, Integer> entry : delta.getEntries().entrySet())
+        {
+            if (!copy.put(entry.getKey(), entry.getValue()))
+                copy.update(entry.getKey(), entry.getValue());
+        }
+
+        return delta.getToGeneration();
+    }
+}
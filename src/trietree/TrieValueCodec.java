@@ -0,0 +1,23 @@
+package trietree;
+
+/**
+ * Converts the Values of an OffHeapTrieTree to and from the 64 bits stored
+ * inline in each node record. Null Values are stored by the tree itself and
+ * never reach the codec.
+ */
+public interface TrieValueCodec<Value>
+{
+    /**
+     * @param value
+     *            Non-null Value to store.
+     * @return Bits of the Value.
+     */
+    long encode(Value value);
+
+    /**
+     * @param bits
+     *            Bits returned by encode.
+     * @return The Value.
+     */
+    Value decode(long bits);
+}
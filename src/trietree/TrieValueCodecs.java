@@ -0,0 +1,68 @@
+package trietree;
+
+/**
+ * Common codecs for OffHeapTrieTree Values.
+ */
+public final class TrieValueCodecs
+{
+    private TrieValueCodecs()
+    {
+    }
+
+    /**
+     * @return Codec for Integer Values.
+     */
+    public static TrieValueCodec<Integer> integers()
+    {
+        return new TrieValueCodec<Integer>()
+        {
+            public long encode(Integer value)
+            {
+                return value.longValue();
+            }
+
+            public Integer decode(long bits)
+            {
+                return (int) bits;
+            }
+        };
+    }
+
+    /**
+     * @return Codec for Long Values.
+     */
+    public static TrieValueCodec<Long> longs()
+    {
+        return new TrieValueCodec<Long>()
+        {
+            public long encode(Long value)
+            {
+                return value.longValue();
+            }
+
+            public Long decode(long bits)
+            {
+                return bits;
+            }
+        };
+    }
+
+    /**
+     * @return Codec for Double Values, stored by their raw bits.
+     */
+    public static TrieValueCodec<Double> doubles()
+    {
+        return new TrieValueCodec<Double>()
+        {
+            public long encode(Double value)
+            {
+                return Double.doubleToRawLongBits(value);
+            }
+
+            public Double decode(long bits)
+            {
+                return Double.longBitsToDouble(bits);
+            }
+        };
+    }
+}
@@ -0,0 +1,17 @@
+package trietree;
+
+/**
+ * Weighs the entries of a BoundedTrieTree against its capacity.
+ */
+public interface TrieWeigher<Value>
+{
+    /**
+     * @param key
+     *            Key of the entry.
+     * @param value
+     *            Value of the entry. May be null.
+     * @return Non-negative weight of the entry, such as 1 for an entry limit
+     *         or an estimate of its bytes for a memory limit.
+     */
+    long weigh(String key, Value value);
+}